@@ -0,0 +1,180 @@
+package com.verivital.hyst.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.verivital.hyst.generators.NavigationGenerator;
+import com.verivital.hyst.ir.Configuration;
+
+/**
+ * Inputs shared by the benchmarks: the regression models and generated
+ * automata of a given size
+ */
+public class BenchModels
+{
+	public static final String REGRESSION_DIR = "tests/regression/models";
+
+	/**
+	 * Get the regression models which have a .cfg file next to them
+	 *
+	 * @return the xml paths, sorted
+	 */
+	public static String[] regressionModels()
+	{
+		ArrayList<String> rv = new ArrayList<String>();
+		File[] dirs = new File(REGRESSION_DIR).listFiles();
+
+		if (dirs == null)
+			throw new RuntimeException("Regression models not found (run from the src directory): "
+					+ REGRESSION_DIR);
+
+		Arrays.sort(dirs);
+
+		for (File dir : dirs)
+		{
+			File[] files = dir.listFiles();
+
+			if (files == null)
+				continue;
+
+			Arrays.sort(files);
+
+			for (File f : files)
+			{
+				if (f.getName().endsWith(".xml") && new File(cfgFor(f.getPath())).exists())
+					rv.add(f.getPath());
+			}
+		}
+
+		return rv.toArray(new String[rv.size()]);
+	}
+
+	/**
+	 * Get the .cfg filename which Hyst would use for an .xml file
+	 */
+	public static String cfgFor(String xml)
+	{
+		return xml.substring(0, xml.length() - 4) + ".cfg";
+	}
+
+	/**
+	 * Generate a navigation benchmark with width * width modes, with random
+	 * (but repeatable) target velocities. The last cell is the target 'A' and
+	 * the one before it is the forbidden 'B'.
+	 */
+	public static Configuration navigation(int width)
+	{
+		Random r = new Random(width);
+		StringBuilder iList = new StringBuilder();
+		int size = width * width;
+
+		for (int i = 0; i < size - 2; ++i)
+			iList.append(' ').append(r.nextInt(8));
+
+		iList.append(" B A");
+
+		String params = "-matrix -1.2 0.1 0.1 -1.2 -i_list" + iList + " -width " + width
+				+ " -startx 0.5 -starty 0.5";
+
+		Configuration c = new NavigationGenerator().generate(params);
+		c.settings.spaceExConfig.systemID = "nav";
+
+		return c;
+	}
+
+	/**
+	 * Write a network of identical ring automata (each with a clock that moves
+	 * it to the next mode) to a temporary .xml / .cfg pair. Flattening it
+	 * gives modes^instances modes.
+	 *
+	 * @return the path of the .xml file
+	 */
+	public static String writeRingNetwork(int instances, int modes) throws IOException
+	{
+		File xml = File.createTempFile("hyst_bench_ring", ".xml");
+		File cfg = new File(cfgFor(xml.getPath()));
+		xml.deleteOnExit();
+		cfg.deleteOnExit();
+
+		StringBuilder s = new StringBuilder();
+		s.append("<?xml version=\"1.0\" encoding=\"iso-8859-1\"?>\n");
+		s.append("<sspaceex xmlns=\"http://www-verimag.imag.fr/xml-namespaces/sspaceex\" "
+				+ "version=\"0.2\" math=\"SpaceEx\">\n");
+		s.append("  <component id=\"ring\">\n");
+		s.append(param("x", "any"));
+		s.append(param("t", "any"));
+
+		for (int m = 0; m < modes; ++m)
+		{
+			s.append("    <location id=\"" + (m + 1) + "\" name=\"m" + m + "\">\n");
+			s.append("      <invariant>x &lt;= " + (m + 1) + "</invariant>\n");
+			s.append("      <flow>x' == 1 &amp; t' == 1</flow>\n");
+			s.append("    </location>\n");
+		}
+
+		for (int m = 0; m < modes; ++m)
+		{
+			s.append("    <transition source=\"" + (m + 1) + "\" target=\"" + ((m + 1) % modes + 1)
+					+ "\">\n");
+			s.append("      <guard>x &gt;= " + (m + 1) + "</guard>\n");
+			s.append("      <assignment>x' == 0</assignment>\n");
+			s.append("    </transition>\n");
+		}
+
+		s.append("  </component>\n");
+		s.append("  <component id=\"system\">\n");
+
+		for (int i = 1; i <= instances; ++i)
+			s.append(param("x" + i, "any"));
+
+		s.append(param("t", "any"));
+
+		for (int i = 1; i <= instances; ++i)
+		{
+			s.append("    <bind component=\"ring\" as=\"r" + i + "\">\n");
+			s.append("      <map key=\"x\">x" + i + "</map>\n");
+			s.append("      <map key=\"t\">t</map>\n");
+			s.append("    </bind>\n");
+		}
+
+		s.append("  </component>\n");
+		s.append("</sspaceex>\n");
+		write(xml, s.toString());
+
+		StringBuilder init = new StringBuilder("t == 0");
+
+		for (int i = 1; i <= instances; ++i)
+			init.append(" & x" + i + " == 0 & loc(r" + i + ") == m0");
+
+		write(cfg, "system = system\ninitially = \"" + init + "\"\n"
+				+ "forbidden = \"t >= 100\"\ntime-horizon = 10\n");
+
+		return xml.getPath();
+	}
+
+	private static String param(String name, String dynamics)
+	{
+		return "    <param name=\"" + name + "\" type=\"real\" d1=\"1\" d2=\"1\" local=\"false\" "
+				+ "dynamics=\"" + dynamics + "\" controlled=\"true\" />\n";
+	}
+
+	private static void write(File f, String text) throws IOException
+	{
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "ISO-8859-1");
+
+		try
+		{
+			w.write(text);
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+}
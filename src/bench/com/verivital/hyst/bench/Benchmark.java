@@ -0,0 +1,93 @@
+package com.verivital.hyst.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single benchmark, run by the BenchmarkRunner. setup() is called once,
+ * then the runner calls prepare() and run() repeatedly, timing only run().
+ * Whatever run() returns is kept by the runner, so the work isn't optimized
+ * away.
+ */
+public abstract class Benchmark
+{
+	public enum Mode
+	{
+		THROUGHPUT, // operations per second
+		AVERAGE_TIME, // milliseconds per operation
+	};
+
+	private final String name;
+	private final LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+
+	/**
+	 * @param name
+	 *            the benchmark name, like "Printers.print"
+	 */
+	protected Benchmark(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Add a parameter, which distinguishes benchmarks with the same name
+	 */
+	protected void param(String key, Object value)
+	{
+		params.put(key, String.valueOf(value));
+	}
+
+	public Map<String, String> getParams()
+	{
+		return params;
+	}
+
+	/**
+	 * Get the name along with the parameters, like "Printers.print:printer=-flowstar"
+	 */
+	public String getFullName()
+	{
+		StringBuilder rv = new StringBuilder(name);
+		char sep = ':';
+
+		for (Map.Entry<String, String> e : params.entrySet())
+		{
+			rv.append(sep).append(e.getKey()).append('=').append(e.getValue());
+			sep = ',';
+		}
+
+		return rv.toString();
+	}
+
+	public Mode getMode()
+	{
+		return Mode.AVERAGE_TIME;
+	}
+
+	/**
+	 * Create the inputs, called once before any iteration
+	 */
+	public void setup() throws Exception
+	{
+	}
+
+	/**
+	 * Create fresh state before each operation, for benchmarks which modify
+	 * their input. This isn't timed.
+	 */
+	public void prepare() throws Exception
+	{
+	}
+
+	/**
+	 * Run one operation
+	 *
+	 * @return the result, so it isn't optimized away
+	 */
+	public abstract Object run() throws Exception;
+}
@@ -0,0 +1,394 @@
+package com.verivital.hyst.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.printers.BinaryPrinter;
+import com.verivital.hyst.printers.DReachPrinter;
+import com.verivital.hyst.printers.FlowstarPrinter;
+import com.verivital.hyst.printers.HyCompPrinter;
+import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.printers.PythonQBMCPrinter;
+import com.verivital.hyst.printers.SimulinkStateflowPrinter;
+import com.verivital.hyst.printers.SpaceExPrinter;
+import com.verivital.hyst.printers.ToolPrinter;
+import com.verivital.hyst.printers.hycreate2.HyCreate2Printer;
+
+/**
+ * Runs the performance benchmarks (the "bench" target in build.xml), in the
+ * manner of JMH: each benchmark gets some warm-up iterations, then
+ * measurement iterations of a fixed duration, and the mean score is reported
+ * with its 99.9% confidence interval. Results are printed as a table and can
+ * be written as JSON in JMH's result format, so they can be tracked over time
+ * with the same tools.
+ *
+ * Usage: BenchmarkRunner [-wi n] [-i n] [-t seconds] [-json file] [-list]
+ * [regex]. The regex selects benchmarks by their full name, like
+ * "Printers.print:printer=-flowstar,modes=1600". It must be run from the src
+ * directory, to find the regression models.
+ */
+public class BenchmarkRunner
+{
+	private static final ToolPrinter[] printers = { new FlowstarPrinter(), new DReachPrinter(),
+			new HyCreate2Printer(), new HyCompPrinter(), new PythonQBMCPrinter(),
+			new SpaceExPrinter(), new SimulinkStateflowPrinter(), new PySimPrinter(),
+			new BinaryPrinter(), };
+
+	// two-sided 99.9% student's t values, by degrees of freedom
+	private static final double[] T_999 = { Double.NaN, 636.62, 31.60, 12.92, 8.61, 6.87, 5.96,
+			5.41, 5.04, 4.78, 4.59, 4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85 };
+
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private double iterationSeconds = 1;
+	private volatile Object sink; // keeps benchmark results alive
+
+	/**
+	 * Create all the benchmarks
+	 */
+	public static ArrayList<Benchmark> createBenchmarks()
+	{
+		ArrayList<Benchmark> rv = new ArrayList<Benchmark>();
+
+		for (FormulaParserBenchmark.Kind k : FormulaParserBenchmark.Kind.values())
+			rv.add(new FormulaParserBenchmark(k));
+
+		for (String xml : BenchModels.regressionModels())
+		{
+			rv.add(new ImportBenchmark(xml, true));
+			rv.add(new ImportBenchmark(xml, false));
+		}
+
+		rv.add(PassBenchmark.flatten(3, 8));
+		rv.add(PassBenchmark.flatten(4, 6));
+		rv.add(PassBenchmark.simplify(40));
+		rv.add(new IntervalBenchmark());
+
+		for (ToolPrinter p : printers)
+			rv.add(new PrinterBenchmark(p, 40));
+
+		return rv;
+	}
+
+	/**
+	 * The result of one benchmark
+	 */
+	public static class Result
+	{
+		public final Benchmark benchmark;
+		public final double[] scores; // one for each measurement iteration
+
+		public Result(Benchmark benchmark, double[] scores)
+		{
+			this.benchmark = benchmark;
+			this.scores = scores;
+		}
+
+		public double getScore()
+		{
+			double sum = 0;
+
+			for (double d : scores)
+				sum += d;
+
+			return sum / scores.length;
+		}
+
+		/**
+		 * Get the half-width of the 99.9% confidence interval (NaN for a
+		 * single iteration)
+		 */
+		public double getError()
+		{
+			int n = scores.length;
+
+			if (n < 2)
+				return Double.NaN;
+
+			double mean = getScore();
+			double sumSq = 0;
+
+			for (double d : scores)
+				sumSq += (d - mean) * (d - mean);
+
+			double t = n - 1 < T_999.length ? T_999[n - 1] : 3.29;
+
+			return t * Math.sqrt(sumSq / (n - 1)) / Math.sqrt(n);
+		}
+
+		public String getUnit()
+		{
+			return benchmark.getMode() == Benchmark.Mode.THROUGHPUT ? "ops/s" : "ms/op";
+		}
+	}
+
+	/**
+	 * Run one benchmark
+	 *
+	 * @return the result, with a score for each measurement iteration
+	 */
+	public Result run(Benchmark b) throws Exception
+	{
+		b.setup();
+
+		for (int i = 0; i < warmupIterations; ++i)
+			iteration(b);
+
+		double[] scores = new double[iterations];
+
+		for (int i = 0; i < iterations; ++i)
+			scores[i] = iteration(b);
+
+		return new Result(b, scores);
+	}
+
+	private double iteration(Benchmark b) throws Exception
+	{
+		System.gc();
+
+		long endNanos = System.nanoTime() + (long) (iterationSeconds * 1e9);
+		long timedNanos = 0;
+		long ops = 0;
+
+		do
+		{
+			b.prepare();
+
+			long start = System.nanoTime();
+			sink = b.run();
+			timedNanos += System.nanoTime() - start;
+			++ops;
+		} while (System.nanoTime() < endNanos);
+
+		sink = null;
+
+		if (b.getMode() == Benchmark.Mode.THROUGHPUT)
+			return ops / (timedNanos / 1e9);
+
+		return timedNanos / 1e6 / ops;
+	}
+
+	/**
+	 * Write results in JMH's JSON result format
+	 */
+	public void writeJson(ArrayList<Result> results, String filename) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(filename),
+				"UTF-8"));
+
+		try
+		{
+			out.println("[");
+
+			for (int i = 0; i < results.size(); ++i)
+			{
+				Result r = results.get(i);
+				Benchmark b = r.benchmark;
+				double score = r.getScore();
+				double error = r.getError();
+
+				out.println("    {");
+				out.println("        \"benchmark\" : " + quote(b.getName()) + ",");
+				out.println("        \"mode\" : "
+						+ quote(b.getMode() == Benchmark.Mode.THROUGHPUT ? "thrpt" : "avgt") + ",");
+				out.println("        \"threads\" : 1,");
+				out.println("        \"forks\" : 0,");
+				out.println("        \"jvm\" : " + quote(System.getProperty("java.home")) + ",");
+				out.println("        \"jdkVersion\" : " + quote(System.getProperty("java.version"))
+						+ ",");
+				out.println("        \"vmName\" : " + quote(System.getProperty("java.vm.name"))
+						+ ",");
+				out.println("        \"hystVersion\" : " + quote(Hyst.TOOL_NAME) + ",");
+				out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+				out.println("        \"warmupTime\" : " + quote(iterationSeconds + " s") + ",");
+				out.println("        \"measurementIterations\" : " + iterations + ",");
+				out.println("        \"measurementTime\" : " + quote(iterationSeconds + " s") + ",");
+
+				StringBuilder params = new StringBuilder();
+
+				for (Map.Entry<String, String> e : b.getParams().entrySet())
+				{
+					if (params.length() > 0)
+						params.append(", ");
+
+					params.append(quote(e.getKey())).append(" : ").append(quote(e.getValue()));
+				}
+
+				out.println("        \"params\" : { " + params + " },");
+				out.println("        \"primaryMetric\" : {");
+				out.println("            \"score\" : " + number(score) + ",");
+				out.println("            \"scoreError\" : " + number(error) + ",");
+				out.println("            \"scoreConfidence\" : [ " + number(score - error) + ", "
+						+ number(score + error) + " ],");
+				out.println("            \"scoreUnit\" : " + quote(r.getUnit()) + ",");
+
+				StringBuilder raw = new StringBuilder();
+
+				for (double d : r.scores)
+				{
+					if (raw.length() > 0)
+						raw.append(", ");
+
+					raw.append(number(d));
+				}
+
+				out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+				out.println("        },");
+				out.println("        \"secondaryMetrics\" : { }");
+				out.println(i + 1 < results.size() ? "    }," : "    }");
+			}
+
+			out.println("]");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static String quote(String s)
+	{
+		StringBuilder rv = new StringBuilder("\"");
+
+		for (int i = 0; i < s.length(); ++i)
+		{
+			char c = s.charAt(i);
+
+			if (c == '"' || c == '\\')
+				rv.append('\\').append(c);
+			else if (c < ' ')
+				rv.append(String.format("\\u%04x", (int) c));
+			else
+				rv.append(c);
+		}
+
+		return rv.append('"').toString();
+	}
+
+	/**
+	 * JSON has no NaN, so it's written as a string (as JMH does)
+	 */
+	private static String number(double d)
+	{
+		if (Double.isNaN(d) || Double.isInfinite(d))
+			return "\"NaN\"";
+
+		return String.format(Locale.ROOT, "%.6g", d);
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: BenchmarkRunner [-wi n] [-i n] [-t seconds] [-json file] "
+				+ "[-list] [regex]");
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		BenchmarkRunner runner = new BenchmarkRunner();
+		String jsonFilename = null;
+		Pattern filter = null;
+		boolean list = false;
+
+		try
+		{
+			for (int i = 0; i < args.length; ++i)
+			{
+				if (args[i].equals("-wi") && i + 1 < args.length)
+					runner.warmupIterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-i") && i + 1 < args.length)
+					runner.iterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-t") && i + 1 < args.length)
+					runner.iterationSeconds = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-json") && i + 1 < args.length)
+					jsonFilename = args[++i];
+				else if (args[i].equals("-list"))
+					list = true;
+				else if (!args[i].startsWith("-") && filter == null)
+					filter = Pattern.compile(args[i]);
+				else
+				{
+					usage();
+					System.exit(1);
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		if (runner.iterations < 1 || runner.warmupIterations < 0 || runner.iterationSeconds <= 0)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		ArrayList<Result> results = new ArrayList<Result>();
+		int failed = 0;
+
+		for (Benchmark b : createBenchmarks())
+		{
+			String name = b.getFullName();
+
+			if (filter != null && !filter.matcher(name).find())
+				continue;
+
+			if (list)
+			{
+				System.out.println(name);
+				continue;
+			}
+
+			System.out.println("# " + name);
+
+			try
+			{
+				Result r = runner.run(b);
+				results.add(r);
+
+				System.out.println(String.format(Locale.ROOT, "  %.3f +- %.3f %s", r.getScore(),
+						r.getError(), r.getUnit()));
+			}
+			catch (Exception e)
+			{
+				System.out.println("  failed: " + e);
+				++failed;
+			}
+		}
+
+		if (list)
+			return;
+
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-70s %6s %14s %12s  %s", "Benchmark",
+				"Mode", "Score", "Error", "Units"));
+
+		for (Result r : results)
+		{
+			System.out.println(String.format(Locale.ROOT, "%-70s %6s %14.3f %12.3f  %s",
+					r.benchmark.getFullName(),
+					r.benchmark.getMode() == Benchmark.Mode.THROUGHPUT ? "thrpt" : "avgt",
+					r.getScore(), r.getError(), r.getUnit()));
+		}
+
+		if (jsonFilename != null)
+		{
+			runner.writeJson(results, jsonFilename);
+			System.out.println("\nResults written to " + jsonFilename);
+		}
+
+		if (failed > 0)
+		{
+			System.out.println(failed + " benchmark(s) failed");
+			System.exit(1);
+		}
+	}
+}
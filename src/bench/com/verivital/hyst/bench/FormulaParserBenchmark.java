@@ -0,0 +1,146 @@
+package com.verivital.hyst.bench;
+
+import java.util.ArrayList;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.importer.SpaceExImporter;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
+
+/**
+ * Parse rate of FormulaParser, for each kind of expression in the regression
+ * models and a generated navigation model. Each operation parses one
+ * expression, going round the corpus.
+ */
+public class FormulaParserBenchmark extends Benchmark
+{
+	public enum Kind
+	{
+		FLOW, INVARIANT, GUARD, RESET
+	};
+
+	private final Kind kind;
+	private String[] corpus;
+	private int next = 0;
+
+	public FormulaParserBenchmark(Kind kind)
+	{
+		super("FormulaParser.parse");
+		this.kind = kind;
+		param("kind", kind.name().toLowerCase());
+	}
+
+	@Override
+	public Mode getMode()
+	{
+		return Mode.THROUGHPUT;
+	}
+
+	@Override
+	public void setup()
+	{
+		ArrayList<String> strings = new ArrayList<String>();
+
+		for (String xml : BenchModels.regressionModels())
+		{
+			Configuration c = SpaceExImporter.importConfiguration(BenchModels.cfgFor(xml), xml);
+			FlattenAutomatonPass.flattenAndOptimize(c);
+			addStrings((BaseComponent) c.root, strings);
+		}
+
+		addStrings((BaseComponent) BenchModels.navigation(10).root, strings);
+
+		corpus = strings.toArray(new String[strings.size()]);
+
+		// make sure everything parses before timing it
+		for (String s : corpus)
+			parse(s);
+	}
+
+	private void addStrings(BaseComponent ha, ArrayList<String> rv)
+	{
+		if (kind == Kind.FLOW || kind == Kind.INVARIANT)
+		{
+			for (AutomatonMode am : ha.modes.values())
+			{
+				if (kind == Kind.INVARIANT)
+					rv.add(am.invariant.toDefaultString());
+				else if (am.flowDynamics != null)
+				{
+					String s = assignments(am.flowDynamics.entrySet());
+
+					if (s != null)
+						rv.add(s);
+				}
+			}
+		}
+		else
+		{
+			for (AutomatonTransition at : ha.transitions)
+			{
+				if (kind == Kind.GUARD)
+					rv.add(at.guard.toDefaultString());
+				else
+				{
+					String s = assignments(at.reset.entrySet());
+
+					if (s != null)
+						rv.add(s);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make a conjunction like "x' == e1 & y' == e2" from a flow or reset,
+	 * skipping nondeterministic ones
+	 */
+	private static String assignments(Iterable<Entry<String, ExpressionInterval>> entries)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		for (Entry<String, ExpressionInterval> e : entries)
+		{
+			if (e.getValue().getInterval() != null)
+				return null;
+
+			if (rv.length() > 0)
+				rv.append(" & ");
+
+			rv.append(e.getKey()).append("' == ")
+					.append(e.getValue().getExpression().toDefaultString());
+		}
+
+		return rv.length() == 0 ? null : rv.toString();
+	}
+
+	private Expression parse(String s)
+	{
+		switch (kind)
+		{
+		case FLOW:
+			return FormulaParser.parseFlow(s);
+		case INVARIANT:
+			return FormulaParser.parseInvariant(s);
+		case GUARD:
+			return FormulaParser.parseGuard(s);
+		default:
+			return FormulaParser.parseReset(s);
+		}
+	}
+
+	@Override
+	public Object run()
+	{
+		String s = corpus[next];
+		next = (next + 1) % corpus.length;
+
+		return parse(s);
+	}
+}
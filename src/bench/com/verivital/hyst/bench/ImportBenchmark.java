@@ -0,0 +1,45 @@
+package com.verivital.hyst.bench;
+
+import java.util.Map;
+
+import com.verivital.hyst.importer.ConfigurationMaker;
+import com.verivital.hyst.importer.SpaceExImporter;
+import com.verivital.hyst.importer.TemplateImporter;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
+
+/**
+ * Importing a regression model, either in stages (SpaceExImporter,
+ * TemplateImporter, ConfigurationMaker) or with the fused
+ * SpaceExImporter.importConfiguration() that Hyst uses
+ */
+public class ImportBenchmark extends Benchmark
+{
+	private final String xml;
+	private final String cfg;
+	private final boolean staged;
+
+	public ImportBenchmark(String xml, boolean staged)
+	{
+		super(staged ? "Import.staged" : "Import.fused");
+		this.xml = xml;
+		this.cfg = BenchModels.cfgFor(xml);
+		this.staged = staged;
+		param("model", xml.substring(BenchModels.REGRESSION_DIR.length() + 1));
+	}
+
+	@Override
+	public Object run()
+	{
+		if (!staged)
+			return SpaceExImporter.importConfiguration(cfg, xml);
+
+		SpaceExDocument doc = SpaceExImporter.importModels(cfg, xml);
+		Map<String, Component> templates = TemplateImporter.createComponentTemplates(doc);
+		Configuration c = ConfigurationMaker.fromSpaceEx(doc, templates);
+
+		return c;
+	}
+}
@@ -0,0 +1,98 @@
+package com.verivital.hyst.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.importer.SpaceExImporter;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
+
+/**
+ * Rate of Interval.intervalEvaluate() on the flow expressions of the
+ * regression models and a generated navigation model, with every variable in
+ * [-1, 2] and constants at their values. Each operation evaluates one
+ * expression, going round the corpus.
+ */
+public class IntervalBenchmark extends Benchmark
+{
+	private final ArrayList<Expression> expressions = new ArrayList<Expression>();
+	private final ArrayList<Map<String, Interval>> ranges = new ArrayList<Map<String, Interval>>();
+	private int next = 0;
+
+	public IntervalBenchmark()
+	{
+		super("Interval.intervalEvaluate");
+	}
+
+	@Override
+	public Mode getMode()
+	{
+		return Mode.THROUGHPUT;
+	}
+
+	@Override
+	public void setup()
+	{
+		for (String xml : BenchModels.regressionModels())
+		{
+			Configuration c = SpaceExImporter.importConfiguration(BenchModels.cfgFor(xml), xml);
+			FlattenAutomatonPass.flattenAndOptimize(c);
+			add((BaseComponent) c.root);
+		}
+
+		add((BaseComponent) BenchModels.navigation(10).root);
+	}
+
+	private void add(BaseComponent ha)
+	{
+		Map<String, Interval> r = new HashMap<String, Interval>(ha.constants);
+
+		for (String v : ha.variables)
+			r.put(v, new Interval(-1, 2));
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			if (am.flowDynamics == null)
+				continue;
+
+			for (ExpressionInterval ei : am.flowDynamics.values())
+			{
+				Expression e = ei.getExpression();
+
+				try
+				{
+					// skip what interval arithmetic doesn't support (like
+					// lookup tables) or divides by zero
+					Interval.intervalEvaluate(e, r);
+				}
+				catch (AutomatonExportException ex)
+				{
+					continue;
+				}
+				catch (ArithmeticException ex)
+				{
+					continue;
+				}
+
+				expressions.add(e);
+				ranges.add(r);
+			}
+		}
+	}
+
+	@Override
+	public Object run()
+	{
+		int i = next;
+		next = (next + 1) % expressions.size();
+
+		return Interval.intervalEvaluate(expressions.get(i), ranges.get(i));
+	}
+}
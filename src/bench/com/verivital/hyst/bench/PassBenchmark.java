@@ -0,0 +1,80 @@
+package com.verivital.hyst.bench;
+
+import com.verivital.hyst.importer.SpaceExImporter;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
+
+/**
+ * Running a transformation pass: FlattenAutomatonPass on a generated network
+ * of rings, or SimplifyExpressionsPass on a generated navigation model. Each
+ * operation runs on a fresh copy of the model.
+ */
+public class PassBenchmark extends Benchmark
+{
+	private final TransformationPass prototype;
+	private final int instances; // number of rings, or 0 for a navigation model
+	private final int size; // modes in each ring, or the navigation width
+	private Configuration model;
+	private Configuration input;
+
+	private PassBenchmark(String name, TransformationPass pass, int instances, int size)
+	{
+		super(name);
+		this.prototype = pass;
+		this.instances = instances;
+		this.size = size;
+	}
+
+	/**
+	 * Flatten a network of identical rings, giving modes^instances modes
+	 */
+	public static PassBenchmark flatten(int instances, int modes)
+	{
+		PassBenchmark rv = new PassBenchmark("Passes.flatten", new FlattenAutomatonPass(),
+				instances, modes);
+		rv.param("network", instances + "x" + modes);
+
+		return rv;
+	}
+
+	/**
+	 * Simplify the expressions of a navigation model with width * width modes
+	 */
+	public static PassBenchmark simplify(int width)
+	{
+		PassBenchmark rv = new PassBenchmark("Passes.simplify", new SimplifyExpressionsPass(), 0,
+				width);
+		rv.param("modes", width * width);
+
+		return rv;
+	}
+
+	@Override
+	public void setup() throws Exception
+	{
+		if (instances > 0)
+		{
+			String xml = BenchModels.writeRingNetwork(instances, size);
+			model = SpaceExImporter.importConfiguration(BenchModels.cfgFor(xml), xml);
+		}
+		else
+			model = BenchModels.navigation(size);
+	}
+
+	@Override
+	public void prepare()
+	{
+		input = model.copy();
+	}
+
+	@Override
+	public Object run() throws Exception
+	{
+		TransformationPass pass = prototype.getClass().getConstructor().newInstance();
+		pass.runTransformationPass(input, "");
+
+		return input;
+	}
+}
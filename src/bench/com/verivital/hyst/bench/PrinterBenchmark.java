@@ -0,0 +1,59 @@
+package com.verivital.hyst.bench;
+
+import java.io.File;
+
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.printers.ToolPrinter;
+
+/**
+ * Printing a generated navigation model with a ToolPrinter, to a temporary
+ * file. Each operation prints a fresh copy of the model, since printers
+ * convert it in place.
+ */
+public class PrinterBenchmark extends Benchmark
+{
+	private final ToolPrinter prototype;
+	private final int width;
+	private Configuration model;
+	private Configuration input;
+	private File output;
+
+	/**
+	 * @param printer
+	 *            the printer to use (a new instance is made for each operation)
+	 * @param width
+	 *            the navigation model has width * width modes
+	 */
+	public PrinterBenchmark(ToolPrinter printer, int width)
+	{
+		super("Printers.print");
+		this.prototype = printer;
+		this.width = width;
+		param("printer", printer.getCommandLineFlag());
+		param("modes", width * width);
+	}
+
+	@Override
+	public void setup() throws Exception
+	{
+		model = BenchModels.navigation(width);
+		output = File.createTempFile("hyst_bench", ".out");
+		output.deleteOnExit();
+	}
+
+	@Override
+	public void prepare()
+	{
+		input = model.copy();
+	}
+
+	@Override
+	public Object run() throws Exception
+	{
+		ToolPrinter printer = prototype.getClass().getConstructor().newInstance();
+		printer.setOutputFile(output.getPath());
+		printer.print(input, "", "nav.xml");
+
+		return printer;
+	}
+}
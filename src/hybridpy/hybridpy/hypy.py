@@ -7,6 +7,7 @@ import time
 import sys
 import argparse
 import shutil
+import socket
 
 import hybridpy.hybrid_tool as hybrid_tool
 from hybridpy.hybrid_tool import get_env_var_path
@@ -49,6 +50,147 @@ def _get_all_toolnames():
 
     return rv
 
+def _read_hyst_server_var():
+    '''get the lines of HYST_SERVER: the port file's contents, or the variable itself'''
+    val = os.environ.get('HYST_SERVER')
+
+    if val and os.path.isfile(val):
+        with open(val) as f:
+            return f.read().split()
+
+    return [val] if val else []
+
+def get_hyst_server():
+    '''get the (host, port) of a running Hyst conversion server, or None.
+
+    The server is given by the HYST_SERVER environment variable, which can be a
+    port, host:port, or the port file passed to 'hyst -server'.
+    '''
+    rv = None
+    lines = _read_hyst_server_var()
+
+    if lines:
+        val = lines[0]
+        host = '127.0.0.1'
+
+        if ':' in val:
+            host, val = val.rsplit(':', 1)
+
+        try:
+            rv = (host, int(val))
+        except ValueError:
+            rv = None
+
+    return rv
+
+def get_hyst_server_token():
+    '''get the secret token of the Hyst conversion server, or None.
+
+    It's read from the port file given by HYST_SERVER, or from the HYST_SERVER_TOKEN
+    environment variable (which the server prints when started with a port number).
+    '''
+    rv = os.environ.get('HYST_SERVER_TOKEN')
+
+    if not rv:
+        lines = _read_hyst_server_var()
+        rv = lines[1] if len(lines) > 1 else None
+
+    return rv
+
+class HystServerClient(object):
+    '''client for a Hyst conversion server (started with 'hyst -server'), which
+    avoids starting a new JVM for every conversion'''
+
+    def __init__(self, address, token=None):
+        if token is None:
+            token = get_hyst_server_token()
+
+        if token is None:
+            raise RuntimeError('Hyst server token not found. Set HYST_SERVER to the port file ' + \
+                               'or HYST_SERVER_TOKEN to the token the server printed.')
+
+        self.token = token
+        self.sock = socket.create_connection(address)
+        self.reader = self.sock.makefile('rb')
+
+    def run(self, args):
+        '''run a conversion with the given command-line arguments
+
+        returns (exit_code, output), where output is Hyst's stdout and stderr
+        '''
+        request = 'RUN ' + self.token + ' ' + str(len(args)) + '\n'
+
+        for arg in args:
+            if '\n' in arg:
+                raise RuntimeError('Hyst server arguments cannot contain newlines: ' + repr(arg))
+
+            request += arg + '\n'
+
+        self.sock.sendall(request.encode('utf-8'))
+        header = self.reader.readline().split()
+
+        if len(header) != 3 or header[0] != b'EXIT':
+            raise IOError('Unexpected reply from Hyst server: ' + repr(header))
+
+        output = self.reader.read(int(header[2]))
+
+        return int(header[1]), output.decode('utf-8')
+
+    def stop(self):
+        '''stop the server'''
+        self.sock.sendall(('STOP ' + self.token + '\n').encode('utf-8'))
+        self.reader.readline()
+
+    def close(self):
+        '''close the connection'''
+        self.reader.close()
+        self.sock.close()
+
+def start_hyst_server(hyst_path=None, timeout=30):
+    '''start a Hyst conversion server in the background and set HYST_SERVER, so
+    that conversions in this process (and its children) use it.
+
+    returns the server process, which should be passed to stop_hyst_server()
+    '''
+    if hyst_path is None:
+        hyst_path = get_env_var_path('hyst', None)
+
+        if hyst_path is None:
+            raise RuntimeError('Hyst not found. Did you set HYST_BIN to point to Hyst.jar?')
+
+    port_file = os.path.join(tempfile.gettempdir(), 'hyst_server_' + random_string() + '.port')
+    proc = subprocess.Popen(['java', '-jar', hyst_path, '-server', port_file])
+    start_time = time.time()
+
+    while not os.path.exists(port_file):
+        if proc.poll() is not None:
+            raise RuntimeError('Hyst server exited with code ' + str(proc.returncode))
+
+        if time.time() - start_time > timeout:
+            proc.kill()
+            raise RuntimeError('Hyst server did not start within ' + str(timeout) + ' seconds')
+
+        time.sleep(0.05)
+
+    os.environ['HYST_SERVER'] = port_file
+
+    return proc
+
+def stop_hyst_server(proc):
+    '''stop a server started with start_hyst_server()'''
+    address = get_hyst_server()
+
+    if address is not None:
+        try:
+            client = HystServerClient(address)
+            client.stop()
+            client.close()
+        except (IOError, socket.error):
+            proc.kill()
+
+    proc.wait()
+    os.environ.pop('HYST_SERVER', None)
+
 class Engine(object):
     '''HyPy engine. Runs a hybrid systems tool'''
     model_path = None
@@ -166,30 +308,34 @@ class Engine(object):
         self.output_lines = []
         self._add_terminal_output("Running " + self.tool_name + " on model " + str(self.model_path) + "\n")
 
-        hyst_path = get_env_var_path('hyst', None)
-
-        if hyst_path is None:
-            raise RuntimeError('Hyst not found. Did you set HYST_BIN to point to Hyst.jar?')
-
-        
-        params = ['java', '-jar', hyst_path]
+        # absolute paths, since a Hyst server may have a different working directory
+        params = []
 
         if self.model_path != None:
-            params.append(self.model_path)
+            params.append(os.path.abspath(self.model_path))
 
         params += self.tool_params
-        params += ['-o', self.save_model_path, format_flag] # do after to override any user flags
-
-        self._add_terminal_output("Hyst command: " + str(params) + "\n")
+        params += ['-o', os.path.abspath(self.save_model_path), format_flag] # do after to override any user flags
 
         try:
-            proc = subprocess.Popen(params, stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
-            self._stdout_handler(proc.stdout)
-            code = proc.wait()
+            code = self._run_hyst_server(params)
+
+            if code is None:
+                hyst_path = get_env_var_path('hyst', None)
+
+                if hyst_path is None:
+                    raise RuntimeError('Hyst not found. Did you set HYST_BIN to point to Hyst.jar?')
+
+                params = ['java', '-jar', hyst_path] + params
+                self._add_terminal_output("Hyst command: " + str(params) + "\n")
+
+                proc = subprocess.Popen(params, stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+                self._stdout_handler(proc.stdout)
+                code = proc.wait()
 
             if code == 2: # Hyst exit code 2 = preconditions not met for printer
                 rv = RUN_CODES.ERROR_UNSUPPORTED
-            elif proc.wait() != 0:
+            elif code != 0:
                 rv = RUN_CODES.ERROR_CONVERSION
                 self._add_terminal_output('Error: Hyst returned nonzero exit code.\n')
 
@@ -202,6 +348,34 @@ class Engine(object):
 
         return rv
 
+    def _run_hyst_server(self, params):
+        '''run the conversion on the Hyst server, if one is available (see get_hyst_server())
+
+        returns Hyst's exit code, or None if no server is available
+        '''
+        rv = None
+        address = get_hyst_server()
+
+        if address is not None:
+            try:
+                client = HystServerClient(address)
+            except socket.error:
+                client = None # server not running, use a new process instead
+
+            if client is not None:
+                self._add_terminal_output("Hyst server " + str(address) + " command: " + \
+                                          str(params) + "\n")
+
+                try:
+                    rv, output = client.run(params)
+                finally:
+                    client.close()
+
+                for line in output.splitlines(True):
+                    self._add_terminal_output(line)
+
+        return rv
+
     def run(self, run_hyst=True, run_tool=True, make_image=True):
         '''Converts the model in Hyst (optional) and runs it with the appropriate
         tool (optional) to produce a plot file.
@@ -0,0 +1,342 @@
+package com.verivital.hyst.generators;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.kohsuke.args4j.Option;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.ComponentMapping;
+import com.verivital.hyst.ir.network.NetworkComponent;
+
+/**
+ * Creates a random network of hybrid automata, for stress testing the passes
+ * and printers. Everything is derived from the seed, so the same parameters
+ * always give the same model. The flattened automaton has modes^components
+ * modes, so for example "-components 3 -modes 10" gives 10^3 product modes and
+ * "-components 6 -modes 10" gives 10^6.
+ *
+ * Each component c<i> has modes m0 ... m<modes-1>, a local clock (clock<i> in
+ * the network) and private variables x<i>_0, x<i>_1, ... All components share
+ * the global time t. The first transition out of each mode goes to the next
+ * mode (so every mode is reachable) and the others go to random modes. Guards
+ * are on the clock, which is reset, and the invariants bound the clock by the
+ * largest guard in the mode. Transitions are given one of the shared labels
+ * with the given probability, which makes them synchronize across components
+ * when flattening.
+ *
+ * The flow of each private variable is a * x + b * p + c, where a is negative
+ * and p is a random monomial of the given degree over the component's
+ * variables (and the first variable of the previous component, with -coupled).
+ *
+ * The initial state is all components in m0 with every variable 0, and the
+ * forbidden state is all components in their last mode.
+ */
+public class SyntheticNetworkGenerator extends ModelGenerator
+{
+	@Option(name = "-components", required = true, usage = "number of components in the network", metaVar = "NUM")
+	private int numComponents = 1;
+
+	@Option(name = "-modes", required = true, usage = "number of modes in each component", metaVar = "NUM")
+	private int numModes = 1;
+
+	@Option(name = "-transitions", usage = "number of outgoing transitions from each mode", metaVar = "NUM")
+	private int numTransitions = 2;
+
+	@Option(name = "-labels", usage = "number of synchronization labels shared by the components", metaVar = "NUM")
+	private int numLabels = 0;
+
+	@Option(name = "-label_prob", usage = "probability that a transition has a label (if there are labels)", metaVar = "PROB")
+	private double labelProb = 0.5;
+
+	@Option(name = "-vars", usage = "number of private continuous variables in each component (not counting the clock)", metaVar = "NUM")
+	private int numVars = 2;
+
+	@Option(name = "-degree", usage = "degree of the polynomial term in each flow (1 is linear)", metaVar = "NUM")
+	private int degree = 1;
+
+	@Option(name = "-coupled", usage = "let each component's flows read the first variable of the previous component")
+	private boolean coupled = false;
+
+	@Option(name = "-seed", usage = "random seed", metaVar = "NUM")
+	private long seed = 0;
+
+	private static final String TIME_VAR = "t";
+	private static final String CLOCK_VAR = "clock";
+	private static final String INPUT_VAR = "u";
+
+	private Random rand;
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "synthetic";
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Random Synthetic Network (for stress testing)";
+	}
+
+	@Override
+	public String getLongHelp()
+	{
+		return "Generates a reproducible random network with modes^components product modes, "
+				+ "for example '-components 6 -modes 10 -labels 2 -degree 2 -seed 1'.";
+	}
+
+	@Override
+	protected Configuration generateModel()
+	{
+		checkParams();
+		rand = new Random(seed);
+
+		NetworkComponent nc = new NetworkComponent();
+		nc.variables.add(TIME_VAR);
+
+		for (int i = 0; i < numComponents; ++i)
+		{
+			nc.variables.add(CLOCK_VAR + i);
+
+			for (int v = 0; v < numVars; ++v)
+				nc.variables.add(privateVar(i, v));
+		}
+
+		Configuration c = new Configuration(nc);
+
+		for (int i = 0; i < numComponents; ++i)
+			makeComponent(nc, i);
+
+		StringBuilder initMode = new StringBuilder();
+		StringBuilder forbiddenMode = new StringBuilder();
+		Expression initExp = new Operation(TIME_VAR, Operator.EQUAL, 0);
+
+		for (int i = 0; i < numComponents; ++i)
+		{
+			if (i > 0)
+			{
+				initMode.append('.');
+				forbiddenMode.append('.');
+			}
+
+			initMode.append(modeName(0));
+			forbiddenMode.append(modeName(numModes - 1));
+			initExp = Expression.and(initExp, new Operation(CLOCK_VAR + i, Operator.EQUAL, 0));
+
+			for (int v = 0; v < numVars; ++v)
+				initExp = Expression.and(initExp, new Operation(privateVar(i, v), Operator.EQUAL,
+						0));
+		}
+
+		c.init.put(initMode.toString(), initExp);
+		c.forbidden.put(forbiddenMode.toString(), Constant.TRUE);
+
+		c.settings.plotVariableNames[0] = TIME_VAR;
+		c.settings.plotVariableNames[1] = numVars > 0 ? privateVar(0, 0) : CLOCK_VAR + 0;
+
+		return c;
+	}
+
+	private void checkParams()
+	{
+		if (numComponents < 1)
+			throw new AutomatonExportException(
+					"Number of components must be positive: " + numComponents);
+
+		if (numModes < 1)
+			throw new AutomatonExportException("Number of modes must be positive: " + numModes);
+
+		if (numTransitions < 0)
+			throw new AutomatonExportException(
+					"Number of transitions cannot be negative: " + numTransitions);
+
+		if (numLabels < 0)
+			throw new AutomatonExportException("Number of labels cannot be negative: " + numLabels);
+
+		if (labelProb < 0 || labelProb > 1)
+			throw new AutomatonExportException(
+					"Label probability must be between 0 and 1: " + labelProb);
+
+		if (numVars < 0)
+			throw new AutomatonExportException(
+					"Number of variables cannot be negative: " + numVars);
+
+		if (degree < 1)
+			throw new AutomatonExportException("Degree must be positive: " + degree);
+	}
+
+	private static String privateVar(int component, int index)
+	{
+		return "x" + component + "_" + index;
+	}
+
+	private static String modeName(int index)
+	{
+		return "m" + index;
+	}
+
+	private static String labelName(int index)
+	{
+		return "a" + index;
+	}
+
+	/**
+	 * Create component number i and add it to the network
+	 */
+	private void makeComponent(NetworkComponent nc, int i)
+	{
+		BaseComponent ha = new BaseComponent();
+		ComponentInstance ci = new ComponentInstance(nc, ha);
+		String name = "c" + i;
+
+		nc.children.put(name, ci);
+		ha.instanceName = name;
+		ha.parent = nc;
+
+		// child variables: t, clock, x0 ... and maybe the input u
+		ArrayList<String> localVars = new ArrayList<String>();
+
+		ha.variables.add(TIME_VAR);
+		ci.varMapping.add(new ComponentMapping(TIME_VAR, TIME_VAR));
+		ha.variables.add(CLOCK_VAR);
+		ci.varMapping.add(new ComponentMapping(CLOCK_VAR, CLOCK_VAR + i));
+
+		for (int v = 0; v < numVars; ++v)
+		{
+			String var = "x" + v;
+			localVars.add(var);
+			ha.variables.add(var);
+			ci.varMapping.add(new ComponentMapping(var, privateVar(i, v)));
+		}
+
+		// the flows can read the first variable of the previous component
+		ArrayList<String> monomialVars = new ArrayList<String>(localVars);
+		boolean hasInput = coupled && numComponents > 1 && numVars > 0;
+
+		if (hasInput)
+		{
+			int prev = (i + numComponents - 1) % numComponents;
+
+			ha.variables.add(INPUT_VAR);
+			ci.varMapping.add(new ComponentMapping(INPUT_VAR, privateVar(prev, 0)));
+			monomialVars.add(INPUT_VAR);
+		}
+
+		AutomatonMode[] modes = new AutomatonMode[numModes];
+
+		for (int m = 0; m < numModes; ++m)
+		{
+			AutomatonMode am = ha.createMode(modeName(m));
+			modes[m] = am;
+
+			if (hasInput)
+				am.flowDynamics.remove(INPUT_VAR);
+
+			am.flowDynamics.put(TIME_VAR, new ExpressionInterval(1));
+			am.flowDynamics.put(CLOCK_VAR, new ExpressionInterval(1));
+
+			for (String var : localVars)
+				am.flowDynamics.put(var, new ExpressionInterval(makeFlow(var, monomialVars)));
+		}
+
+		for (int m = 0; m < numModes; ++m)
+		{
+			double maxGuard = 0;
+
+			for (int t = 0; t < numTransitions; ++t)
+			{
+				int target = t == 0 ? (m + 1) % numModes : rand.nextInt(numModes);
+				double guardValue = 1 + rand.nextInt(10) / 2.0;
+				maxGuard = Math.max(maxGuard, guardValue);
+
+				AutomatonTransition at = ha.createTransition(modes[m], modes[target]);
+				at.guard = new Operation(CLOCK_VAR, Operator.GREATEREQUAL, guardValue);
+				at.reset.put(CLOCK_VAR, new ExpressionInterval(0));
+
+				if (!localVars.isEmpty())
+				{
+					String var = localVars.get(rand.nextInt(localVars.size()));
+					at.reset.put(var, new ExpressionInterval(new Constant(randomCoefficient())));
+				}
+
+				if (numLabels > 0 && rand.nextDouble() < labelProb)
+				{
+					at.label = labelName(rand.nextInt(numLabels));
+
+					// labels are only exported if they're used (otherwise they
+					// block the other components and fail validation)
+					if (ha.labels.add(at.label))
+					{
+						nc.labels.add(at.label);
+						ci.labelMapping.add(new ComponentMapping(at.label, at.label));
+					}
+				}
+			}
+
+			if (numTransitions == 0)
+				modes[m].invariant = Constant.TRUE;
+			else
+				modes[m].invariant = new Operation(CLOCK_VAR, Operator.LESSEQUAL, maxGuard);
+		}
+	}
+
+	/**
+	 * Make the flow a * var + b * p + c, where a is negative (for stability) and
+	 * p is a monomial of the configured degree
+	 */
+	private Expression makeFlow(String var, ArrayList<String> monomialVars)
+	{
+		double a = -Math.abs(randomCoefficient());
+		Expression rv = new Operation(Operator.MULTIPLY, new Constant(a), new Variable(var));
+
+		Expression monomial = new Variable(monomialVars.get(rand.nextInt(monomialVars.size())));
+
+		for (int d = 1; d < degree; ++d)
+		{
+			Variable factor = new Variable(monomialVars.get(rand.nextInt(monomialVars.size())));
+			monomial = new Operation(Operator.MULTIPLY, monomial, factor);
+		}
+
+		rv = addTerm(rv, randomCoefficient(), monomial);
+		rv = addTerm(rv, randomCoefficient(), null);
+
+		return rv;
+	}
+
+	/**
+	 * Add coefficient * term (or just the coefficient if term is null) to an
+	 * expression, subtracting if the coefficient is negative
+	 */
+	private static Expression addTerm(Expression e, double coefficient, Expression term)
+	{
+		Operator op = coefficient < 0 ? Operator.SUBTRACT : Operator.ADD;
+		Expression value = new Constant(Math.abs(coefficient));
+
+		if (term != null)
+			value = new Operation(Operator.MULTIPLY, value, term);
+
+		return new Operation(op, e, value);
+	}
+
+	/**
+	 * Get a random nonzero coefficient in [-1, 1], with one decimal place
+	 */
+	private double randomCoefficient()
+	{
+		int tenths = 1 + rand.nextInt(10);
+
+		return (rand.nextBoolean() ? tenths : -tenths) / 10.0;
+	}
+}
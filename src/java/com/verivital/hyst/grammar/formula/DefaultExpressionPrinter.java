@@ -105,7 +105,11 @@ public class DefaultExpressionPrinter extends ExpressionPrinter
 	@Override
 	protected String printConstantValue(double d)
 	{
-		return constFormatter.format(d);
+		// DecimalFormat isn't thread-safe, and instance is shared
+		synchronized (constFormatter)
+		{
+			return constFormatter.format(d);
+		}
 	}
 
 	@Override
@@ -7,14 +7,16 @@ package com.verivital.hyst.grammar.formula;
  * cos)
  * 
  * To print expressions differently, you should inherit from ExpressionPrinter,
- * override any methods you want to change, and then assign
- * Expression.expressionPrinter
+ * override any methods you want to change, and then call
+ * Expression.setExpressionPrinter()
  */
 public abstract class Expression
 {
 	// this printer should be assigned as-needed by printers or passes. Use
-	// DefaultExpressionPrinter.instance for a reasonable default.
-	public static ExpressionPrinter expressionPrinter = null;
+	// DefaultExpressionPrinter.instance for a reasonable default. Each thread
+	// has its own (starting with the one of the thread which created it), so
+	// printers can run in parallel.
+	private static final InheritableThreadLocal<ExpressionPrinter> expressionPrinter = new InheritableThreadLocal<ExpressionPrinter>();
 
 	// void setParent(Operation aThis) {
 	// throw new UnsupportedOperationException("Not supported yet."); //To
@@ -29,6 +31,27 @@ public abstract class Expression
 
 	public static PrintMode printMode = PrintMode.INLINE;
 
+	/**
+	 * Get the printer used by toString() in the current thread
+	 * 
+	 * @return the printer, or null if it wasn't assigned
+	 */
+	public static ExpressionPrinter getExpressionPrinter()
+	{
+		return expressionPrinter.get();
+	}
+
+	/**
+	 * Set the printer used by toString() in the current thread
+	 * 
+	 * @param printer
+	 *            the printer to use
+	 */
+	public static void setExpressionPrinter(ExpressionPrinter printer)
+	{
+		expressionPrinter.set(printer);
+	}
+
 	private Operation mParent;
 
 	public Expression(Operation parent)
@@ -71,7 +94,7 @@ public abstract class Expression
 	@Override
 	public String toString()
 	{
-		return expressionPrinter.print(this);
+		return getExpressionPrinter().print(this);
 	}
 
 	/**
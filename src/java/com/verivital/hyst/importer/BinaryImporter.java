@@ -0,0 +1,914 @@
+package com.verivital.hyst.importer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.LutExpression;
+import com.verivital.hyst.grammar.formula.MatrixExpression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.AutomatonSettings;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.ComponentMapping;
+import com.verivital.hyst.ir.network.NetworkComponent;
+
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
+
+/**
+ * Reads a Configuration saved in Hyst's binary snapshot format (written by
+ * BinaryPrinter). Loading a snapshot skips the SpaceEx import and any passes
+ * which were run before it was saved.
+ * 
+ * Files are memory-mapped by open(). If the root is a base component (a flat
+ * model), opening only indexes the modes and transitions; their expressions
+ * (and those of the initial and forbidden states) are decoded when a
+ * Configuration is created. getConfiguration(modes) creates a Configuration
+ * with just some of the modes, so the rest of the file is never decoded. For
+ * example, getReachableModes() does discrete reachability on the index, which
+ * gives the same result as RemoveDiscreteUnreachablePass.
+ * 
+ * That is the only lazy path: passes and printers read the IR's public fields
+ * directly, so they are given a fully decoded Configuration, and network roots
+ * are always decoded in full. Hyst uses getConfiguration(getReachableModes())
+ * when the first pass is -pass_remove_unreachable.
+ * 
+ * Format (big-endian, as written by DataOutputStream):
+ * 
+ * header: MAGIC, int VERSION, the string table (count, then UTF-8 strings),
+ * the template table (count, then kind and name of each template)
+ * 
+ * settings: plot variables, then the SpaceEx config values
+ * 
+ * init, forbidden: each a length-prefixed section with a count, then (mode
+ * name, length-prefixed expression) pairs, so they can be skipped
+ * 
+ * root component: kind byte, instance name, template, variables, constants,
+ * labels, then either the modes and transitions (base) or the children
+ * (network), recursively. Each mode and transition has a length-prefixed body
+ * (invariant and flows, or guard and reset), so it can be skipped.
+ * 
+ * Counts and indices are unsigned varints (7 bits per byte). Strings and
+ * templates are references into their tables: REF_NULL, or REF_FIRST_INDEX +
+ * the index. Expressions are postfix opcode streams terminated by OP_END; an
+ * empty stream is a null expression. Template components are only stored by
+ * kind and name, so the loaded templates are empty stand-ins.
+ * 
+ */
+public class BinaryImporter
+{
+	public static final String EXTENSION = ".hystbin";
+
+	public static final byte[] MAGIC = { 'H', 'Y', 'S', 'T', 'B', 'I', 'N' };
+	public static final int VERSION = 3;
+
+	// component kinds
+	public static final byte COMPONENT_BASE = 1;
+	public static final byte COMPONENT_NETWORK = 2;
+
+	// string / template references
+	public static final int REF_NULL = 0;
+	public static final int REF_FIRST_INDEX = 1;
+
+	// expression opcodes
+	public static final byte OP_END = 0;
+	public static final byte OP_TRUE = 1; // Constant.TRUE
+	public static final byte OP_FALSE = 2; // Constant.FALSE
+	public static final byte OP_CONSTANT = 3; // double
+	public static final byte OP_VARIABLE = 4; // string
+	public static final byte OP_OPERATION = 5; // operator name, child count
+	public static final byte OP_MATRIX = 6; // dims, widths (cells on stack)
+	public static final byte OP_LUT = 7; // num inputs, breakpoint rows
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ByteBuffer in;
+	private String[] strings;
+	private Component[] templates;
+	private ArrayList<Expression> stack = new ArrayList<Expression>();
+
+	// offsets of the sections
+	private int settingsOffset;
+	private int initOffset;
+	private int forbiddenOffset;
+	private int rootOffset;
+
+	// index of the modes and transitions of a flat model (null otherwise)
+	private String[] modeKeys;
+	private int[] modeRecords; // offsets of the records
+	private int[] transitionFrom;
+	private int[] transitionTo;
+	private int[] transitionRecords;
+
+	private BinaryImporter(ByteBuffer in)
+	{
+		this.in = in;
+
+		try
+		{
+			readHeader();
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new AutomatonExportException("Binary snapshot is truncated", e);
+		}
+	}
+
+	/**
+	 * Load a configuration from a binary snapshot file
+	 * 
+	 * @param filename
+	 *            the .hystbin file
+	 * @return the configuration
+	 */
+	public static Configuration importConfiguration(String filename)
+	{
+		return open(filename).getConfiguration();
+	}
+
+	/**
+	 * Memory-map a binary snapshot file. Only the header and the index of a
+	 * flat model are read here; everything else is decoded on demand.
+	 * 
+	 * @param filename
+	 *            the .hystbin file
+	 * @return the opened snapshot
+	 */
+	public static BinaryImporter open(String filename)
+	{
+		File f = new File(filename);
+
+		if (!f.exists())
+			throw new AutomatonExportException(
+					filename + " not found; full path tried: " + f.getAbsolutePath());
+
+		ByteBuffer buf = null;
+		RandomAccessFile file = null;
+
+		try
+		{
+			file = new RandomAccessFile(f, "r");
+			FileChannel ch = file.getChannel();
+
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new AutomatonExportException("Binary snapshot is too large: " + filename);
+
+			// the mapping stays valid after the channel is closed
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error reading " + filename, e);
+		}
+		finally
+		{
+			if (file != null)
+			{
+				try
+				{
+					file.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+
+		return new BinaryImporter(buf);
+	}
+
+	/**
+	 * Decode a configuration from the binary format
+	 * 
+	 * @param bytes
+	 *            the encoded bytes, from BinaryPrinter.toBytes()
+	 * @return the configuration
+	 */
+	public static Configuration fromBytes(byte[] bytes)
+	{
+		return fromBytes(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Decode a configuration from the binary format
+	 * 
+	 * @param buf
+	 *            the buffer, positioned at the start of the snapshot
+	 * @return the configuration
+	 */
+	public static Configuration fromBytes(ByteBuffer buf)
+	{
+		return new BinaryImporter(buf.slice()).getConfiguration();
+	}
+
+	/**
+	 * Is the root component a base component? Only then are the mode-level
+	 * methods available.
+	 */
+	public boolean isFlat()
+	{
+		return modeKeys != null;
+	}
+
+	public int getNumModes()
+	{
+		checkFlat();
+
+		return modeKeys.length;
+	}
+
+	public String getModeName(int index)
+	{
+		checkFlat();
+
+		return modeKeys[index];
+	}
+
+	public int getNumTransitions()
+	{
+		checkFlat();
+
+		return transitionFrom.length;
+	}
+
+	public int getTransitionFrom(int index)
+	{
+		checkFlat();
+
+		return transitionFrom[index];
+	}
+
+	public int getTransitionTo(int index)
+	{
+		checkFlat();
+
+		return transitionTo[index];
+	}
+
+	/**
+	 * Get the modes which are discretely reachable from the initial modes,
+	 * using only the index (no expressions are decoded)
+	 * 
+	 * @return the names of the reachable modes
+	 */
+	public Set<String> getReachableModes()
+	{
+		checkFlat();
+
+		// outgoing transitions of each mode
+		int numModes = modeKeys.length;
+		int[] start = new int[numModes + 1];
+
+		for (int from : transitionFrom)
+			++start[from + 1];
+
+		for (int m = 0; m < numModes; ++m)
+			start[m + 1] += start[m];
+
+		int[] successors = new int[transitionFrom.length];
+		int[] fill = Arrays.copyOf(start, numModes);
+
+		for (int t = 0; t < transitionFrom.length; ++t)
+			successors[fill[transitionFrom[t]]++] = transitionTo[t];
+
+		HashMap<String, Integer> modeIds = new HashMap<String, Integer>();
+
+		for (int m = 0; m < numModes; ++m)
+			modeIds.put(modeKeys[m], m);
+
+		boolean[] reached = new boolean[numModes];
+		ArrayList<Integer> toVisit = new ArrayList<Integer>();
+		LinkedHashSet<String> rv = new LinkedHashSet<String>();
+
+		in.position(initOffset);
+
+		for (String mode : readStateMapModes())
+		{
+			// initial modes which don't exist are kept, so that validation
+			// reports them
+			rv.add(mode);
+			Integer m = modeIds.get(mode);
+
+			if (m != null && !reached[m])
+			{
+				reached[m] = true;
+				toVisit.add(m);
+			}
+		}
+
+		while (!toVisit.isEmpty())
+		{
+			int m = toVisit.remove(toVisit.size() - 1);
+			rv.add(modeKeys[m]);
+
+			for (int i = start[m]; i < start[m + 1]; ++i)
+			{
+				int s = successors[i];
+
+				if (!reached[s])
+				{
+					reached[s] = true;
+					toVisit.add(s);
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Decode the whole configuration
+	 * 
+	 * @return the configuration
+	 */
+	public Configuration getConfiguration()
+	{
+		return getConfiguration(null);
+	}
+
+	/**
+	 * Decode the configuration of a flat model, keeping only some of the
+	 * modes. Transitions between the kept modes are kept, as well as the
+	 * initial and forbidden states in them. The expressions of the other modes
+	 * and transitions are never decoded.
+	 * 
+	 * @param keepModes
+	 *            the names of the modes to keep, or null to keep everything
+	 * @return the configuration
+	 */
+	public Configuration getConfiguration(Collection<String> keepModes)
+	{
+		if (keepModes != null)
+			checkFlat();
+
+		try
+		{
+			in.position(rootOffset);
+			Configuration rv = new Configuration(readComponent(keepModes));
+
+			in.position(settingsOffset);
+			readSettings(rv.settings);
+			in.position(initOffset);
+			rv.init = readStateMap();
+			in.position(forbiddenOffset);
+			rv.forbidden = readStateMap();
+
+			if (keepModes != null)
+			{
+				rv.init.keySet().retainAll(keepModes);
+				rv.forbidden.keySet().retainAll(keepModes);
+			}
+
+			rv.validate();
+
+			return rv;
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new AutomatonExportException("Binary snapshot is truncated", e);
+		}
+	}
+
+	private void checkFlat()
+	{
+		if (modeKeys == null)
+			throw new AutomatonExportException(
+					"Mode-level access requires a snapshot of a flat automaton");
+	}
+
+	/**
+	 * Read the header and the tables, find the sections, and index the modes
+	 * and transitions if the model is flat
+	 */
+	private void readHeader()
+	{
+		byte[] magic = new byte[MAGIC.length];
+		in.get(magic);
+
+		if (!Arrays.equals(magic, MAGIC))
+			throw new AutomatonExportException("Not a Hyst binary snapshot (wrong header)");
+
+		int version = in.getInt();
+
+		if (version != VERSION)
+			throw new AutomatonExportException("Unsupported binary snapshot version " + version
+					+ " (expected " + VERSION + ")");
+
+		strings = new String[readVarInt()];
+
+		for (int i = 0; i < strings.length; ++i)
+		{
+			byte[] b = new byte[readVarInt()];
+			in.get(b);
+			strings[i] = new String(b, UTF8);
+		}
+
+		templates = new Component[readVarInt()];
+
+		for (int i = 0; i < templates.length; ++i)
+		{
+			boolean isNetwork = readBoolean();
+			Component t = isNetwork ? new NetworkComponent() : new BaseComponent();
+			t.instanceName = readString();
+			t.template = t; // template components are their own templates
+
+			templates[i] = t;
+		}
+
+		settingsOffset = in.position();
+		readSettings(new AutomatonSettings(null));
+		initOffset = in.position();
+		skipRecordBody();
+		forbiddenOffset = in.position();
+		skipRecordBody();
+		rootOffset = in.position();
+
+		if (readComponentHeader() instanceof BaseComponent)
+			indexModesAndTransitions();
+	}
+
+	private void indexModesAndTransitions()
+	{
+		int numModes = readVarInt();
+		modeKeys = new String[numModes];
+		modeRecords = new int[numModes];
+
+		for (int m = 0; m < numModes; ++m)
+		{
+			modeRecords[m] = in.position();
+			modeKeys[m] = readString();
+			readString(); // name
+			readBoolean(); // urgent
+			skipRecordBody();
+		}
+
+		int numTransitions = readVarInt();
+		transitionFrom = new int[numTransitions];
+		transitionTo = new int[numTransitions];
+		transitionRecords = new int[numTransitions];
+
+		for (int t = 0; t < numTransitions; ++t)
+		{
+			transitionRecords[t] = in.position();
+			transitionFrom[t] = readModeIndex(numModes);
+			transitionTo[t] = readModeIndex(numModes);
+			readString(); // label
+			skipRecordBody();
+		}
+	}
+
+	/**
+	 * Skip over a length-prefixed section, or the body of a record
+	 */
+	private void skipRecordBody()
+	{
+		int len = readVarInt();
+
+		if (len > in.remaining())
+			throw new BufferUnderflowException();
+
+		in.position(in.position() + len);
+	}
+
+	private void readSettings(AutomatonSettings settings)
+	{
+		settings.plotVariableNames = new String[readVarInt()];
+
+		for (int i = 0; i < settings.plotVariableNames.length; ++i)
+			settings.plotVariableNames[i] = readString();
+
+		SpaceExConfigValues cfg = settings.spaceExConfig;
+
+		for (int i = readVarInt(); i > 0; --i)
+			cfg.outputVars.add(readString());
+
+		cfg.timeHorizon = in.getDouble();
+		cfg.maxIterations = in.getInt();
+		cfg.samplingTime = in.getDouble();
+		cfg.systemID = readString();
+		cfg.outputFormat = readString();
+		cfg.scenario = readString();
+		cfg.directions = readString();
+		cfg.timeTriggered = readBoolean();
+	}
+
+	private LinkedHashMap<String, Expression> readStateMap()
+	{
+		LinkedHashMap<String, Expression> rv = new LinkedHashMap<String, Expression>();
+		readVarInt(); // section length
+
+		for (int i = readVarInt(); i > 0; --i)
+		{
+			String mode = readString();
+			readVarInt(); // expression length
+			rv.put(mode, readExpression());
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Read the mode names of an initial or forbidden states section, without
+	 * decoding the expressions
+	 */
+	private ArrayList<String> readStateMapModes()
+	{
+		readVarInt(); // section length
+		ArrayList<String> rv = new ArrayList<String>();
+
+		for (int i = readVarInt(); i > 0; --i)
+		{
+			rv.add(readString());
+			skipRecordBody();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Read the parts of a component which are common to base and network
+	 * components
+	 */
+	private Component readComponentHeader()
+	{
+		byte kind = in.get();
+		Component rv;
+
+		if (kind == COMPONENT_BASE)
+			rv = new BaseComponent();
+		else if (kind == COMPONENT_NETWORK)
+			rv = new NetworkComponent();
+		else
+			throw new AutomatonExportException("Unknown component kind in binary snapshot: " + kind);
+
+		rv.instanceName = readString();
+		rv.template = readTemplate();
+
+		for (int i = readVarInt(); i > 0; --i)
+			rv.variables.add(readString());
+
+		for (int i = readVarInt(); i > 0; --i)
+		{
+			String name = readString();
+			rv.constants.put(name, readInterval());
+		}
+
+		for (int i = readVarInt(); i > 0; --i)
+			rv.labels.add(readString());
+
+		return rv;
+	}
+
+	/**
+	 * Read a component. For the root of a flat model, the index is used and
+	 * only the kept modes are decoded.
+	 * 
+	 * @param keepModes
+	 *            the modes to keep in the root, or null
+	 */
+	private Component readComponent(Collection<String> keepModes)
+	{
+		boolean isRoot = in.position() == rootOffset;
+		Component rv = readComponentHeader();
+
+		if (isRoot && modeKeys != null)
+			readIndexedBaseComponent((BaseComponent) rv, keepModes);
+		else if (rv instanceof BaseComponent)
+			readBaseComponent((BaseComponent) rv);
+		else
+			readNetworkComponent((NetworkComponent) rv);
+
+		return rv;
+	}
+
+	private void readIndexedBaseComponent(BaseComponent ha, Collection<String> keepModes)
+	{
+		AutomatonMode[] modes = new AutomatonMode[modeKeys.length];
+
+		for (int m = 0; m < modeKeys.length; ++m)
+		{
+			if (keepModes == null || keepModes.contains(modeKeys[m]))
+			{
+				in.position(modeRecords[m]);
+				modes[m] = readMode(ha);
+			}
+		}
+
+		for (int t = 0; t < transitionFrom.length; ++t)
+		{
+			if (modes[transitionFrom[t]] != null && modes[transitionTo[t]] != null)
+			{
+				in.position(transitionRecords[t]);
+				readTransition(ha, modes);
+			}
+		}
+	}
+
+	private void readBaseComponent(BaseComponent ha)
+	{
+		int numModes = readVarInt();
+		AutomatonMode[] modes = new AutomatonMode[numModes];
+
+		for (int m = 0; m < numModes; ++m)
+			modes[m] = readMode(ha);
+
+		for (int t = readVarInt(); t > 0; --t)
+			readTransition(ha, modes);
+	}
+
+	private AutomatonMode readMode(BaseComponent ha)
+	{
+		String key = readString();
+		AutomatonMode am = ha.createMode(key);
+
+		am.name = readString();
+		am.urgent = readBoolean();
+		readVarInt(); // body length
+		am.invariant = readExpression();
+		am.flowDynamics = readExpressionIntervalMap();
+
+		return am;
+	}
+
+	private void readTransition(BaseComponent ha, AutomatonMode[] modes)
+	{
+		AutomatonMode from = modes[readModeIndex(modes.length)];
+		AutomatonMode to = modes[readModeIndex(modes.length)];
+		AutomatonTransition at = ha.createTransition(from, to);
+
+		at.label = readString();
+		readVarInt(); // body length
+		at.guard = readExpression();
+		at.reset = readExpressionIntervalMap();
+	}
+
+	private int readModeIndex(int numModes)
+	{
+		int index = readVarInt();
+
+		if (index >= numModes)
+			throw new AutomatonExportException("Invalid mode index in binary snapshot: " + index);
+
+		return index;
+	}
+
+	private void readNetworkComponent(NetworkComponent nc)
+	{
+		for (int i = readVarInt(); i > 0; --i)
+		{
+			String name = readString();
+			Component child = readComponent(null);
+			child.parent = nc;
+
+			ComponentInstance ci = new ComponentInstance(nc, child);
+			readMappings(ci.varMapping);
+			readMappings(ci.labelMapping);
+			readMappings(ci.constMapping);
+
+			nc.children.put(name, ci);
+		}
+	}
+
+	private void readMappings(ArrayList<ComponentMapping> list)
+	{
+		for (int i = readVarInt(); i > 0; --i)
+		{
+			String childParam = readString();
+			String parentParam = readString();
+
+			list.add(new ComponentMapping(childParam, parentParam));
+		}
+	}
+
+	private Component readTemplate()
+	{
+		int ref = readVarInt();
+
+		if (ref - REF_FIRST_INDEX >= templates.length)
+			throw new AutomatonExportException("Invalid template reference in binary snapshot: "
+					+ (ref - REF_FIRST_INDEX));
+
+		return ref == REF_NULL ? null : templates[ref - REF_FIRST_INDEX];
+	}
+
+	private LinkedHashMap<String, ExpressionInterval> readExpressionIntervalMap()
+	{
+		LinkedHashMap<String, ExpressionInterval> rv = null;
+
+		if (readBoolean())
+		{
+			rv = new LinkedHashMap<String, ExpressionInterval>();
+
+			for (int i = readVarInt(); i > 0; --i)
+			{
+				String var = readString();
+				ExpressionInterval ei = null;
+
+				if (readBoolean())
+				{
+					Expression e = readExpression();
+					ei = new ExpressionInterval(e, readInterval());
+				}
+
+				rv.put(var, ei);
+			}
+		}
+
+		return rv;
+	}
+
+	private Interval readInterval()
+	{
+		Interval rv = null;
+
+		if (readBoolean())
+		{
+			rv = new Interval();
+			rv.min = in.getDouble();
+			rv.max = in.getDouble();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Read a postfix opcode stream (terminated by OP_END) and rebuild the
+	 * expression using a stack
+	 * 
+	 * @return the expression, or null if the stream was empty
+	 */
+	private Expression readExpression()
+	{
+		int base = stack.size();
+
+		for (byte op = in.get(); op != OP_END; op = in.get())
+		{
+			switch (op)
+			{
+			case OP_TRUE:
+				stack.add(Constant.TRUE);
+				break;
+			case OP_FALSE:
+				stack.add(Constant.FALSE);
+				break;
+			case OP_CONSTANT:
+				stack.add(new Constant(in.getDouble()));
+				break;
+			case OP_VARIABLE:
+				stack.add(new Variable(readString()));
+				break;
+			case OP_OPERATION:
+			{
+				Operator o = readOperator();
+				ArrayList<Expression> children = pop(readVarInt(), base);
+
+				stack.add(new Operation(o, children));
+				break;
+			}
+			case OP_MATRIX:
+			{
+				int[] sizes = new int[readVarInt()];
+				int total = 1;
+
+				for (int d = 0; d < sizes.length; ++d)
+				{
+					sizes[d] = readVarInt();
+					total *= sizes[d];
+				}
+
+				ArrayList<Expression> cells = pop(total, base);
+				stack.add(new MatrixExpression(cells.toArray(new Expression[total]), sizes));
+				break;
+			}
+			case OP_LUT:
+			{
+				int numInputs = readVarInt();
+				MatrixExpression[] breakpoints = new MatrixExpression[numInputs];
+
+				for (int i = 0; i < numInputs; ++i)
+				{
+					double[] row = new double[readVarInt()];
+
+					for (int j = 0; j < row.length; ++j)
+						row[j] = in.getDouble();
+
+					breakpoints[i] = new MatrixExpression(row);
+				}
+
+				ArrayList<Expression> table = pop(1, base);
+
+				if (!(table.get(0) instanceof MatrixExpression))
+					throw new AutomatonExportException(
+							"Lookup table data was not a matrix in binary snapshot");
+
+				ArrayList<Expression> inputs = pop(numInputs, base);
+				stack.add(new LutExpression(inputs.toArray(new Expression[numInputs]),
+						(MatrixExpression) table.get(0), breakpoints));
+				break;
+			}
+			default:
+				throw new AutomatonExportException("Unknown opcode in binary snapshot: " + op);
+			}
+		}
+
+		Expression rv = null;
+		int size = stack.size() - base;
+
+		if (size == 1)
+			rv = stack.remove(base);
+		else if (size != 0)
+			throw new AutomatonExportException(
+					"Malformed expression in binary snapshot (" + size + " values left)");
+
+		return rv;
+	}
+
+	/**
+	 * Pop the top n expressions from the stack, in the order they were pushed
+	 */
+	private ArrayList<Expression> pop(int n, int base)
+	{
+		int start = stack.size() - n;
+
+		if (start < base)
+			throw new AutomatonExportException("Malformed expression in binary snapshot");
+
+		ArrayList<Expression> rv = new ArrayList<Expression>(stack.subList(start, stack.size()));
+
+		for (int i = stack.size() - 1; i >= start; --i)
+			stack.remove(i);
+
+		return rv;
+	}
+
+	private Operator readOperator()
+	{
+		String name = readString();
+
+		try
+		{
+			return Operator.valueOf(name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new AutomatonExportException("Unknown operator in binary snapshot: " + name, e);
+		}
+	}
+
+	private String readString()
+	{
+		int ref = readVarInt();
+
+		if (ref - REF_FIRST_INDEX >= strings.length)
+			throw new AutomatonExportException("Invalid string reference in binary snapshot: "
+					+ (ref - REF_FIRST_INDEX));
+
+		return ref == REF_NULL ? null : strings[ref - REF_FIRST_INDEX];
+	}
+
+	private boolean readBoolean()
+	{
+		return in.get() != 0;
+	}
+
+	private int readVarInt()
+	{
+		int rv = 0;
+
+		for (int shift = 0;; shift += 7)
+		{
+			if (shift > 28)
+				throw new AutomatonExportException("Malformed varint in binary snapshot");
+
+			byte b = in.get();
+			rv |= (b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0)
+				break;
+		}
+
+		return rv;
+	}
+}
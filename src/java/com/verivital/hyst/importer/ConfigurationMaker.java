@@ -53,16 +53,17 @@ public class ConfigurationMaker
 
 		Component c = instantiateComponentFromTemplate(rootName, null, templates);
 		Configuration rv = new Configuration(c);
-		SymbolicStateExpression.setComponent(doc.getComponent(rootName), doc);
+		SymbolicStateExpression.Instances instances = new SymbolicStateExpression.Instances(
+				doc.getComponent(rootName), doc);
 
 		// import settings and such
 		Expression init = doc.getInitialStateConditions();
 		init = SimplifyExpressionsPass.simplifyExpression(init);
-		convertInitialStates(rv, init);
+		convertInitialStates(rv, init, instances);
 
 		Expression forbidden = doc.getInitialStateConditions();
 		forbidden = SimplifyExpressionsPass.simplifyExpression(forbidden);
-		convertForbiddenStates(rv, doc.getForbiddenStateConditions());
+		convertForbiddenStates(rv, doc.getForbiddenStateConditions(), instances);
 
 		convertPlotSettings(rv, doc);
 		rv.settings.spaceExConfig = doc.getConfig();
@@ -86,9 +87,16 @@ public class ConfigurationMaker
 
 		// don't do const validation here, since full automaton is not yet
 		// constructed
-		Component.VALIDATE_CONSTS = false;
-		rv.validate();
-		Component.VALIDATE_CONSTS = true;
+		boolean wasValidating = Component.setValidateConsts(false);
+
+		try
+		{
+			rv.validate();
+		}
+		finally
+		{
+			Component.setValidateConsts(wasValidating);
+		}
 
 		return rv;
 	}
@@ -153,8 +161,11 @@ public class ConfigurationMaker
 	 *            the configuration to assign initial states to
 	 * @param init
 	 *            the init expression in the config file
+	 * @param instances
+	 *            the instances of the network being imported
 	 */
-	private static void convertInitialStates(Configuration c, Expression init)
+	private static void convertInitialStates(Configuration c, Expression init,
+			SymbolicStateExpression.Instances instances)
 	{
 		// some of the initial values get assigned from the init expression, not
 		// in the automaton
@@ -226,7 +237,7 @@ public class ConfigurationMaker
 				c.root.setConstant(var, value);
 			}
 
-			insertIntoLocMap(init, c.root, c.init, "initial states");
+			insertIntoLocMap(init, c.root, c.init, "initial states", instances);
 		}
 	}
 
@@ -265,11 +276,14 @@ public class ConfigurationMaker
 	 *            the configuration to assign to
 	 * @param f
 	 *            the forbidden state expression (can be null)
+	 * @param instances
+	 *            the instances of the network being imported
 	 */
-	private static void convertForbiddenStates(Configuration c, Expression f)
+	private static void convertForbiddenStates(Configuration c, Expression f,
+			SymbolicStateExpression.Instances instances)
 	{
 		if (f != null)
-			insertIntoLocMap(f, c.root, c.forbidden, "forbidden states");
+			insertIntoLocMap(f, c.root, c.forbidden, "forbidden states", instances);
 	}
 
 	private static String getRootName(SpaceExDocument doc)
@@ -302,12 +316,15 @@ public class ConfigurationMaker
 	 * @param disc
 	 *            a text description of the set of states being parsed (like
 	 *            "initial states")
+	 * @param instances
+	 *            the instances of the network being imported
 	 */
 	private static void insertIntoLocMap(Expression e, Component root,
-			LinkedHashMap<String, Expression> map, String desc)
+			LinkedHashMap<String, Expression> map, String desc,
+			SymbolicStateExpression.Instances instances)
 	{
-		List<SymbolicStateExpression> startStates = SymbolicStateExpression.extractSymbolicStates(e,
-				desc);
+		List<SymbolicStateExpression> startStates = SymbolicStateExpression.extractSymbolicStates(
+				instances, e, desc);
 
 		for (SymbolicStateExpression ss : startStates)
 			ss.exportStates(map);
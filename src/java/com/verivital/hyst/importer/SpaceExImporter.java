@@ -4,11 +4,17 @@
 package com.verivital.hyst.importer;
 
 import java.io.File;
+import java.util.HashMap;
 
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.main.Hyst;
 
 import de.uni_freiburg.informatik.swt.spaxeexxmlreader.SpaceExXMLReader;
+import de.uni_freiburg.informatik.swt.spaxeexxmlreader.SpaceExXMLReader.ComponentListener;
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.Location;
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExBaseComponent;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExComponent;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 
@@ -29,6 +35,67 @@ public class SpaceExImporter
 	 * @return
 	 */
 	public static SpaceExDocument importModels(String cfgFilename, String... xmlFilenames)
+	{
+		return importModels(null, cfgFilename, xmlFilenames);
+	}
+
+	/**
+	 * Read SpaceEx files and directly produce the instantiated Configuration.
+	 * This gives the same result as running importModels(),
+	 * TemplateImporter.createComponentTemplates() and
+	 * ConfigurationMaker.fromSpaceEx() in sequence, but each base component is
+	 * converted to its template as soon as it has been read, after which its
+	 * flows, invariants and transitions are dropped from the SpaceEx document.
+	 * Only the skeleton (params, location names, binds and the config values)
+	 * is kept, which is what network templates and the initial / forbidden
+	 * state conversion need. This way, the full SpaceEx representation of a
+	 * large model never has to be in memory together with the IR.
+	 * 
+	 * @param cfgFilename
+	 *            the config file
+	 * @param xmlFilenames
+	 *            the model files
+	 * @return the instantiated configuration
+	 */
+	public static Configuration importConfiguration(String cfgFilename, String... xmlFilenames)
+	{
+		final HashMap<String, Component> templates = new HashMap<String, Component>();
+
+		ComponentListener converter = new ComponentListener()
+		{
+			@Override
+			public void componentRead(SpaceExComponent c)
+			{
+				if (c instanceof SpaceExBaseComponent)
+				{
+					SpaceExBaseComponent bc = (SpaceExBaseComponent) c;
+
+					TemplateImporter.createBaseTemplate(bc, templates);
+
+					for (int i = 0; i < bc.getLocationCount(); ++i)
+					{
+						Location loc = bc.getLocation(i);
+
+						loc.setFlow(null);
+						loc.setInvariant(null);
+					}
+
+					bc.clearTransitions();
+				}
+			}
+		};
+
+		SpaceExDocument doc = importModels(converter, cfgFilename, xmlFilenames);
+
+		// network templates may refer to components defined later in the
+		// files, so they are created once everything has been read
+		TemplateImporter.createComponentTemplates(doc, templates);
+
+		return ConfigurationMaker.fromSpaceEx(doc, templates);
+	}
+
+	private static SpaceExDocument importModels(ComponentListener listener, String cfgFilename,
+			String... xmlFilenames)
 	{
 		for (String name : xmlFilenames)
 		{
@@ -43,13 +110,17 @@ public class SpaceExImporter
 		if (xmlFilenames.length < 1)
 			throw new AutomatonExportException("must have at least one xml filename");
 
-		SpaceExDocument rv = new SpaceExXMLReader(xmlFilenames[0], cfgFilename).read();
+		SpaceExXMLReader reader = new SpaceExXMLReader(xmlFilenames[0], cfgFilename);
+		reader.setComponentListener(listener);
+		SpaceExDocument rv = reader.read();
 
 		for (int i = 1; i < xmlFilenames.length; ++i)
 		{
 			String xml = xmlFilenames[i];
 
-			SpaceExDocument doc = new SpaceExXMLReader(xml, null).read();
+			reader = new SpaceExXMLReader(xml, null);
+			reader.setComponentListener(listener);
+			SpaceExDocument doc = reader.read();
 
 			// merge into rv
 			addToDocument(rv, doc);
@@ -29,6 +29,10 @@ import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
  * Initially the symbolic state is unconstrainted (all discrete states and all
  * continuous states)
  * 
+ * The instances of the network being imported are kept in an Instances object,
+ * which is shared by all the symbolic states of one import (so concurrent
+ * imports don't interfere)
+ * 
  * @author Stanley Bak
  *
  */
@@ -40,17 +44,22 @@ public class SymbolicStateExpression
 	// example: x <= 5 && x >= 4
 	private Expression contStates;
 
+	private final Instances instances;
+
 	/**
 	 * Create a new symbolic state
 	 * 
+	 * @param instances
+	 *            the instances of the network being imported
 	 * @param entireSpace
 	 *            should this state be initialized to the entire state space?
 	 */
-	public SymbolicStateExpression(boolean entireSpace)
+	public SymbolicStateExpression(Instances instances, boolean entireSpace)
 	{
-		if (doc == null)
-			throw new RuntimeException(
-					"static SymbolicState.setComponent() method must be called before constructor");
+		if (instances == null)
+			throw new RuntimeException("instances cannot be null");
+
+		this.instances = instances;
 
 		if (entireSpace)
 		{
@@ -61,7 +70,7 @@ public class SymbolicStateExpression
 		{
 			discStates = new ArrayList<Collection<String>>();
 
-			for (int i = 0; i < instanceNames.size(); ++i)
+			for (int i = 0; i < instances.names.size(); ++i)
 				discStates.add(new ArrayList<String>());
 
 			contStates = Constant.FALSE;
@@ -73,7 +82,7 @@ public class SymbolicStateExpression
 	 */
 	public SymbolicStateExpression copy()
 	{
-		SymbolicStateExpression rv = new SymbolicStateExpression(false);
+		SymbolicStateExpression rv = new SymbolicStateExpression(instances, false);
 
 		rv.contStates = contStates.copy();
 
@@ -90,11 +99,11 @@ public class SymbolicStateExpression
 
 	private List<Collection<String>> getAllDiscStates()
 	{
-		List<Collection<String>> rv = new ArrayList<Collection<String>>(instanceTypes.size());
+		List<Collection<String>> rv = new ArrayList<Collection<String>>(instances.types.size());
 
-		for (String id : instanceTypes)
+		for (String id : instances.types)
 		{
-			SpaceExBaseComponent c = (SpaceExBaseComponent) doc.getComponent(id);
+			SpaceExBaseComponent c = (SpaceExBaseComponent) instances.doc.getComponent(id);
 
 			ArrayList<String> modes = new ArrayList<String>(c.getLocationCount());
 
@@ -124,7 +133,7 @@ public class SymbolicStateExpression
 
 	public void addDiscreteConstraint(String instance, String state)
 	{
-		int index = instanceNames.indexOf(instance);
+		int index = instances.names.indexOf(instance);
 
 		if (index == -1)
 			throw new AutomatonExportException(
@@ -132,9 +141,9 @@ public class SymbolicStateExpression
 
 		Collection<String> states = discStates.get(index);
 
-		String id = instanceTypes.get(index);
+		String id = instances.types.get(index);
 
-		if (!componentContainsDiscreteState(id, state))
+		if (!instances.componentContainsDiscreteState(id, state))
 			throw new AutomatonExportException(
 					"Automaton doesn't contain a state with the given name: loc(" + instance
 							+ ") = " + state);
@@ -213,7 +222,7 @@ public class SymbolicStateExpression
 	{
 		ArrayList<String> rv = null;
 
-		if (componentIndex < instanceTypes.size())
+		if (componentIndex < instances.types.size())
 		{
 			Collection<String> states = discStates.get(componentIndex);
 
@@ -244,122 +253,127 @@ public class SymbolicStateExpression
 		return rv;
 	}
 
-	///////////////////
-	/// static below //
-	///////////////////
-
-	private static SpaceExDocument doc;
-
-	// example: ["net.controller_i", "net.plant_i"]
-	private static List<String> instanceNames;
-
-	// example: ["controller", "plant"]
-	private static List<String> instanceTypes;
-
 	/**
-	 * Initializes the instanceNames and instanceTypes (statically stored)
-	 * 
-	 * @param root
-	 *            the root component
-	 * @param doc
-	 *            the spaceExDoc it came from
+	 * The base component instances of the network being imported, in the order
+	 * used for the discrete states
 	 */
-	public static void setComponent(SpaceExComponent root, SpaceExDocument doc)
+	public static class Instances
 	{
-		if (doc == null)
-			throw new RuntimeException("doc cannot be null");
-
-		SymbolicStateExpression.doc = doc;
-
-		instanceNames = getInstanceNames("", root);
-		instanceTypes = getInstanceTypes(root);
-	}
+		private final SpaceExDocument doc;
+
+		// example: ["net.controller_i", "net.plant_i"]
+		private final List<String> names;
+
+		// example: ["controller", "plant"]
+		private final List<String> types;
+
+		/**
+		 * Get the instance names and types of a component
+		 * 
+		 * @param root
+		 *            the root component
+		 * @param doc
+		 *            the spaceExDoc it came from
+		 */
+		public Instances(SpaceExComponent root, SpaceExDocument doc)
+		{
+			if (doc == null)
+				throw new RuntimeException("doc cannot be null");
 
-	private static boolean componentContainsDiscreteState(String id, String state)
-	{
-		boolean rv = false;
+			this.doc = doc;
 
-		SpaceExBaseComponent c = (SpaceExBaseComponent) doc.getComponent(id);
+			names = getInstanceNames("", root);
+			types = getInstanceTypes(root);
+		}
 
-		for (int i = 0; i < c.getLocationCount(); ++i)
+		private boolean componentContainsDiscreteState(String id, String state)
 		{
-			Location l = c.getLocation(i);
+			boolean rv = false;
+
+			SpaceExBaseComponent c = (SpaceExBaseComponent) doc.getComponent(id);
 
-			if (l.getName().equals(state))
+			for (int i = 0; i < c.getLocationCount(); ++i)
 			{
-				rv = true;
-				break;
-			}
-		}
+				Location l = c.getLocation(i);
 
-		return rv;
-	}
+				if (l.getName().equals(state))
+				{
+					rv = true;
+					break;
+				}
+			}
 
-	private static List<String> getInstanceTypes(SpaceExComponent c)
-	{
-		List<String> rv = new ArrayList<String>();
+			return rv;
+		}
 
-		if (c instanceof SpaceExBaseComponent)
-			rv.add(c.getID());
-		else
+		private List<String> getInstanceTypes(SpaceExComponent c)
 		{
-			SpaceExNetworkComponent nc = (SpaceExNetworkComponent) c;
+			List<String> rv = new ArrayList<String>();
 
-			for (int i = 0; i < nc.getBindCount(); ++i)
+			if (c instanceof SpaceExBaseComponent)
+				rv.add(c.getID());
+			else
 			{
-				Bind b = nc.getBind(i);
+				SpaceExNetworkComponent nc = (SpaceExNetworkComponent) c;
 
-				String compName = b.getComponent();
-				SpaceExComponent comp = doc.getComponent(compName);
+				for (int i = 0; i < nc.getBindCount(); ++i)
+				{
+					Bind b = nc.getBind(i);
 
-				rv.addAll(getInstanceTypes(comp));
-			}
-		}
+					String compName = b.getComponent();
+					SpaceExComponent comp = doc.getComponent(compName);
 
-		return rv;
-	}
+					rv.addAll(getInstanceTypes(comp));
+				}
+			}
 
-	private static List<String> getInstanceNames(String instanceName, SpaceExComponent c)
-	{
-		List<String> rv = new ArrayList<String>();
+			return rv;
+		}
 
-		if (c instanceof SpaceExBaseComponent)
-			rv.add(instanceName);
-		else
+		private List<String> getInstanceNames(String instanceName, SpaceExComponent c)
 		{
-			SpaceExNetworkComponent nc = (SpaceExNetworkComponent) c;
+			List<String> rv = new ArrayList<String>();
 
-			for (int i = 0; i < nc.getBindCount(); ++i)
+			if (c instanceof SpaceExBaseComponent)
+				rv.add(instanceName);
+			else
 			{
-				Bind b = nc.getBind(i);
+				SpaceExNetworkComponent nc = (SpaceExNetworkComponent) c;
+
+				for (int i = 0; i < nc.getBindCount(); ++i)
+				{
+					Bind b = nc.getBind(i);
 
-				String compName = b.getComponent();
-				SpaceExComponent comp = doc.getComponent(compName);
+					String compName = b.getComponent();
+					SpaceExComponent comp = doc.getComponent(compName);
 
-				String newInstName = (instanceName.length() > 0 ? instanceName + "." : "")
-						+ b.getAs();
+					String newInstName = (instanceName.length() > 0 ? instanceName + "." : "")
+							+ b.getAs();
 
-				rv.addAll(getInstanceNames(newInstName, comp));
+					rv.addAll(getInstanceNames(newInstName, comp));
+				}
 			}
-		}
 
-		return rv;
+			return rv;
+		}
 	}
 
 	/**
 	 * Recursively extract the symbolic (start) states from an expression
 	 * 
+	 * @param instances
+	 *            the instances of the network being imported
 	 * @param e
 	 *            the expression to parse
 	 * @param description
 	 *            the text description of the states being parsed, like
 	 *            "initial states"
 	 */
-	public static List<SymbolicStateExpression> extractSymbolicStates(Expression e,
-			String description)
+	public static List<SymbolicStateExpression> extractSymbolicStates(Instances instances,
+			Expression e, String description)
 	{
 		List<SymbolicStateExpression> rv = new ArrayList<SymbolicStateExpression>();
-		rv.add(new SymbolicStateExpression(true));
+		rv.add(new SymbolicStateExpression(instances, true));
 
 		try
 		{
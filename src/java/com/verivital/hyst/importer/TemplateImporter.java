@@ -1,5 +1,6 @@
 package com.verivital.hyst.importer;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -42,7 +43,7 @@ public class TemplateImporter
 {
 	// prefix used for value maps (hardcoded mappings to constants) inside
 	// template automata
-	// this may exist in models when Component.VALIDATE_CONSTS is false
+	// this may exist in models while Component.validateConsts() is false
 	public static final String TEMPLATE_VALUE_MAP_PREFIX = "~";
 
 	/**
@@ -56,8 +57,23 @@ public class TemplateImporter
 	 */
 	public static Map<String, Component> createComponentTemplates(SpaceExDocument doc)
 	{
-		HashMap<String, Component> templates = new HashMap<String, Component>();
+		return createComponentTemplates(doc, new HashMap<String, Component>());
+	}
 
+	/**
+	 * Create the templates for every component in the SpaceEx document which
+	 * doesn't already have one in the passed-in map.
+	 * 
+	 * @param doc
+	 *            the SpaceEx document to create them from
+	 * @param templates
+	 *            [in/out] the templates which were already created (for
+	 *            example, with createBaseTemplate() while reading the document)
+	 * @return the passed-in templates map
+	 */
+	public static Map<String, Component> createComponentTemplates(SpaceExDocument doc,
+			HashMap<String, Component> templates)
+	{
 		for (int i = 0; i < doc.getComponentCount(); ++i)
 		{
 			SpaceExComponent c = doc.getComponent(i);
@@ -68,6 +84,23 @@ public class TemplateImporter
 		return templates;
 	}
 
+	/**
+	 * Create the template for a single base component, if one doesn't exist
+	 * already. Base templates only depend on the component itself, so this can
+	 * be done before the rest of the document is known.
+	 * 
+	 * @param c
+	 *            the SpaceEx base component
+	 * @param templates
+	 *            [in/out] the templates map to add it to
+	 * @return the template
+	 */
+	public static Component createBaseTemplate(SpaceExBaseComponent c,
+			HashMap<String, Component> templates)
+	{
+		return instantiateTemplate(c, templates, null);
+	}
+
 	/**
 	 * Instantiate a template from a spaceex component, and add it to the
 	 * template list
@@ -214,20 +247,46 @@ public class TemplateImporter
 	 */
 	private static void convertTransitions(BaseComponent rv, SpaceExBaseComponent c)
 	{
+		// index the locations by id and the transitions by source id, so the
+		// conversion is linear in the size of the component
+		HashMap<Integer, Location> locById = new HashMap<Integer, Location>();
+		HashMap<Integer, ArrayList<Transition>> transBySource =
+				new HashMap<Integer, ArrayList<Transition>>();
+
 		for (int i = 0; i < c.getLocationCount(); i++)
 		{
 			Location loc = c.getLocation(i);
-			String fromName = loc.getName();
 
-			int locId = loc.getId();
+			if (!locById.containsKey(loc.getId()))
+				locById.put(loc.getId(), loc);
+		}
+
+		for (int j = 0; j < c.getTransitionCount(); j++)
+		{
+			Transition trans = c.getTransition(j);
+			ArrayList<Transition> list = transBySource.get(trans.getSource());
 
-			for (int j = 0; j < c.getTransitionCount(); j++)
+			if (list == null)
 			{
-				Transition trans = c.getTransition(j);
+				list = new ArrayList<Transition>();
+				transBySource.put(trans.getSource(), list);
+			}
+
+			list.add(trans);
+		}
+
+		for (int i = 0; i < c.getLocationCount(); i++)
+		{
+			Location loc = c.getLocation(i);
+			String fromName = loc.getName();
 
-				if (trans.getSource() != locId)
-					continue;
+			ArrayList<Transition> outgoing = transBySource.get(loc.getId());
 
+			if (outgoing == null)
+				continue;
+
+			for (Transition trans : outgoing)
+			{
 				if (trans.isAsap())
 					throw new AutomatonExportException(
 							"explicit asap transitions not currently supported");
@@ -237,7 +296,12 @@ public class TemplateImporter
 							"explicit time-driven transitions not currently supported");
 
 				int transTarget = trans.getTarget();
-				Location targetLoc = c.getLocationByID(transTarget);
+				Location targetLoc = locById.get(transTarget);
+
+				if (targetLoc == null)
+					throw new AutomatonExportException(
+							"destination location id in transition doesn't exist in automaton: "
+									+ transTarget);
 
 				String toName = targetLoc.getName();
 
@@ -86,7 +86,7 @@ public class ConvertFromStandardForm
 						+ "Transition into " + INIT_MODE_NAME + " not allowed.");
 		}
 
-		ha.transitions.removeAll(toRemove);
+		ha.removeTransitions(toRemove);
 		ha.modes.remove(INIT_MODE_NAME);
 
 		config.validate();
@@ -138,7 +138,7 @@ public class ConvertFromStandardForm
 						+ "Transition out of " + ERROR_MODE_NAME + " not allowed.");
 		}
 
-		ha.transitions.removeAll(toRemove);
+		ha.removeTransitions(toRemove);
 		ha.modes.remove(ERROR_MODE_NAME);
 
 		config.validate();
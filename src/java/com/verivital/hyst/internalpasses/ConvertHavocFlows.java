@@ -2,7 +2,6 @@ package com.verivital.hyst.internalpasses;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map.Entry;
 
 import com.verivital.hyst.geometry.Interval;
@@ -199,17 +198,16 @@ public class ConvertHavocFlows
 	private static void removeModesAndTransitions(BaseComponent ha,
 			ArrayList<AutomatonMode> modesToRemove)
 	{
-		for (AutomatonMode am : modesToRemove)
-			ha.modes.remove(am.name);
+		HashSet<AutomatonTransition> transitions = new HashSet<AutomatonTransition>();
 
-		for (Iterator<AutomatonTransition> i = ha.transitions.iterator(); i
-				.hasNext(); /* increment in loop */)
+		for (AutomatonMode am : modesToRemove)
 		{
-			AutomatonTransition t = i.next();
-
-			if (modesToRemove.contains(t.from) || modesToRemove.contains(t.to))
-				i.remove();
+			ha.modes.remove(am.name);
+			transitions.addAll(am.getOutgoing());
+			transitions.addAll(am.getIncoming());
 		}
+
+		ha.removeTransitions(transitions);
 	}
 
 	private static Expression addIntervalResetToExpression(String varName, Interval range,
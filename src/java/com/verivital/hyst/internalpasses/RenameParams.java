@@ -3,6 +3,7 @@ package com.verivital.hyst.internalpasses;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -255,7 +256,7 @@ public class RenameParams
 
 	private static void swapLabels(Component c, Map<String, String> convertMap)
 	{
-		ArrayList<String> newLabels = new ArrayList<String>();
+		LinkedHashSet<String> newLabels = new LinkedHashSet<String>();
 
 		for (String oldName : c.labels)
 		{
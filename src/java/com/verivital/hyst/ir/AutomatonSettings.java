@@ -39,7 +39,7 @@ public class AutomatonSettings
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.doValidation())
 			return;
 
 		if (config == null)
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -34,22 +35,55 @@ import com.verivital.hyst.ir.network.NetworkComponent;
  */
 public abstract class Component
 {
-	public static boolean VALIDATE_CONSTS = true; // should constant
-													// names/values be checked
+	// should constant names/values be checked; this is turned off while an
+	// automaton is being constructed. It's per thread, so a conversion running
+	// at the same time as an import still checks its constants.
+	private static final ThreadLocal<Boolean> validateConsts = new ThreadLocal<Boolean>()
+	{
+		@Override
+		protected Boolean initialValue()
+		{
+			return Boolean.TRUE;
+		}
+	};
+
 	public NetworkComponent parent;
 	public String instanceName; // component instance name, null for root
 								// component
 
 	public ArrayList<String> variables = new ArrayList<String>();
 	public LinkedHashMap<String, Interval> constants = new LinkedHashMap<String, Interval>();
-	public ArrayList<String> labels = new ArrayList<String>();
+	public LinkedHashSet<String> labels = new LinkedHashSet<String>();
 
 	public Component template; // the template component this was instantiated
 								// from (may be null)
 
+	/**
+	 * Should constant names and values be checked when validating (in the
+	 * current thread)
+	 */
+	public static boolean validateConsts()
+	{
+		return validateConsts.get();
+	}
+
+	/**
+	 * Enable or disable checking constants during validation in the current
+	 * thread, for example while an automaton is partly constructed
+	 * 
+	 * @return the previous setting
+	 */
+	public static boolean setValidateConsts(boolean enabled)
+	{
+		boolean rv = validateConsts.get();
+		validateConsts.set(enabled);
+
+		return rv;
+	}
+
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.doValidation())
 			return;
 
 		if (instanceName != null)
@@ -81,7 +115,7 @@ public abstract class Component
 		checkNameConflicts(allNames, labels, "label names of " + getPrintableInstanceName());
 
 		// we may skip this during automaton construction
-		if (VALIDATE_CONSTS)
+		if (validateConsts())
 		{
 			checkNameConflicts(allNames, constants.keySet(),
 					"constant names of " + getPrintableInstanceName());
@@ -208,6 +242,18 @@ public abstract class Component
 	 */
 	public abstract Collection<String> getAllVariables();
 
+	/**
+	 * Start recording changes to the modes and transitions of this component
+	 * (and its subcomponents), so validate() only rechecks what was changed
+	 * until stopDirtyTracking() is called. See BaseComponent.markDirty().
+	 */
+	public abstract void startDirtyTracking();
+
+	/**
+	 * Stop recording changes, so validate() checks everything again
+	 */
+	public abstract void stopDirtyTracking();
+
 	/**
 	 * get the names and values of all the constants (include locals in
 	 * subcomponents) in this component
@@ -309,7 +355,7 @@ public abstract class Component
 		rv.constants = new LinkedHashMap<String, Interval>();
 		rv.constants.putAll(constants);
 
-		rv.labels = new ArrayList<String>();
+		rv.labels = new LinkedHashSet<String>();
 		rv.labels.addAll(labels);
 		rv.template = template; // shallow copy template
 
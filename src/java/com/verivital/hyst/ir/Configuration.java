@@ -1,6 +1,7 @@
 package com.verivital.hyst.ir;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -18,11 +19,28 @@ import com.verivital.hyst.util.AutomatonUtil;
  * be null (these can be rejected in ToolPrinter) forbidden is not null and if
  * size > 0, each String is a mode in the automaton; expression may be null
  * (these can be rejected in ToolPrinter)
+ * 
+ * Configurations can also be shared cheaply using snapshot(), which doesn't
+ * copy the automaton. Code which modifies the automaton of a configuration
+ * that may be a snapshot must call makeWritable() first; transformation
+ * passes, preconditions and printers already do this. A sharer which is done
+ * with the automaton without modifying it can call release(). The unit of
+ * sharing is the whole automaton: the IR's modes, transitions and expressions
+ * are public mutable fields, so writes to a single mode can't be intercepted.
  *
  */
 public class Configuration
 {
-	public static boolean DO_VALIDATION = true;
+	// validation is a per-thread setting (inherited by threads created while
+	// it's set), so conversions running at once can use -novalidate
+	private static final InheritableThreadLocal<Boolean> doValidation = new InheritableThreadLocal<Boolean>()
+	{
+		@Override
+		protected Boolean initialValue()
+		{
+			return Boolean.TRUE;
+		}
+	};
 
 	public AutomatonSettings settings = new AutomatonSettings(this);
 
@@ -31,14 +49,174 @@ public class Configuration
 
 	public Component root = null;
 
+	// if non-null, root is shared with other snapshots and must be copied
+	// before it's modified
+	private SharedRoot shared = null;
+
+	/**
+	 * Counts the configurations sharing a root component, and the ones which
+	 * are still making their copy of it
+	 */
+	private static class SharedRoot
+	{
+		int holders = 1;
+		int copying = 0;
+	}
+
 	public Configuration(Component root)
 	{
 		this.root = root;
 	}
 
+	/**
+	 * Create a copy-on-write snapshot of this configuration. The automaton is
+	 * shared (not copied) between this configuration and the snapshot until
+	 * one of them calls makeWritable(), at which point that one gets its own
+	 * deep copy. The initial / forbidden states and the settings are copied
+	 * immediately, since they're small.
+	 * 
+	 * @return the snapshot
+	 */
+	public synchronized Configuration snapshot()
+	{
+		Configuration rv = new Configuration(root);
+		copySettingsAndStates(rv);
+
+		if (shared == null)
+			shared = new SharedRoot();
+
+		synchronized (shared)
+		{
+			++shared.holders;
+			rv.shared = shared;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Make sure the root component is not shared with any snapshot, deep
+	 * copying it if needed. This must be called before modifying the
+	 * automaton of a configuration which may be a snapshot. If every other
+	 * sharer has already made its own copy (or given up its share), no copy is
+	 * made; the last sharer waits until the others have finished copying
+	 * before it takes the automaton over.
+	 */
+	public synchronized void makeWritable()
+	{
+		if (shared == null)
+			return;
+
+		SharedRoot s = shared;
+		boolean mustCopy;
+
+		synchronized (s)
+		{
+			mustCopy = s.holders > 1;
+
+			if (mustCopy)
+				++s.copying;
+			else
+				awaitCopies(s);
+
+			--s.holders;
+		}
+
+		shared = null;
+
+		if (mustCopy)
+		{
+			try
+			{
+				root = root.copy();
+			}
+			finally
+			{
+				synchronized (s)
+				{
+					--s.copying;
+					s.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give up this configuration's share of an automaton which is shared with
+	 * snapshots, without copying it, so the remaining sharers don't have to
+	 * copy it either. The root is set to null, since another sharer may take
+	 * the automaton over and modify it. Does nothing if the root isn't shared.
+	 */
+	public synchronized void release()
+	{
+		if (shared == null)
+			return;
+
+		synchronized (shared)
+		{
+			--shared.holders;
+		}
+
+		shared = null;
+		root = null;
+	}
+
+	/**
+	 * Wait (holding s's lock) until nobody is copying the shared root
+	 */
+	private static void awaitCopies(SharedRoot s)
+	{
+		boolean interrupted = false;
+
+		while (s.copying > 0)
+		{
+			try
+			{
+				s.wait();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Is the root component currently shared with a snapshot?
+	 * 
+	 * @return true if makeWritable() would need to copy the automaton
+	 */
+	public synchronized boolean isShared()
+	{
+		if (shared == null)
+			return false;
+
+		synchronized (shared)
+		{
+			return shared.holders > 1;
+		}
+	}
+
+	/**
+	 * Deep copy the configuration, including the automaton. Use snapshot()
+	 * instead unless the copy is needed right away, since the automaton is
+	 * then only copied if the snapshot is modified while still shared.
+	 * 
+	 * @return the copy
+	 */
 	public Configuration copy()
 	{
 		Configuration rv = new Configuration(root.copy());
+		copySettingsAndStates(rv);
+
+		return rv;
+	}
+
+	private void copySettingsAndStates(Configuration rv)
+	{
 		rv.settings = settings.copy(rv);
 
 		for (Entry<String, Expression> e : init.entrySet())
@@ -46,16 +224,31 @@ public class Configuration
 
 		for (Entry<String, Expression> e : forbidden.entrySet())
 			rv.forbidden.put(e.getKey(), e.getValue().copy());
+	}
 
-		return rv;
+	/**
+	 * Should internal model validation be done in the current thread
+	 */
+	public static boolean doValidation()
+	{
+		return doValidation.get();
+	}
+
+	/**
+	 * Enable or disable internal model validation in the current thread (and
+	 * threads it creates later)
+	 */
+	public static void setValidation(boolean enabled)
+	{
+		doValidation.set(enabled);
 	}
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.doValidation())
 			return;
 
-		Collection<String> validVarNames = root.getAllVariables();
+		Collection<String> validVarNames = new HashSet<String>(root.getAllVariables());
 		validVarNames.addAll(root.getAllConstants().keySet());
 
 		validateMap(init, "init", validVarNames, false);
@@ -1,8 +1,11 @@
 package com.verivital.hyst.ir.base;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
@@ -68,9 +71,22 @@ public class AutomatonMode
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.doValidation())
 			return;
 
+		validate(new HashSet<String>(automaton.variables));
+	}
+
+	/**
+	 * Validate the mode, given the parent's variables as a set (so a
+	 * BaseComponent can check all its modes in linear time)
+	 * 
+	 * @param variableSet
+	 *            the variables of the parent automaton
+	 */
+	void validate(Set<String> variableSet)
+	{
+
 		if (name == null)
 			throw new AutomatonValidationException("name was null");
 
@@ -98,7 +114,7 @@ public class AutomatonMode
 		{
 			for (String s : flowDynamics.keySet())
 			{
-				if (!automaton.variables.contains(s))
+				if (!variableSet.contains(s))
 				{
 					throw new AutomatonValidationException(
 							"dynamics were defined for variable '" + s + "' in mode '" + name
@@ -132,6 +148,28 @@ public class AutomatonMode
 				+ AutomatonUtil.getMapExpressionIntervalString(flowDynamics) + "]";
 	}
 
+	/**
+	 * Get the transitions leaving this mode
+	 * 
+	 * @return an unmodifiable list of transitions, see
+	 *         BaseComponent.getOutgoing()
+	 */
+	public List<AutomatonTransition> getOutgoing()
+	{
+		return automaton.getOutgoing(this);
+	}
+
+	/**
+	 * Get the transitions entering this mode
+	 * 
+	 * @return an unmodifiable list of transitions, see
+	 *         BaseComponent.getIncoming()
+	 */
+	public List<AutomatonTransition> getIncoming()
+	{
+		return automaton.getIncoming(this);
+	}
+
 	/**
 	 * Duplicate (deep copy) the mode, and add link the new one with this one's
 	 * parent automaton. This does not copy any transitions. The automaton link
@@ -177,22 +215,22 @@ public class AutomatonMode
 		ArrayList<AutomatonTransition> fromCopy = new ArrayList<AutomatonTransition>();
 		ArrayList<AutomatonTransition> toCopy = new ArrayList<AutomatonTransition>();
 
-		for (AutomatonTransition at : automaton.transitions)
+		for (AutomatonTransition at : getOutgoing())
 		{
-			if (at.from == this && at.to == this)
+			if (at.to == this)
 				throw new AutomatonExportException(
 						"Can't clone automaton mode with self-loop since meaning is unclear.");
-			else if (at.from == this)
-				fromCopy.add(at);
-			else if (at.to == this)
-				toCopy.add(at);
+
+			fromCopy.add(at);
 		}
 
+		toCopy.addAll(getIncoming());
+
 		for (AutomatonTransition at : fromCopy)
-			at.copy(automaton).from = rv;
+			at.copy(automaton).setFrom(rv);
 
 		for (AutomatonTransition at : toCopy)
-			at.copy(automaton).to = rv;
+			at.copy(automaton).setTo(rv);
 
 		return rv;
 	}
@@ -56,6 +56,34 @@ public class AutomatonTransition
 		reset = new LinkedHashMap<String, ExpressionInterval>();
 	}
 
+	/**
+	 * Change the source mode, keeping the parent's transition index
+	 * consistent
+	 * 
+	 * @param from
+	 *            the new source mode
+	 */
+	public void setFrom(AutomatonMode from)
+	{
+		this.from = from;
+		parent.invalidateTransitionIndex();
+		parent.markDirty(this);
+	}
+
+	/**
+	 * Change the destination mode, keeping the parent's transition index
+	 * consistent
+	 * 
+	 * @param to
+	 *            the new destination mode
+	 */
+	public void setTo(AutomatonMode to)
+	{
+		this.to = to;
+		parent.invalidateTransitionIndex();
+		parent.markDirty(this);
+	}
+
 	/**
 	 * Deep copy. This also updates the transitions in the passed-in parent
 	 * HybridAutomaton
@@ -64,16 +92,8 @@ public class AutomatonTransition
 	{
 		// parent may be different, so search for from.name and to.name in
 		// parent
-		AutomatonMode parentFrom = null, parentTo = null;
-
-		for (AutomatonMode am : parent.modes.values())
-		{
-			if (am.name.equals(from.name))
-				parentFrom = am;
-
-			if (am.name.equals(to.name))
-				parentTo = am;
-		}
+		AutomatonMode parentFrom = parent.modes.get(from.name);
+		AutomatonMode parentTo = parent.modes.get(to.name);
 
 		if (parentFrom == null)
 			throw new AutomatonExportException("Source mode ('" + from.name
@@ -104,7 +124,7 @@ public class AutomatonTransition
 	 */
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.doValidation())
 			return;
 
 		if (parent == null)
@@ -2,8 +2,12 @@ package com.verivital.hyst.ir.base;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -28,13 +32,56 @@ import com.verivital.hyst.util.AutomatonUtil;
  * 
  * the defined flows in all non-urgent locations must be for the same variables
  * 
+ * The outgoing and incoming transitions of each mode are indexed (see
+ * getOutgoing() and getIncoming()). The index is built on first use, kept up to
+ * date by createTransition() and removeTransitions(), and rebuilt if the
+ * transitions list is modified directly. If a transition's from or to field is
+ * assigned directly (rather than with setFrom() / setTo()), call
+ * invalidateTransitionIndex().
+ * 
+ * Validation is linear in the size of the automaton. Between
+ * startDirtyTracking() and stopDirtyTracking(), validate() only rechecks the
+ * modes and transitions which were added (in any way) or marked with
+ * markDirty() since tracking started; the structural checks (mode names,
+ * transition endpoints, labels, flow variables) are always done on the whole
+ * automaton. Changes made by assigning fields of an existing mode or
+ * transition can't be detected, so they must be marked.
+ * 
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
 public class BaseComponent extends Component
 {
 	public LinkedHashMap<String, AutomatonMode> modes = new LinkedHashMap<String, AutomatonMode>();
-	public ArrayList<AutomatonTransition> transitions = new ArrayList<AutomatonTransition>();
+	public ArrayList<AutomatonTransition> transitions = new TransitionList();
+
+	// per-mode transition index, null if not built
+	private HashMap<AutomatonMode, ArrayList<AutomatonTransition>> outgoing = null;
+	private HashMap<AutomatonMode, ArrayList<AutomatonTransition>> incoming = null;
+	private ArrayList<AutomatonTransition> indexedList = null;
+	private int indexedModCount = -1;
+
+	// modes and transitions present when startDirtyTracking() was called, and
+	// those marked as changed since; null if not tracking (then validate()
+	// checks everything)
+	private Set<AutomatonMode> trackedModes = null;
+	private Set<AutomatonTransition> trackedTransitions = null;
+	private Set<AutomatonMode> dirtyModes = null;
+	private Set<AutomatonTransition> dirtyTransitions = null;
+
+	/**
+	 * A list of transitions which exposes its modification count, so direct
+	 * changes to the list can be detected
+	 */
+	private static class TransitionList extends ArrayList<AutomatonTransition>
+	{
+		private static final long serialVersionUID = 1L;
+
+		int getModCount()
+		{
+			return modCount;
+		}
+	}
 
 	/**
 	 * Create a new mode in this hybrid automaton. By default the invariant is
@@ -127,11 +174,246 @@ public class BaseComponent extends Component
 			throw new AutomatonValidationException(
 					"created transition between different Hybrid Automata");
 
+		boolean indexed = isIndexCurrent();
 		transitions.add(rv);
 
+		if (indexed)
+		{
+			addToIndex(rv);
+			updateIndexedModCount();
+		}
+
 		return rv;
 	}
 
+	/**
+	 * Remove a transition from this hybrid automaton
+	 * 
+	 * @param t
+	 *            the transition to remove
+	 */
+	public void removeTransition(AutomatonTransition t)
+	{
+		removeTransitions(Collections.singleton(t));
+	}
+
+	/**
+	 * Remove several transitions from this hybrid automaton, in time linear in
+	 * the number of transitions
+	 * 
+	 * @param toRemove
+	 *            the transitions to remove
+	 */
+	public void removeTransitions(Collection<AutomatonTransition> toRemove)
+	{
+		if (toRemove.isEmpty())
+			return;
+
+		boolean indexed = isIndexCurrent();
+		HashSet<AutomatonTransition> removeSet = new HashSet<AutomatonTransition>(toRemove);
+		transitions.removeAll(removeSet);
+
+		if (indexed)
+		{
+			for (AutomatonTransition t : removeSet)
+			{
+				ArrayList<AutomatonTransition> list = outgoing.get(t.from);
+
+				if (list != null)
+					list.remove(t);
+
+				list = incoming.get(t.to);
+
+				if (list != null)
+					list.remove(t);
+			}
+
+			updateIndexedModCount();
+		}
+	}
+
+	/**
+	 * Get the transitions leaving a mode, in the order they're in the
+	 * transitions list
+	 * 
+	 * @param am
+	 *            the mode
+	 * @return an unmodifiable list of the transitions with from == am
+	 */
+	public List<AutomatonTransition> getOutgoing(AutomatonMode am)
+	{
+		buildIndex();
+
+		return unmodifiable(outgoing.get(am));
+	}
+
+	/**
+	 * Get the transitions entering a mode, in the order they're in the
+	 * transitions list
+	 * 
+	 * @param am
+	 *            the mode
+	 * @return an unmodifiable list of the transitions with to == am
+	 */
+	public List<AutomatonTransition> getIncoming(AutomatonMode am)
+	{
+		buildIndex();
+
+		return unmodifiable(incoming.get(am));
+	}
+
+	/**
+	 * Build the per-mode transition index now, if it's not current. Until the
+	 * transitions change, getOutgoing() and getIncoming() then only read the
+	 * index, so they can be called from several threads.
+	 */
+	public void buildTransitionIndex()
+	{
+		buildIndex();
+	}
+
+	/**
+	 * Discard the per-mode transition index, so that it's rebuilt on next use.
+	 * This is needed after assigning a transition's from or to fields
+	 * directly.
+	 */
+	public void invalidateTransitionIndex()
+	{
+		outgoing = null;
+		incoming = null;
+		indexedList = null;
+	}
+
+	@Override
+	public void startDirtyTracking()
+	{
+		trackedModes = identitySet();
+		trackedModes.addAll(modes.values());
+		trackedTransitions = identitySet();
+		trackedTransitions.addAll(transitions);
+		dirtyModes = identitySet();
+		dirtyTransitions = identitySet();
+	}
+
+	@Override
+	public void stopDirtyTracking()
+	{
+		trackedModes = null;
+		trackedTransitions = null;
+		dirtyModes = null;
+		dirtyTransitions = null;
+	}
+
+	private static <T> Set<T> identitySet()
+	{
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+
+	/**
+	 * Should a mode be rechecked by validate()?
+	 */
+	private boolean needsCheck(AutomatonMode am)
+	{
+		return trackedModes == null || !trackedModes.contains(am) || dirtyModes.contains(am);
+	}
+
+	/**
+	 * Should a transition be rechecked by validate()?
+	 */
+	private boolean needsCheck(AutomatonTransition at)
+	{
+		return trackedTransitions == null || !trackedTransitions.contains(at)
+				|| dirtyTransitions.contains(at);
+	}
+
+	/**
+	 * Record that a mode was modified, so it gets rechecked by validate() until
+	 * tracking stops. This has no effect if dirty tracking is not active.
+	 * 
+	 * @param am
+	 *            the modified mode
+	 */
+	public void markDirty(AutomatonMode am)
+	{
+		if (dirtyModes != null)
+			dirtyModes.add(am);
+	}
+
+	/**
+	 * Record that a transition was modified, so it gets rechecked by
+	 * validate() until tracking stops. This has no effect if dirty tracking is
+	 * not active.
+	 * 
+	 * @param at
+	 *            the modified transition
+	 */
+	public void markDirty(AutomatonTransition at)
+	{
+		if (dirtyTransitions != null)
+			dirtyTransitions.add(at);
+	}
+
+	private static List<AutomatonTransition> unmodifiable(List<AutomatonTransition> list)
+	{
+		List<AutomatonTransition> rv = Collections.emptyList();
+
+		if (list != null)
+			rv = Collections.unmodifiableList(list);
+
+		return rv;
+	}
+
+	private boolean isIndexCurrent()
+	{
+		return outgoing != null && transitions == indexedList
+				&& transitions instanceof TransitionList
+				&& ((TransitionList) transitions).getModCount() == indexedModCount;
+	}
+
+	private void buildIndex()
+	{
+		if (isIndexCurrent())
+			return;
+
+		outgoing = new HashMap<AutomatonMode, ArrayList<AutomatonTransition>>();
+		incoming = new HashMap<AutomatonMode, ArrayList<AutomatonTransition>>();
+
+		for (AutomatonTransition t : transitions)
+			addToIndex(t);
+
+		indexedList = transitions;
+		updateIndexedModCount();
+	}
+
+	private void updateIndexedModCount()
+	{
+		if (transitions instanceof TransitionList)
+			indexedModCount = ((TransitionList) transitions).getModCount();
+	}
+
+	private void addToIndex(AutomatonTransition t)
+	{
+		ArrayList<AutomatonTransition> list = outgoing.get(t.from);
+
+		if (list == null)
+		{
+			list = new ArrayList<AutomatonTransition>();
+			outgoing.put(t.from, list);
+		}
+
+		list.add(t);
+
+		list = incoming.get(t.to);
+
+		if (list == null)
+		{
+			list = new ArrayList<AutomatonTransition>();
+			incoming.put(t.to, list);
+		}
+
+		list.add(t);
+	}
+
 	/**
 	 * Check if the guarantees expected of this class are met. This is run prior
 	 * to any printing procedures.
@@ -141,7 +423,7 @@ public class BaseComponent extends Component
 	 */
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.doValidation())
 			return;
 
 		super.validate();
@@ -164,26 +446,31 @@ public class BaseComponent extends Component
 			}
 		}
 
+		HashSet<String> variableSet = new HashSet<String>(variables);
+
 		for (AutomatonMode m : modes.values())
-			m.validate();
+		{
+			if (needsCheck(m))
+				m.validate(variableSet);
+		}
+
+		HashSet<String> usedLabels = new HashSet<String>();
 
 		for (AutomatonTransition t : transitions)
-			t.validate();
+		{
+			if (needsCheck(t))
+				t.validate();
+			else if (modes.get(t.from.name) != t.from || modes.get(t.to.name) != t.to)
+				throw new AutomatonValidationException("transition '" + t.from.name + "'->'"
+						+ t.to.name + "' uses a mode which does not exist in parent");
+
+			if (t.label != null)
+				usedLabels.add(t.label);
+		}
 
 		for (String label : labels)
 		{
-			boolean found = false;
-
-			for (AutomatonTransition t : transitions)
-			{
-				if (label.equals(t.label))
-				{
-					found = true;
-					break;
-				}
-			}
-
-			if (!found)
+			if (!usedLabels.contains(label))
 			{
 				String msg = "Exported label '" + label + "' was not used in BaseComponent '"
 						+ getPrintableInstanceName() + "'.";
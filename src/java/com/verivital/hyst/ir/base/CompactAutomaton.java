@@ -0,0 +1,774 @@
+package com.verivital.hyst.ir.base;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * A memory-compact storage for a single (flat) hybrid automaton, intended for
+ * automata with a very large number of modes, such as the output of
+ * hybridization.
+ * 
+ * Variables, modes, transitions and labels are identified by integer ids
+ * (their index). Flows are stored in one array indexed by mode and variable
+ * id, transitions are stored column-wise in primitive arrays, and resets and
+ * the outgoing transitions of each mode are stored in compressed rows (a start
+ * offset per transition / mode into a shared array). No per-mode or
+ * per-transition objects or maps are created.
+ * 
+ * Use fromComponent() and toComponent() to convert to and from the regular IR,
+ * so the existing passes and printers can be used. Expressions are shared, not
+ * copied, by both conversions. Code which only visits each mode or transition
+ * once can instead use modes() and transitions(), which create the IR objects
+ * while iterating. FlatNetworkView.explore() builds the reachable product of a
+ * network in this form, which FlattenAutomatonPass -reachable and lazy Flow*
+ * printing use.
+ * 
+ * Modes and transitions can also be added directly. The resets added with
+ * addReset() belong to the most recently added transition.
+ */
+public class CompactAutomaton
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	public LinkedHashMap<String, Interval> constants = new LinkedHashMap<String, Interval>();
+	public LinkedHashSet<String> labels = new LinkedHashSet<String>(); // exported
+
+	// interned variables
+	private final String[] variableNames;
+	private final HashMap<String, Integer> variableIds = new HashMap<String, Integer>();
+
+	// modes
+	private int numModes = 0;
+	private String[] modeNames = new String[INITIAL_CAPACITY];
+	private Expression[] invariants = new Expression[INITIAL_CAPACITY];
+	private BitSet urgent = new BitSet();
+	private ExpressionInterval[] flows; // index is mode * numVariables + var
+	private int[] flowOrder; // variable ids in the order flows are converted
+	private boolean flowOrderSet = false;
+	private HashMap<String, Integer> modeIds = null; // built on first use
+
+	// transitions
+	private int numTransitions = 0;
+	private int[] transitionFrom = new int[INITIAL_CAPACITY];
+	private int[] transitionTo = new int[INITIAL_CAPACITY];
+	private Expression[] guards = new Expression[INITIAL_CAPACITY];
+	private int[] transitionLabels = new int[INITIAL_CAPACITY]; // -1 if none
+	private ArrayList<String> labelNames = new ArrayList<String>();
+	private HashMap<String, Integer> labelIds = new HashMap<String, Integer>();
+
+	// resets of transition t are at indices resetStart[t] to resetStart[t+1]-1
+	private int numResets = 0;
+	private int[] resetStart = new int[INITIAL_CAPACITY + 1];
+	private int[] resetVariables = new int[INITIAL_CAPACITY];
+	private ExpressionInterval[] resetValues = new ExpressionInterval[INITIAL_CAPACITY];
+
+	// outgoing transitions of mode m are outgoing[outgoingStart[m]] to
+	// outgoing[outgoingStart[m+1]-1], null if not built
+	private int[] outgoingStart = null;
+	private int[] outgoing = null;
+
+	/**
+	 * Create an empty compact automaton
+	 * 
+	 * @param variables
+	 *            the variables, in order (the index is the variable id)
+	 */
+	public CompactAutomaton(List<String> variables)
+	{
+		variableNames = variables.toArray(new String[variables.size()]);
+
+		for (int i = 0; i < variableNames.length; ++i)
+		{
+			if (variableIds.put(variableNames[i], i) != null)
+				throw new AutomatonExportException("Repeated variable name: " + variableNames[i]);
+		}
+
+		flows = new ExpressionInterval[INITIAL_CAPACITY * variableNames.length];
+		flowOrder = new int[variableNames.length];
+
+		for (int i = 0; i < flowOrder.length; ++i)
+			flowOrder[i] = i;
+	}
+
+	/**
+	 * Convert a BaseComponent to the compact representation. Mode and
+	 * transition ids follow the iteration order of ha.modes and ha.transitions.
+	 * The order of the flows in the first non-urgent mode is kept for
+	 * toComponent(), unless setFlowOrder() was called.
+	 * 
+	 * @param ha
+	 *            the automaton to convert
+	 * @return the compact automaton
+	 */
+	public static CompactAutomaton fromComponent(BaseComponent ha)
+	{
+		CompactAutomaton rv = new CompactAutomaton(ha.variables);
+		rv.constants.putAll(ha.constants);
+		rv.labels.addAll(ha.labels);
+
+		HashMap<AutomatonMode, Integer> ids = new HashMap<AutomatonMode, Integer>();
+
+		for (AutomatonMode am : ha.modes.values())
+			ids.put(am, rv.addMode(am));
+
+		for (AutomatonTransition at : ha.transitions)
+			rv.addTransition(ids.get(at.from), ids.get(at.to), at);
+
+		return rv;
+	}
+
+	/**
+	 * Convert to a (root) BaseComponent. Flows are assigned in the order given
+	 * by setFlowOrder() (variable order by default).
+	 * 
+	 * @return the new BaseComponent
+	 */
+	public BaseComponent toComponent()
+	{
+		BaseComponent rv = createParams();
+		AutomatonMode[] modes = new AutomatonMode[numModes];
+
+		for (int m = 0; m < numModes; ++m)
+		{
+			modes[m] = rv.createMode(modeNames[m]);
+			setModeFields(modes[m], m);
+		}
+
+		for (int t = 0; t < numTransitions; ++t)
+		{
+			AutomatonTransition at = rv.createTransition(modes[transitionFrom[t]],
+					modes[transitionTo[t]]);
+			setTransitionFields(at, t);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Create an empty (root) BaseComponent with the variables, constants and
+	 * labels of this automaton, to be the parent of the objects created by
+	 * createMode(), modes() and transitions()
+	 * 
+	 * @return the new BaseComponent, without modes or transitions
+	 */
+	public BaseComponent createParams()
+	{
+		BaseComponent rv = new BaseComponent();
+		rv.variables.addAll(Arrays.asList(variableNames));
+		rv.constants.putAll(constants);
+		rv.labels.addAll(labels);
+
+		return rv;
+	}
+
+	/**
+	 * Create an AutomatonMode object for a mode, without adding it to the
+	 * parent's modes
+	 * 
+	 * @param parent
+	 *            the automaton of the new mode, from createParams()
+	 * @param mode
+	 *            the mode id
+	 * @return the new mode
+	 */
+	public AutomatonMode createMode(BaseComponent parent, int mode)
+	{
+		AutomatonMode am = new AutomatonMode(parent, modeNames[mode]);
+		setModeFields(am, mode);
+
+		return am;
+	}
+
+	private void setModeFields(AutomatonMode am, int mode)
+	{
+		am.invariant = invariants[mode];
+
+		if (urgent.get(mode))
+		{
+			am.urgent = true;
+			am.flowDynamics = null;
+		}
+		else
+		{
+			am.flowDynamics.clear();
+
+			for (int v : flowOrder)
+			{
+				ExpressionInterval ei = getFlow(mode, v);
+
+				if (ei != null)
+					am.flowDynamics.put(variableNames[v], ei);
+			}
+		}
+	}
+
+	private void setTransitionFields(AutomatonTransition at, int t)
+	{
+		at.guard = guards[t];
+		at.label = getLabel(t);
+
+		for (int r = resetStart[t]; r < resetStart[t + 1]; ++r)
+			at.reset.put(variableNames[resetVariables[r]], resetValues[r]);
+	}
+
+	/**
+	 * Iterate over the modes, in id order. The AutomatonMode objects are
+	 * created while iterating and aren't kept, so code which visits the modes
+	 * once (such as a printer) never holds all of them at the same time.
+	 * 
+	 * @param parent
+	 *            the automaton of the created modes, from createParams()
+	 */
+	public Iterable<AutomatonMode> modes(final BaseComponent parent)
+	{
+		return new AbstractList<AutomatonMode>()
+		{
+			@Override
+			public AutomatonMode get(int mode)
+			{
+				return createMode(parent, mode);
+			}
+
+			@Override
+			public int size()
+			{
+				return numModes;
+			}
+		};
+	}
+
+	/**
+	 * Iterate over the transitions, in id order. Like modes(), the
+	 * AutomatonTransition objects (and their endpoint modes) are created while
+	 * iterating and aren't kept.
+	 * 
+	 * @param parent
+	 *            the automaton of the created transitions, from
+	 *            createParams()
+	 */
+	public Iterable<AutomatonTransition> transitions(final BaseComponent parent)
+	{
+		return new AbstractList<AutomatonTransition>()
+		{
+			// transitions are often grouped by source, so reuse its object
+			private AutomatonMode lastFrom = null;
+			private int lastFromId = -1;
+
+			@Override
+			public AutomatonTransition get(int t)
+			{
+				if (transitionFrom[t] != lastFromId)
+				{
+					lastFromId = transitionFrom[t];
+					lastFrom = createMode(parent, lastFromId);
+				}
+
+				AutomatonMode to = transitionTo[t] == lastFromId ? lastFrom : createMode(parent,
+						transitionTo[t]);
+				AutomatonTransition rv = new AutomatonTransition(parent, lastFrom, to);
+				setTransitionFields(rv, t);
+
+				return rv;
+			}
+
+			@Override
+			public int size()
+			{
+				return numTransitions;
+			}
+		};
+	}
+
+	/**
+	 * Set the order of the flows in the modes created by toComponent().
+	 * Variables which are not listed are placed afterwards, in variable order.
+	 * 
+	 * @param order
+	 *            variable names
+	 */
+	public void setFlowOrder(Collection<String> order)
+	{
+		flowOrderSet = true;
+		boolean[] listed = new boolean[variableNames.length];
+		int index = 0;
+
+		for (String name : order)
+		{
+			int var = getVariableIdChecked(name);
+
+			if (!listed[var])
+			{
+				listed[var] = true;
+				flowOrder[index++] = var;
+			}
+		}
+
+		for (int v = 0; v < variableNames.length; ++v)
+		{
+			if (!listed[v])
+				flowOrder[index++] = v;
+		}
+	}
+
+	public int getNumVariables()
+	{
+		return variableNames.length;
+	}
+
+	public String getVariableName(int var)
+	{
+		return variableNames[var];
+	}
+
+	/**
+	 * Get the id of a variable
+	 * 
+	 * @param name
+	 *            the variable name
+	 * @return the id, or -1 if there is no such variable
+	 */
+	public int getVariableId(String name)
+	{
+		Integer rv = variableIds.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	private int getVariableIdChecked(String name)
+	{
+		int rv = getVariableId(name);
+
+		if (rv == -1)
+			throw new AutomatonExportException("Unknown variable in compact automaton: " + name);
+
+		return rv;
+	}
+
+	/**
+	 * Add a mode. Flows are initially undefined (null).
+	 * 
+	 * @param name
+	 *            the mode name (must be unique)
+	 * @param invariant
+	 *            the mode invariant
+	 * @return the id of the new mode
+	 */
+	public int addMode(String name, Expression invariant)
+	{
+		if (numModes == modeNames.length)
+		{
+			int capacity = 2 * numModes;
+			modeNames = Arrays.copyOf(modeNames, capacity);
+			invariants = Arrays.copyOf(invariants, capacity);
+			flows = Arrays.copyOf(flows, capacity * variableNames.length);
+		}
+
+		int id = numModes++;
+		modeNames[id] = name;
+		invariants[id] = invariant;
+
+		if (modeIds != null && modeIds.put(name, id) != null)
+			throw new AutomatonExportException("Mode with name '" + name + "' already exists.");
+
+		outgoingStart = null;
+
+		return id;
+	}
+
+	/**
+	 * Add a copy of an IR mode, sharing its expressions. If setFlowOrder()
+	 * wasn't called, the flow order of the first non-urgent mode added is used.
+	 * 
+	 * @param am
+	 *            the mode, whose flows use this automaton's variables
+	 * @return the id of the new mode
+	 */
+	public int addMode(AutomatonMode am)
+	{
+		int id = addMode(am.name, am.invariant);
+
+		if (am.urgent)
+			setUrgent(id);
+		else
+		{
+			if (!flowOrderSet)
+				setFlowOrder(am.flowDynamics.keySet());
+
+			for (Entry<String, ExpressionInterval> e : am.flowDynamics.entrySet())
+				setFlow(id, getVariableIdChecked(e.getKey()), e.getValue());
+		}
+
+		return id;
+	}
+
+	public void setUrgent(int mode)
+	{
+		urgent.set(mode);
+	}
+
+	public void setFlow(int mode, int var, ExpressionInterval flow)
+	{
+		flows[mode * variableNames.length + var] = flow;
+	}
+
+	public void setInvariant(int mode, Expression invariant)
+	{
+		invariants[mode] = invariant;
+	}
+
+	public int getNumModes()
+	{
+		return numModes;
+	}
+
+	public String getModeName(int mode)
+	{
+		return modeNames[mode];
+	}
+
+	/**
+	 * Get the id of a mode. The first call builds a name lookup table.
+	 * 
+	 * @param name
+	 *            the mode name
+	 * @return the id, or -1 if there is no such mode
+	 */
+	public int getModeId(String name)
+	{
+		if (modeIds == null)
+		{
+			modeIds = new HashMap<String, Integer>(2 * numModes);
+
+			for (int m = 0; m < numModes; ++m)
+				modeIds.put(modeNames[m], m);
+		}
+
+		Integer rv = modeIds.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	public Expression getInvariant(int mode)
+	{
+		return invariants[mode];
+	}
+
+	public boolean isUrgent(int mode)
+	{
+		return urgent.get(mode);
+	}
+
+	/**
+	 * Get the flow of a variable in a mode
+	 * 
+	 * @param mode
+	 *            the mode id
+	 * @param var
+	 *            the variable id
+	 * @return the flow, or null if it's undefined (or the mode is urgent)
+	 */
+	public ExpressionInterval getFlow(int mode, int var)
+	{
+		return flows[mode * variableNames.length + var];
+	}
+
+	/**
+	 * Add a transition. Resets are added afterwards with addReset().
+	 * 
+	 * @param from
+	 *            the source mode id
+	 * @param to
+	 *            the destination mode id
+	 * @param guard
+	 *            the guard
+	 * @param label
+	 *            the synchronization label, or null
+	 * @return the id of the new transition
+	 */
+	public int addTransition(int from, int to, Expression guard, String label)
+	{
+		if (from < 0 || from >= numModes || to < 0 || to >= numModes)
+			throw new AutomatonExportException(
+					"Transition mode ids out of range: " + from + " -> " + to);
+
+		if (numTransitions == transitionFrom.length)
+		{
+			int capacity = 2 * numTransitions;
+			transitionFrom = Arrays.copyOf(transitionFrom, capacity);
+			transitionTo = Arrays.copyOf(transitionTo, capacity);
+			guards = Arrays.copyOf(guards, capacity);
+			transitionLabels = Arrays.copyOf(transitionLabels, capacity);
+			resetStart = Arrays.copyOf(resetStart, capacity + 1);
+		}
+
+		int id = numTransitions++;
+		transitionFrom[id] = from;
+		transitionTo[id] = to;
+		guards[id] = guard;
+		transitionLabels[id] = internLabel(label);
+		resetStart[id + 1] = numResets;
+
+		outgoingStart = null;
+
+		return id;
+	}
+
+	/**
+	 * Add a copy of an IR transition (its guard, label and resets, which are
+	 * shared)
+	 * 
+	 * @param from
+	 *            the source mode id
+	 * @param to
+	 *            the destination mode id
+	 * @param at
+	 *            the transition, whose resets use this automaton's variables
+	 * @return the id of the new transition
+	 */
+	public int addTransition(int from, int to, AutomatonTransition at)
+	{
+		int id = addTransition(from, to, at.guard, at.label);
+
+		for (Entry<String, ExpressionInterval> e : at.reset.entrySet())
+			addReset(getVariableIdChecked(e.getKey()), e.getValue());
+
+		return id;
+	}
+
+	private int internLabel(String label)
+	{
+		int rv = -1;
+
+		if (label != null)
+		{
+			Integer id = labelIds.get(label);
+
+			if (id == null)
+			{
+				id = labelNames.size();
+				labelNames.add(label);
+				labelIds.put(label, id);
+			}
+
+			rv = id;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Add a reset to the most recently added transition
+	 * 
+	 * @param var
+	 *            the variable id
+	 * @param value
+	 *            the reset value
+	 */
+	public void addReset(int var, ExpressionInterval value)
+	{
+		if (numTransitions == 0)
+			throw new AutomatonExportException("addReset() called before addTransition()");
+
+		if (numResets == resetVariables.length)
+		{
+			int capacity = 2 * numResets;
+			resetVariables = Arrays.copyOf(resetVariables, capacity);
+			resetValues = Arrays.copyOf(resetValues, capacity);
+		}
+
+		resetVariables[numResets] = var;
+		resetValues[numResets] = value;
+		resetStart[numTransitions] = ++numResets;
+	}
+
+	public int getNumTransitions()
+	{
+		return numTransitions;
+	}
+
+	public int getFrom(int transition)
+	{
+		return transitionFrom[transition];
+	}
+
+	public int getTo(int transition)
+	{
+		return transitionTo[transition];
+	}
+
+	public Expression getGuard(int transition)
+	{
+		return guards[transition];
+	}
+
+	public void setGuard(int transition, Expression guard)
+	{
+		guards[transition] = guard;
+	}
+
+	/**
+	 * Get the label of a transition
+	 * 
+	 * @param transition
+	 *            the transition id
+	 * @return the label, or null if the transition is unlabeled
+	 */
+	public String getLabel(int transition)
+	{
+		int id = transitionLabels[transition];
+
+		return id == -1 ? null : labelNames.get(id);
+	}
+
+	public int getNumResets(int transition)
+	{
+		return resetStart[transition + 1] - resetStart[transition];
+	}
+
+	/**
+	 * Get the variable id of one of a transition's resets
+	 * 
+	 * @param transition
+	 *            the transition id
+	 * @param index
+	 *            the reset index, from 0 to getNumResets(transition) - 1
+	 * @return the reset variable id
+	 */
+	public int getResetVariable(int transition, int index)
+	{
+		return resetVariables[resetStart[transition] + index];
+	}
+
+	/**
+	 * Get the value of one of a transition's resets
+	 * 
+	 * @param transition
+	 *            the transition id
+	 * @param index
+	 *            the reset index, from 0 to getNumResets(transition) - 1
+	 * @return the reset value
+	 */
+	public ExpressionInterval getReset(int transition, int index)
+	{
+		return resetValues[resetStart[transition] + index];
+	}
+
+	/**
+	 * Create a copy with only some of the modes, in a given order. The
+	 * transitions of the copy are grouped by source mode, in the new mode
+	 * order, and keep their relative order within each group. Transitions
+	 * to or from modes which aren't selected are dropped. Expressions are
+	 * shared.
+	 * 
+	 * @param order
+	 *            the old id of each new mode (each mode id at most once)
+	 * @return the copy
+	 */
+	public CompactAutomaton selectModes(int[] order)
+	{
+		CompactAutomaton rv = new CompactAutomaton(Arrays.asList(variableNames));
+		rv.constants.putAll(constants);
+		rv.labels.addAll(labels);
+		rv.flowOrder = flowOrder.clone();
+		rv.flowOrderSet = flowOrderSet;
+
+		int[] newIds = new int[numModes];
+		Arrays.fill(newIds, -1);
+
+		for (int m : order)
+		{
+			if (newIds[m] != -1)
+				throw new AutomatonExportException("Mode order repeats mode " + modeNames[m]);
+
+			newIds[m] = rv.addMode(modeNames[m], invariants[m]);
+			System.arraycopy(flows, m * variableNames.length, rv.flows,
+					newIds[m] * variableNames.length, variableNames.length);
+
+			if (urgent.get(m))
+				rv.setUrgent(newIds[m]);
+		}
+
+		for (int m : order)
+		{
+			for (int i = 0; i < getNumOutgoing(m); ++i)
+			{
+				int t = getOutgoing(m, i);
+
+				if (newIds[transitionTo[t]] == -1)
+					continue;
+
+				rv.addTransition(newIds[m], newIds[transitionTo[t]], guards[t], getLabel(t));
+
+				for (int r = resetStart[t]; r < resetStart[t + 1]; ++r)
+					rv.addReset(resetVariables[r], resetValues[r]);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the number of transitions leaving a mode. The outgoing index is
+	 * (re)built on first use after modes or transitions were added.
+	 * 
+	 * @param mode
+	 *            the mode id
+	 * @return the number of outgoing transitions
+	 */
+	public int getNumOutgoing(int mode)
+	{
+		buildOutgoing();
+
+		return outgoingStart[mode + 1] - outgoingStart[mode];
+	}
+
+	/**
+	 * Get one of the transitions leaving a mode, in transition id order
+	 * 
+	 * @param mode
+	 *            the mode id
+	 * @param index
+	 *            from 0 to getNumOutgoing(mode) - 1
+	 * @return the transition id
+	 */
+	public int getOutgoing(int mode, int index)
+	{
+		buildOutgoing();
+
+		return outgoing[outgoingStart[mode] + index];
+	}
+
+	private void buildOutgoing()
+	{
+		if (outgoingStart != null)
+			return;
+
+		int[] start = new int[numModes + 1];
+
+		for (int t = 0; t < numTransitions; ++t)
+			++start[transitionFrom[t] + 1];
+
+		for (int m = 0; m < numModes; ++m)
+			start[m + 1] += start[m];
+
+		int[] next = Arrays.copyOf(start, numModes);
+		outgoing = new int[numTransitions];
+
+		for (int t = 0; t < numTransitions; ++t)
+			outgoing[next[transitionFrom[t]]++] = t;
+
+		outgoingStart = start;
+	}
+}
@@ -111,15 +111,11 @@ public class ExpressionInterval
 	{
 		if (i != null)
 		{
-			// check if we can convert to just an expression
+			// check if we can convert to just an expression (without modifying
+			// this, since printers call this on a shared IR from several
+			// threads)
 			if (i.isPoint() && e instanceof Constant)
-			{
-				Constant c = (Constant) e;
-
-				c.setVal(c.getVal() + i.min);
-
-				i = null;
-			}
+				return new Constant(((Constant) e).getVal() + i.min);
 			else
 				throw new AutomatonExportException(
 						"ExpressionInterval.asExpression called, but interval is nonnull and"
@@ -135,7 +131,7 @@ public class ExpressionInterval
 	 */
 	public String toString()
 	{
-		return toString(Expression.expressionPrinter);
+		return toString(Expression.getExpressionPrinter());
 	}
 
 	/**
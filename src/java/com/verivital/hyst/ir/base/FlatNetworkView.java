@@ -0,0 +1,558 @@
+package com.verivital.hyst.ir.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
+
+/**
+ * A lazy, flat view of a network component. Instead of materializing the
+ * product automaton (like FlattenAutomatonPass does), combined modes and their
+ * outgoing transitions are computed on demand, and the most recently used ones
+ * are memoized. explore() computes the reachable part of the product once and
+ * stores it in a CompactAutomaton, which takes far less memory than the IR
+ * objects. Its toComponent() gives a regular flat BaseComponent that any pass
+ * or printer can use (this is what FlattenAutomatonPass -reachable does), and
+ * its modes() and transitions() let a printer stream the product instead (like
+ * the Flow* printer with flatten=lazy).
+ *
+ * Modes are identified by their index in the cross product of the base
+ * components' modes (first component varies slowest, the same order
+ * FlattenAutomatonPass creates them). The modes and transitions returned have
+ * getComponent() as their automaton, which holds the merged params (variables,
+ * constants, labels) but whose modes and transitions are always empty.
+ *
+ * The network's params must already be fully qualified (see
+ * FlattenRenameUtils.convertToFullyQualifiedParams). Transitions synchronize the
+ * same way as in FlattenAutomatonPass: a transition with a label used by
+ * several base components is taken together with one matching transition of
+ * each of them.
+ */
+public class FlatNetworkView
+{
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+
+	private final BaseComponent component;
+	private final int numLeaves;
+	private final AutomatonMode[][] leafModes;
+	private final String[] leafNames;
+	private final ArrayList<HashMap<AutomatonMode, Integer>> leafIds;
+	private final HashMap<String, ArrayList<Integer>> labelUsers = new HashMap<String, ArrayList<Integer>>();
+	private final HashMap<AutomatonMode, ArrayList<AutomatonTransition>> outgoing = new HashMap<AutomatonMode, ArrayList<AutomatonTransition>>();
+	private final HashMap<AutomatonMode, HashMap<String, ArrayList<AutomatonTransition>>> outgoingByLabel = new HashMap<AutomatonMode, HashMap<String, ArrayList<AutomatonTransition>>>();
+	private final long numModes;
+
+	private boolean pruneUnsat = false;
+	private LinkedHashMap<Long, Node> cache;
+
+	// a memoized combined mode with its outgoing transitions
+	private static class Node
+	{
+		AutomatonMode mode; // null if pruned
+		List<AutomatonTransition> transitions = null;
+		long[] targets = null; // index of the target of each transition
+	}
+
+	/**
+	 * Create a lazy flat view
+	 *
+	 * @param root
+	 *            the network (or base) component, with fully qualified params
+	 */
+	public FlatNetworkView(Component root)
+	{
+		ArrayList<BaseComponent> leaves = new ArrayList<BaseComponent>();
+		component = FlattenAutomatonPass.flattenParams(root, leaves);
+		numLeaves = leaves.size();
+		leafModes = new AutomatonMode[numLeaves][];
+		leafNames = new String[numLeaves];
+		leafIds = new ArrayList<HashMap<AutomatonMode, Integer>>(numLeaves);
+
+		long product = 1;
+
+		for (int i = 0; i < numLeaves; ++i)
+		{
+			BaseComponent leaf = leaves.get(i);
+			leafModes[i] = leaf.modes.values().toArray(new AutomatonMode[0]);
+			leafNames[i] = leaf.instanceName;
+			HashMap<AutomatonMode, Integer> ids = new HashMap<AutomatonMode, Integer>();
+
+			for (AutomatonMode am : leafModes[i])
+			{
+				ids.put(am, ids.size());
+				outgoing.put(am, new ArrayList<AutomatonTransition>());
+			}
+
+			leafIds.add(ids);
+
+			for (AutomatonTransition t : leaf.transitions)
+				outgoing.get(t.from).add(t);
+
+			for (AutomatonMode am : leafModes[i])
+				outgoingByLabel.put(am, FlattenAutomatonPass.indexByLabel(outgoing.get(am)));
+
+			for (String label : leaf.labels)
+			{
+				ArrayList<Integer> users = labelUsers.get(label);
+
+				if (users == null)
+				{
+					users = new ArrayList<Integer>();
+					labelUsers.put(label, users);
+				}
+
+				users.add(i);
+			}
+
+			if (leafModes[i].length > 0 && product > Long.MAX_VALUE / leafModes[i].length)
+				throw new AutomatonExportException("Product of " + numLeaves
+						+ " components has too many modes to index");
+
+			product *= leafModes[i].length;
+		}
+
+		numModes = product;
+		setCacheSize(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Get the component holding the merged params. Its modes and transitions
+	 * are empty; use the methods of the view to get them.
+	 */
+	public BaseComponent getComponent()
+	{
+		return component;
+	}
+
+	/**
+	 * Get the number of modes in the (full) cross product
+	 */
+	public long getNumModes()
+	{
+		return numModes;
+	}
+
+	/**
+	 * Should combined modes with a (simply) unsatisfiable invariant be
+	 * skipped? If so, getMode() returns null for them, and transitions into
+	 * them are omitted.
+	 */
+	public void setPruneUnsat(boolean pruneUnsat)
+	{
+		this.pruneUnsat = pruneUnsat;
+		cache.clear();
+	}
+
+	/**
+	 * Set the maximum number of combined modes that are memoized
+	 */
+	public void setCacheSize(final int size)
+	{
+		cache = new LinkedHashMap<Long, Node>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest)
+			{
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Get the index of a combined mode, given in the dotted notation used for
+	 * initial and forbidden states of a network (one mode name for each base
+	 * component, in order, separated by '.')
+	 *
+	 * @param dottedName
+	 *            the mode name
+	 * @return the index of the mode
+	 */
+	public long getIndex(String dottedName)
+	{
+		String[] parts = dottedName.split("\\.", -1);
+
+		if (parts.length != numLeaves)
+			throw new AutomatonExportException("Mode '" + dottedName
+					+ "' does not name a mode in each of the " + numLeaves + " components");
+
+		long rv = 0;
+
+		for (int i = 0; i < numLeaves; ++i)
+		{
+			int id = -1;
+
+			for (int m = 0; m < leafModes[i].length; ++m)
+			{
+				if (leafModes[i][m].name.equals(parts[i]))
+				{
+					id = m;
+					break;
+				}
+			}
+
+			if (id == -1)
+				throw new AutomatonExportException("Mode '" + parts[i] + "' of '" + dottedName
+						+ "' not found in component " + leafNames[i]);
+
+			rv = rv * leafModes[i].length + id;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the position of the mode of each base component in a combined mode
+	 *
+	 * @param index
+	 *            the index of the mode in the cross product
+	 * @return the index of each component's mode, in the order of the
+	 *         component's modes
+	 */
+	public int[] getModeIds(long index)
+	{
+		if (index < 0 || index >= numModes)
+			throw new AutomatonExportException("Mode index out of bounds: " + index);
+
+		int[] rv = new int[numLeaves];
+
+		for (int i = numLeaves - 1; i >= 0; --i)
+		{
+			rv[i] = (int) (index % leafModes[i].length);
+			index /= leafModes[i].length;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the index of a combined mode from the position of the mode of each
+	 * base component (the inverse of getModeIds())
+	 */
+	public long getIndex(int[] modeIds)
+	{
+		long rv = 0;
+
+		for (int i = 0; i < numLeaves; ++i)
+			rv = rv * leafModes[i].length + modeIds[i];
+
+		return rv;
+	}
+
+	/**
+	 * Get a combined mode
+	 *
+	 * @param index
+	 *            the index of the mode in the cross product
+	 * @return the mode, or null if it was pruned
+	 */
+	public AutomatonMode getMode(long index)
+	{
+		return getNode(index).mode;
+	}
+
+	/**
+	 * Get the outgoing transitions of a combined mode
+	 *
+	 * @param index
+	 *            the index of the mode in the cross product
+	 * @return the transitions (empty if the mode was pruned)
+	 */
+	public List<AutomatonTransition> getOutgoing(long index)
+	{
+		Node n = getNode(index);
+		computeOutgoing(index, n);
+
+		return n.transitions;
+	}
+
+	/**
+	 * Get the indices of the targets of the outgoing transitions of a combined
+	 * mode
+	 *
+	 * @param index
+	 *            the index of the mode in the cross product
+	 * @return the target index of each transition in getOutgoing(index)
+	 */
+	public long[] getSuccessors(long index)
+	{
+		Node n = getNode(index);
+		computeOutgoing(index, n);
+
+		return n.targets;
+	}
+
+	/**
+	 * Explore the product breadth-first from some initial modes, computing
+	 * each reachable mode and its outgoing transitions once, and store them in
+	 * a CompactAutomaton. The modes are in increasing index order (the order
+	 * FlattenAutomatonPass creates them), and the transitions are grouped by
+	 * source mode. Use toComponent() on the result for a regular flat
+	 * automaton, or modes() and transitions() to stream it.
+	 *
+	 * @param initModes
+	 *            the initial modes, in dotted notation (see getIndex())
+	 * @return the reachable (non-pruned) part of the product
+	 */
+	public CompactAutomaton explore(Collection<String> initModes)
+	{
+		CompactAutomaton found = new CompactAutomaton(component.variables);
+		found.constants.putAll(component.constants);
+		found.labels.addAll(component.labels);
+
+		HashMap<Long, Integer> ids = new HashMap<Long, Integer>();
+		ArrayList<Long> indices = new ArrayList<Long>(); // indexed by id
+
+		for (String name : initModes)
+		{
+			long index = getIndex(name);
+			AutomatonMode am = getMode(index);
+
+			if (am != null && !ids.containsKey(index))
+			{
+				ids.put(index, found.addMode(am));
+				indices.add(index);
+			}
+		}
+
+		// modes are added in breadth-first order, so ids double as the queue
+		for (int from = 0; from < indices.size(); ++from)
+		{
+			long index = indices.get(from);
+			List<AutomatonTransition> transitions = getOutgoing(index);
+			long[] targets = getSuccessors(index);
+
+			for (int i = 0; i < targets.length; ++i)
+			{
+				Integer to = ids.get(targets[i]);
+
+				if (to == null)
+				{
+					to = found.addMode(transitions.get(i).to);
+					ids.put(targets[i], to);
+					indices.add(targets[i]);
+				}
+
+				found.addTransition(from, to, transitions.get(i));
+			}
+		}
+
+		Integer[] order = new Integer[indices.size()];
+
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+
+		final ArrayList<Long> sortKeys = indices;
+
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Long.compare(sortKeys.get(a), sortKeys.get(b));
+			}
+		});
+
+		int[] rv = new int[order.length];
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = order[i];
+
+		return found.selectModes(rv);
+	}
+
+	private Node getNode(long index)
+	{
+		if (index < 0 || index >= numModes)
+			throw new AutomatonExportException("Mode index out of bounds: " + index);
+
+		Node rv = cache.get(index);
+
+		if (rv == null)
+		{
+			rv = new Node();
+			rv.mode = createMode(tupleOf(index));
+			cache.put(index, rv);
+		}
+
+		return rv;
+	}
+
+	private AutomatonMode[] tupleOf(long index)
+	{
+		AutomatonMode[] rv = new AutomatonMode[numLeaves];
+
+		for (int i = numLeaves - 1; i >= 0; --i)
+		{
+			int numLeafModes = leafModes[i].length;
+
+			rv[i] = leafModes[i][(int) (index % numLeafModes)];
+			index /= numLeafModes;
+		}
+
+		return rv;
+	}
+
+	private long indexOf(AutomatonMode[] tuple)
+	{
+		long rv = 0;
+
+		for (int i = 0; i < numLeaves; ++i)
+			rv = rv * leafModes[i].length + leafIds.get(i).get(tuple[i]);
+
+		return rv;
+	}
+
+	private AutomatonMode createMode(AutomatonMode[] tuple)
+	{
+		Expression invariant = null;
+
+		for (AutomatonMode am : tuple)
+			invariant = FlattenAutomatonPass.andExpressions(invariant, am.invariant);
+
+		String name = FlattenAutomatonPass.combinedModeName(tuple);
+		AutomatonMode rv = null;
+
+		if (pruneUnsat && RemoveSimpleUnsatInvariantsPass.isUnsat(invariant))
+			Hyst.logDebug("Pruning mode with unsatisfiable invariant: " + name);
+		else
+		{
+			rv = new AutomatonMode(component, name);
+			rv.invariant = invariant.copy();
+			FlattenAutomatonPass.mergeFlows(rv, tuple);
+		}
+
+		return rv;
+	}
+
+	private void computeOutgoing(long index, Node n)
+	{
+		if (n.transitions != null)
+			return;
+
+		ArrayList<AutomatonTransition> transitions = new ArrayList<AutomatonTransition>();
+		ArrayList<Long> targets = new ArrayList<Long>();
+
+		if (n.mode != null)
+		{
+			AutomatonMode[] tuple = tupleOf(index);
+
+			for (int i = 0; i < numLeaves; ++i)
+			{
+				for (AutomatonTransition t : outgoing.get(tuple[i]))
+				{
+					List<Integer> users = t.label == null ? null : labelUsers.get(t.label);
+					AutomatonTransition[] parts = new AutomatonTransition[numLeaves];
+					parts[i] = t;
+
+					if (users == null || users.size() == 1)
+						addTransition(n.mode, tuple, parts, t.label, transitions, targets);
+					else if (users.get(0) == i)
+					{
+						// synchronized, enumerated once (from the first
+						// component using the label)
+						addSynchronized(n.mode, tuple, parts, users, 1, transitions, targets);
+					}
+				}
+			}
+		}
+
+		n.transitions = transitions;
+		n.targets = new long[targets.size()];
+
+		for (int i = 0; i < n.targets.length; ++i)
+			n.targets[i] = targets.get(i);
+	}
+
+	private void addSynchronized(AutomatonMode source, AutomatonMode[] tuple,
+			AutomatonTransition[] parts, List<Integer> users, int userIndex,
+			List<AutomatonTransition> transitions, List<Long> targets)
+	{
+		String label = parts[users.get(0)].label;
+
+		if (userIndex == users.size())
+			addTransition(source, tuple, parts.clone(), label, transitions, targets);
+		else
+		{
+			int i = users.get(userIndex);
+			ArrayList<AutomatonTransition> matching = outgoingByLabel.get(tuple[i]).get(label);
+
+			if (matching != null)
+			{
+				for (AutomatonTransition t : matching)
+				{
+					parts[i] = t;
+					addSynchronized(source, tuple, parts, users, userIndex + 1, transitions,
+							targets);
+				}
+			}
+
+			parts[i] = null;
+		}
+	}
+
+	/**
+	 * Add a combined transition (unless its target is pruned)
+	 *
+	 * @param parts
+	 *            the component transitions taken, indexed by component (null
+	 *            for components which don't move)
+	 */
+	private void addTransition(AutomatonMode source, AutomatonMode[] tuple,
+			AutomatonTransition[] parts, String label, List<AutomatonTransition> transitions,
+			List<Long> targets)
+	{
+		AutomatonMode[] targetTuple = tuple.clone();
+
+		for (int i = 0; i < numLeaves; ++i)
+		{
+			if (parts[i] != null)
+				targetTuple[i] = parts[i].to;
+		}
+
+		long targetIndex = indexOf(targetTuple);
+		AutomatonMode target = getMode(targetIndex);
+
+		if (target == null)
+			return;
+
+		AutomatonTransition at = new AutomatonTransition(component, source, target);
+		at.label = label;
+
+		for (AutomatonTransition t : parts)
+		{
+			if (t == null)
+				continue;
+
+			at.guard = FlattenAutomatonPass.andExpressions(at.guard, t.guard.copy());
+
+			try
+			{
+				at.reset = FlattenAutomatonPass.mergeExpressionMap(at.reset,
+						FlattenAutomatonPass.copyMap(t.reset));
+			}
+			catch (AutomatonExportException e)
+			{
+				throw new AutomatonExportException(
+						"Conflicting reset (multiple drivers) detected while "
+								+ "flattening automaton",
+						e);
+			}
+		}
+
+		transitions.add(at);
+		targets.add(targetIndex);
+	}
+}
@@ -29,7 +29,7 @@ public class ComponentMapping
 			throw new AutomatonValidationException("parentParam is null in mapping of "
 					+ mappingType + " in component " + instanceName);
 
-		if (Component.VALIDATE_CONSTS
+		if (Component.validateConsts()
 				|| !parentParam.startsWith(TemplateImporter.TEMPLATE_VALUE_MAP_PREFIX))
 		{
 			if (!parentList.contains(parentParam))
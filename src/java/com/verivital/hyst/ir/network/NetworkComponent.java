@@ -35,7 +35,7 @@ public class NetworkComponent extends Component
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!Configuration.doValidation())
 			return;
 
 		super.validate();
@@ -55,6 +55,20 @@ public class NetworkComponent extends Component
 		}
 	}
 
+	@Override
+	public void startDirtyTracking()
+	{
+		for (ComponentInstance ci : children.values())
+			ci.child.startDirtyTracking();
+	}
+
+	@Override
+	public void stopDirtyTracking()
+	{
+		for (ComponentInstance ci : children.values())
+			ci.child.stopDirtyTracking();
+	}
+
 	@Override
 	public Collection<String> getAllVariables()
 	{
@@ -33,7 +33,7 @@ public class ContinuizationPassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
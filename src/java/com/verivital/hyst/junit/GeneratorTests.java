@@ -13,9 +13,14 @@ import org.junit.runners.Parameterized.Parameters;
 
 import com.verivital.hyst.generators.IntegralChainGenerator;
 import com.verivital.hyst.generators.NavigationGenerator;
+import com.verivital.hyst.generators.SyntheticNetworkGenerator;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
 import com.verivital.hyst.printers.FlowstarPrinter;
+import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.python.PythonBridge;
 
@@ -31,7 +36,7 @@ public class GeneratorTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -88,4 +93,73 @@ public class GeneratorTests
 
 		Assert.assertTrue("some output exists", out.length() > 10);
 	}
+
+	@Test
+	public void testSynthetic()
+	{
+		String param = "-components 3 -modes 10 -transitions 3 -vars 2 -degree 2 -coupled -seed 7";
+		Configuration c = new SyntheticNetworkGenerator().generate(param);
+
+		Assert.assertEquals("three components", 3, ((NetworkComponent) c.root).children.size());
+		Assert.assertEquals("m0.m0.m0", c.init.keySet().iterator().next());
+
+		// the same seed gives the same model
+		Configuration c2 = new SyntheticNetworkGenerator().generate(param);
+		Assert.assertEquals(c.toString(), c2.toString());
+
+		Configuration c3 = new SyntheticNetworkGenerator().generate(param.replace("7", "8"));
+		Assert.assertNotEquals(c.toString(), c3.toString());
+
+		// without labels, every product mode is reachable
+		FlattenAutomatonPass.flattenAndOptimize(c);
+		Assert.assertEquals("10^3 product modes", 1000, ((BaseComponent) c.root).modes.size());
+
+		ToolPrinter printer = new FlowstarPrinter();
+		printer.setOutputString();
+		printer.print(c, "", "model.xml");
+
+		String out = printer.outputString.toString();
+
+		Assert.assertTrue("some output exists", out.length() > 10);
+	}
+
+	@Test
+	public void testSyntheticLabels()
+	{
+		Configuration c = new SyntheticNetworkGenerator()
+				.generate("-components 4 -modes 5 -labels 2 -label_prob 1 -seed 3");
+
+		Assert.assertEquals("two labels", 2, c.root.labels.size());
+
+		FlattenAutomatonPass.flattenAndOptimize(c);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		Assert.assertTrue("at most 5^4 product modes", ha.modes.size() <= 625);
+		Assert.assertTrue("transitions exist", ha.transitions.size() > 0);
+
+		// labels which no component uses (or which only unreachable transitions
+		// use) must not break flattening and printing
+		String[] params = { "-components 2 -modes 4 -labels 4",
+				"-components 2 -modes 4 -labels 6", "-components 2 -modes 4 -labels 5 -label_prob 1",
+				"-components 3 -modes 4 -labels 3 -label_prob 0.7" };
+
+		for (String param : params)
+		{
+			for (int seed = 0; seed < 5; ++seed)
+			{
+				String p = param + " -seed " + seed;
+				c = new SyntheticNetworkGenerator().generate(p);
+
+				for (ToolPrinter printer : new ToolPrinter[] { new FlowstarPrinter(),
+						new SpaceExPrinter() })
+				{
+					printer.setOutputString();
+					printer.print(c.snapshot(), "", "model.xml");
+
+					Assert.assertTrue("no output for " + p,
+							printer.outputString.toString().length() > 10);
+				}
+			}
+		}
+	}
 }
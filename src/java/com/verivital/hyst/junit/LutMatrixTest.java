@@ -38,7 +38,7 @@ public class LutMatrixTest
 	public void setUpClass()
 	{
 		ConvertLutFlowsPass.MAX_CONVERSIONS = 5;
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 		ConvertLutFlowsPass.simplifyMode = ConvertLutFlowsPass.SIMPLIFY_NONE;
 	}
 
@@ -3,6 +3,7 @@ package com.verivital.hyst.junit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -28,6 +29,7 @@ import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.CompactAutomaton;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
@@ -66,7 +68,7 @@ public class ModelParserTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	public static Configuration flatten(SpaceExDocument spaceExDoc)
@@ -445,7 +447,7 @@ public class ModelParserTest
 			Configuration c = flatten(
 					SpaceExImporter.importModels(path + "all_init.cfg", path + "model.xml"));
 
-			Expression.expressionPrinter = DefaultExpressionPrinter.instance;
+			Expression.setExpressionPrinter(DefaultExpressionPrinter.instance);
 			Assert.assertNotEquals(c.init, null);
 
 		}
@@ -1062,6 +1064,206 @@ public class ModelParserTest
 		flatten(SpaceExImporter.importModels(cfgPath, xmlPath));
 	}
 
+	/**
+	 * Flattening with on-the-fly reachable product construction should give
+	 * the same automaton as full flattening followed by pruning
+	 */
+	@Test
+	public void testReachableFlattening()
+	{
+		String[][] models = { { "controller_heater/", "controller_heater" },
+				{ "comp_simple_crossprod_network/", "sys" }, { "three_hier/", "three_hier" },
+				{ "three_hier/", "tank6" } };
+
+		for (String[] model : models)
+		{
+			String path = UNIT_BASEDIR + model[0] + model[1];
+			Configuration full = importNetwork(path);
+			Configuration reachable = importNetwork(path);
+
+			FlattenAutomatonPass.flattenAndOptimize(full);
+			FlattenAutomatonPass.flattenAndOptimize(reachable, true);
+
+			BaseComponent fullHa = (BaseComponent) full.root;
+			BaseComponent reachableHa = (BaseComponent) reachable.root;
+
+			Assert.assertEquals(path, fullHa.variables, reachableHa.variables);
+			Assert.assertEquals(path, fullHa.labels, reachableHa.labels);
+			Assert.assertEquals(path, fullHa.constants, reachableHa.constants);
+			Assert.assertEquals(path, fullHa.instanceName, reachableHa.instanceName);
+			Assert.assertEquals(path, full.init.keySet(), reachable.init.keySet());
+			Assert.assertEquals(path, fullHa.modes.keySet(), reachableHa.modes.keySet());
+			Assert.assertEquals(path, transitionNames(fullHa), transitionNames(reachableHa));
+		}
+	}
+
+	/**
+	 * Symmetric flattening of three interchangeable instances should keep one
+	 * mode for each multiset of instance modes, and permute the private
+	 * variables on jumps into a non-canonical mode
+	 */
+	@Test
+	public void testSymmetricFlattening()
+	{
+		String path = UNIT_BASEDIR + "symmetric_instances/sys";
+		Configuration full = importNetwork(path);
+		Configuration reduced = importNetwork(path);
+
+		new FlattenAutomatonPass().runVanillaPass(full, "-reachable -prune_unsat");
+		new FlattenAutomatonPass().runVanillaPass(reduced, "-reachable -prune_unsat -symmetry");
+
+		BaseComponent fullHa = (BaseComponent) full.root;
+		BaseComponent ha = (BaseComponent) reduced.root;
+
+		Assert.assertEquals(8, fullHa.modes.size());
+		Assert.assertEquals(
+				Arrays.asList("wait_wait_wait", "wait_wait_go", "wait_go_go", "go_go_go"),
+				new ArrayList<String>(ha.modes.keySet()));
+		Assert.assertEquals(12, ha.transitions.size());
+		Assert.assertEquals(fullHa.variables, ha.variables);
+
+		// agent1 leaving 'wait' first goes to wait_wait_go, with agent1's
+		// variable moved to the third position
+		AutomatonTransition first = ha.transitions.get(0);
+		Assert.assertEquals("wait_wait_go", first.to.name);
+		Assert.assertEquals("x1 >= 1", first.guard.toDefaultString());
+		Assert.assertEquals("x2", first.reset.get("x1").toDefaultString());
+		Assert.assertEquals("x3", first.reset.get("x2").toDefaultString());
+		Assert.assertEquals("0", first.reset.get("x3").toDefaultString());
+
+		Assert.assertEquals(Arrays.asList("wait_wait_wait"),
+				new ArrayList<String>(reduced.init.keySet()));
+
+		// forbidden states are mapped to every symmetric image
+		Assert.assertEquals("x2 >= 5 | x3 >= 5",
+				reduced.forbidden.get("wait_go_go").toDefaultString());
+		Assert.assertEquals("x3 >= 5", reduced.forbidden.get("wait_wait_go").toDefaultString());
+	}
+
+	/**
+	 * The fused importer (streaming directly into templates) should produce the
+	 * same configuration as the three separate import stages
+	 */
+	@Test
+	public void testFusedImport()
+	{
+		String[] models = { "three_hier/three_hier", "controller_heater/controller_heater",
+				"symmetric_instances/sys", "urgent_composition/urgent_composition",
+				"comp_in_out/sys" };
+
+		for (String model : models)
+		{
+			String path = UNIT_BASEDIR + model;
+			Configuration expected = importNetwork(path);
+			Configuration fused = SpaceExImporter.importConfiguration(path + ".cfg",
+					path + ".xml");
+
+			Assert.assertEquals("fused import differs for " + model, expected.toString(),
+					fused.toString());
+		}
+
+		// multiple files, where the network refers to a component in a later
+		// file
+		String path = UNIT_BASEDIR + "merge/";
+		SpaceExDocument doc = SpaceExImporter.importModels(path + "controller_heater.cfg",
+				path + "controller.xml", path + "base_heater.xml");
+		Configuration expected = ConfigurationMaker.fromSpaceEx(doc,
+				TemplateImporter.createComponentTemplates(doc));
+		Configuration fused = SpaceExImporter.importConfiguration(path + "controller_heater.cfg",
+				path + "controller.xml", path + "base_heater.xml");
+
+		Assert.assertEquals(expected.toString(), fused.toString());
+	}
+
+	/**
+	 * Converting to the compact representation and back should preserve the
+	 * automaton, and streaming the modes and transitions should give the same
+	 * objects as converting
+	 */
+	@Test
+	public void testCompactAutomaton()
+	{
+		Configuration c = importNetwork(UNIT_BASEDIR + "symmetric_instances/sys");
+		new FlattenAutomatonPass().runVanillaPass(c, "");
+		BaseComponent ha = (BaseComponent) c.root;
+
+		CompactAutomaton ca = CompactAutomaton.fromComponent(ha);
+		Assert.assertEquals(ha.modes.size(), ca.getNumModes());
+		Assert.assertEquals(ha.transitions.size(), ca.getNumTransitions());
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			int id = ca.getModeId(am.name);
+			Assert.assertEquals(am.getOutgoing().size(), ca.getNumOutgoing(id));
+
+			for (int i = 0; i < ca.getNumOutgoing(id); ++i)
+				Assert.assertEquals(id, ca.getFrom(ca.getOutgoing(id, i)));
+		}
+
+		BaseComponent converted = ca.toComponent();
+		converted.validate();
+		Assert.assertEquals(ha.toString(), converted.toString());
+
+		BaseComponent parent = ca.createParams();
+		ArrayList<String> streamed = new ArrayList<String>();
+		ArrayList<String> expected = new ArrayList<String>();
+
+		for (AutomatonMode am : ca.modes(parent))
+			streamed.add(am.toString());
+
+		for (AutomatonTransition at : ca.transitions(parent))
+			streamed.add(at.toString());
+
+		for (AutomatonMode am : ha.modes.values())
+			expected.add(am.toString());
+
+		for (AutomatonTransition at : ha.transitions)
+			expected.add(at.toString());
+
+		Assert.assertEquals(expected, streamed);
+
+		// reversing the modes groups the transitions by (reversed) source
+		int[] order = new int[ca.getNumModes()];
+
+		for (int i = 0; i < order.length; ++i)
+			order[i] = order.length - 1 - i;
+
+		CompactAutomaton reversed = ca.selectModes(order);
+		Assert.assertEquals(ca.getModeName(order[0]), reversed.getModeName(0));
+		Assert.assertEquals(ca.getNumTransitions(), reversed.getNumTransitions());
+
+		for (int t = 1; t < reversed.getNumTransitions(); ++t)
+			Assert.assertTrue(reversed.getFrom(t - 1) <= reversed.getFrom(t));
+
+		// transitions to modes which aren't selected are dropped
+		CompactAutomaton single = ca.selectModes(new int[] { 1 });
+		Assert.assertEquals(1, single.getNumModes());
+
+		for (int t = 0; t < single.getNumTransitions(); ++t)
+			Assert.assertEquals(0, single.getTo(t));
+	}
+
+	private static Configuration importNetwork(String pathWithoutExtension)
+	{
+		SpaceExDocument doc = SpaceExImporter.importModels(pathWithoutExtension + ".cfg",
+				pathWithoutExtension + ".xml");
+		Map<String, Component> componentTemplates = TemplateImporter.createComponentTemplates(doc);
+
+		return ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+	}
+
+	private static Collection<String> transitionNames(BaseComponent ha)
+	{
+		ArrayList<String> rv = new ArrayList<String>();
+
+		for (AutomatonTransition t : ha.transitions)
+			rv.add(t.from.name + " -> " + t.to.name + " (" + t.label + ")");
+
+		Collections.sort(rv);
+
+		return rv;
+	}
+
 	@Test
 	public void testSixTank()
 	{
@@ -1113,10 +1315,10 @@ public class ModelParserTest
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1136,10 +1338,10 @@ public class ModelParserTest
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1159,10 +1361,10 @@ public class ModelParserTest
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1182,10 +1384,10 @@ public class ModelParserTest
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1205,10 +1407,10 @@ public class ModelParserTest
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1235,11 +1437,10 @@ public class ModelParserTest
 		AutomatonMode mode = ha.modes.values().iterator().next();
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		cls.setLinearMatrix(mode);
 		double TOL = 1e-9;
-		Assert.assertEquals(-1, Classification.linearMatrix[0][0], TOL);
+		Assert.assertEquals(-1, cls.linearMatrix[0][0], TOL);
 	}
 
 	@Test
@@ -1259,10 +1460,10 @@ public class ModelParserTest
 		// Configuration c = flatten(test1);
 		// BaseComponent ha = (BaseComponent)c.root;
 		Classification cls = new Classification();
-		Classification.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1,5 +1,6 @@
 package com.verivital.hyst.junit;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
@@ -26,9 +27,14 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
+import com.verivital.hyst.printers.BinaryPrinter;
+import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.util.Preconditions;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 
@@ -44,7 +50,7 @@ public class PassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -121,6 +127,229 @@ public class PassTests
 		Assert.assertTrue("automaton was not flattened", c.root instanceof NetworkComponent);
 	}
 
+	/**
+	 * Labels only used by unreachable transitions should be removed with them,
+	 * so the automaton still validates
+	 */
+	@Test
+	public void testRemoveUnreachableLabels()
+	{
+		Configuration c = makeSampleNetworkConfiguration();
+		new FlattenAutomatonPass().runVanillaPass(c, "");
+		BaseComponent ha = (BaseComponent) c.root;
+
+		AutomatonMode broken = ha.createMode("broken");
+		broken.flowDynamics.put("x", new ExpressionInterval(new Constant(0)));
+		broken.flowDynamics.put("t", new ExpressionInterval(new Constant(1)));
+		broken.invariant = Constant.TRUE;
+
+		AutomatonTransition repair = ha.createTransition(broken, ha.modes.get("running"));
+		repair.guard = Constant.TRUE;
+		repair.label = "repair";
+
+		ha.transitions.get(0).label = "stop";
+		ha.labels.add("stop");
+		ha.labels.add("repair");
+		c.validate();
+
+		new RemoveDiscreteUnreachablePass().runVanillaPass(c, "");
+		ha = (BaseComponent) c.root;
+
+		Assert.assertFalse(ha.modes.containsKey("broken"));
+		Assert.assertEquals(Arrays.asList("stop"), new ArrayList<String>(ha.labels));
+		c.validate();
+	}
+
+	/**
+	 * Snapshots should share the automaton until a pass modifies one of them
+	 */
+	@Test
+	public void testSnapshot()
+	{
+		Configuration c = makeSampleNetworkConfiguration();
+		NetworkComponent nc = (NetworkComponent) c.root;
+		BaseComponent bc = (BaseComponent) nc.children.get("base_instance").child;
+		bc.transitions.get(0).guard = FormulaParser.parseGuard("t >= 2.5 * 2");
+
+		Configuration snap = c.snapshot();
+
+		Assert.assertSame(c.root, snap.root);
+		Assert.assertTrue(snap.isShared());
+
+		// the pass should run on a private copy
+		Component original = c.root;
+		new SimplifyExpressionsPass().runTransformationPass(snap, null);
+
+		Assert.assertNotSame(original, snap.root);
+		Assert.assertEquals("original was modified", "t >= 2.5 * 2",
+				bc.transitions.get(0).guard.toDefaultString());
+
+		// c is the only remaining holder, so no copy is needed
+		Assert.assertFalse(c.isShared());
+		c.makeWritable();
+		Assert.assertSame(original, c.root);
+	}
+
+	/**
+	 * A sharer which releases the automaton (or only reads it) shouldn't make
+	 * the others copy it
+	 */
+	@Test
+	public void testReleaseSnapshot()
+	{
+		Configuration c = makeSampleNetworkConfiguration();
+		Component original = c.root;
+		Configuration reader = c.snapshot();
+		Configuration writer = c.snapshot();
+		c.release();
+
+		Assert.assertNull("released configuration has no automaton", c.root);
+		Assert.assertTrue(writer.isShared());
+
+		// printing binary doesn't modify the automaton, so it isn't copied
+		BinaryPrinter printer = new BinaryPrinter();
+		printer.setOutputString();
+		printer.print(reader, "", "model.xml");
+		Assert.assertSame(original, reader.root);
+		reader.release();
+
+		Assert.assertFalse(writer.isShared());
+		writer.makeWritable();
+		Assert.assertSame("last sharer takes over the automaton", original, writer.root);
+	}
+
+	/**
+	 * A printer which skips every precondition but changes the automaton while
+	 * printing must still get its own copy, since it isn't declared read-only
+	 */
+	@Test
+	public void testPrinterWithoutChecksCopies()
+	{
+		Configuration c = makeSampleNetworkConfiguration();
+		Component original = c.root;
+		Configuration snap = c.snapshot();
+
+		ToolPrinter printer = new ToolPrinter()
+		{
+			{
+				preconditions = new Preconditions(true);
+			}
+
+			@Override
+			protected void printAutomaton()
+			{
+				config.root.instanceName = "modified";
+			}
+
+			@Override
+			public String getToolName()
+			{
+				return "modifying printer";
+			}
+
+			@Override
+			public String getCommandLineFlag()
+			{
+				return "-modifying";
+			}
+
+			@Override
+			protected String getCommentPrefix()
+			{
+				return "//";
+			}
+
+			@Override
+			public Map<String, String> getDefaultParams()
+			{
+				return null;
+			}
+		};
+
+		printer.setOutputString();
+		printer.print(snap, "", "model.xml");
+
+		Assert.assertNotSame(original, snap.root);
+		Assert.assertEquals("modified", snap.root.instanceName);
+		Assert.assertSame(original, c.root);
+		Assert.assertNotEquals("shared automaton was modified", "modified",
+				original.instanceName);
+	}
+
+	/**
+	 * Snapshots made writable at the same time must each get an unmodified
+	 * automaton, even though the last one takes over the shared one
+	 */
+	@Test
+	public void testConcurrentSnapshots() throws InterruptedException
+	{
+		final int numModes = 5000;
+		BaseComponent ha = new BaseComponent();
+		ha.variables.add("t");
+
+		for (int i = 0; i < numModes; ++i)
+		{
+			AutomatonMode am = ha.createMode("m" + i);
+			am.flowDynamics.put("t", new ExpressionInterval(1));
+			am.invariant = Constant.TRUE;
+		}
+
+		Configuration original = new Configuration(ha);
+		original.init.put("m0", Constant.TRUE);
+		original.settings.plotVariableNames[0] = original.settings.plotVariableNames[1] = "t";
+
+		final Configuration[] configs = new Configuration[8];
+		Thread[] threads = new Thread[configs.length];
+		configs[0] = original;
+
+		for (int i = 1; i < configs.length; ++i)
+			configs[i] = original.snapshot();
+
+		for (int i = 0; i < configs.length; ++i)
+		{
+			final int index = i;
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					Configuration c = configs[index];
+					c.makeWritable();
+
+					// tag every mode with the index of the configuration, last
+					// mode first (so a copy still in progress would see it)
+					AutomatonMode[] modes = ((BaseComponent) c.root).modes.values()
+							.toArray(new AutomatonMode[numModes]);
+
+					for (int m = numModes - 1; m >= 0; --m)
+						modes[m].invariant = new Constant(index);
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread t : threads)
+			t.join();
+
+		int claimed = 0;
+
+		for (int i = 0; i < configs.length; ++i)
+		{
+			BaseComponent root = (BaseComponent) configs[i].root;
+			Assert.assertFalse(configs[i].isShared());
+			Assert.assertEquals(numModes, root.modes.size());
+
+			if (root == ha)
+				++claimed;
+
+			for (AutomatonMode am : root.modes.values())
+				Assert.assertEquals("mode " + am.name + " of config " + i, new Constant(i),
+						am.invariant);
+		}
+
+		Assert.assertEquals("one configuration takes over the original automaton", 1, claimed);
+	}
+
 	/**
 	 * Substitute constants and then simplify expressions
 	 */
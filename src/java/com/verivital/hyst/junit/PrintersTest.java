@@ -1,9 +1,18 @@
 package com.verivital.hyst.junit;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -16,6 +25,7 @@ import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.importer.BinaryImporter;
 import com.verivital.hyst.importer.ConfigurationMaker;
 import com.verivital.hyst.importer.SpaceExImporter;
 import com.verivital.hyst.importer.TemplateImporter;
@@ -26,9 +36,13 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMixedTriggeredPass;
+import com.verivital.hyst.printers.BinaryPrinter;
 import com.verivital.hyst.printers.DReachPrinter;
 import com.verivital.hyst.printers.FlowstarPrinter;
+import com.verivital.hyst.printers.HyCompPrinter;
 import com.verivital.hyst.printers.PySimPrinter;
 import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
@@ -37,6 +51,7 @@ import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 
+import de.uni_freiburg.informatik.swt.spaceexxmlprinter.SpaceExXMLPrinter;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 
 /**
@@ -53,7 +68,7 @@ public class PrintersTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Parameters
@@ -82,6 +97,7 @@ public class PrintersTest
 		addPrinter(new HyCreate2Printer());
 		addPrinter(new DReachPrinter());
 		addPrinter(new SpaceExPrinter());
+		addPrinter(new BinaryPrinter());
 	};
 
 	private static void addPrinter(ToolPrinter p)
@@ -126,7 +142,7 @@ public class PrintersTest
 			// clear expression printer since no assumptions can be made about
 			// it. If null pointer exceptinons are thrown, this means
 			// it should have been assigned on printAutomaton()
-			Expression.expressionPrinter = null;
+			Expression.setExpressionPrinter(null);
 
 			SpaceExDocument sd = SpaceExImporter.importModels(path + cfgName, path + xmlName);
 			Configuration c = ModelParserTest.flatten(sd);
@@ -167,7 +183,7 @@ public class PrintersTest
 
 		for (ToolPrinter tp : printers)
 		{
-			Configuration c = config.copy();
+			Configuration c = config.snapshot();
 
 			try
 			{
@@ -462,6 +478,405 @@ public class PrintersTest
 		runAllPrintersOnModel("disjunction_forbidden");
 	}
 
+	/**
+	 * Flow* printing with flatten=lazy should give the same modes and jumps as
+	 * flattening the network first (the jumps may be in a different order)
+	 */
+	@Test
+	public void testFlowstarLazyFlatten()
+	{
+		String[] models = { "three_hier/tank6", "comp_simple_crossprod_network/sys" };
+
+		for (String model : models)
+		{
+			String eager = printFlowstar(UNIT_BASEDIR + model, "");
+			String lazy = printFlowstar(UNIT_BASEDIR + model, "flatten=lazy");
+
+			Assert.assertTrue("some output exists", lazy.length() > 10);
+			Assert.assertEquals(model, modesSection(eager), modesSection(lazy));
+			Assert.assertEquals(model, sortedLines(eager), sortedLines(lazy));
+		}
+	}
+
+	/**
+	 * Lazy flattening should skip modes with unsatisfiable invariants, and the
+	 * modes only reachable through them, like eager flattening does, unless
+	 * prune_unsat=off
+	 */
+	@Test
+	public void testFlowstarLazyPruneUnsat()
+	{
+		String path = UNIT_BASEDIR + "lazy_unsat/sys";
+		String eager = printFlowstar(path, "");
+		String lazy = printFlowstar(path, "flatten=lazy");
+		String unpruned = printFlowstar(path, "flatten=lazy:prune_unsat=off");
+
+		Assert.assertEquals(modesSection(eager), modesSection(lazy));
+		Assert.assertTrue(modesSection(lazy).contains("p_s\n"));
+		Assert.assertFalse(modesSection(lazy).contains("p_t\n"));
+
+		Assert.assertTrue(modesSection(unpruned).contains("p_r\n"));
+		Assert.assertTrue(modesSection(unpruned).contains("p_t\n"));
+	}
+
+	private static String printFlowstar(String pathWithoutExtension, String params)
+	{
+		SpaceExDocument doc = SpaceExImporter.importModels(pathWithoutExtension + ".cfg",
+				pathWithoutExtension + ".xml");
+		Map<String, Component> componentTemplates = TemplateImporter.createComponentTemplates(doc);
+		Configuration config = ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+
+		ToolPrinter printer = new FlowstarPrinter();
+		printer.setOutputString();
+		printer.print(config, params, "model.xml");
+
+		return printer.outputString.toString();
+	}
+
+	/**
+	 * Get the modes section of Flow* output (which comes just before the jumps)
+	 */
+	private static String modesSection(String out)
+	{
+		int start = out.indexOf("modes\n");
+		int end = out.indexOf("jumps\n", start);
+
+		return out.substring(start, end);
+	}
+
+	private static ArrayList<String> sortedLines(String out)
+	{
+		ArrayList<String> rv = new ArrayList<String>(Arrays.asList(out.split("\n")));
+		Collections.sort(rv);
+
+		return rv;
+	}
+
+	/**
+	 * A configuration saved with the binary printer should load back unchanged
+	 */
+	@Test
+	public void testBinaryRoundTrip()
+	{
+		String[] models = { "controller_heater/controller_heater", "lut_table/lut_table",
+				"three_hier/three_hier" };
+
+		for (String model : models)
+		{
+			String path = UNIT_BASEDIR + model;
+			Configuration config = SpaceExImporter.importConfiguration(path + ".cfg",
+					path + ".xml");
+
+			ToolPrinter printer = new BinaryPrinter();
+			printer.setOutputString();
+			printer.print(config, "", "model.xml");
+
+			byte[] bytes = printer.outputString.toString().getBytes(Charset.forName("ISO-8859-1"));
+			Configuration loaded = BinaryImporter.fromBytes(bytes);
+
+			Assert.assertEquals(model, config.toString(), loaded.toString());
+			Assert.assertEquals(model, config.settings.spaceExConfig.timeHorizon,
+					loaded.settings.spaceExConfig.timeHorizon, 1e-12);
+		}
+	}
+
+	/**
+	 * A memory-mapped snapshot of a flat model can load only the discretely
+	 * reachable modes, matching RemoveDiscreteUnreachablePass
+	 */
+	@Test
+	public void testBinaryMappedReachable() throws IOException
+	{
+		String[][] dynamics = { { "x", "1", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode on = ha.modes.get("on");
+		AutomatonMode mid = ha.createMode("mid", "true", "x' == 2");
+		AutomatonMode off = ha.createMode("off", "true", "x' == 3");
+
+		ha.createTransition(on, mid).guard = FormulaParser.parseGuard("x >= 1");
+		ha.createTransition(off, on).guard = FormulaParser.parseGuard("x >= 2");
+		c.forbidden.put("mid", FormulaParser.parseInvariant("x >= 5"));
+		c.forbidden.put("off", FormulaParser.parseInvariant("x >= 6"));
+		c.validate();
+
+		File f = File.createTempFile("hyst", BinaryImporter.EXTENSION);
+		f.deleteOnExit();
+
+		ToolPrinter printer = new BinaryPrinter();
+		printer.setOutputFile(f.getAbsolutePath());
+		printer.print(c, "", "model.xml");
+
+		BinaryImporter snapshot = BinaryImporter.open(f.getAbsolutePath());
+
+		Assert.assertTrue(snapshot.isFlat());
+		Assert.assertEquals(3, snapshot.getNumModes());
+		Assert.assertEquals(2, snapshot.getNumTransitions());
+		Assert.assertEquals(c.toString(), snapshot.getConfiguration().toString());
+
+		Set<String> reachable = snapshot.getReachableModes();
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("on", "mid")), reachable);
+
+		Configuration loaded = snapshot.getConfiguration(reachable);
+		new RemoveDiscreteUnreachablePass().runVanillaPass(c, "");
+
+		Assert.assertEquals(c.toString(), loaded.toString());
+	}
+
+	/**
+	 * Streaming the SpaceEx XML should produce the same text as serializing the
+	 * DOM
+	 */
+	@Test
+	public void testSpaceExStreamedXml()
+	{
+		String[] models = { "controller_heater/controller_heater", "lut_table/lut_table",
+				"three_hier/three_hier" };
+
+		for (String model : models)
+		{
+			String path = UNIT_BASEDIR + model;
+			SpaceExDocument doc = SpaceExImporter.importModels(path + ".cfg", path + ".xml");
+
+			// characters which need escaping or character references
+			doc.getComponent(0).setNote("a < b & c > \"d\"\r\ttab\nline \u00e9 \u4e2d \ud83d\ude00");
+
+			SpaceExXMLPrinter printer = new SpaceExXMLPrinter(doc);
+			StringWriter out = new StringWriter();
+			printer.writeXML(out);
+
+			Assert.assertEquals(model, printer.stringXML(), out.toString());
+		}
+	}
+
+	/**
+	 * Several printers in one run should each produce the same output as a
+	 * separate run with just that printer
+	 */
+	@Test
+	public void testMultiTargetExport() throws IOException
+	{
+		String path = UNIT_BASEDIR + "three_hier/three_hier";
+		String[] flags = { "-flowstar", "-spaceex", "-dreach" };
+		File dir = File.createTempFile("hyst", "");
+		dir.delete();
+		dir.mkdir();
+
+		ArrayList<String> args = new ArrayList<String>();
+		args.add("-flatten");
+		args.add("");
+
+		for (String flag : flags)
+		{
+			args.add(flag);
+			args.add("-o");
+			args.add(new File(dir, "multi" + flag).getPath());
+		}
+
+		args.add(path + ".xml");
+		args.add(path + ".cfg");
+
+		Hyst.IS_UNIT_TEST = true;
+		Assert.assertEquals(Hyst.ExitCode.SUCCESS.ordinal(),
+				Hyst.convert(args.toArray(new String[args.size()])));
+
+		for (String flag : flags)
+		{
+			String single = new File(dir, "single" + flag).getPath();
+			String[] singleArgs = { "-flatten", "", flag, "-o", single, path + ".xml",
+					path + ".cfg" };
+
+			Assert.assertEquals(Hyst.ExitCode.SUCCESS.ordinal(), Hyst.convert(singleArgs));
+
+			Assert.assertEquals(flag, readWithoutArguments(single),
+					readWithoutArguments(new File(dir, "multi" + flag).getPath()));
+		}
+
+		// two printers can't write to the same file
+		String[] sameFile = { "-flowstar", "-o", "out.model", "-dreach", "-o", "out.model",
+				path + ".xml" };
+		Assert.assertEquals(Hyst.ExitCode.ARG_PARSE_ERROR.ordinal(), Hyst.convert(sameFile));
+
+		for (File f : dir.listFiles())
+			f.delete();
+
+		dir.delete();
+	}
+
+	/**
+	 * When several printers fail, the failure of the first one in argument
+	 * order is reported, whether or not it writes to a file
+	 */
+	@Test
+	public void testMultiTargetFailureOrder() throws IOException
+	{
+		// dreach doesn't allow urgent modes
+		String model = UNIT_BASEDIR + "urgent_simple/urgent_simple.xml";
+		File dir = File.createTempFile("hyst", "");
+		dir.delete();
+		String badFile = new File(dir, "out.model").getPath();
+		File goodFile = File.createTempFile("hyst", ".model");
+
+		Hyst.IS_UNIT_TEST = true;
+
+		try
+		{
+			String[] fileFirst = { "-flowstar", "-o", badFile, "-dreach", model };
+			Assert.assertEquals(Hyst.ExitCode.EXPORT_AUTOMATON_EXCEPTION.ordinal(),
+					Hyst.convert(fileFirst));
+
+			String[] stdoutFirst = { "-dreach", "-flowstar", "-o", badFile, model };
+			Assert.assertEquals(Hyst.ExitCode.PRECONDITIONS_EXCEPTION.ordinal(),
+					Hyst.convert(stdoutFirst));
+
+			// the file printer is done when the run returns, despite the failure
+			String[] bothFiles = { "-dreach", "-o", badFile, "-flowstar", "-o",
+					goodFile.getPath(), model };
+			Assert.assertEquals(Hyst.ExitCode.EXPORT_AUTOMATON_EXCEPTION.ordinal(),
+					Hyst.convert(bothFiles));
+			Assert.assertTrue(readWithoutArguments(goodFile.getPath()).contains("hybrid reachability"));
+		}
+		finally
+		{
+			goodFile.delete();
+		}
+	}
+
+	/**
+	 * Printing mode and jump blocks in parallel should give the same file as
+	 * printing them on one thread
+	 */
+	@Test
+	public void testParallelBlocks() throws IOException
+	{
+		ToolPrinter[][] printers = {
+				{ new FlowstarPrinter(), new FlowstarPrinter() },
+				{ new DReachPrinter(), new DReachPrinter() },
+				{ new HyCompPrinter(), new HyCompPrinter() },
+				{ new PySimPrinter(), new PySimPrinter() } };
+		int savedThreads = ToolPrinter.blockThreads;
+		File file = File.createTempFile("hyst", ".model");
+
+		try
+		{
+			for (ToolPrinter[] pair : printers)
+			{
+				String[] outputs = new String[2];
+
+				for (int i = 0; i < 2; ++i)
+				{
+					ToolPrinter.blockThreads = i == 0 ? 1 : 4;
+					pair[i].setOutputFile(file.getPath());
+					pair[i].print(makeRingConfiguration(700), "", "ring.xml");
+					outputs[i] = readWithoutArguments(file.getPath());
+				}
+
+				String name = pair[0].getToolName();
+				Assert.assertTrue(name, outputs[0].contains("mode699"));
+				Assert.assertEquals(name, outputs[0], outputs[1]);
+			}
+		}
+		finally
+		{
+			ToolPrinter.blockThreads = savedThreads;
+			file.delete();
+		}
+	}
+
+	/**
+	 * Block printers run on several threads, so they must not write their
+	 * simplified expressions back into the (possibly shared) automaton
+	 */
+	@Test
+	public void testFlowstarKeepsAutomaton()
+	{
+		int savedThreads = ToolPrinter.blockThreads;
+		Configuration c = makeRingConfiguration(50);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode am = ha.modes.get("mode1");
+		AutomatonTransition at = ha.transitions.get(0);
+
+		am.flowDynamics.put("x", new ExpressionInterval(FormulaParser.parseValue("2 * 3")));
+		at.reset.put("x", new ExpressionInterval(FormulaParser.parseValue("x + 2 * 3")));
+
+		try
+		{
+			ToolPrinter.blockThreads = 4;
+			ToolPrinter printer = new FlowstarPrinter();
+			printer.setOutputString();
+			printer.print(c, "", "ring.xml");
+
+			Assert.assertTrue(printer.outputString.toString().contains("x' = 6"));
+		}
+		finally
+		{
+			ToolPrinter.blockThreads = savedThreads;
+		}
+
+		Assert.assertEquals("2 * 3", am.flowDynamics.get("x").getExpression().toDefaultString());
+		Assert.assertEquals("x + 2 * 3", at.reset.get("x").getExpression().toDefaultString());
+	}
+
+	/**
+	 * Make a flat automaton with modes in a ring, and a second (never enabled)
+	 * jump out of every third mode
+	 */
+	private static Configuration makeRingConfiguration(int numModes)
+	{
+		BaseComponent ha = new BaseComponent();
+		Configuration c = new Configuration(ha);
+
+		ha.variables.add("x");
+		ha.variables.add("t");
+		c.settings.plotVariableNames[0] = "t";
+		c.settings.plotVariableNames[1] = "x";
+		c.settings.spaceExConfig.systemID = "ring";
+		c.init.put("mode0", FormulaParser.parseInitialForbidden("x = 0 & t = 0"));
+
+		AutomatonMode[] modes = new AutomatonMode[numModes];
+
+		for (int i = 0; i < numModes; ++i)
+		{
+			modes[i] = ha.createMode("mode" + i);
+			modes[i].flowDynamics.put("x", new ExpressionInterval(new Constant(i % 5)));
+			modes[i].flowDynamics.put("t", new ExpressionInterval(new Constant(1)));
+			modes[i].invariant = FormulaParser.parseInvariant("t <= " + (i + 1));
+		}
+
+		for (int i = 0; i < numModes; ++i)
+		{
+			AutomatonTransition at = ha.createTransition(modes[i], modes[(i + 1) % numModes]);
+			at.guard = FormulaParser.parseGuard("t >= " + (i + 1));
+
+			if (i % 3 == 0)
+			{
+				at = ha.createTransition(modes[i], modes[(i + 7) % numModes]);
+				at.guard = Constant.FALSE;
+			}
+		}
+
+		c.validate();
+
+		return c;
+	}
+
+	/**
+	 * Read a file, skipping lines with the command line arguments (which
+	 * differ between runs)
+	 */
+	private static String readWithoutArguments(String filename) throws IOException
+	{
+		StringBuilder rv = new StringBuilder();
+
+		for (String line : Files.readAllLines(Paths.get(filename), Charset.forName("UTF-8")))
+		{
+			if (!line.contains("Command Line") && !line.contains("Command line"))
+				rv.append(line).append("\n");
+		}
+
+		return rv.toString();
+	}
+
 	@Test
 	public void testPysimPrint()
 	{
@@ -16,11 +16,13 @@ import org.junit.runners.Parameterized.Parameters;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationModeParams;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationParams;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
 import com.verivital.hyst.python.PythonUtil;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.KodiakUtil;
@@ -272,6 +274,144 @@ public class PythonTests
 		Assert.assertEquals("python simplification incorrect", str, result.toDefaultString());
 	}
 
+	/**
+	 * Lots of output on python's stderr (or stdout outside of a frame) must not
+	 * fill the pipe and block the request
+	 */
+	@Test
+	public void testLargeStderrOutput()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridge pb = PythonBridge.getInstance();
+
+		String cmd = "import os\n" + "for _ in range(100):\n" + "    n = os.write(2, 'x' * 10000)\n"
+				+ "    n = os.write(1, 'y' * 10000)\n" + "print 5\n";
+		Assert.assertEquals("5", pb.send(cmd));
+	}
+
+	@Test
+	public void testDefineAutomatonReused()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridge pb = PythonBridge.getInstance();
+
+		String source = "def define_ha():\n    return 'first'\n";
+		String handle = pb.defineAutomaton(source);
+		Assert.assertEquals("first", pb.send("print " + handle));
+
+		// same source should reuse the same handle
+		Assert.assertEquals(handle, pb.defineAutomaton(source));
+
+		// changed source should get a new handle
+		String source2 = "def define_ha():\n    return 'second'\n";
+		String handle2 = pb.defineAutomaton(source2);
+		Assert.assertNotEquals(handle, handle2);
+		Assert.assertEquals("second", pb.send("print " + handle2));
+		Assert.assertEquals("first", pb.send("print " + handle));
+	}
+
+	@Test
+	public void testPoolSendAll()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridgePool pool = new PythonBridgePool(2, PythonBridge.NO_TIMEOUT);
+
+		try
+		{
+			List<String> commands = new ArrayList<String>();
+
+			for (int i = 0; i < 6; ++i)
+				commands.add("print " + i + " * 2");
+
+			List<String> results = pool.sendAll(commands);
+
+			for (int i = 0; i < 6; ++i)
+				Assert.assertEquals("" + (i * 2), results.get(i));
+
+			Assert.assertEquals(0, pool.healthCheck());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	/**
+	 * A worker whose request times out should be restarted, not left hung
+	 */
+	@Test
+	public void testPoolTimeoutRestart()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridgePool pool = new PythonBridgePool(1, 3000);
+
+		try
+		{
+			try
+			{
+				pool.sendAll(Arrays.asList("import time; time.sleep(30)"));
+				Assert.fail("expected timeout");
+			}
+			catch (AutomatonExportException e)
+			{
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("Timeout"));
+			}
+
+			// the same (only) worker is usable again
+			Assert.assertEquals(0, pool.healthCheck());
+			Assert.assertEquals(Arrays.asList("7"), pool.sendAll(Arrays.asList("print 3 + 4")));
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	/**
+	 * Closing a pool should close its python processes, including ones that
+	 * are checked out at the time (when they're checked in)
+	 */
+	@Test
+	public void testPoolClose()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridgePool pool = new PythonBridgePool(2, 10000);
+		Assert.assertEquals(Arrays.asList("1", "2"),
+				pool.sendAll(Arrays.asList("print 1", "print 2")));
+
+		PythonBridge pb = pool.checkout();
+		pool.close();
+		pool.checkin(pb);
+
+		try
+		{
+			pb.send("1");
+			Assert.fail("bridge was not closed");
+		}
+		catch (AutomatonExportException e)
+		{
+		}
+
+		try
+		{
+			pool.checkout();
+			Assert.fail("checkout from a closed pool");
+		}
+		catch (AutomatonExportException e)
+		{
+		}
+	}
+
 	@Test
 	public void testBoundedIntervalVersusKodiak()
 	{
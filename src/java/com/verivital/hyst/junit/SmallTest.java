@@ -1,8 +1,23 @@
 package com.verivital.hyst.junit;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -19,9 +34,16 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.AutomatonValidationException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystBatch;
+import com.verivital.hyst.main.HystJob;
+import com.verivital.hyst.main.HystServer;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass.IntervalTerm;
@@ -53,7 +75,7 @@ public class SmallTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setExpressionPrinter(null);
 	}
 
 	@Test
@@ -841,7 +863,7 @@ public class SmallTest
 	@Test
 	public void testFlowExpressionPrinter()
 	{
-		Expression.expressionPrinter = new FlowstarPrinter.FlowstarExpressionPrinter();
+		Expression.setExpressionPrinter(new FlowstarPrinter.FlowstarExpressionPrinter());
 		Expression e1 = FormulaParser.parseInvariant("t <= 5");
 		Expression e2 = FormulaParser.parseInvariant("5 <= t");
 		Expression e3 = FormulaParser.parseInvariant("5 < t");
@@ -1017,4 +1039,497 @@ public class SmallTest
 
 		Assert.assertNotEquals(e, null);
 	}
+
+	/**
+	 * The outgoing / incoming transition indices should follow changes made
+	 * through the BaseComponent API, as well as direct modifications of the
+	 * transitions list
+	 */
+	@Test
+	public void testTransitionIndex()
+	{
+		BaseComponent ha = new BaseComponent();
+		AutomatonMode a = ha.createMode("a");
+		AutomatonMode b = ha.createMode("b");
+		AutomatonMode c = ha.createMode("c");
+
+		AutomatonTransition ab = ha.createTransition(a, b);
+		AutomatonTransition bc = ha.createTransition(b, c);
+
+		Assert.assertEquals(1, a.getOutgoing().size());
+		Assert.assertEquals(0, a.getIncoming().size());
+		Assert.assertSame(ab, b.getIncoming().get(0));
+
+		// incremental update once the index exists
+		AutomatonTransition ca = ha.createTransition(c, a);
+		Assert.assertSame(ca, a.getIncoming().get(0));
+
+		// retargeting a transition
+		bc.setTo(a);
+		Assert.assertEquals(0, c.getIncoming().size());
+		Assert.assertEquals(2, a.getIncoming().size());
+
+		// removal
+		ha.removeTransition(ab);
+		Assert.assertEquals(0, a.getOutgoing().size());
+		Assert.assertEquals(0, b.getIncoming().size());
+
+		// direct modification of the list is detected
+		ha.transitions.clear();
+		Assert.assertEquals(0, a.getIncoming().size());
+		Assert.assertEquals(0, c.getOutgoing().size());
+	}
+
+	/**
+	 * With dirty tracking active, validation should recheck the modes and
+	 * transitions which were added or marked as modified, until tracking stops
+	 */
+	@Test
+	public void testIncrementalValidation()
+	{
+		BaseComponent ha = new BaseComponent();
+		ha.variables.add("x");
+		AutomatonMode a = ha.createMode("a", "x <= 1", "x' == 1");
+		AutomatonMode b = ha.createMode("b", "x <= 2", "x' == 2");
+		ha.createTransition(a, b).guard = Constant.TRUE;
+		ha.validate();
+
+		// marked changes are rechecked, also by a second validate()
+		ha.startDirtyTracking();
+		a.invariant = null;
+		ha.markDirty(a);
+
+		for (int i = 0; i < 2; ++i)
+		{
+			try
+			{
+				ha.validate();
+				Assert.fail("validation didn't recheck dirty mode");
+			}
+			catch (AutomatonValidationException e)
+			{
+			}
+		}
+
+		ha.stopDirtyTracking();
+
+		// without tracking, everything is rechecked
+		try
+		{
+			ha.validate();
+			Assert.fail("full validation didn't detect invalid mode");
+		}
+		catch (AutomatonValidationException e)
+		{
+		}
+
+		// created transitions are rechecked without being marked
+		a.invariant = Constant.TRUE;
+		ha.startDirtyTracking();
+		ha.createTransition(b, a);
+
+		try
+		{
+			ha.validate();
+			Assert.fail("validation didn't recheck created transition with null guard");
+		}
+		catch (AutomatonValidationException e)
+		{
+		}
+
+		ha.stopDirtyTracking();
+	}
+
+	/**
+	 * The conversion server should run several requests on one connection,
+	 * with the state reset between them
+	 */
+	@Test
+	public void testServer() throws Exception
+	{
+		String model = "tests/unit/models/controller_heater/controller_heater.xml";
+		final HystServer server = new HystServer(0, 2);
+
+		Thread serverThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				server.serve();
+			}
+		};
+
+		serverThread.start();
+		Hyst.IS_UNIT_TEST = true;
+
+		try
+		{
+			Socket s = new Socket(InetAddress.getByName(null), server.getPort());
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+
+			String[] rv = serverRequest(server, in, out, "-v", "-flowstar", model);
+			Assert.assertEquals(rv[1], "0", rv[0]);
+			Assert.assertTrue(rv[1].contains("hybrid reachability"));
+			Assert.assertTrue("verbose output", rv[1].contains("Verbose mode"));
+
+			rv = serverRequest(server, in, out, "-flowstar", "-unknown_flag", model);
+			Assert.assertEquals(rv[1], "" + Hyst.ExitCode.ARG_PARSE_ERROR.ordinal(), rv[0]);
+
+			// -v from the first request doesn't carry over
+			rv = serverRequest(server, in, out, "-dreach", model);
+			Assert.assertEquals(rv[1], "0", rv[0]);
+			Assert.assertTrue(rv[1].contains("dReach"));
+			Assert.assertFalse(rv[1].contains("Verbose mode"));
+
+			out.write(("STOP " + server.getToken() + "\n").getBytes(HystServer.CHARSET));
+			out.flush();
+			Assert.assertEquals("STOPPED", readLine(in));
+			s.close();
+		}
+		finally
+		{
+			server.stop();
+			serverThread.join();
+		}
+	}
+
+	/**
+	 * An idle connection should be closed, so it doesn't hold on to a worker
+	 * and block other clients
+	 */
+	@Test
+	public void testServerIdleTimeout() throws Exception
+	{
+		String model = "tests/unit/models/controller_heater/controller_heater.xml";
+		final HystServer server = new HystServer(0, 1);
+		server.setIdleTimeout(200);
+
+		Thread serverThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				server.serve();
+			}
+		};
+
+		serverThread.start();
+		Hyst.IS_UNIT_TEST = true;
+
+		try
+		{
+			// takes the only worker and never sends a request
+			Socket idle = new Socket(InetAddress.getByName(null), server.getPort());
+
+			Socket s = new Socket(InetAddress.getByName(null), server.getPort());
+			s.setSoTimeout(60000);
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+
+			String[] rv = serverRequest(server, in, out, "-flowstar", model);
+			Assert.assertEquals(rv[1], "0", rv[0]);
+
+			idle.setSoTimeout(60000);
+			Assert.assertEquals("idle connection was closed", -1, idle.getInputStream().read());
+			idle.close();
+
+			out.write(("STOP " + server.getToken() + "\n").getBytes(HystServer.CHARSET));
+			out.flush();
+			Assert.assertEquals("STOPPED", readLine(in));
+			s.close();
+		}
+		finally
+		{
+			server.stop();
+			serverThread.join();
+		}
+	}
+
+	/**
+	 * Requests without the server's token, or with an impossible argument
+	 * count, should be rejected without running anything; the port file should
+	 * have the token and only be readable by its owner
+	 */
+	@Test
+	public void testServerRejectsRequests() throws Exception
+	{
+		final HystServer server = new HystServer(0, 1);
+		File portFile = File.createTempFile("hyst", ".port");
+		server.writePortFile(portFile);
+
+		List<String> lines = Files.readAllLines(portFile.toPath(), HystServer.CHARSET);
+		Assert.assertEquals(Arrays.asList("" + server.getPort(), server.getToken()), lines);
+
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			Assert.assertEquals("rw-------", PosixFilePermissions.toString(Files
+					.getPosixFilePermissions(portFile.toPath())));
+
+		Thread serverThread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				server.serve();
+			}
+		};
+
+		serverThread.start();
+		Hyst.IS_UNIT_TEST = true;
+
+		try
+		{
+			String[] badRequests = { "STOP", "STOP wrong", "RUN wrong 1",
+					"RUN " + server.getToken() + " -1",
+					"RUN " + server.getToken() + " 2000000000",
+					"RUN " + server.getToken() + " x", "HELLO " + server.getToken() };
+
+			for (String request : badRequests)
+			{
+				Socket s = new Socket(InetAddress.getByName(null), server.getPort());
+				s.setSoTimeout(60000);
+				InputStream in = new BufferedInputStream(s.getInputStream());
+				OutputStream out = s.getOutputStream();
+
+				out.write((request + "\n").getBytes(HystServer.CHARSET));
+				out.flush();
+
+				Assert.assertTrue(request, readLine(in).startsWith("ERROR "));
+				Assert.assertEquals("connection was closed", -1, in.read());
+				s.close();
+			}
+
+			// the server is still running
+			Socket s = new Socket(InetAddress.getByName(null), server.getPort());
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+			String[] rv = serverRequest(server, in, out, "-flowstar",
+					"tests/unit/models/controller_heater/controller_heater.xml");
+			Assert.assertEquals(rv[1], "0", rv[0]);
+
+			out.write(("STOP " + server.getToken() + "\n").getBytes(HystServer.CHARSET));
+			out.flush();
+			Assert.assertEquals("STOPPED", readLine(in));
+			s.close();
+		}
+		finally
+		{
+			server.stop();
+			serverThread.join();
+		}
+
+		Assert.assertFalse("port file is deleted", portFile.exists());
+	}
+
+	/**
+	 * Send a RUN request to a HystServer
+	 *
+	 * @return the exit code and the output
+	 */
+	private static String[] serverRequest(HystServer server, InputStream in, OutputStream out,
+			String... args) throws IOException
+	{
+		StringBuilder request = new StringBuilder("RUN " + server.getToken() + " "
+				+ args.length + "\n");
+
+		for (String arg : args)
+			request.append(arg).append('\n');
+
+		out.write(request.toString().getBytes(HystServer.CHARSET));
+		out.flush();
+
+		String[] header = readLine(in).split(" ");
+		Assert.assertEquals("EXIT", header[0]);
+
+		byte[] output = new byte[Integer.parseInt(header[2])];
+		new DataInputStream(in).readFully(output);
+
+		return new String[] { header[1], new String(output, HystServer.CHARSET) };
+	}
+
+	private static String readLine(InputStream in) throws IOException
+	{
+		StringBuilder rv = new StringBuilder();
+		int c;
+
+		while ((c = in.read()) != -1 && c != '\n')
+			rv.append((char) c);
+
+		return rv.toString();
+	}
+
+	/**
+	 * Batch entries run at the same time, each with its own flags and output
+	 */
+	@Test
+	public void testBatch() throws Exception
+	{
+		String model = "tests/unit/models/controller_heater/controller_heater.xml";
+		File outFile = File.createTempFile("hyst batch", ".flowstar");
+		outFile.deleteOnExit();
+
+		String[] args = { "-flowstar", "-o", outFile.getPath(), "-tp", "", model };
+		String line = Hyst.makeSingleArgument(args);
+		Assert.assertArrayEquals(args, Hyst.splitArguments(line));
+
+		HystBatch batch = new HystBatch();
+		batch.add("-v -flowstar " + model);
+		batch.add("-dreach -unknown_flag " + model);
+		batch.add("-dreach " + model);
+		batch.add(line);
+
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		Hyst.IS_UNIT_TEST = true;
+		ArrayList<HystJob> jobs = batch.run(2, new PrintStream(report, true, "UTF-8"));
+		String[] parts = report.toString("UTF-8").split("\\[\\d/4\\] exit ");
+
+		Assert.assertEquals(4, jobs.size());
+		Assert.assertEquals(5, parts.length);
+		Assert.assertEquals(0, jobs.get(0).getExitCode());
+		Assert.assertEquals(Hyst.ExitCode.ARG_PARSE_ERROR.ordinal(), jobs.get(1).getExitCode());
+		Assert.assertEquals(0, jobs.get(2).getExitCode());
+		Assert.assertEquals(0, jobs.get(3).getExitCode());
+
+		// output of each entry is captured separately, and -v doesn't leak
+		Assert.assertTrue(parts[0].contains("hybrid reachability"));
+		Assert.assertTrue(parts[0].contains("Verbose mode"));
+		Assert.assertTrue(parts[2].contains("dReach"));
+		Assert.assertFalse(parts[2].contains("Verbose mode"));
+		Assert.assertFalse(parts[3].contains("hybrid reachability"));
+		Assert.assertTrue(outFile.length() > 0);
+
+		Assert.assertTrue(jobs.get(0).getStageMs(HystJob.Stage.IMPORT) > 0);
+		Assert.assertTrue(jobs.get(0).getStageMs(HystJob.Stage.PRINT) > 0);
+		Assert.assertEquals(0, jobs.get(1).getStageMs(HystJob.Stage.IMPORT), 0);
+	}
+
+	/**
+	 * Conversions of different network models in one batch shouldn't see each
+	 * other's import state (such as the instance names used to read the initial
+	 * and forbidden states), so each output should match a conversion on its own
+	 */
+	@Test
+	public void testBatchDifferentModels() throws Exception
+	{
+		String[] models = { "controller_heater/controller_heater.xml",
+				"comp_simple_crossprod_network/sys.xml", "two_network_diff_names/sys.xml",
+				"symmetric_instances/sys.xml", "urgent_composition/urgent_composition.xml",
+				"disjunction_forbidden/disjunction_forbidden.xml" };
+
+		checkBatchMatchesSingle(models, 8);
+	}
+
+	/**
+	 * Imports that map constants in network binds (which skip constant
+	 * validation while instances are built) running next to conversions that
+	 * simplify look-up tables with python (when it's installed) shouldn't
+	 * interfere with each other
+	 */
+	@Test
+	public void testBatchImportAndPython() throws Exception
+	{
+		String[] models = { "lut_table/lut_table.xml", "reset_with_const/reset_with_const.xml",
+				"pd_lut_linear/pd_lut_linear.xml", "loc_init/model.xml", "comp_base/sys2.xml",
+				"comp_single_network/sys.xml" };
+
+		checkBatchMatchesSingle(models, 6);
+	}
+
+	/**
+	 * Constant validation is turned off only in the thread that's building an
+	 * automaton
+	 */
+	@Test
+	public void testValidateConstsPerThread() throws Exception
+	{
+		final boolean[] otherThread = new boolean[1];
+		boolean previous = Component.setValidateConsts(false);
+
+		try
+		{
+			Thread t = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					otherThread[0] = Component.validateConsts();
+				}
+			};
+
+			t.start();
+			t.join();
+
+			Assert.assertFalse(Component.validateConsts());
+			Assert.assertTrue(otherThread[0]);
+		}
+		finally
+		{
+			Component.setValidateConsts(previous);
+		}
+	}
+
+	/**
+	 * Convert each model to Flow* on its own, and then all of them repeated in
+	 * one batch with a thread per model, and check that the outputs match
+	 * 
+	 * @param models
+	 *            the model paths, in tests/unit/models
+	 * @param repeats
+	 *            how many times each model is converted in the batch
+	 */
+	private static void checkBatchMatchesSingle(String[] models, int repeats) throws Exception
+	{
+		String dir = "tests/unit/models/";
+		final int REPEATS = repeats;
+		Hyst.IS_UNIT_TEST = true;
+
+		HystBatch single = new HystBatch();
+		File[] expected = new File[models.length];
+
+		for (int m = 0; m < models.length; ++m)
+		{
+			expected[m] = File.createTempFile("hyst batch", ".flowstar");
+			expected[m].deleteOnExit();
+			single.add(Hyst.makeSingleArgument(new String[] { "-flowstar", "-o",
+					expected[m].getPath(), dir + models[m] }));
+		}
+
+		HystBatch batch = new HystBatch();
+		File[] outputs = new File[REPEATS * models.length];
+
+		for (int i = 0; i < outputs.length; ++i)
+		{
+			outputs[i] = File.createTempFile("hyst batch", ".flowstar");
+			outputs[i].deleteOnExit();
+			batch.add(Hyst.makeSingleArgument(new String[] { "-flowstar", "-o",
+					outputs[i].getPath(), dir + models[i % models.length] }));
+		}
+
+		PrintStream report = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8");
+		ArrayList<HystJob> jobs = single.run(1, report);
+		jobs.addAll(batch.run(models.length, report));
+
+		for (HystJob job : jobs)
+			Assert.assertEquals(Hyst.makeSingleArgument(job.getArgs()), 0, job.getExitCode());
+
+		for (int i = 0; i < outputs.length; ++i)
+		{
+			String model = models[i % models.length];
+			String want = readOutput(expected[i % models.length]);
+
+			Assert.assertTrue(model, want.length() > 0);
+			Assert.assertEquals(model, want, readOutput(outputs[i]));
+		}
+	}
+
+	/**
+	 * Read a printer's output file, without its own path (which is in the
+	 * command line in the header)
+	 */
+	private static String readOutput(File f) throws IOException
+	{
+		String rv = new String(Files.readAllBytes(f.toPath()), "UTF-8");
+
+		return rv.replace(f.getPath(), "OUTPUT");
+	}
 }
@@ -5,9 +5,14 @@ import java.io.StringWriter;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
@@ -15,15 +20,15 @@ import javax.swing.UIManager;
 import com.verivital.hyst.generators.IntegralChainGenerator;
 import com.verivital.hyst.generators.ModelGenerator;
 import com.verivital.hyst.generators.NavigationGenerator;
+import com.verivital.hyst.generators.SyntheticNetworkGenerator;
 import com.verivital.hyst.grammar.formula.Expression;
-import com.verivital.hyst.importer.ConfigurationMaker;
+import com.verivital.hyst.importer.BinaryImporter;
 import com.verivital.hyst.importer.SpaceExImporter;
-import com.verivital.hyst.importer.TemplateImporter;
 import com.verivital.hyst.ir.AutomatonExportException;
-import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.AddIdentityResetPass;
+import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
 import com.verivital.hyst.passes.basic.ShortenModeNamesPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
@@ -37,6 +42,7 @@ import com.verivital.hyst.passes.complex.OrderReductionPass;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMixedTriggeredPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantSimulatePass;
+import com.verivital.hyst.printers.BinaryPrinter;
 import com.verivital.hyst.printers.DReachPrinter;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.HyCompPrinter;
@@ -47,11 +53,10 @@ import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.printers.hycreate2.HyCreate2Printer;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.StringOperations;
 
-import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
-
 /**
  * Main start class for Hyst If run without args, a GUI will be used. If run
  * with args, the command-line version is assumed.
@@ -59,19 +64,6 @@ import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 public class Hyst
 {
 	public static String TOOL_NAME = "Hyst v1.2";
-	public static String programArguments;
-
-	private static ArrayList<String> xmlFilenames = new ArrayList<String>();
-	private static String cfgFilename = null, outputFilename = null;
-	private static int printerIndex = -1; // index into printers array
-	public static boolean verboseMode = false; // flag used to toggle verbose
-												// printing with Main.log()
-	public static boolean debugMode = false; // flag used to toggle debug
-												// printing with Main.logDebug()
-	private static String toolParamsString = null; // tool parameter string set
-													// using -toolparams or -tp
-	private static int modelGenIndex = -1; // index into generators array
-	private static String modelGenParam = null; // parameter for model generator
 
 	public static boolean IS_UNIT_TEST = false; // should usage printing be
 												// omitted (for unit testing)
@@ -91,25 +83,27 @@ public class Hyst
 	public final static String FLAG_TESTPYTHON = "-testpython";
 	public final static String FLAG_GENERATE = "-generate";
 	public final static String FLAG_GENERATE_SHORT = "-gen";
+	public final static String FLAG_PYTHON_WORKERS = "-python_workers";
+	public final static String FLAG_SERVER = "-server";
+	public final static String FLAG_BATCH = "-batch";
 
 	// add new tool support here
 	private static final ToolPrinter[] printers = { new FlowstarPrinter(), new DReachPrinter(),
 			new HyCreate2Printer(), new HyCompPrinter(), new PythonQBMCPrinter(),
-			new SpaceExPrinter(), new SimulinkStateflowPrinter(), new PySimPrinter(), };
+			new SpaceExPrinter(), new SimulinkStateflowPrinter(), new PySimPrinter(),
+			new BinaryPrinter(), };
 
 	// passes that are run only if the user selects them
 	private static final TransformationPass[] availablePasses = { new AddIdentityResetPass(),
 			new PseudoInvariantPass(), new PseudoInvariantSimulatePass(), new TimeScalePass(),
 			new SubstituteConstantsPass(), new SimplifyExpressionsPass(),
 			new SplitDisjunctionGuardsPass(), new RemoveSimpleUnsatInvariantsPass(),
-			new ShortenModeNamesPass(), new ContinuizationPass(), new HybridizeMixedTriggeredPass(),
-			new FlattenAutomatonPass(), new OrderReductionPass(), new ConvertLutFlowsPass(), };
+			new RemoveDiscreteUnreachablePass(), new ShortenModeNamesPass(),
+			new ContinuizationPass(), new HybridizeMixedTriggeredPass(), new FlattenAutomatonPass(),
+			new OrderReductionPass(), new ConvertLutFlowsPass(), };
 
 	private static final ModelGenerator[] generators = { new IntegralChainGenerator(),
-			new NavigationGenerator(), };
-
-	// passes that the user has selected
-	private static ArrayList<RequestedTransformationPass> requestedPasses = new ArrayList<RequestedTransformationPass>();
+			new NavigationGenerator(), new SyntheticNetworkGenerator(), };
 
 	public enum ExitCode
 	{
@@ -127,7 +121,19 @@ public class Hyst
 		if (!checkPrintersPasses())
 			System.exit(ExitCode.INTERNAL_ERROR.ordinal());
 
-		if (args.length > 0 && !args[0].equals(FLAG_GUI))
+		if (args.length > 0 && args[0].equals(FLAG_SERVER))
+		{
+			int code = HystServer.runServer(args.length > 1 ? args[1] : null);
+
+			System.exit(code);
+		}
+		else if (args.length > 0 && args[0].equals(FLAG_BATCH))
+		{
+			int code = HystBatch.runBatch(args);
+
+			System.exit(code);
+		}
+		else if (args.length > 0 && !args[0].equals(FLAG_GUI))
 		{
 			int code = convert(args);
 
@@ -168,61 +174,115 @@ public class Hyst
 	 */
 	public static int convert(String[] args)
 	{
-		resetVars();
+		return run(new HystJob(args));
+	}
+
+	/**
+	 * Run a conversion, with the job attached to the current thread
+	 * 
+	 * @param job
+	 *            the job to run, which records the exit code and stage timings
+	 * @return the exit code
+	 */
+	public static int run(HystJob job)
+	{
+		HystJob previous = HystJob.current();
+		HystJob.setCurrent(job);
+
+		try
+		{
+			job.setExitCode(convert(job));
+		}
+		finally
+		{
+			job.finish();
+			PythonBridge.release(job);
+			HystJob.setCurrent(previous);
+		}
+
+		return job.getExitCode();
+	}
+
+	private static int convert(HystJob job)
+	{
+		// process-wide settings are reset for each job; -python_workers is
+		// not, since other jobs may be using the python pool
+		Configuration.setValidation(true);
+		Expression.setExpressionPrinter(null); // this should be assigned by
+												// the pass / printer as needed
+
+		long stageStart = System.nanoTime();
+		boolean parsed = parseArgs(job, job.getArgs());
+		job.addStageTime(HystJob.Stage.PARSE, stageStart);
+
+		if (!parsed)
+		{
+			if (job.exitAfterParse != -1)
+				return job.exitAfterParse;
 
-		if (!parseArgs(args))
 			return ExitCode.ARG_PARSE_ERROR.ordinal();
+		}
 
-		if (debugMode)
+		if (job.debugMode)
 			log("Debug mode (even more verbose) printing enabled.\n");
-		else if (verboseMode)
+		else if (job.verboseMode)
 			log("Verbose mode printing enabled.\n");
 
-		programArguments = makeSingleArgument(args);
-		Expression.expressionPrinter = null; // this should be assigned by the
-												// pass / printer as needed
+		job.programArguments = makeSingleArgument(job.getArgs());
 
 		long startMs = System.currentTimeMillis();
-		ToolPrinter printer = newToolPrinterInstance(printers[printerIndex]);
 
 		try
 		{
+			stageStart = System.nanoTime();
 			Configuration config = null;
-			if (modelGenIndex == -1)
+			if (job.binaryFilename != null)
 			{
-				// 1. import the SpaceExDocument
-				SpaceExDocument spaceExDoc = SpaceExImporter.importModels(cfgFilename,
-						xmlFilenames.toArray(new String[xmlFilenames.size()]));
-
-				// 2. convert the SpaceEx data structures to template automata
-				Map<String, Component> componentTemplates = TemplateImporter
-						.createComponentTemplates(spaceExDoc);
-
-				// 3. run any component template passes here (future)
-
-				// 4. instantiate the component templates into a networked
-				// configuration
-				config = ConfigurationMaker.fromSpaceEx(spaceExDoc, componentTemplates);
+				// load a binary snapshot (written with the BinaryPrinter)
+				BinaryImporter snapshot = BinaryImporter.open(job.binaryFilename);
+
+				// if unreachable modes are removed first anyway, only decode
+				// the reachable ones
+				if (snapshot.isFlat() && !job.requestedPasses.isEmpty()
+						&& job.requestedPasses.get(0).tp instanceof RemoveDiscreteUnreachablePass)
+					config = snapshot.getConfiguration(snapshot.getReachableModes());
+				else
+					config = snapshot.getConfiguration();
+			}
+			else if (job.modelGenIndex == -1)
+			{
+				// 1.-4. stream the SpaceEx files into component templates and
+				// instantiate them into a networked configuration (fused
+				// version of SpaceExImporter.importModels(),
+				// TemplateImporter.createComponentTemplates() and
+				// ConfigurationMaker.fromSpaceEx())
+				config = SpaceExImporter.importConfiguration(job.cfgFilename,
+						job.xmlFilenames.toArray(new String[job.xmlFilenames.size()]));
 			}
 			else
 			{
-				ModelGenerator gen = generators[modelGenIndex];
+				ModelGenerator gen = newInstance(generators[job.modelGenIndex]);
 
-				config = gen.generate(modelGenParam);
+				config = gen.generate(job.modelGenParam);
 
 			}
 
+			job.addStageTime(HystJob.Stage.IMPORT, stageStart);
+
 			// 5. run passes
-			runPasses(config);
+			stageStart = System.nanoTime();
+			runPasses(job, config);
+			job.addStageTime(HystJob.Stage.PASSES, stageStart);
 
-			// 6. run printer
-			runPrinter(printer, config);
+			// 6. run printers
+			stageStart = System.nanoTime();
+			runPrinters(job, config);
 		}
 		catch (AutomatonExportException aee)
 		{
 			logError("Automaton Export Exception while exporting: " + aee.getLocalizedMessage());
 
-			if (verboseMode)
+			if (job.verboseMode)
 			{
 				log("Stack trace from exception:");
 
@@ -240,7 +300,7 @@ public class Hyst
 		{
 			logError("Preconditions not met for exporting: " + ex.getLocalizedMessage());
 
-			if (verboseMode)
+			if (job.verboseMode)
 			{
 				log("Stack trace from exception:");
 
@@ -258,7 +318,7 @@ public class Hyst
 					: ex.toString();
 			logError("Exception in Hyst while exporting: " + message);
 
-			if (verboseMode)
+			if (job.verboseMode)
 			{
 				log("Stack trace from exception:");
 
@@ -273,29 +333,184 @@ public class Hyst
 			return ExitCode.EXPORT_EXCEPTION.ordinal();
 		}
 
+		for (RequestedPrinter rp : job.requestedPrinters)
+			rp.printer.flush();
+
+		job.addStageTime(HystJob.Stage.PRINT, stageStart);
 		long difMs = System.currentTimeMillis() - startMs;
 
-		printer.flush();
 		Hyst.logInfo("\nFinished converting in " + difMs + " ms");
 
 		return ExitCode.SUCCESS.ordinal();
 	}
 
-	private static void runPrinter(ToolPrinter printer, Configuration config)
+	/**
+	 * Run the requested printers. If there are several, each one gets its own
+	 * snapshot of the configuration, so the import and passes are only done
+	 * once. Printers writing to files run in parallel; those printing to
+	 * stdout (or the gui) run one after another in the current thread, so that
+	 * their output isn't interleaved.
+	 * 
+	 * @param job
+	 *            the job with the requested printers
+	 * @param config
+	 *            the configuration after running the passes
+	 */
+	private static void runPrinters(final HystJob job, Configuration config)
+	{
+		ArrayList<RequestedPrinter> requestedPrinters = job.requestedPrinters;
+		int numPrinters = requestedPrinters.size();
+
+		if (numPrinters == 1)
+		{
+			runPrinter(job, requestedPrinters.get(0), config);
+			return;
+		}
+
+		// take all snapshots before starting, and release config's own share
+		// so that the last printer to need a writable automaton takes it over
+		// instead of copying it (printers which only read it release theirs)
+		final Configuration[] snapshots = new Configuration[numPrinters];
+		int numFilePrinters = 0;
+
+		for (int i = 0; i < numPrinters; ++i)
+		{
+			snapshots[i] = config.snapshot();
+
+			if (requestedPrinters.get(i).outputFilename != null)
+				++numFilePrinters;
+		}
+
+		config.release();
+
+		ExecutorService pool = null;
+		Future<?>[] results = new Future<?>[numPrinters];
+		Throwable[] failures = new Throwable[numPrinters];
+
+		try
+		{
+			if (numFilePrinters > 0)
+			{
+				int threads = Math.min(numFilePrinters, Runtime.getRuntime().availableProcessors());
+				pool = Executors.newFixedThreadPool(threads);
+			}
+
+			for (int i = 0; i < numPrinters; ++i)
+			{
+				final RequestedPrinter rp = requestedPrinters.get(i);
+				final Configuration c = snapshots[i];
+
+				if (rp.outputFilename != null)
+				{
+					results[i] = pool.submit(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
+							{
+								runPrinter(job, rp, c);
+							}
+							finally
+							{
+								c.release();
+							}
+						}
+					});
+				}
+			}
+
+			// a failing printer doesn't stop the others, so the failure that's
+			// reported doesn't depend on which printer happened to finish first
+			for (int i = 0; i < numPrinters; ++i)
+			{
+				RequestedPrinter rp = requestedPrinters.get(i);
+
+				if (rp.outputFilename == null)
+				{
+					try
+					{
+						runPrinter(job, rp, snapshots[i]);
+					}
+					catch (RuntimeException e)
+					{
+						failures[i] = e;
+					}
+					catch (Error e)
+					{
+						failures[i] = e;
+					}
+					finally
+					{
+						snapshots[i].release();
+					}
+				}
+			}
+
+			// wait for every file printer, so none is still writing on return
+			for (int i = 0; i < numPrinters; ++i)
+			{
+				if (results[i] == null)
+					continue;
+
+				try
+				{
+					results[i].get();
+				}
+				catch (ExecutionException e)
+				{
+					failures[i] = e.getCause();
+				}
+				catch (InterruptedException e)
+				{
+					pool.shutdownNow();
+					Thread.currentThread().interrupt();
+					throw new AutomatonExportException("Interrupted while printing", e);
+				}
+			}
+		}
+		finally
+		{
+			if (pool != null)
+				pool.shutdown();
+		}
+
+		// report the first failure, in the order the printers were given
+		for (Throwable t : failures)
+		{
+			// a Runnable can only throw unchecked exceptions
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			else if (t != null)
+				throw (Error) t;
+		}
+	}
+
+	private static void runPrinter(HystJob job, RequestedPrinter rp, Configuration config)
 	{
-		String originalFilename = StringOperations.join(" ", xmlFilenames.toArray(new String[] {}));
+		String originalFilename = StringOperations.join(" ",
+				job.xmlFilenames.toArray(new String[] {}));
 
-		if (outputFilename != null)
-			printer.setOutputFile(outputFilename);
+		if (job.xmlFilenames.isEmpty() && job.binaryFilename != null)
+			originalFilename = job.binaryFilename;
+
+		ToolPrinter printer = rp.printer;
+
+		if (rp.outputFilename != null)
+			printer.setOutputFile(rp.outputFilename);
 		else if (guiFrame != null)
 			printer.setOutputGui(guiFrame);
 
-		printer.print(config, toolParamsString, originalFilename);
+		if (job.requestedPrinters.size() > 1)
+			Hyst.log("Running printer " + printer.getCommandLineFlag()
+					+ (rp.outputFilename != null ? " to " + rp.outputFilename : ""));
+
+		printer.print(config, rp.toolParamsString, originalFilename);
 	}
 
-	private static void runPasses(Configuration config)
+	private static void runPasses(HystJob job, Configuration config)
 	{
-		for (RequestedTransformationPass rp : requestedPasses)
+		for (RequestedTransformationPass rp : job.requestedPasses)
 		{
 			Hyst.log("Running pass " + rp.tp.getName() + " with params " + rp.params);
 
@@ -306,18 +521,6 @@ public class Hyst
 		}
 	}
 
-	private static void resetVars()
-	{
-		xmlFilenames = new ArrayList<String>();
-		cfgFilename = null;
-		outputFilename = null;
-		printerIndex = -1;
-		verboseMode = false;
-		debugMode = false;
-		toolParamsString = "";
-		requestedPasses.clear();
-	}
-
 	private static void fixLookAndFeel()
 	{
 		try
@@ -351,12 +554,65 @@ public class Hyst
 	}
 
 	/**
-	 * Parse arguments, return TRUE if they're alright, FALSE if not
+	 * Split a line into arguments, the reverse of makeSingleArgument().
+	 * Arguments are separated by whitespace, and double quotes group an
+	 * argument containing spaces ("" is an empty argument).
+	 * 
+	 * @param line
+	 *            the line to split
+	 * @return the arguments
+	 */
+	public static String[] splitArguments(String line)
+	{
+		ArrayList<String> rv = new ArrayList<String>();
+		StringBuilder cur = new StringBuilder();
+		boolean inArg = false;
+		boolean inQuotes = false;
+
+		for (int i = 0; i < line.length(); ++i)
+		{
+			char c = line.charAt(i);
+
+			if (c == '"')
+			{
+				inQuotes = !inQuotes;
+				inArg = true;
+			}
+			else if (Character.isWhitespace(c) && !inQuotes)
+			{
+				if (inArg)
+				{
+					rv.add(cur.toString());
+					cur.setLength(0);
+					inArg = false;
+				}
+			}
+			else
+			{
+				cur.append(c);
+				inArg = true;
+			}
+		}
+
+		if (inQuotes)
+			throw new AutomatonExportException("Unterminated quote in arguments: " + line);
+
+		if (inArg)
+			rv.add(cur.toString());
+
+		return rv.toArray(new String[rv.size()]);
+	}
+
+	/**
+	 * Parse arguments into the job, return TRUE if they're alright, FALSE if
+	 * not
 	 * 
+	 * @param job
+	 *            the job to store the parsed arguments in
 	 * @param args
 	 * @return
 	 */
-	private static boolean parseArgs(String[] args)
+	private static boolean parseArgs(HystJob job, String[] args)
 	{
 		boolean testPython = false;
 		boolean rv = true;
@@ -374,18 +630,11 @@ public class Hyst
 
 				if (flag.equals(arg))
 				{
-					if (printerIndex != -1)
-					{
-						String other = printers[printerIndex].getCommandLineFlag();
-
-						logError("Error: multiple printers selected " + arg + " and " + other);
-						rv = false;
-					}
-					else
-					{
-						printerIndex = pi;
-						processedArg = true;
-					}
+					// several printers can be given; -o and -tp apply to the
+					// printer flag before them
+					ToolPrinter instance = newInstance(printers[pi]);
+					job.requestedPrinters.add(new RequestedPrinter(instance));
+					processedArg = true;
 				}
 			}
 
@@ -406,8 +655,9 @@ public class Hyst
 					{
 						String passParam = args[++i];
 
-						TransformationPass instance = newTransformationPassInstance(tp);
-						requestedPasses.add(new RequestedTransformationPass(instance, passParam));
+						TransformationPass instance = newInstance(tp);
+						job.requestedPasses
+								.add(new RequestedTransformationPass(instance, passParam));
 					}
 
 					processedArg = true;
@@ -420,24 +670,31 @@ public class Hyst
 			if (arg.equals(FLAG_HELP) || arg.equals(FLAG_HELP_SHORT) || arg.equals(FLAG_GUI))
 				quitAfterUsage = true; // ignore
 			else if (arg.equals(FLAG_VERBOSE) || arg.equals(FLAG_VERBOSE_SHORT))
-				verboseMode = true;
+				job.verboseMode = true;
 			else if (arg.equals(FLAG_TESTPYTHON))
 				testPython = true;
 			else if (arg.equals(FLAG_DEBUG) || arg.equals(FLAG_DEBUG_SHORT))
 			{
-				verboseMode = true;
-				debugMode = true;
+				job.verboseMode = true;
+				job.debugMode = true;
 			}
 			else if (arg.equals(FLAG_TOOLPARAMS) || arg.equals(FLAG_TOOLPARAMS_SHORT))
 			{
-				if (toolParamsString.length() > 0)
+				RequestedPrinter rp = job.requestedPrinters.isEmpty() ? null
+						: job.requestedPrinters.get(job.requestedPrinters.size() - 1);
+				String existing = rp == null ? job.toolParamsString : rp.toolParamsString;
+
+				if (existing.length() > 0)
 				{
 					logError("Error: " + FLAG_TOOLPARAMS + " argument used twice.");
 					rv = false;
 				}
 				else if (i + 1 < args.length)
 				{
-					toolParamsString = args[++i];
+					if (rp == null)
+						job.toolParamsString = args[++i];
+					else
+						rp.toolParamsString = args[++i];
 				}
 				else
 				{
@@ -451,9 +708,21 @@ public class Hyst
 			}
 			else if (arg.equals(FLAG_OUTPUT))
 			{
-				if (i + 1 < args.length)
+				RequestedPrinter rp = job.requestedPrinters.isEmpty() ? null
+						: job.requestedPrinters.get(job.requestedPrinters.size() - 1);
+				String existing = rp == null ? job.outputFilename : rp.outputFilename;
+
+				if (existing != null)
+				{
+					logError("Error: " + FLAG_OUTPUT + " argument used twice.");
+					rv = false;
+				}
+				else if (i + 1 < args.length)
 				{
-					outputFilename = args[++i];
+					if (rp == null)
+						job.outputFilename = args[++i];
+					else
+						rp.outputFilename = args[++i];
 				}
 				else
 				{
@@ -462,6 +731,30 @@ public class Hyst
 				}
 
 			}
+			else if (arg.equals(FLAG_PYTHON_WORKERS))
+			{
+				int workers = -1;
+
+				if (i + 1 < args.length)
+				{
+					try
+					{
+						workers = Integer.parseInt(args[++i]);
+					}
+					catch (NumberFormatException e)
+					{
+					}
+				}
+
+				if (workers < 1)
+				{
+					logError("Error: " + FLAG_PYTHON_WORKERS
+							+ " argument expects a positive number after");
+					rv = false;
+				}
+				else
+					PythonBridgePool.setDefaultSize(workers);
+			}
 			else if (arg.equals(FLAG_GENERATE) || arg.equals(FLAG_GENERATE_SHORT))
 			{
 				if (i + 2 < args.length)
@@ -474,19 +767,19 @@ public class Hyst
 
 						if (g.getCommandLineFlag().equals(genName))
 						{
-							modelGenIndex = index;
+							job.modelGenIndex = index;
 							break;
 						}
 					}
 
-					if (modelGenIndex == -1)
+					if (job.modelGenIndex == -1)
 					{
 						logError("Error: Model Generator with argument '" + genName
 								+ "' was not found.");
 						rv = false;
 					}
 
-					modelGenParam = args[++i];
+					job.modelGenParam = args[++i];
 				}
 				else
 				{
@@ -497,16 +790,18 @@ public class Hyst
 			}
 			else if (arg.endsWith(".xml"))
 			{
-				xmlFilenames.add(arg);
+				job.xmlFilenames.add(arg);
 
-				if (cfgFilename == null)
+				if (job.cfgFilename == null)
 				{
 					String base = arg.substring(0, arg.length() - 4);
-					cfgFilename = base + ".cfg";
+					job.cfgFilename = base + ".cfg";
 				}
 			}
 			else if (arg.endsWith(".cfg"))
-				cfgFilename = arg;
+				job.cfgFilename = arg;
+			else if (arg.endsWith(BinaryImporter.EXTENSION))
+				job.binaryFilename = arg;
 			else
 			{
 				logError("Error: Unknown argument: " + arg);
@@ -519,18 +814,24 @@ public class Hyst
 			if (PythonBridge.hasPython())
 			{
 				System.out.println("Python and required packages successfully detected.");
-				System.exit(ExitCode.SUCCESS.ordinal());
+				job.exitAfterParse = ExitCode.SUCCESS.ordinal();
 			}
 			else
 			{
 				System.out.println("Python and all required packages NOT detected.");
 				System.out.println(PythonBridge.getInstanceErrorString);
-				System.exit(ExitCode.NOPYTHON.ordinal());
+				job.exitAfterParse = ExitCode.NOPYTHON.ordinal();
 			}
+
+			return false;
 		}
 
-		if (!rv || ((xmlFilenames.size() == 0 || cfgFilename == null) && modelGenIndex == -1)
-				|| printerIndex < 0 || printerIndex >= printers.length)
+		if (rv && !assignLeadingPrinterArgs(job))
+			rv = false;
+
+		if (!rv || ((job.xmlFilenames.size() == 0 || job.cfgFilename == null)
+				&& job.modelGenIndex == -1 && job.binaryFilename == null)
+				|| job.requestedPrinters.isEmpty())
 		{
 			if (IS_UNIT_TEST)
 				return false;
@@ -541,7 +842,8 @@ public class Hyst
 			System.out.println("Usage:");
 			System.out.println("hyst [OutputType] (args) XMLFilename(s) " + "(CFGFilename)");
 			System.out.println();
-			System.out.println("OutputType:");
+			System.out.println("OutputType (several may be given; " + FLAG_OUTPUT + " and "
+					+ FLAG_TOOLPARAMS + " apply to the OutputType before them):");
 
 			for (ToolPrinter tp : printers)
 			{
@@ -610,91 +912,116 @@ public class Hyst
 			System.out.println(FLAG_NOVALIDATE
 					+ " skip internal model validation (may result in Exceptions being thrown)");
 			System.out.println(FLAG_OUTPUT + " [filename] output to the given filename");
+			System.out.println(FLAG_PYTHON_WORKERS
+					+ " [num] number of python processes used for independent python calls (default 1)");
+			System.out.println(FLAG_SERVER + " [port|portfile] (as the first argument) run as a "
+					+ "conversion server on the loopback interface, see HystServer");
+			System.out.println(FLAG_BATCH + " [manifest] (threads) (as the first argument) run the "
+					+ "conversions listed in the manifest, one argument list per line");
 			System.out
 					.println("XMLFilename: The SpaceEx XML automaton to be " + "processed (*.xml)");
 			System.out.println("CFGFilename: The automaton's config file. Will "
 					+ "be derived from the XML filename if not explicitly stated (*.cfg)");
+			System.out.println("BinaryFilename: A model saved with the "
+					+ new BinaryPrinter().getCommandLineFlag() + " printer, used instead of the "
+					+ "XML and CFG files (*" + BinaryImporter.EXTENSION + ")");
 			rv = false;
 		}
 
 		if (quitAfterUsage) // if -help was used
-			System.exit(ExitCode.SUCCESS.ordinal());
+		{
+			job.exitAfterParse = ExitCode.SUCCESS.ordinal();
+			rv = false;
+		}
 
 		return rv;
 	}
 
-	private static TransformationPass newTransformationPassInstance(TransformationPass tp)
+	/**
+	 * Assign the -o and -tp arguments given before any printer flag to the
+	 * first printer, and check that printers don't share an output file
+	 * 
+	 * @return true if the arguments are alright
+	 */
+	private static boolean assignLeadingPrinterArgs(HystJob job)
 	{
-		// create a new instance of the transformation pass to give it fresh
-		// state
-		Class<? extends TransformationPass> cl = tp.getClass();
-		Constructor<? extends TransformationPass> ctor;
-		TransformationPass instance = null;
+		boolean rv = true;
 
-		try
-		{
-			ctor = cl.getConstructor();
-			instance = ctor.newInstance();
-		}
-		catch (NoSuchMethodException e)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e);
-		}
-		catch (InstantiationException e2)
+		if (!job.requestedPrinters.isEmpty())
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e2);
-		}
-		catch (IllegalArgumentException e3)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e3);
-		}
-		catch (IllegalAccessException e4)
-		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e4);
+			RequestedPrinter first = job.requestedPrinters.get(0);
+
+			if (job.outputFilename != null)
+			{
+				if (first.outputFilename != null)
+				{
+					logError("Error: " + FLAG_OUTPUT + " argument used twice.");
+					rv = false;
+				}
+				else
+					first.outputFilename = job.outputFilename;
+			}
+
+			if (job.toolParamsString.length() > 0)
+			{
+				if (first.toolParamsString.length() > 0)
+				{
+					logError("Error: " + FLAG_TOOLPARAMS + " argument used twice.");
+					rv = false;
+				}
+				else
+					first.toolParamsString = job.toolParamsString;
+			}
 		}
-		catch (InvocationTargetException e5)
+
+		HashSet<String> outputs = new HashSet<String>();
+
+		for (RequestedPrinter rp : job.requestedPrinters)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e5);
+			if (rp.outputFilename != null && !outputs.add(rp.outputFilename))
+			{
+				logError("Error: multiple printers write to " + rp.outputFilename);
+				rv = false;
+			}
 		}
 
-		return instance;
+		return rv;
 	}
 
-	private static ToolPrinter newToolPrinterInstance(ToolPrinter tp)
+	/**
+	 * Create a new instance of a printer, pass or generator, to give it fresh
+	 * state
+	 */
+	private static <T> T newInstance(T prototype)
 	{
-		// create a new instance of the transformation pass to give it fresh
-		// state
-		Class<? extends ToolPrinter> cl = tp.getClass();
-		Constructor<? extends ToolPrinter> ctor;
-		ToolPrinter instance = null;
+		@SuppressWarnings("unchecked")
+		Class<? extends T> cl = (Class<? extends T>) prototype.getClass();
+		String name = cl.getSimpleName();
 
 		try
 		{
-			ctor = cl.getConstructor();
-			instance = ctor.newInstance();
+			return cl.getConstructor().newInstance();
 		}
 		catch (NoSuchMethodException e)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e);
+			throw new AutomatonExportException("Error instantiating " + name, e);
 		}
 		catch (InstantiationException e2)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e2);
+			throw new AutomatonExportException("Error instantiating " + name, e2);
 		}
 		catch (IllegalArgumentException e3)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e3);
+			throw new AutomatonExportException("Error instantiating " + name, e3);
 		}
 		catch (IllegalAccessException e4)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e4);
+			throw new AutomatonExportException("Error instantiating " + name, e4);
 		}
 		catch (InvocationTargetException e5)
 		{
-			throw new AutomatonExportException("Error instantiating TransformationPass", e5);
+			throw new AutomatonExportException("Error instantiating " + name, e5);
 		}
-
-		return instance;
 	}
 
 	/**
@@ -719,6 +1046,9 @@ public class Hyst
 		flags.put(FLAG_DEBUG_SHORT, "debug printing mode flag (short version)");
 		flags.put(FLAG_NOVALIDATE, "no validation flag");
 		flags.put(FLAG_OUTPUT, "output to filename flag");
+		flags.put(FLAG_PYTHON_WORKERS, "python workers flag");
+		flags.put(FLAG_SERVER, "server mode flag");
+		flags.put(FLAG_BATCH, "batch mode flag");
 		flags.put(FLAG_TOOLPARAMS, "tool params flag");
 		flags.put(FLAG_TOOLPARAMS_SHORT, "tool params flag (short version)");
 
@@ -783,7 +1113,9 @@ public class Hyst
 	 */
 	public static void log(String message)
 	{
-		if (verboseMode || debugMode)
+		HystJob job = HystJob.current();
+
+		if (job != null && (job.verboseMode || job.debugMode))
 		{
 			if (guiFrame != null)
 				guiFrame.addOutput(message);
@@ -815,7 +1147,9 @@ public class Hyst
 	 */
 	public static void logDebug(String message)
 	{
-		if (debugMode)
+		HystJob job = HystJob.current();
+
+		if (job != null && job.debugMode)
 		{
 			if (guiFrame != null)
 				guiFrame.addOutput(message);
@@ -838,12 +1172,26 @@ public class Hyst
 		System.err.println(message);
 	}
 
+	/**
+	 * Get the command-line arguments of the conversion running in the current
+	 * thread, for comments in the printed models
+	 * 
+	 * @return the arguments as a single string, or null if no conversion is
+	 *         running
+	 */
+	public static String getProgramArguments()
+	{
+		HystJob job = HystJob.current();
+
+		return job == null ? null : job.programArguments;
+	}
+
 	/**
 	 * Disable internal model validation (and removes some error checking)
 	 */
 	public static void setModeNoValidate()
 	{
-		Configuration.DO_VALIDATION = false;
+		Configuration.setValidation(false);
 		System.err.println("Internal model validatation disabled.");
 	}
 }
@@ -0,0 +1,244 @@
+package com.verivital.hyst.main;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * Batch conversion, started with "-batch <manifest> [threads]". Each
+ * non-empty line of the manifest is the full argument list of one conversion
+ * (quoted as with Hyst.makeSingleArgument(), lines starting with # are
+ * comments). The conversions run at the same time on a pool of threads in one
+ * process, which saves the JVM startup and warm-up for each model.
+ *
+ * The output of each entry is captured, and printed in manifest order when it
+ * finishes, followed by its exit code and the time spent in each stage.
+ * Relative paths are resolved against the working directory, not the
+ * manifest's directory.
+ */
+public class HystBatch
+{
+	private final ArrayList<String> lines = new ArrayList<String>();
+	private final ArrayList<String[]> entries = new ArrayList<String[]>();
+
+	/**
+	 * Add an entry to the batch
+	 *
+	 * @param line
+	 *            the entry's arguments, as a single line
+	 */
+	public void add(String line)
+	{
+		entries.add(Hyst.splitArguments(line));
+		lines.add(line);
+	}
+
+	/**
+	 * Read the entries from a manifest file
+	 *
+	 * @param filename
+	 *            the manifest, in UTF-8
+	 */
+	public void load(String filename) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(
+				filename), HystServer.CHARSET));
+
+		try
+		{
+			String line;
+
+			while ((line = in.readLine()) != null)
+			{
+				line = line.trim();
+
+				if (line.length() > 0 && !line.startsWith("#"))
+					add(line);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Run all the entries
+	 *
+	 * @param numThreads
+	 *            the number of conversions to run at once
+	 * @param report
+	 *            where the output and result of each entry is printed
+	 * @return the finished jobs, in manifest order
+	 */
+	public ArrayList<HystJob> run(int numThreads, PrintStream report)
+	{
+		HystJob.routeSystemStreams();
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<HystJob> jobs = new ArrayList<HystJob>();
+		ArrayList<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+		try
+		{
+			for (String[] args : entries)
+			{
+				final HystJob job = new HystJob(args);
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				job.captureOutput(output);
+
+				jobs.add(job);
+				outputs.add(output);
+				results.add(pool.submit(new Callable<Integer>()
+				{
+					@Override
+					public Integer call()
+					{
+						return HystServer.runJob(job);
+					}
+				}));
+			}
+
+			for (int i = 0; i < jobs.size(); ++i)
+			{
+				int code = waitFor(results.get(i));
+				String prefix = "[" + (i + 1) + "/" + jobs.size() + "] ";
+
+				report.println(prefix + lines.get(i));
+				report.print(outputs.get(i).toString(HystServer.CHARSET.name()));
+				report.println(prefix + "exit " + code + " (" + exitCodeName(code) + "), "
+						+ jobs.get(i).getTimingString());
+				report.flush();
+				outputs.set(i, null); // free the captured output
+			}
+		}
+		catch (IOException e)
+		{
+			// UTF-8 is always supported
+			throw new AutomatonExportException("Error printing batch output", e);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		return jobs;
+	}
+
+	private static int waitFor(Future<Integer> f)
+	{
+		try
+		{
+			return f.get();
+		}
+		catch (ExecutionException e)
+		{
+			// runJob() catches everything
+			throw new AutomatonExportException("Error running batch entry", e);
+		}
+		catch (InterruptedException e)
+		{
+			throw new AutomatonExportException("Interrupted while running batch", e);
+		}
+	}
+
+	private static String exitCodeName(int code)
+	{
+		Hyst.ExitCode[] codes = Hyst.ExitCode.values();
+
+		return code >= 0 && code < codes.length ? codes[code].name() : "UNKNOWN";
+	}
+
+	/**
+	 * Run a batch for the -batch flag
+	 *
+	 * @param args
+	 *            the command-line arguments: -batch manifest [threads]
+	 * @return SUCCESS if all the entries succeeded, otherwise the exit code of
+	 *         the first one that failed
+	 */
+	public static int runBatch(String[] args)
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		if (args.length < 2 || args.length > 3)
+		{
+			System.err.println("Error: " + Hyst.FLAG_BATCH
+					+ " expects a manifest file and optionally a number of threads after");
+			return Hyst.ExitCode.ARG_PARSE_ERROR.ordinal();
+		}
+
+		if (args.length == 3)
+		{
+			try
+			{
+				threads = Integer.parseInt(args[2]);
+			}
+			catch (NumberFormatException e)
+			{
+				threads = -1;
+			}
+
+			if (threads < 1)
+			{
+				System.err.println("Error: the number of threads for " + Hyst.FLAG_BATCH
+						+ " must be positive: " + args[2]);
+				return Hyst.ExitCode.ARG_PARSE_ERROR.ordinal();
+			}
+		}
+
+		HystBatch batch = new HystBatch();
+
+		try
+		{
+			batch.load(args[1]);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error reading batch manifest: " + e.getLocalizedMessage());
+			return Hyst.ExitCode.ARG_PARSE_ERROR.ordinal();
+		}
+		catch (AutomatonExportException e)
+		{
+			System.err.println("Error in batch manifest: " + e.getLocalizedMessage());
+			return Hyst.ExitCode.ARG_PARSE_ERROR.ordinal();
+		}
+
+		long startMs = System.currentTimeMillis();
+		ArrayList<HystJob> jobs = batch.run(threads, System.out);
+		long difMs = System.currentTimeMillis() - startMs;
+		int rv = Hyst.ExitCode.SUCCESS.ordinal();
+		int failed = 0;
+
+		for (HystJob job : jobs)
+		{
+			if (job.getExitCode() != Hyst.ExitCode.SUCCESS.ordinal())
+			{
+				if (failed++ == 0)
+					rv = job.getExitCode();
+			}
+		}
+
+		System.out.println("\nBatch finished: " + jobs.size() + " entries, " + failed
+				+ " failed, in " + difMs + " ms using " + threads + " threads");
+
+		return rv;
+	}
+}
@@ -0,0 +1,237 @@
+package com.verivital.hyst.main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+/**
+ * The state of a single conversion: the parsed command-line arguments, the
+ * time spent in each stage and the exit code. Hyst.convert() creates one for
+ * each call, so several conversions can run at once in one process (from the
+ * HystServer or the -batch flag).
+ *
+ * The job being run is attached to the current thread (and threads created
+ * while it runs), which is how Hyst.log() finds the -verbose / -debug flags.
+ * If captureOutput() was used and routeSystemStreams() was called, anything
+ * written to System.out and System.err by the job's threads goes to the job's
+ * stream instead.
+ */
+public class HystJob
+{
+	public enum Stage
+	{
+		PARSE, IMPORT, PASSES, PRINT
+	};
+
+	private static final InheritableThreadLocal<HystJob> current = new InheritableThreadLocal<HystJob>();
+	private static PrintStream systemOut = null; // set once streams are routed
+	private static PrintStream systemErr = null;
+
+	private final String[] args;
+	private final long[] stageNanos = new long[Stage.values().length];
+	private int exitCode = -1;
+	private OutputStream output = null; // captured stdout and stderr
+	private volatile boolean finished = false;
+
+	// parsed arguments, used by Hyst
+	ArrayList<String> xmlFilenames = new ArrayList<String>();
+	String binaryFilename = null; // binary snapshot to load
+	String cfgFilename = null;
+	String outputFilename = null; // -o given before any printer
+	String toolParamsString = ""; // -tp given before any printer
+	int modelGenIndex = -1; // index into generators array
+	String modelGenParam = null; // parameter for model generator
+	int exitAfterParse = -1; // exit code if the arguments only asked for help
+								// or a python check
+	boolean verboseMode = false; // flag used to toggle printing with log()
+	boolean debugMode = false; // flag used to toggle printing with logDebug()
+	String programArguments = null;
+
+	// passes that the user has selected
+	ArrayList<RequestedTransformationPass> requestedPasses = new ArrayList<RequestedTransformationPass>();
+
+	// printers that the user has selected, with their output files and params
+	ArrayList<RequestedPrinter> requestedPrinters = new ArrayList<RequestedPrinter>();
+
+	public HystJob(String[] args)
+	{
+		this.args = args;
+	}
+
+	public String[] getArgs()
+	{
+		return args;
+	}
+
+	/**
+	 * Get the exit code, or -1 if the job hasn't finished
+	 */
+	public int getExitCode()
+	{
+		return exitCode;
+	}
+
+	void setExitCode(int code)
+	{
+		exitCode = code;
+	}
+
+	/**
+	 * Get the time spent in a stage, in milliseconds (0 if it didn't run)
+	 */
+	public double getStageMs(Stage s)
+	{
+		return stageNanos[s.ordinal()] / 1000000.0;
+	}
+
+	void addStageTime(Stage s, long startNanos)
+	{
+		stageNanos[s.ordinal()] += System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Get a one-line summary of the time spent in each stage
+	 */
+	public String getTimingString()
+	{
+		StringBuilder rv = new StringBuilder();
+		double total = 0;
+
+		for (Stage s : Stage.values())
+		{
+			double ms = getStageMs(s);
+			total += ms;
+
+			rv.append(s.name().toLowerCase()).append(' ')
+					.append(String.format("%.1f", ms)).append(" ms, ");
+		}
+
+		rv.append("total ").append(String.format("%.1f", total)).append(" ms");
+
+		return rv.toString();
+	}
+
+	/**
+	 * Send the job's stdout and stderr to the given stream, in UTF-8. This
+	 * only has an effect once routeSystemStreams() has been called.
+	 */
+	public void captureOutput(OutputStream out)
+	{
+		output = out;
+	}
+
+	/**
+	 * Write a message to the job's captured output, or to stderr if it's not
+	 * being captured
+	 */
+	void writeOutput(String message)
+	{
+		if (output == null)
+			System.err.print(message);
+		else
+		{
+			try
+			{
+				output.write(message.getBytes(HystServer.CHARSET));
+			}
+			catch (IOException e)
+			{
+				System.err.print(message);
+			}
+		}
+	}
+
+	/**
+	 * Get the job running in the current thread, or null
+	 */
+	public static HystJob current()
+	{
+		return current.get();
+	}
+
+	static void setCurrent(HystJob job)
+	{
+		current.set(job);
+	}
+
+	void finish()
+	{
+		finished = true;
+	}
+
+	/**
+	 * Replace System.out and System.err with streams that write to the
+	 * captured output of the job running in the calling thread (or to the
+	 * original streams, for threads not running a job). Output is encoded in
+	 * UTF-8. Calling this more than once has no effect.
+	 */
+	public static synchronized void routeSystemStreams()
+	{
+		if (systemOut != null)
+			return;
+
+		systemOut = System.out;
+		systemErr = System.err;
+
+		System.setOut(newPrintStream(new RoutedStream(systemOut)));
+		System.setErr(newPrintStream(new RoutedStream(systemErr)));
+	}
+
+	private static PrintStream newPrintStream(OutputStream out)
+	{
+		try
+		{
+			return new PrintStream(out, true, HystServer.CHARSET.name());
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * An output stream which writes to the output of the current thread's job,
+	 * if it's being captured. A thread may still have a job attached after it
+	 * finished (for example a pool thread created while it ran), so finished
+	 * jobs fall back to the original stream.
+	 */
+	private static class RoutedStream extends OutputStream
+	{
+		private final OutputStream original;
+
+		public RoutedStream(OutputStream original)
+		{
+			this.original = original;
+		}
+
+		private OutputStream target()
+		{
+			HystJob job = current.get();
+
+			if (job != null && !job.finished && job.output != null)
+				return job.output;
+
+			return original;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			target().flush();
+		}
+	}
+}
@@ -0,0 +1,484 @@
+package com.verivital.hyst.main;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-running conversion server, started with "-server <port|portfile>".
+ * This avoids paying for JVM startup, class loading and JIT warm-up on every
+ * conversion, for example in the regression tests or from hypy.
+ *
+ * The server listens on the loopback interface. If the argument is a number,
+ * it's the port (0 picks a free one); otherwise it's a file where the port
+ * that was picked is written, which is deleted when the server stops.
+ * Connections are handled by a pool of worker threads. Each connection can
+ * send several requests, in UTF-8:
+ *
+ * "RUN token n" followed by n lines, each one a command-line argument (at most
+ * MAX_ARGS). The conversion is run as with Hyst.convert(), and the reply is
+ * "EXIT code length" followed by length bytes of the conversion's output
+ * (stdout and stderr). Relative paths are resolved against the server's
+ * working directory.
+ *
+ * "STOP token" stops the server, after replying "STOPPED".
+ *
+ * The token is a random secret picked when the server starts. It's written on
+ * the second line of the port file, which only the server's user can read, or
+ * printed with the port if a port number was given. A request with a wrong
+ * token, or a malformed request, gets an "ERROR message" reply and the
+ * connection is closed.
+ *
+ * Each request is run as its own HystJob, with System.out and System.err
+ * routed to the job's output, so requests on different connections are
+ * converted at the same time. A connection that sends nothing for the idle
+ * timeout while waiting for a request is closed, so that idle or stalled
+ * clients can't hold on to all the workers.
+ *
+ * A client with the token can stop the server, read any model the server can
+ * read, and have it write output files (-o) with the server's permissions, so
+ * the token should be kept as private as the account running the server.
+ */
+public class HystServer
+{
+	public static final Charset CHARSET = Charset.forName("UTF-8");
+	public static final int DEFAULT_IDLE_TIMEOUT = 30000; // 30 seconds
+	public static final int MAX_ARGS = 10000; // arguments in one RUN request
+	public static final int MAX_LINE_LENGTH = 1024 * 1024; // characters
+
+	private final ServerSocket serverSocket;
+	private final String token;
+	private final ExecutorService workers;
+	private final PrintStream log; // the server's own messages
+	private File portFile = null;
+	private volatile boolean stopped = false;
+	private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	/**
+	 * Create a server listening on the loopback interface
+	 *
+	 * @param port
+	 *            the port, or 0 to pick a free one
+	 * @param numWorkers
+	 *            the number of threads handling connections
+	 */
+	public HystServer(int port, int numWorkers) throws IOException
+	{
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+		workers = Executors.newFixedThreadPool(numWorkers);
+		log = System.err;
+
+		byte[] secret = new byte[16];
+		new SecureRandom().nextBytes(secret);
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : secret)
+			hex.append(String.format("%02x", b));
+
+		token = hex.toString();
+
+		HystJob.routeSystemStreams();
+	}
+
+	/**
+	 * Get the port the server is listening on
+	 */
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Get the secret token which clients must send with every request
+	 */
+	public String getToken()
+	{
+		return token;
+	}
+
+	/**
+	 * Set how long a connection can wait between requests (or while sending
+	 * one) before it's closed. This applies to connections accepted afterwards.
+	 *
+	 * @param ms
+	 *            the timeout in milliseconds, or 0 for no timeout
+	 */
+	public void setIdleTimeout(int ms)
+	{
+		idleTimeout = ms;
+	}
+
+	/**
+	 * Write the port and the token to a file, which only the current user can
+	 * read. It's written to a temporary file first, so a client polling for it
+	 * never reads a partial file. The file is deleted when the server stops.
+	 */
+	public void writePortFile(File f) throws IOException
+	{
+		File temp = new File(f.getPath() + ".tmp");
+		Path tempPath = temp.toPath();
+
+		// create the file with its permissions, so the token is never readable
+		// by others (createFile fails if someone else created it in between)
+		Files.deleteIfExists(tempPath);
+
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			Files.createFile(tempPath,
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		else
+		{
+			Files.createFile(tempPath);
+
+			if (!temp.setReadable(false, false) || !temp.setReadable(true, true)
+					|| !temp.setWritable(false, false) || !temp.setWritable(true, true))
+			{
+				temp.delete();
+				throw new IOException("Could not restrict permissions of " + temp.getPath());
+			}
+		}
+
+		String contents = getPort() + "\n" + token + "\n";
+		Files.write(tempPath, contents.getBytes(CHARSET));
+
+		if (!temp.renameTo(f))
+		{
+			f.delete();
+
+			if (!temp.renameTo(f))
+				throw new IOException("Could not create port file " + f.getPath());
+		}
+
+		portFile = f;
+		f.deleteOnExit();
+	}
+
+	/**
+	 * Accept connections until stop() is called
+	 */
+	public void serve()
+	{
+		while (!stopped)
+		{
+			try
+			{
+				final Socket s = serverSocket.accept();
+				s.setSoTimeout(idleTimeout);
+
+				workers.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handleConnection(s);
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				if (!stopped)
+					log.println("Hyst server: error accepting connection: " + e);
+			}
+		}
+
+		workers.shutdown();
+
+		try
+		{
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+		}
+	}
+
+	/**
+	 * Stop accepting connections. Requests already running are finished.
+	 */
+	public void stop()
+	{
+		stopped = true;
+
+		try
+		{
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+		}
+
+		if (portFile != null)
+			portFile.delete();
+	}
+
+	private void handleConnection(Socket s)
+	{
+		OutputStream out = null;
+
+		try
+		{
+			Reader in = new BufferedReader(new InputStreamReader(s.getInputStream(), CHARSET));
+			out = s.getOutputStream();
+			String line;
+
+			while ((line = readLine(in)) != null)
+			{
+				String[] parts = line.split(" ", -1);
+
+				if (parts.length < 2 || !hasToken(parts[1]))
+					throw new RequestException("invalid token");
+
+				if (parts[0].equals("STOP") && parts.length == 2)
+				{
+					out.write("STOPPED\n".getBytes(CHARSET));
+					out.flush();
+					stop();
+					break;
+				}
+				else if (parts[0].equals("RUN") && parts.length == 3)
+				{
+					String[] args = new String[parseArgCount(parts[2])];
+
+					for (int i = 0; i < args.length; ++i)
+					{
+						args[i] = readLine(in);
+
+						if (args[i] == null)
+							throw new IOException("Connection closed during request");
+					}
+
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					int code = run(args, output);
+
+					out.write(("EXIT " + code + " " + output.size() + "\n").getBytes(CHARSET));
+					output.writeTo(out);
+					out.flush();
+				}
+				else
+					throw new RequestException("unknown request: " + parts[0]);
+			}
+		}
+		catch (RequestException e)
+		{
+			log.println("Hyst server: rejected request: " + e.getMessage());
+
+			try
+			{
+				out.write(("ERROR " + e.getMessage() + "\n").getBytes(CHARSET));
+				out.flush();
+			}
+			catch (IOException e2)
+			{
+			}
+		}
+		catch (SocketException e)
+		{
+			// client went away
+		}
+		catch (SocketTimeoutException e)
+		{
+			log.println("Hyst server: closing idle connection");
+		}
+		catch (IOException e)
+		{
+			log.println("Hyst server: error handling request: " + e);
+		}
+		finally
+		{
+			try
+			{
+				s.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Compare a request's token with the server's, in time which doesn't
+	 * depend on where they differ
+	 */
+	private boolean hasToken(String requestToken)
+	{
+		return MessageDigest.isEqual(token.getBytes(CHARSET), requestToken.getBytes(CHARSET));
+	}
+
+	private static int parseArgCount(String s) throws RequestException
+	{
+		int rv;
+
+		try
+		{
+			rv = Integer.parseInt(s);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new RequestException("malformed argument count: " + s);
+		}
+
+		if (rv < 0 || rv > MAX_ARGS)
+			throw new RequestException("argument count must be between 0 and " + MAX_ARGS
+					+ ": " + rv);
+
+		return rv;
+	}
+
+	/**
+	 * Read a line of at most MAX_LINE_LENGTH characters, so a malformed request
+	 * can't make the server buffer an unbounded amount
+	 *
+	 * @return the line without its terminator, or null at the end of the stream
+	 */
+	private static String readLine(Reader in) throws IOException, RequestException
+	{
+		StringBuilder rv = new StringBuilder();
+		int c;
+
+		while ((c = in.read()) != '\n')
+		{
+			if (c == -1)
+				return rv.length() == 0 ? null : rv.toString();
+
+			if (rv.length() == MAX_LINE_LENGTH)
+				throw new RequestException("line longer than " + MAX_LINE_LENGTH + " characters");
+
+			rv.append((char) c);
+		}
+
+		int len = rv.length();
+
+		if (len > 0 && rv.charAt(len - 1) == '\r')
+			rv.setLength(len - 1);
+
+		return rv.toString();
+	}
+
+	/**
+	 * A request which doesn't follow the protocol (or has the wrong token)
+	 */
+	@SuppressWarnings("serial")
+	private static class RequestException extends Exception
+	{
+		public RequestException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * Run a single conversion, with stdout and stderr captured. System.out and
+	 * System.err must have been routed with HystJob.routeSystemStreams().
+	 *
+	 * @param args
+	 *            the command-line arguments
+	 * @param output
+	 *            where the output is stored
+	 * @return the exit code
+	 */
+	public static int run(String[] args, OutputStream output)
+	{
+		HystJob job = new HystJob(args);
+		job.captureOutput(output);
+
+		return runJob(job);
+	}
+
+	/**
+	 * Run a job, turning errors into an exit code so that they don't take down
+	 * the server (or a batch). Hyst.run() already handles exceptions.
+	 *
+	 * @param job
+	 *            the job to run
+	 * @return the exit code
+	 */
+	static int runJob(HystJob job)
+	{
+		int rv;
+
+		try
+		{
+			rv = Hyst.run(job);
+		}
+		catch (Throwable t)
+		{
+			job.writeOutput("Internal error in Hyst: " + t + "\n");
+			rv = Hyst.ExitCode.INTERNAL_ERROR.ordinal();
+			job.setExitCode(rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run a server until it's stopped with a STOP request, for the -server
+	 * flag
+	 *
+	 * @param address
+	 *            the port number or port file
+	 * @return the exit code
+	 */
+	public static int runServer(String address)
+	{
+		int port = 0;
+		File portFile = null;
+
+		if (address == null)
+		{
+			System.err.println("Error: " + Hyst.FLAG_SERVER + " expects a port or port file after");
+			return Hyst.ExitCode.ARG_PARSE_ERROR.ordinal();
+		}
+
+		try
+		{
+			port = Integer.parseInt(address);
+		}
+		catch (NumberFormatException e)
+		{
+			portFile = new File(address);
+		}
+
+		try
+		{
+			HystServer server = new HystServer(port, Runtime.getRuntime()
+					.availableProcessors());
+
+			if (portFile != null)
+			{
+				server.writePortFile(portFile);
+				System.err.println(Hyst.TOOL_NAME + " server listening on port "
+						+ server.getPort());
+			}
+			else
+				System.err.println(Hyst.TOOL_NAME + " server listening on port "
+						+ server.getPort() + ", token " + server.getToken());
+			server.serve();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error starting Hyst server: " + e.getLocalizedMessage());
+			return Hyst.ExitCode.INTERNAL_ERROR.ordinal();
+		}
+
+		return Hyst.ExitCode.SUCCESS.ordinal();
+	}
+}
@@ -0,0 +1,19 @@
+package com.verivital.hyst.main;
+
+import com.verivital.hyst.printers.ToolPrinter;
+
+/**
+ * Container class for a printer to run, along with its output file and tool
+ * params (from the -o and -tp flags which follow its flag)
+ */
+public class RequestedPrinter
+{
+	public ToolPrinter printer;
+	public String outputFilename = null; // null means stdout (or the gui)
+	public String toolParamsString = "";
+
+	public RequestedPrinter(ToolPrinter printer)
+	{
+		this.printer = printer;
+	}
+}
@@ -7,6 +7,7 @@ import org.kohsuke.args4j.CmdLineParser;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
+import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Preconditions;
@@ -49,6 +50,8 @@ public abstract class TransformationPass
 	 */
 	public void runTransformationPass(Configuration c, String params)
 	{
+		c.makeWritable();
+
 		// check preconditions
 		String name = this.getClass().getName();
 
@@ -95,23 +98,54 @@ public abstract class TransformationPass
 	 */
 	public void runVanillaPass(Configuration c, String params)
 	{
+		c.makeWritable();
 		config = c;
-		runPass(params);
 
-		// validate modified configuration
+		// a pass which replaces the root gets a full validation, since the new
+		// root isn't tracked
+		Component tracked = validateIncrementally() ? c.root : null;
+
+		if (tracked != null)
+			tracked.startDirtyTracking();
+
 		try
 		{
-			c.validate();
+			runPass(params);
+
+			// validate modified configuration
+			try
+			{
+				c.validate();
+			}
+			catch (AutomatonValidationException e)
+			{
+				throw new AutomatonExportException(
+						"Hybrid Automaton IR structure was corrupted after running pass "
+								+ this.getClass().getName(),
+						e);
+			}
 		}
-		catch (AutomatonValidationException e)
+		finally
 		{
-			throw new AutomatonExportException(
-					"Hybrid Automaton IR structure was corrupted after running pass "
-							+ this.getClass().getName(),
-					e);
+			if (tracked != null)
+				tracked.stopDirtyTracking();
 		}
 	}
 
+	/**
+	 * Should the validation after this pass only recheck the modes and
+	 * transitions which were changed? If this returns true, the pass must
+	 * report every existing mode or transition whose fields it assigns with
+	 * BaseComponent.markDirty(); added ones are rechecked anyway. Passes which
+	 * replace the root component get a full validation regardless.
+	 * 
+	 * @return true if the pass supports incremental validation (default false)
+	 */
+	protected boolean validateIncrementally()
+	{
+		return false;
+	}
+
 	/**
 	 * Get the longer version of the help text for this pass.
 	 * 
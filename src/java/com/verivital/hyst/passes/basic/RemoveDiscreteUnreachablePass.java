@@ -1,5 +1,6 @@
 package com.verivital.hyst.passes.basic;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map.Entry;
@@ -15,7 +16,7 @@ import com.verivital.hyst.util.PreconditionsFlag;
 
 /**
  * This pass performs discrete reachability and eliminates unreachable locations
- * and transitions
+ * and transitions (and labels used only by unreachable transitions)
  * 
  * @author Stanley Bak (Jan 2015)
  *
@@ -49,14 +50,28 @@ public class RemoveDiscreteUnreachablePass extends TransformationPass
 		}
 
 		// remove unreachable transitions
-		for (Iterator<AutomatonTransition> i = ha.transitions.iterator(); i.hasNext();)
-		{
-			AutomatonTransition t = i.next();
+		ArrayList<AutomatonTransition> toRemove = new ArrayList<AutomatonTransition>();
 
+		for (AutomatonTransition t : ha.transitions)
+		{
 			if (!(reachable.contains(t.from.name) && reachable.contains(t.to.name)))
-				i.remove();
+				toRemove.add(t);
+		}
+
+		ha.removeTransitions(toRemove);
+
+		// remove labels which were only used by unreachable transitions (the
+		// automaton is flat, so no other component synchronizes on them)
+		HashSet<String> usedLabels = new HashSet<String>();
+
+		for (AutomatonTransition t : ha.transitions)
+		{
+			if (t.label != null)
+				usedLabels.add(t.label);
 		}
 
+		ha.labels.retainAll(usedLabels);
+
 		// remove unreachable initial states
 		for (Iterator<Entry<String, Expression>> i = config.init.entrySet().iterator(); i
 				.hasNext();)
@@ -122,16 +137,24 @@ public class RemoveDiscreteUnreachablePass extends TransformationPass
 	private Set<String> successorsOf(String s, BaseComponent ha)
 	{
 		HashSet<String> rv = new HashSet<String>();
+		AutomatonMode am = ha.modes.get(s);
 
-		for (AutomatonTransition t : ha.transitions)
+		if (am != null)
 		{
-			if (t.from.name.equals(s))
+			for (AutomatonTransition t : am.getOutgoing())
 				rv.add(t.to.name);
 		}
 
 		return rv;
 	}
 
+	@Override
+	protected boolean validateIncrementally()
+	{
+		// only removes modes and transitions
+		return true;
+	}
+
 	@Override
 	public String getCommandLineFlag()
 	{
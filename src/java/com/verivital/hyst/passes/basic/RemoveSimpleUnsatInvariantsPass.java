@@ -2,7 +2,7 @@ package com.verivital.hyst.passes.basic;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashSet;
 
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.base.AutomatonMode;
@@ -47,7 +47,7 @@ public class RemoveSimpleUnsatInvariantsPass extends TransformationPass
 	 *            the expression to check
 	 * @return true if the expression is provably unsatisfiable
 	 */
-	private static boolean isUnsat(Expression e)
+	public static boolean isUnsat(Expression e)
 	{
 		boolean rv = false;
 
@@ -80,21 +80,25 @@ public class RemoveSimpleUnsatInvariantsPass extends TransformationPass
 
 	private void removeModes(BaseComponent ha, ArrayList<AutomatonMode> toRemove)
 	{
+		HashSet<AutomatonTransition> transitions = new HashSet<AutomatonTransition>();
+
 		for (AutomatonMode am : toRemove)
 		{
 			config.init.remove(am.name);
 
 			ha.modes.remove(am.name);
+			transitions.addAll(am.getOutgoing());
+			transitions.addAll(am.getIncoming());
 		}
 
-		for (Iterator<AutomatonTransition> i = ha.transitions.iterator(); i
-				.hasNext(); /* increment in loop */)
-		{
-			AutomatonTransition at = i.next();
+		ha.removeTransitions(transitions);
+	}
 
-			if (toRemove.contains(at.from) || toRemove.contains(at.to))
-				i.remove();
-		}
+	@Override
+	protected boolean validateIncrementally()
+	{
+		// only removes modes and transitions
+		return true;
 	}
 
 	@Override
@@ -69,7 +69,7 @@ public class SplitDisjunctionGuardsPass extends TransformationPass
 							+ "' in automaton " + ha.instanceName);
 
 					// remove the old one
-					ha.transitions.remove(t);
+					ha.removeTransition(t);
 
 					// add the new ones
 					for (Expression subCondition : conditions)
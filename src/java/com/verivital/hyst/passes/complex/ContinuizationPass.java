@@ -790,8 +790,7 @@ public class ContinuizationPass extends TransformationPass
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_der_range");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(automaton));
 
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		ArrayList<String> intervalStrs = new ArrayList<String>();
@@ -802,10 +801,8 @@ public class ContinuizationPass extends TransformationPass
 		String timesStr = "[" + StringOperations.join(",", intervalStrs.toArray(new String[0]))
 				+ "]";
 
-		s.append("print simulate_der_range(define_ha(), " + derVarIndex + ", '" + start.modeName
-				+ "', " + point + ", " + timesStr + ")");
-
-		String result = pb.send(s.toString());
+		String result = pb.send("print simulate_der_range(" + ha + ", " + derVarIndex + ", '"
+				+ start.modeName + "', " + point + ", " + timesStr + ")");
 
 		// result is semi-colon separated hyperrectangles
 		// each hyperrectangle is a comma-separated list of size 2*N (N = number
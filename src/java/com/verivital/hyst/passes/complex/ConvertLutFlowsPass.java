@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -270,15 +271,10 @@ public class ConvertLutFlowsPass extends TransformationPass
 	private void fixOutgoingTransitions(AutomatonMode am, Collection<AutomatonMode> newModes)
 	{
 		BaseComponent ha = am.automaton;
-		ArrayList<AutomatonTransition> outgoing = new ArrayList<AutomatonTransition>();
+		ArrayList<AutomatonTransition> outgoing = new ArrayList<AutomatonTransition>(
+				am.getOutgoing());
 
-		for (AutomatonTransition at : ha.transitions)
-		{
-			if (at.from.name.equals(am.name))
-				outgoing.add(at);
-		}
-
-		ha.transitions.removeAll(outgoing);
+		ha.removeTransitions(outgoing);
 
 		for (AutomatonTransition at : outgoing)
 		{
@@ -286,7 +282,7 @@ public class ConvertLutFlowsPass extends TransformationPass
 			{
 				// copy transition at
 				AutomatonTransition newAt = at.copy(ha);
-				newAt.from = mode; // change where the transition is coming from
+				newAt.setFrom(mode); // change where the transition is coming from
 			}
 		}
 	}
@@ -342,6 +338,21 @@ public class ConvertLutFlowsPass extends TransformationPass
 		BaseComponent ha = original.automaton;
 		int tableDims = lut.table.getNumDims();
 
+		// the interpolations of the cells are independent, so they are
+		// simplified as a batch (in parallel if there are python workers)
+		ArrayList<Expression> interpolations = new ArrayList<Expression>();
+
+		for (Entry<int[], Expression> e : lut.table)
+		{
+			int[] indexList = e.getKey();
+
+			if (!shouldSkip(indexList, lut.table))
+				interpolations.add(interpolate(lut, indexList, rangesOf(lut, indexList)));
+		}
+
+		List<Expression> simplified = simplifyInterpolations(interpolations);
+		int cellIndex = 0;
+
 		for (Entry<int[], Expression> e : lut.table)
 		{
 			int[] indexList = e.getKey();
@@ -353,8 +364,6 @@ public class ConvertLutFlowsPass extends TransformationPass
 			AutomatonMode am = ha.modes.get(name);
 			am.invariant = original.invariant.copy();
 
-			Interval[] rangeList = new Interval[tableDims];
-
 			// create dynamics for all other variables
 			for (String var : ha.variables)
 			{
@@ -365,28 +374,10 @@ public class ConvertLutFlowsPass extends TransformationPass
 				}
 			}
 
-			// this loop populates range list, which is used to create the
-			// dynamics
-			for (int varIndex = 0; varIndex < tableDims; ++varIndex)
-			{
-				int indexInTable = indexList[varIndex];
-				double[] breakpoints = lut.breakpoints[varIndex];
-				Constant leftBreakpoint = new Constant(breakpoints[indexInTable]);
-				Constant rightBreakpoint = new Constant(breakpoints[indexInTable + 1]); // in
-																						// bounds
-																						// because
-																						// shouldSkip
-																						// was
-																						// false
-
-				rangeList[varIndex] = new Interval(leftBreakpoint.getVal(),
-						rightBreakpoint.getVal());
-			}
-
 			// create dynamics for variableWithLut
 			// must be done before creating transitions, since inputs may use
 			// variableWithLut
-			Expression replaceLutExpression = nLinearInterpolation(lut, indexList, rangeList);
+			Expression replaceLutExpression = simplified.get(cellIndex++);
 			ExpressionInterval originalExpInt = original.flowDynamics.get(variableWithLut);
 
 			Expression newFlow = replaceLutSubexpression(originalExpInt.getExpression(), lut,
@@ -543,6 +534,83 @@ public class ConvertLutFlowsPass extends TransformationPass
 	 */
 	public static Expression nLinearInterpolation(LutExpression lut, int[] indexList,
 			Interval[] rangeList)
+	{
+		ArrayList<Expression> list = new ArrayList<Expression>(1);
+		list.add(interpolate(lut, indexList, rangeList));
+
+		return simplifyInterpolations(list).get(0);
+	}
+
+	/**
+	 * Get the ranges being interpolated for a cell of the lookup table
+	 * 
+	 * @param lut
+	 *            the lookup table expression
+	 * @param indexList
+	 *            the index values of the cell in each dimension
+	 * @return the interval between the two relevant breakpoints in each
+	 *         dimension
+	 */
+	private static Interval[] rangesOf(LutExpression lut, int[] indexList)
+	{
+		int tableDims = lut.table.getNumDims();
+		Interval[] rangeList = new Interval[tableDims];
+
+		for (int varIndex = 0; varIndex < tableDims; ++varIndex)
+		{
+			int indexInTable = indexList[varIndex];
+			double[] breakpoints = lut.breakpoints[varIndex];
+
+			// in bounds because shouldSkip was false
+			rangeList[varIndex] = new Interval(breakpoints[indexInTable],
+					breakpoints[indexInTable + 1]);
+		}
+
+		return rangeList;
+	}
+
+	/**
+	 * Simplify n-linear interpolation expressions using the current
+	 * simplifyMode
+	 * 
+	 * @param exps
+	 *            the unsimplified interpolations
+	 * @return the simplified interpolations, in the same order
+	 */
+	private static List<Expression> simplifyInterpolations(List<Expression> exps)
+	{
+		double CHOP_TOL = 1e-8;
+		List<Expression> rv = exps;
+
+		if (simplifyMode == SIMPLIFY_PYTHON)
+			rv = PythonUtil.pythonSimplifyExpressionsChop(exps, CHOP_TOL);
+		else if (simplifyMode == SIMPLIFY_INTERNAL)
+		{
+			rv = new ArrayList<Expression>(exps.size());
+
+			for (Expression e : exps)
+				rv.add(SimplifyExpressionsPass.simplifyExpression(e));
+		}
+
+		for (Expression e : rv)
+			Hyst.logDebug("after pythonSimplifyExpressionChop: " + e.toDefaultString());
+
+		return rv;
+	}
+
+	/**
+	 * Build the (unsimplified) n-linear interpolation expression
+	 * 
+	 * @param lut
+	 *            the lookup table expression
+	 * @param indexList
+	 *            the index values for each dimension we want to interpolate
+	 * @param rangeList
+	 *            the ranges being interpolated
+	 * @return an expression which is the n-linear interpolation
+	 */
+	private static Expression interpolate(LutExpression lut, int[] indexList,
+			Interval[] rangeList)
 	{
 		Expression[] inputList = lut.inputs;
 		MatrixExpression table = lut.table;
@@ -587,15 +655,6 @@ public class ConvertLutFlowsPass extends TransformationPass
 		Hyst.logDebug("nLinearInterpolation result expression for " + Arrays.toString(indexList)
 				+ ": " + e.toDefaultString());
 
-		double CHOP_TOL = 1e-8;
-
-		if (simplifyMode == SIMPLIFY_PYTHON)
-			e = PythonUtil.pythonSimplifyExpressionChop(e, CHOP_TOL);
-		else if (simplifyMode == SIMPLIFY_INTERNAL)
-			e = SimplifyExpressionsPass.simplifyExpression(e);
-
-		Hyst.logDebug("after pythonSimplifyExpressionChop: " + e.toDefaultString());
-
 		return e;
 	}
 
@@ -1,12 +1,22 @@
 package com.verivital.hyst.passes.complex;
 
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 
+import org.kohsuke.args4j.Option;
+
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
@@ -14,6 +24,7 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.base.FlatNetworkView;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
@@ -33,11 +44,31 @@ import com.verivital.hyst.util.Preconditions;
  * Modes get renamed based on the modes in each base component, separated by
  * SEPARATOR('_'). This can lead to ambiguous names if modes already have
  * underscores in them; this isn't handled currently.
+ * 
+ * With the -reachable param, the product is instead explored breadth-first from
+ * the initial modes, so only the discretely-reachable combined modes and
+ * transitions are ever created. This avoids building the full cross product
+ * for networks with many components. With -prune_unsat, combined modes whose
+ * invariant is (simply) unsatisfiable are dropped as soon as they are found.
+ * With -symmetry as well, combined modes which only differ by a permutation of
+ * interchangeable instances of the same template are merged (see
+ * SymmetryReduction), which changes the names of the variables in init,
+ * forbidden and jump resets accordingly.
  */
 public class FlattenAutomatonPass extends TransformationPass
 {
 	public static final String SEPARATOR = "_";
 
+	@Option(name = "-reachable", usage = "only construct the modes reachable from the initial modes")
+	private boolean reachableOnly = false;
+
+	@Option(name = "-prune_unsat", usage = "with -reachable, skip modes with unsatisfiable invariants")
+	private boolean pruneUnsat = false;
+
+	@Option(name = "-symmetry", usage = "with -reachable, merge modes which only differ by a "
+			+ "permutation of interchangeable instances of the same template")
+	private boolean symmetry = false;
+
 	public FlattenAutomatonPass()
 	{
 		preconditions = new Preconditions(true); // skip all checks
@@ -55,9 +86,26 @@ public class FlattenAutomatonPass extends TransformationPass
 	 *            the configuration to perform the passes on
 	 */
 	public static void flattenAndOptimize(Configuration c)
+	{
+		flattenAndOptimize(c, false);
+	}
+
+	/**
+	 * Perform automaton flattening, as well as removing (discrete) unreachable
+	 * states, with the same guarantees as flattenAndOptimize(c).
+	 * 
+	 * @param c
+	 *            the configuration to perform the passes on
+	 * @param reachableOnly
+	 *            if true, the product is constructed on-the-fly from the
+	 *            initial modes (pruning unsatisfiable invariants as they are
+	 *            found), rather than building the full cross product first
+	 */
+	public static void flattenAndOptimize(Configuration c, boolean reachableOnly)
 	{
 		// 1. do flatteneing
-		new FlattenAutomatonPass().runVanillaPass(c, "");
+		String params = reachableOnly ? "-reachable -prune_unsat" : "";
+		new FlattenAutomatonPass().runVanillaPass(c, params);
 		BaseComponent ha = (BaseComponent) c.root;
 		Hyst.log("\nFlattened Automaton (" + ha.modes.size() + " locations and "
 				+ ha.transitions.size() + " transitions)");
@@ -101,9 +149,32 @@ public class FlattenAutomatonPass extends TransformationPass
 	@Override
 	public void runPass()
 	{
+		SymmetryReduction sym = null;
+
+		if (reachableOnly && symmetry && config.root instanceof NetworkComponent)
+			sym = new SymmetryReduction(config.root);
+
 		FlattenRenameUtils.convertToFullyQualifiedParams(config.root);
-		FlattenRenameUtils.convertSettingsSeparator(config);
-		config.root = flatten(config.root);
+
+		if (sym != null)
+		{
+			sym.resolveNames();
+			flattenSymmetric(sym);
+		}
+		else if (reachableOnly && config.root instanceof NetworkComponent)
+		{
+			// the initial mode names are split before they lose their dots
+			ArrayList<String> initModes = new ArrayList<String>(config.init.keySet());
+			FlattenRenameUtils.convertSettingsSeparator(config);
+			config.root = flattenReachable(config.root, initModes);
+			removeMissingModes(config.init, (BaseComponent) config.root);
+			removeMissingModes(config.forbidden, (BaseComponent) config.root);
+		}
+		else
+		{
+			FlattenRenameUtils.convertSettingsSeparator(config);
+			config.root = flatten(config.root);
+		}
 
 		if (!(config.root instanceof BaseComponent))
 			throw new AutomatonExportException("Flatten failed (root is not BaseComponent)");
@@ -136,27 +207,337 @@ public class FlattenAutomatonPass extends TransformationPass
 
 			Hyst.logDebug(nc.toString() + "\n-------------");
 
-			for (Entry<String, ComponentInstance> e : nc.children.entrySet())
-			{
-				ComponentInstance ci = e.getValue();
-				// instantiate merge each component into rv
+			ArrayList<BaseComponent> children = new ArrayList<BaseComponent>(
+					nc.children.size());
 
+			for (ComponentInstance ci : nc.children.values())
+			{
 				BaseComponent bc = flatten(ci.child);
 				Hyst.logDebug("flattened child: " + bc.toString() + "\n-------------");
 
+				children.add(bc);
+			}
+
+			if (children.size() == 1)
+				rv = children.get(0);
+			else
+			{
+				Hyst.log("Composing " + children.size() + " children of '"
+						+ c.getFullyQualifiedInstanceName() + "'");
+				rv = composeChildren(children);
+
+				Hyst.logDebug(rv.toString() + "\n-------------");
+				Hyst.logDebug("Composed");
+			}
+
+			// copy some parts from parent network component
+			rv.instanceName = c.instanceName;
+			mergeParams(rv, nc);
+			fixVariableOrder(rv, nc);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Flatten a network by exploring the product of its base components
+	 * breadth-first from the initial modes. Only reachable combined modes and
+	 * the transitions between them are constructed. The result has the same
+	 * params and the same mode names as flatten() would give, and contains
+	 * exactly the modes and transitions that RemoveDiscreteUnreachablePass
+	 * would keep (minus those with unsatisfiable invariants, if pruneUnsat is
+	 * set).
+	 * 
+	 * @param c
+	 *            the network to flatten
+	 * @param initModes
+	 *            the initial mode names, in the dotted notation (one mode for
+	 *            each base component, in order)
+	 * @return the flattened component
+	 */
+	private BaseComponent flattenReachable(Component c, List<String> initModes)
+	{
+		FlatNetworkView view = new FlatNetworkView(c);
+		view.setPruneUnsat(pruneUnsat);
+
+		Hyst.log("Flattening " + view.getNumModes()
+				+ " product locations on-the-fly from the initial modes");
+
+		// the reachable product is held in the compact form while exploring,
+		// and only converted to IR objects once it's complete
+		BaseComponent rv = view.explore(initModes).toComponent();
+		rv.instanceName = view.getComponent().instanceName;
+
+		Hyst.log("Constructed " + rv.modes.size() + " reachable locations and "
+				+ rv.transitions.size() + " transitions");
+
+		return rv;
+	}
+
+	/**
+	 * Flatten the network in config by exploring the product breadth-first
+	 * from the initial modes, like flattenReachable(), but only constructing
+	 * the canonical modes of sym. Init and forbidden states are mapped to the
+	 * canonical modes (forbidden states to every symmetric image).
+	 */
+	private void flattenSymmetric(SymmetryReduction sym)
+	{
+		FlatNetworkView view = new FlatNetworkView(config.root);
+		view.setPruneUnsat(pruneUnsat);
+		BaseComponent rv = view.getComponent();
+
+		Hyst.log("Flattening " + view.getNumModes() + " product locations on-the-fly with "
+				+ sym.getNumGroups() + " group(s) of interchangeable instances");
+
+		// mode indices are found before the init / forbidden names lose their
+		// dots
+		ArrayList<Long> initIndices = new ArrayList<Long>();
+		ArrayList<Long> forbiddenIndices = new ArrayList<Long>();
+
+		for (String name : config.init.keySet())
+			initIndices.add(view.getIndex(name));
+
+		for (String name : config.forbidden.keySet())
+			forbiddenIndices.add(view.getIndex(name));
+
+		FlattenRenameUtils.convertSettingsSeparator(config);
+
+		if (initIndices.size() != config.init.size()
+				|| forbiddenIndices.size() != config.forbidden.size())
+			throw new AutomatonExportException(
+					"Initial or forbidden mode names became ambiguous when flattening");
+
+		config.init = canonicalStates(view, sym, config.init, initIndices, false);
+		config.forbidden = canonicalStates(view, sym, config.forbidden, forbiddenIndices, true);
+
+		// breadth-first exploration of the canonical modes
+		HashMap<Long, AutomatonMode> modes = new HashMap<Long, AutomatonMode>();
+		HashMap<Long, ArrayList<AutomatonTransition>> outgoing = new HashMap<Long, ArrayList<AutomatonTransition>>();
+		HashMap<AutomatonTransition, Long> targets = new HashMap<AutomatonTransition, Long>();
+		ArrayDeque<Long> waiting = new ArrayDeque<Long>();
+
+		for (long index : initIndices)
+		{
+			int[] modeIds = view.getModeIds(index);
+			long canonical = view
+					.getIndex(SymmetryReduction.permute(modeIds, sym.canonicalize(modeIds)));
+			AutomatonMode am = view.getMode(canonical);
+
+			if (am != null && !modes.containsKey(canonical))
+			{
+				modes.put(canonical, am);
+				waiting.add(canonical);
+			}
+		}
+
+		while (!waiting.isEmpty())
+		{
+			long index = waiting.poll();
+			List<AutomatonTransition> transitions = view.getOutgoing(index);
+			long[] successors = view.getSuccessors(index);
+			ArrayList<AutomatonTransition> list = new ArrayList<AutomatonTransition>();
+
+			for (int i = 0; i < transitions.size(); ++i)
+			{
+				AutomatonTransition t = transitions.get(i);
+				int[] modeIds = view.getModeIds(successors[i]);
+				int[] perm = sym.canonicalize(modeIds);
+				long canonical = view.getIndex(SymmetryReduction.permute(modeIds, perm));
+
+				if (!modes.containsKey(canonical))
+				{
+					AutomatonMode am = view.getMode(canonical);
+
+					if (am == null)
+						continue;
+
+					modes.put(canonical, am);
+					waiting.add(canonical);
+				}
+
+				t.reset = SymmetryReduction.permuteReset(t.reset, sym.getRenaming(perm));
+				targets.put(t, canonical);
+				list.add(t);
+			}
+
+			outgoing.put(index, list);
+		}
+
+		// modes (and jumps, by source) in cross product order
+		ArrayList<Long> indices = new ArrayList<Long>(modes.keySet());
+		Collections.sort(indices);
+
+		for (long index : indices)
+			rv.modes.put(modes.get(index).name, modes.get(index));
+
+		for (long index : indices)
+		{
+			for (AutomatonTransition t : outgoing.get(index))
+			{
+				t.from = modes.get(index);
+				t.to = modes.get(targets.get(t));
+				rv.transitions.add(t);
+			}
+		}
+
+		Hyst.log("Constructed " + rv.modes.size() + " canonical reachable locations and "
+				+ rv.transitions.size() + " transitions");
+
+		config.root = rv;
+		removeMissingModes(config.init, rv);
+		removeMissingModes(config.forbidden, rv);
+	}
+
+	/**
+	 * Map init or forbidden states to the canonical modes. States of
+	 * different modes which map to the same canonical mode are combined with
+	 * a disjunction.
+	 *
+	 * @param states
+	 *            the states, with their mode names already converted
+	 * @param indices
+	 *            the (product) index of the mode of each entry in states
+	 * @param allImages
+	 *            if true, map each state to every symmetric image in the
+	 *            canonical mode, rather than one of them
+	 */
+	private static LinkedHashMap<String, Expression> canonicalStates(FlatNetworkView view,
+			SymmetryReduction sym, LinkedHashMap<String, Expression> states, List<Long> indices,
+			boolean allImages)
+	{
+		LinkedHashMap<String, Expression> rv = new LinkedHashMap<String, Expression>();
+		HashSet<String> added = new HashSet<String>(); // skip duplicate images
+		int i = 0;
+
+		for (Expression e : states.values())
+		{
+			int[] modeIds = view.getModeIds(indices.get(i++));
+			List<int[]> perms = allImages ? sym.allCanonicalizations(modeIds)
+					: Collections.singletonList(sym.canonicalize(modeIds));
+
+			for (int[] perm : perms)
+			{
+				long canonical = view.getIndex(SymmetryReduction.permute(modeIds, perm));
+				AutomatonMode am = view.getMode(canonical);
+
+				if (am == null)
+					continue;
+
+				Expression image = SymmetryReduction.renameVariables(e, sym.getRenaming(perm));
+
+				if (!added.add(am.name + ": " + image.toDefaultString()))
+					continue;
+
+				Expression cur = rv.get(am.name);
+
+				if (cur != null)
+					image = new Operation(Operator.OR, cur, image);
+
+				rv.put(am.name, image);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Merge the flows of a tuple of component modes into a combined mode. The
+	 * combined mode is urgent if any of them is.
+	 */
+	public static void mergeFlows(AutomatonMode merged, AutomatonMode[] tuple)
+	{
+		boolean urgent = false;
+
+		for (AutomatonMode am : tuple)
+			urgent = urgent || am.urgent;
+
+		if (urgent)
+		{
+			merged.urgent = true;
+			merged.flowDynamics = null;
+		}
+		else
+		{
+			LinkedHashMap<String, ExpressionInterval> flows = new LinkedHashMap<String, ExpressionInterval>();
+
+			try
+			{
+				for (AutomatonMode am : tuple)
+					flows = mergeExpressionMap(flows, am.flowDynamics);
+			}
+			catch (AutomatonExportException e)
+			{
+				throw new AutomatonExportException(
+						"Conflicting dynamics (multiple drivers) detected while "
+								+ "flattening automaton",
+						e);
+			}
+
+			merged.flowDynamics = flows;
+		}
+	}
+
+	/**
+	 * Get the name of the combined mode for a tuple of component modes
+	 */
+	public static String combinedModeName(AutomatonMode[] tuple)
+	{
+		StringBuilder rv = new StringBuilder(tuple[0].name);
+
+		for (int i = 1; i < tuple.length; ++i)
+			rv.append(SEPARATOR).append(tuple[i].name);
+
+		return rv.toString();
+	}
+
+	/**
+	 * Merge the params of a component the same way flatten() does, without
+	 * constructing any modes or transitions. The base components are collected
+	 * in order (the order of the names in a combined mode).
+	 * 
+	 * @param c
+	 *            the component
+	 * @param leaves
+	 *            [out] where to store the base components
+	 * @return an empty BaseComponent with the merged params
+	 */
+	public static BaseComponent flattenParams(Component c, List<BaseComponent> leaves)
+	{
+		BaseComponent rv = null;
+
+		if (c instanceof BaseComponent)
+		{
+			BaseComponent leaf = (BaseComponent) c.copy();
+			leaves.add(leaf);
+
+			rv = new BaseComponent();
+			mergeParams(rv, leaf);
+			rv.instanceName = leaf.instanceName;
+		}
+		else
+		{
+			NetworkComponent nc = (NetworkComponent) c;
+
+			if (nc.children.size() == 0)
+				throw new AutomatonExportException(
+						"Network component with zero children are not allowed.");
+
+			for (ComponentInstance ci : nc.children.values())
+			{
+				BaseComponent bc = flattenParams(ci.child, leaves);
+
 				if (rv == null)
 					rv = bc;
 				else
 				{
-					Hyst.log("Merging " + rv.instanceName + " and " + bc.instanceName);
-					rv = mergeComponents(rv, bc);
-
-					Hyst.logDebug(rv.toString() + "\n-------------");
-					Hyst.logDebug("Merged");
+					BaseComponent merged = new BaseComponent();
+					mergeParams(merged, rv);
+					mergeParams(merged, bc);
+					merged.instanceName = rv.instanceName + SEPARATOR + bc.instanceName;
+					rv = merged;
 				}
 			}
 
-			// copy some parts from parent network component
 			rv.instanceName = c.instanceName;
 			mergeParams(rv, nc);
 			fixVariableOrder(rv, nc);
@@ -165,6 +546,20 @@ public class FlattenAutomatonPass extends TransformationPass
 		return rv;
 	}
 
+	/**
+	 * Remove the entries of an init or forbidden map which refer to modes that
+	 * were not constructed
+	 */
+	private static void removeMissingModes(LinkedHashMap<String, Expression> map,
+			BaseComponent ha)
+	{
+		for (Iterator<String> i = map.keySet().iterator(); i.hasNext();)
+		{
+			if (!ha.modes.containsKey(i.next()))
+				i.remove();
+		}
+	}
+
 	/**
 	 * The variable ordering may have gotten messed up since when merging they
 	 * get adding in the order they are used in each base component. This
@@ -174,7 +569,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	 * @param rv
 	 * @param nc
 	 */
-	private void fixVariableOrder(BaseComponent rv, NetworkComponent nc)
+	private static void fixVariableOrder(BaseComponent rv, NetworkComponent nc)
 	{
 		ArrayList<String> ordered = new ArrayList<String>();
 
@@ -195,26 +590,6 @@ public class FlattenAutomatonPass extends TransformationPass
 		rv.variables = ordered;
 	}
 
-	/**
-	 * Get the set of labels shared between these components
-	 * 
-	 * @param left
-	 * @param right
-	 * @return
-	 */
-	private static Collection<String> getSharedLabels(BaseComponent left, BaseComponent right)
-	{
-		ArrayList<String> rv = new ArrayList<String>();
-
-		for (String label : left.labels)
-		{
-			if (right.labels.contains(label))
-				rv.add(label);
-		}
-
-		return rv;
-	}
-
 	/**
 	 * Add the (unique) params (constants, variables, labels) to rv
 	 * 
@@ -226,7 +601,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	private static void mergeParams(Component rv, Component from)
 	{
 		mergeList(rv.variables, from.variables);
-		mergeList(rv.labels, from.labels);
+		rv.labels.addAll(from.labels);
 		mergeParamMap(rv.constants, from.constants);
 	}
 
@@ -260,7 +635,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	/**
 	 * And's two expressions, which maybe null
 	 */
-	private static Expression andExpressions(Expression a, Expression b)
+	public static Expression andExpressions(Expression a, Expression b)
 	{
 		Expression rv = null;
 
@@ -274,46 +649,11 @@ public class FlattenAutomatonPass extends TransformationPass
 		return rv;
 	}
 
-	private static void mergeLocations(BaseComponent left, BaseComponent right, BaseComponent rv)
-	{
-		for (AutomatonMode locI : left.modes.values())
-		{
-			for (AutomatonMode locJ : right.modes.values())
-			{
-				String combinedName = locI.name + SEPARATOR + locJ.name; // dots
-																			// will
-																			// be
-																			// eliminated
-																			// later
-
-				AutomatonMode merged = rv.createMode(combinedName);
-				merged.invariant = andExpressions(locI.invariant, locJ.invariant);
-
-				if (locI.urgent || locJ.urgent)
-				{
-					merged.urgent = true;
-					merged.flowDynamics = null;
-				}
-				else
-				{
-					try
-					{
-						merged.flowDynamics = mergeExpressionMap(locI.flowDynamics,
-								locJ.flowDynamics);
-					}
-					catch (AutomatonExportException e)
-					{
-						throw new AutomatonExportException(
-								"Conflicting dynamics (multiple drivers) detected while "
-										+ "flattening automaton",
-								e);
-					}
-				}
-			}
-		}
-	}
-
-	private static LinkedHashMap<String, ExpressionInterval> mergeExpressionMap(
+	/**
+	 * Merge two maps of expressions, raising an AutomatonExportException if a
+	 * variable is assigned differently in both
+	 */
+	public static LinkedHashMap<String, ExpressionInterval> mergeExpressionMap(
 			LinkedHashMap<String, ExpressionInterval> a,
 			LinkedHashMap<String, ExpressionInterval> b)
 	{
@@ -344,200 +684,338 @@ public class FlattenAutomatonPass extends TransformationPass
 	}
 
 	/**
-	 * Add transitions from the left base component that don't have a shared
-	 * label
+	 * Deep-copy a map of expressions
+	 */
+	public static LinkedHashMap<String, ExpressionInterval> copyMap(
+			LinkedHashMap<String, ExpressionInterval> from)
+	{
+		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
+
+		for (Entry<String, ExpressionInterval> e : from.entrySet())
+			rv.put(e.getKey(), e.getValue().copy());
+
+		return rv;
+	}
+
+	/**
+	 * A transition of a (partial) product automaton. Mode tuples hold the id
+	 * (position) of the mode in each child; only the first numChildren entries
+	 * are used while the product is being built.
+	 */
+	private static class TupleTransition
+	{
+		final int[] from;
+		final int[] to;
+		final AutomatonTransition[] parts; // null for children that don't move
+		final String label;
+
+		TupleTransition(int size, String label)
+		{
+			from = new int[size];
+			to = new int[size];
+			parts = new AutomatonTransition[size];
+			this.label = label;
+		}
+
+		TupleTransition(TupleTransition other)
+		{
+			from = other.from.clone();
+			to = other.to.clone();
+			parts = other.parts.clone();
+			label = other.label;
+		}
+	}
+
+	/**
+	 * Compose the (flattened) children of a network all at once. The result is
+	 * the same as folding a pairwise composition over the children: a
+	 * transition whose label is used by several children synchronizes with a
+	 * transition of each of them, other transitions interleave. Combined modes
+	 * are created in the same order (the cross product, first child varying
+	 * slowest), and so are transitions. Intermediate products are never
+	 * materialized; only mode tuples (int arrays) are stored while enumerating
+	 * the transitions.
 	 * 
-	 * @param rv
-	 *            where the add transitions to
-	 * @param comp
-	 *            which component to add from
-	 * @param isLeft
-	 *            is this component left-composed in the location names?
-	 * @param sharedLabels
-	 *            the list of shared labels (transitions with these labels are
-	 *            skipped)
+	 * @param children
+	 *            the flattened children, in order
+	 * @return the composed component (without the network's params)
 	 */
-	private static void addNonSharedTransitions(BaseComponent rv, BaseComponent comp,
-			boolean isLeft, Collection<String> sharedLabels)
+	private static BaseComponent composeChildren(List<BaseComponent> children)
 	{
-		for (AutomatonTransition originalT : comp.transitions)
+		int numChildren = children.size();
+		BaseComponent rv = new BaseComponent();
+		ArrayList<AutomatonMode[]> childModes = new ArrayList<AutomatonMode[]>(numChildren);
+		ArrayList<HashMap<AutomatonMode, Integer>> childIds = new ArrayList<HashMap<AutomatonMode, Integer>>(
+				numChildren);
+		StringBuilder instanceName = new StringBuilder();
+		long numModes = 1;
+
+		for (BaseComponent child : children)
 		{
-			AutomatonMode fromLoc = originalT.from;
-			String fromName = fromLoc.name;
-			AutomatonMode toLoc = originalT.to;
-			String toName = toLoc.name;
+			mergeParams(rv, child);
 
-			if (sharedLabels.contains(originalT.label))
-				continue;
+			AutomatonMode[] modes = child.modes.values().toArray(new AutomatonMode[0]);
+			HashMap<AutomatonMode, Integer> ids = new HashMap<AutomatonMode, Integer>();
+
+			for (int i = 0; i < modes.length; ++i)
+				ids.put(modes[i], i);
+
+			childModes.add(modes);
+			childIds.add(ids);
+			numModes *= modes.length;
+
+			if (numModes > Integer.MAX_VALUE)
+				throw new AutomatonExportException("Product of " + numChildren
+						+ " components has too many modes to construct; try the -reachable param");
+
+			if (instanceName.length() > 0)
+				instanceName.append(SEPARATOR);
+
+			instanceName.append(child.instanceName);
+		}
 
-			for (AutomatonMode locRv : rv.modes.values())
+		rv.instanceName = instanceName.toString();
+
+		Hyst.logDebug("Composing locations");
+		AutomatonMode[] productModes = composeLocations(rv, childModes, (int) numModes);
+
+		Hyst.logDebug("Composing transitions");
+		List<TupleTransition> transitions = composeTransitions(children, childModes, childIds);
+
+		for (TupleTransition tt : transitions)
+		{
+			AutomatonMode from = productModes[productIndex(tt.from, childModes)];
+			AutomatonMode to = productModes[productIndex(tt.to, childModes)];
+			AutomatonTransition at = rv.createTransition(from, to);
+			at.label = tt.label;
+
+			for (AutomatonTransition part : tt.parts)
 			{
-				String locName = locRv.name;
-				boolean matchedSource = false;
+				if (part == null)
+					continue;
 
-				if (isLeft)
-					matchedSource = locName.startsWith(fromName + SEPARATOR);
-				else
-					matchedSource = locName.endsWith(SEPARATOR + fromName);
+				at.guard = andExpressions(at.guard, part.guard.copy());
 
-				if (matchedSource)
+				try
+				{
+					at.reset = mergeExpressionMap(at.reset, copyMap(part.reset));
+				}
+				catch (AutomatonExportException e)
 				{
-					String targetName = null;
-
-					if (isLeft)
-						targetName = toName + SEPARATOR + locName.substring(fromName.length() + 1);
-					else
-					{
-						int restStringLength = locName.length() - (fromName.length() + 1);
-						targetName = locName.substring(0, restStringLength) + SEPARATOR + toName;
-					}
-
-					for (AutomatonMode locRv2 : rv.modes.values())
-					{
-						String locName2 = locRv2.name;
-
-						if (locName2.equals(targetName))
-						{
-							Hyst.logDebug(
-									"Adding transition '" + locName + "' -> '" + locName2 + "'");
-
-							// add transition between locRv and locRv2
-							AutomatonTransition at = rv.createTransition(locRv, locRv2);
-
-							at.guard = originalT.guard.copy();
-							at.reset = copyMap(originalT.reset);
-							at.label = originalT.label;
-						}
-					}
+					throw new AutomatonExportException(
+							"Conflicting reset (multiple drivers) detected while "
+									+ "flattening automaton",
+							e);
 				}
 			}
 		}
+
+		return rv;
 	}
 
-	private static LinkedHashMap<String, ExpressionInterval> copyMap(
-			LinkedHashMap<String, ExpressionInterval> from)
+	/**
+	 * Create every combined mode, in cross product order (first child varies
+	 * slowest)
+	 * 
+	 * @return the created modes, indexed by productIndex()
+	 */
+	private static AutomatonMode[] composeLocations(BaseComponent rv,
+			List<AutomatonMode[]> childModes, int numModes)
 	{
-		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
+		AutomatonMode[] productModes = new AutomatonMode[numModes];
+		AutomatonMode[] tuple = new AutomatonMode[childModes.size()];
+		int[] ids = new int[childModes.size()];
 
-		for (Entry<String, ExpressionInterval> e : from.entrySet())
-			rv.put(e.getKey(), e.getValue().copy());
+		for (int index = 0; index < numModes; ++index)
+		{
+			productTuple(index, childModes, ids);
 
-		return rv;
+			for (int c = 0; c < ids.length; ++c)
+				tuple[c] = childModes.get(c)[ids[c]];
+
+			// dots will be eliminated later
+			AutomatonMode merged = rv.createMode(combinedModeName(tuple));
+
+			for (AutomatonMode am : tuple)
+				merged.invariant = andExpressions(merged.invariant, am.invariant);
+
+			mergeFlows(merged, tuple);
+			productModes[index] = merged;
+		}
+
+		return productModes;
 	}
 
 	/**
-	 * Add transitions which are shared between components with labels
-	 * 
-	 * @param rv
-	 *            where the add the transitions to
-	 * @param left
-	 *            the left-composed component
-	 * @param right
-	 *            the right-composed component
-	 * @param sharedLabels
-	 *            the labels shared between components
+	 * Enumerate the transitions of the product, one child at a time (in the
+	 * order a pairwise composition would create them)
 	 */
-	private static void addSharedTransitions(BaseComponent rv, BaseComponent left,
-			BaseComponent right, Collection<String> sharedLabels)
+	private static List<TupleTransition> composeTransitions(List<BaseComponent> children,
+			List<AutomatonMode[]> childModes, List<HashMap<AutomatonMode, Integer>> childIds)
 	{
-		for (AutomatonTransition leftT : left.transitions)
+		int numChildren = children.size();
+		HashSet<String> labelsSoFar = new HashSet<String>(children.get(0).labels);
+		ArrayList<TupleTransition> cur = new ArrayList<TupleTransition>();
+
+		for (AutomatonTransition t : children.get(0).transitions)
+			cur.add(newTupleTransition(numChildren, 0, t, childIds.get(0)));
+
+		for (int c = 1; c < numChildren; ++c)
 		{
-			String label = leftT.label;
+			BaseComponent child = children.get(c);
+			HashMap<AutomatonMode, Integer> ids = childIds.get(c);
+			int numChildModes = childModes.get(c).length;
+			ArrayList<TupleTransition> next = new ArrayList<TupleTransition>();
 
-			if (label == null || !sharedLabels.contains(label))
-				continue;
+			HashSet<String> sharedLabels = new HashSet<String>();
 
-			AutomatonMode fromLeftLoc = leftT.from;
-			String fromLeftName = fromLeftLoc.name;
-			AutomatonMode toLeftLoc = leftT.to;
-			String toLeftName = toLeftLoc.name;
+			for (String label : child.labels)
+			{
+				if (labelsSoFar.contains(label))
+					sharedLabels.add(label);
+			}
+
+			Hyst.logDebug("Composing child " + child.instanceName + ", shared labels: "
+					+ sharedLabels);
 
-			// find all matching right transitions
-			for (AutomatonTransition rightT : right.transitions)
+			// transitions so far without a shared label, for every mode of
+			// the new child
+			for (TupleTransition tt : cur)
 			{
-				if (!label.equals(rightT.label))
+				if (sharedLabels.contains(tt.label))
 					continue;
 
-				// at this point labels match and we can determine the full
-				// source and target names
-				AutomatonMode fromRightLoc = rightT.from;
-				String fromRightName = fromRightLoc.name;
-				AutomatonMode toRightLoc = rightT.to;
-				String toRightName = toRightLoc.name;
+				for (int mode = 0; mode < numChildModes; ++mode)
+				{
+					TupleTransition copy = new TupleTransition(tt);
+					copy.from[c] = copy.to[c] = mode;
+					next.add(copy);
+				}
+			}
 
-				String sourceName = fromLeftName + SEPARATOR + fromRightName;
-				String targetName = toLeftName + SEPARATOR + toRightName;
+			// transitions of the new child without a shared label, for every
+			// mode tuple so far
+			int numPrefixes = 1;
 
-				AutomatonMode sourceMode = rv.modes.get(sourceName);
+			for (int i = 0; i < c; ++i)
+				numPrefixes *= childModes.get(i).length;
 
-				if (sourceMode == null)
-					throw new AutomatonExportException(
-							"source name not found in modes: " + sourceName);
+			for (AutomatonTransition t : child.transitions)
+			{
+				if (sharedLabels.contains(t.label))
+					continue;
 
-				AutomatonMode targetMode = rv.modes.get(targetName);
+				for (int prefix = 0; prefix < numPrefixes; ++prefix)
+				{
+					TupleTransition tt = newTupleTransition(numChildren, c, t, ids);
+					productTuple(prefix, childModes.subList(0, c), tt.from);
+					System.arraycopy(tt.from, 0, tt.to, 0, c);
+					next.add(tt);
+				}
+			}
 
-				if (targetMode == null)
-					throw new AutomatonExportException(
-							"target name not found in modes: " + targetName);
+			// synchronized transitions, matched within each label's bucket
+			LinkedHashMap<String, ArrayList<AutomatonTransition>> byLabel = indexByLabel(
+					child.transitions);
 
-				AutomatonTransition at = rv.createTransition(sourceMode, targetMode);
-				at.guard = andExpressions(leftT.guard, rightT.guard);
-				at.label = label;
+			for (TupleTransition tt : cur)
+			{
+				String label = tt.label;
 
-				try
-				{
-					at.reset = mergeExpressionMap(leftT.reset, rightT.reset);
-				}
-				catch (AutomatonExportException e)
+				if (label == null || !sharedLabels.contains(label))
+					continue;
+
+				ArrayList<AutomatonTransition> matching = byLabel.get(label);
+
+				if (matching == null)
+					continue;
+
+				for (AutomatonTransition t : matching)
 				{
-					throw new AutomatonExportException(
-							"Conflicting reset (multiple drivers) detected while "
-									+ "flattening automaton",
-							e);
+					TupleTransition copy = new TupleTransition(tt);
+					copy.from[c] = ids.get(t.from);
+					copy.to[c] = ids.get(t.to);
+					copy.parts[c] = t;
+					next.add(copy);
 				}
 			}
+
+			labelsSoFar.addAll(child.labels);
+			cur = next;
 		}
+
+		return cur;
 	}
 
 	/**
-	 * Merge the (instantiated) components into one
-	 * 
-	 * @param left
-	 *            the first component
-	 * @param right
-	 *            the second component
-	 * @return the merged component
+	 * Index transitions by their label (unlabeled transitions are skipped). The
+	 * transitions in each bucket keep their original order.
 	 */
-	private static BaseComponent mergeComponents(BaseComponent left, BaseComponent right)
+	public static LinkedHashMap<String, ArrayList<AutomatonTransition>> indexByLabel(
+			Collection<AutomatonTransition> transitions)
 	{
-		BaseComponent rv = new BaseComponent();
+		LinkedHashMap<String, ArrayList<AutomatonTransition>> rv = new LinkedHashMap<String, ArrayList<AutomatonTransition>>();
+
+		for (AutomatonTransition t : transitions)
+		{
+			if (t.label == null)
+				continue;
+
+			ArrayList<AutomatonTransition> bucket = rv.get(t.label);
 
-		Collection<String> sharedLabels = getSharedLabels(left, right);
+			if (bucket == null)
+			{
+				bucket = new ArrayList<AutomatonTransition>();
+				rv.put(t.label, bucket);
+			}
 
-		mergeParams(rv, left);
-		mergeParams(rv, right);
+			bucket.add(t);
+		}
 
-		// merge the automata by first constructing the cross product of the
-		// mode names
-		Hyst.logDebug("Merging Locations, shared labels: " + sharedLabels);
-		mergeLocations(left, right, rv);
+		return rv;
+	}
 
-		// add every transition in left base component without a label
-		Hyst.logDebug("Adding Non-shared Transitions Left");
-		addNonSharedTransitions(rv, left, true, sharedLabels);
+	private static TupleTransition newTupleTransition(int size, int child, AutomatonTransition t,
+			HashMap<AutomatonMode, Integer> ids)
+	{
+		TupleTransition rv = new TupleTransition(size, t.label);
+		rv.from[child] = ids.get(t.from);
+		rv.to[child] = ids.get(t.to);
+		rv.parts[child] = t;
 
-		// add every transition in right base component without a label
-		Hyst.logDebug("Adding Non-shared Transitions Right");
-		addNonSharedTransitions(rv, right, false, sharedLabels);
+		return rv;
+	}
 
-		// add labeled transitions
-		Hyst.logDebug("Adding Labeled Transitions");
-		addSharedTransitions(rv, left, right, sharedLabels);
+	/**
+	 * Get the index of a mode tuple in the cross product (first child varies
+	 * slowest)
+	 */
+	private static int productIndex(int[] tuple, List<AutomatonMode[]> childModes)
+	{
+		int rv = 0;
 
-		// merge the id using a '_' as the separator
-		Hyst.logDebug("Setting Id");
-		rv.instanceName = left.instanceName + SEPARATOR + right.instanceName;
+		for (int c = 0; c < childModes.size(); ++c)
+			rv = rv * childModes.get(c).length + tuple[c];
 
 		return rv;
 	}
+
+	/**
+	 * Get the mode tuple at an index in the cross product, the inverse of
+	 * productIndex()
+	 * 
+	 * @param tuple
+	 *            [out] where to store the tuple (the first childModes.size()
+	 *            entries are assigned)
+	 */
+	private static void productTuple(int index, List<AutomatonMode[]> childModes, int[] tuple)
+	{
+		for (int c = childModes.size() - 1; c >= 0; --c)
+		{
+			int numModes = childModes.get(c).length;
+
+			tuple[c] = index % numModes;
+			index /= numModes;
+		}
+	}
 }
@@ -0,0 +1,589 @@
+package com.verivital.hyst.passes.complex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.ComponentMapping;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * Detects interchangeable instances of the same template in a network, and
+ * maps combined modes of the flat automaton to canonical representatives.
+ *
+ * Instances are interchangeable if they are base components in the same
+ * network, instantiated from the same template, and each template variable
+ * and label is either bound to the same name in all of them (shared), or to a
+ * different name in each of them which no other component uses (private).
+ * Constants must be bound to the same names or values. Swapping the private
+ * variables of two interchangeable instances maps the network onto itself, so
+ * only the combined modes where the modes of each group of interchangeable
+ * instances are sorted need to be constructed. A jump into an unsorted mode
+ * instead goes to the sorted one, with a reset which permutes the private
+ * variables accordingly.
+ *
+ * Construct this before the params are converted to fully qualified names (the
+ * variable mappings are needed to detect the groups), and call resolveNames()
+ * after.
+ */
+public class SymmetryReduction
+{
+	// forbidden modes with more symmetric images than this are an error
+	public static final int MAX_FORBIDDEN_PERMUTATIONS = 1000;
+
+	private final ArrayList<BaseComponent> leaves = new ArrayList<BaseComponent>();
+	private ArrayList<Group> groups = new ArrayList<Group>();
+
+	// a group of interchangeable instances
+	private static class Group
+	{
+		int[] positions; // leaf index of each member, ascending
+		BaseComponent[] members;
+		ArrayList<Integer> privateVarSlots = new ArrayList<Integer>();
+		ArrayList<Integer> privateLabelSlots = new ArrayList<Integer>();
+
+		// assigned in resolveNames(), [member][slot]
+		String[][] privateVars;
+	}
+
+	/**
+	 * Detect groups of interchangeable instances. This must be called before
+	 * the params are converted to fully-qualified names.
+	 *
+	 * @param root
+	 *            the root component
+	 */
+	public SymmetryReduction(Component root)
+	{
+		findGroups(root);
+	}
+
+	/**
+	 * Get the number of groups of interchangeable instances
+	 */
+	public int getNumGroups()
+	{
+		return groups.size();
+	}
+
+	private void findGroups(Component c)
+	{
+		if (c instanceof BaseComponent)
+			leaves.add((BaseComponent) c);
+		else
+		{
+			NetworkComponent nc = (NetworkComponent) c;
+			LinkedHashMap<Component, ArrayList<ComponentInstance>> byTemplate = new LinkedHashMap<Component, ArrayList<ComponentInstance>>();
+			LinkedHashMap<ComponentInstance, Integer> positions = new LinkedHashMap<ComponentInstance, Integer>();
+
+			for (ComponentInstance ci : nc.children.values())
+			{
+				if (ci.child instanceof BaseComponent && ci.child.template != null)
+				{
+					positions.put(ci, leaves.size());
+					ArrayList<ComponentInstance> list = byTemplate.get(ci.child.template);
+
+					if (list == null)
+					{
+						list = new ArrayList<ComponentInstance>();
+						byTemplate.put(ci.child.template, list);
+					}
+
+					list.add(ci);
+				}
+
+				findGroups(ci.child);
+			}
+
+			for (ArrayList<ComponentInstance> instances : byTemplate.values())
+			{
+				if (instances.size() < 2)
+					continue;
+
+				Group g = makeGroup(instances);
+
+				if (g == null)
+					Hyst.log("Instances of template '" + instances.get(0).child.template.instanceName
+							+ "' in '" + nc.getPrintableInstanceName()
+							+ "' have different bindings and are not interchangeable");
+				else
+				{
+					g.positions = new int[instances.size()];
+
+					for (int i = 0; i < instances.size(); ++i)
+						g.positions[i] = positions.get(instances.get(i));
+
+					groups.add(g);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check if instances are interchangeable, and classify the template's
+	 * variables and labels as shared or private
+	 *
+	 * @return the group, or null if they're not interchangeable
+	 */
+	private static Group makeGroup(List<ComponentInstance> instances)
+	{
+		Group rv = new Group();
+		BaseComponent first = (BaseComponent) instances.get(0).child;
+		ArrayList<String> labels = new ArrayList<String>(first.labels);
+
+		rv.members = new BaseComponent[instances.size()];
+
+		for (int i = 0; i < instances.size(); ++i)
+		{
+			BaseComponent bc = (BaseComponent) instances.get(i).child;
+			rv.members[i] = bc;
+
+			// the template is the same, but the instance may have been
+			// modified
+			if (!bc.variables.equals(first.variables)
+					|| !new ArrayList<String>(bc.labels).equals(labels)
+					|| !new ArrayList<String>(bc.modes.keySet())
+							.equals(new ArrayList<String>(first.modes.keySet()))
+					|| bc.transitions.size() != first.transitions.size())
+				return null;
+		}
+
+		for (int slot = 0; slot < first.variables.size(); ++slot)
+		{
+			Boolean isPrivate = classify(instances, first.variables.get(slot), true);
+
+			if (isPrivate == null)
+				return null;
+			else if (isPrivate)
+				rv.privateVarSlots.add(slot);
+		}
+
+		for (int slot = 0; slot < labels.size(); ++slot)
+		{
+			Boolean isPrivate = classify(instances, labels.get(slot), false);
+
+			if (isPrivate == null)
+				return null;
+			else if (isPrivate)
+				rv.privateLabelSlots.add(slot);
+		}
+
+		for (String constName : first.constants.keySet())
+		{
+			String mapped = mappedName(instances.get(0).constMapping, constName);
+			Interval value = first.constants.get(constName);
+
+			for (ComponentInstance ci : instances)
+			{
+				String otherMapped = mappedName(ci.constMapping, constName);
+
+				if (mapped == null ? otherMapped != null : !mapped.equals(otherMapped))
+					return null;
+
+				if (mapped == null)
+				{
+					Interval otherValue = ci.child.constants.get(constName);
+
+					if (value == null ? otherValue != null : !value.equals(otherValue))
+						return null;
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Classify a variable or label of the template
+	 *
+	 * @return false if it's bound to the same name in every instance, true if
+	 *         it's bound to a different name in each instance (or not bound),
+	 *         and null otherwise
+	 */
+	private static Boolean classify(List<ComponentInstance> instances, String name,
+			boolean isVariable)
+	{
+		HashSet<String> mappedNames = new HashSet<String>();
+		int numUnmapped = 0;
+
+		for (ComponentInstance ci : instances)
+		{
+			String mapped = mappedName(isVariable ? ci.varMapping : ci.labelMapping, name);
+
+			if (mapped == null)
+				++numUnmapped;
+			else
+				mappedNames.add(mapped);
+		}
+
+		Boolean rv = null;
+
+		if (numUnmapped == 0 && mappedNames.size() == 1)
+			rv = false;
+		else if (numUnmapped + mappedNames.size() == instances.size())
+			rv = true;
+
+		return rv;
+	}
+
+	private static String mappedName(List<ComponentMapping> mapping, String childName)
+	{
+		String rv = null;
+
+		for (ComponentMapping m : mapping)
+		{
+			if (m.childParam.equals(childName))
+			{
+				rv = m.parentParam;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the fully-qualified names of the private variables. This must be
+	 * called after the params were converted to fully-qualified names. Groups
+	 * whose private variables or labels turn out to be used elsewhere (for
+	 * example, a chain where each instance reads its neighbor's variable) are
+	 * dropped.
+	 */
+	public void resolveNames()
+	{
+		ArrayList<Group> resolved = new ArrayList<Group>();
+
+		for (Group g : groups)
+		{
+			HashSet<String> privateNames = new HashSet<String>();
+			int numPrivate = 0;
+			g.privateVars = new String[g.members.length][g.privateVarSlots.size()];
+
+			for (int m = 0; m < g.members.length; ++m)
+			{
+				BaseComponent bc = g.members[m];
+				ArrayList<String> labels = new ArrayList<String>(bc.labels);
+
+				for (int i = 0; i < g.privateVarSlots.size(); ++i)
+				{
+					g.privateVars[m][i] = bc.variables.get(g.privateVarSlots.get(i));
+					privateNames.add(g.privateVars[m][i]);
+				}
+
+				for (int slot : g.privateLabelSlots)
+					privateNames.add(labels.get(slot));
+
+				numPrivate += g.privateVarSlots.size() + g.privateLabelSlots.size();
+			}
+
+			boolean usedElsewhere = privateNames.size() != numPrivate;
+
+			for (int i = 0; i < leaves.size() && !usedElsewhere; ++i)
+			{
+				BaseComponent leaf = leaves.get(i);
+
+				if (Arrays.binarySearch(g.positions, i) >= 0)
+					continue;
+
+				usedElsewhere = containsAny(leaf.variables, privateNames)
+						|| containsAny(leaf.labels, privateNames);
+			}
+
+			if (usedElsewhere)
+				Hyst.log("Private variables or labels of instances " + instanceNames(g)
+						+ " are used by other components; they are not interchangeable");
+			else
+			{
+				Hyst.log("Interchangeable instances: " + instanceNames(g));
+				resolved.add(g);
+			}
+		}
+
+		groups = resolved;
+	}
+
+	private static boolean containsAny(Collection<String> names, Collection<String> find)
+	{
+		boolean rv = false;
+
+		for (String name : names)
+		{
+			if (find.contains(name))
+			{
+				rv = true;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	private static String instanceNames(Group g)
+	{
+		ArrayList<String> rv = new ArrayList<String>();
+
+		for (BaseComponent bc : g.members)
+			rv.add(bc.instanceName);
+
+		return rv.toString();
+	}
+
+	/**
+	 * Get the permutation which sorts the modes of each group of
+	 * interchangeable instances
+	 *
+	 * @param modeIds
+	 *            the mode of each base component
+	 * @return perm, where the canonical combined mode has modeIds[perm[i]] as
+	 *         the mode of base component i
+	 */
+	public int[] canonicalize(int[] modeIds)
+	{
+		int[] rv = identity(modeIds.length);
+
+		for (Group g : groups)
+		{
+			Integer[] order = sortedMembers(g, modeIds);
+
+			for (int j = 0; j < order.length; ++j)
+				rv[g.positions[j]] = g.positions[order[j]];
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get all the permutations which sort the modes of each group of
+	 * interchangeable instances. There's more than one if several instances in
+	 * a group are in the same mode.
+	 *
+	 * @param modeIds
+	 *            the mode of each base component
+	 * @return the permutations (see canonicalize())
+	 */
+	public List<int[]> allCanonicalizations(int[] modeIds)
+	{
+		ArrayList<int[]> rv = new ArrayList<int[]>();
+		rv.add(canonicalize(modeIds));
+
+		for (Group g : groups)
+		{
+			Integer[] order = sortedMembers(g, modeIds);
+
+			// permute the members within each run of equal modes
+			for (int start = 0; start < order.length;)
+			{
+				int end = start + 1;
+
+				while (end < order.length && modeIds[g.positions[order[end]]] == modeIds[g
+						.positions[order[start]]])
+					++end;
+
+				if (end - start > 1)
+				{
+					ArrayList<int[]> expanded = new ArrayList<int[]>();
+
+					for (int[] perm : rv)
+						permuteRun(perm, g, start, end, start, expanded);
+
+					if (expanded.size() > MAX_FORBIDDEN_PERMUTATIONS)
+						throw new AutomatonExportException("Too many symmetric images ("
+								+ expanded.size() + ") of a mode, for instances "
+								+ instanceNames(g));
+
+					rv = expanded;
+				}
+
+				start = end;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Recursively enumerate all the orderings of perm[positions[start..end)]
+	 */
+	private static void permuteRun(int[] perm, Group g, int start, int end, int index,
+			List<int[]> rv)
+	{
+		if (index == end)
+			rv.add(perm.clone());
+		else
+		{
+			for (int i = index; i < end; ++i)
+			{
+				swap(perm, g.positions[index], g.positions[i]);
+				permuteRun(perm, g, start, end, index + 1, rv);
+				swap(perm, g.positions[index], g.positions[i]);
+			}
+		}
+	}
+
+	private static void swap(int[] a, int i, int j)
+	{
+		int temp = a[i];
+		a[i] = a[j];
+		a[j] = temp;
+	}
+
+	private static int[] identity(int size)
+	{
+		int[] rv = new int[size];
+
+		for (int i = 0; i < size; ++i)
+			rv[i] = i;
+
+		return rv;
+	}
+
+	/**
+	 * Get the members of a group sorted by mode (stable)
+	 */
+	private static Integer[] sortedMembers(final Group g, final int[] modeIds)
+	{
+		Integer[] rv = new Integer[g.positions.length];
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = i;
+
+		Arrays.sort(rv, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Integer.compare(modeIds[g.positions[a]], modeIds[g.positions[b]]);
+			}
+		});
+
+		return rv;
+	}
+
+	/**
+	 * Apply a permutation to mode ids
+	 */
+	public static int[] permute(int[] modeIds, int[] perm)
+	{
+		int[] rv = new int[modeIds.length];
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = modeIds[perm[i]];
+
+		return rv;
+	}
+
+	/**
+	 * Get the variable renaming for a permutation: a state maps to its
+	 * canonical image by moving the value of each key to its value
+	 *
+	 * @param perm
+	 *            the permutation, from canonicalize()
+	 * @return the map of old name -> new name, for the private variables that
+	 *         move
+	 */
+	public Map<String, String> getRenaming(int[] perm)
+	{
+		LinkedHashMap<String, String> rv = new LinkedHashMap<String, String>();
+
+		for (Group g : groups)
+		{
+			for (int j = 0; j < g.positions.length; ++j)
+			{
+				int from = Arrays.binarySearch(g.positions, perm[g.positions[j]]);
+
+				if (from == j)
+					continue;
+
+				for (int slot = 0; slot < g.privateVars[j].length; ++slot)
+					rv.put(g.privateVars[from][slot], g.privateVars[j][slot]);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Rename variables in an expression, all at the same time
+	 *
+	 * @param e
+	 *            the expression, which is not modified
+	 * @param renaming
+	 *            the map of old name -> new name
+	 * @return the renamed copy
+	 */
+	public static Expression renameVariables(Expression e, Map<String, String> renaming)
+	{
+		Expression rv = e;
+
+		if (e instanceof Variable)
+		{
+			String to = renaming.get(((Variable) e).name);
+
+			if (to != null)
+				rv = new Variable(to);
+		}
+		else if (e instanceof Operation)
+		{
+			Operation o = new Operation(((Operation) e).op);
+
+			for (Expression child : ((Operation) e).children)
+				o.children.add(renameVariables(child, renaming));
+
+			rv = o;
+		}
+		else if (e != null)
+			rv = e.copy();
+
+		return rv;
+	}
+
+	/**
+	 * Get the reset of a jump followed by moving the state to its canonical
+	 * image
+	 *
+	 * @param reset
+	 *            the reset of the jump (variables not in the map are unchanged)
+	 * @param renaming
+	 *            the renaming, from getRenaming()
+	 * @return the combined reset
+	 */
+	public static LinkedHashMap<String, ExpressionInterval> permuteReset(
+			LinkedHashMap<String, ExpressionInterval> reset, Map<String, String> renaming)
+	{
+		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
+
+		for (Entry<String, ExpressionInterval> e : reset.entrySet())
+		{
+			if (!renaming.containsKey(e.getKey()))
+				rv.put(e.getKey(), e.getValue());
+		}
+
+		for (Entry<String, String> e : renaming.entrySet())
+		{
+			ExpressionInterval ei = reset.get(e.getKey());
+
+			if (ei == null)
+				ei = new ExpressionInterval(new Variable(e.getKey()));
+
+			rv.put(e.getValue(), ei);
+		}
+
+		return rv;
+	}
+}
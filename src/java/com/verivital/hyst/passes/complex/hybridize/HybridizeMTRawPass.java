@@ -270,7 +270,7 @@ public class HybridizeMTRawPass extends TransformationPass
 				toRemove.add(at);
 		}
 
-		ha.transitions.removeAll(toRemove);
+		ha.removeTransitions(toRemove);
 
 		config.forbidden.remove(errorMode.name);
 		config.init.remove(errorMode.name);
@@ -649,7 +649,7 @@ public class HybridizeMTRawPass extends TransformationPass
 			{
 				if (at.from == initMode)
 				{
-					at.to = firstMode;
+					at.setTo(firstMode);
 					addErrorTransitionsAtGuard(at.from, at.guard, firstBox);
 
 					// add the initial reset
@@ -680,7 +680,7 @@ public class HybridizeMTRawPass extends TransformationPass
 			{
 				if (at.to.name == triggerMode)
 				{
-					at.to = firstMode;
+					at.setTo(firstMode);
 
 					addErrorTransitionsAtGuard(at.from, at.guard, firstBox);
 				}
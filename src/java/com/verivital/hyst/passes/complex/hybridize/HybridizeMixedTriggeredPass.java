@@ -771,16 +771,16 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_set_time");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
+		// the automaton is only sent if it changed since the last call
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(config));
 
-		String points = makePointsString(simPoints);
+		// points are sent as packed doubles
+		String points = PythonBridge.argsAsRows(config.root.variables.size());
 		String modes = makeModeString(simPoints);
 
-		s.append("print simulate_set_time(define_ha(), " + modes + ", " + points + ", " + time
-				+ ")");
-
-		String result = pb.send(s.toString());
+		String result = pb.send(
+				"print simulate_set_time(" + ha + ", " + modes + ", " + points + ", " + time + ")",
+				packPoints(simPoints));
 
 		// parse result into SymbolicState objects
 		// result is semi-colon separated lists, first is the mode name, rest is
@@ -824,24 +824,27 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		return rv.toString();
 	}
 
-	private static String makePointsString(ArrayList<SymbolicStatePoint> simPoints)
+	/**
+	 * Pack the points of a list of symbolic states into a flat array (one row
+	 * per point)
+	 * 
+	 * @param simPoints
+	 *            the list of states
+	 * @return the packed values
+	 */
+	private static double[] packPoints(ArrayList<SymbolicStatePoint> simPoints)
 	{
-		StringBuilder rv = new StringBuilder();
-		rv.append("[");
-		boolean first = true;
+		int numDims = simPoints.isEmpty() ? 0 : simPoints.get(0).hp.dims.length;
+		double[] rv = new double[simPoints.size() * numDims];
+		int index = 0;
 
 		for (SymbolicStatePoint s : simPoints)
 		{
-			if (first)
-				first = false;
-			else
-				rv.append(",");
-
-			rv.append(makeHpString(s.hp));
+			System.arraycopy(s.hp.dims, 0, rv, index, numDims);
+			index += numDims;
 		}
 
-		rv.append("]");
-		return rv.toString();
+		return rv;
 	}
 
 	/**
@@ -885,27 +888,6 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		return val > maxVal;
 	}
 
-	private static String makeHpString(HyperPoint hp)
-	{
-		StringBuilder rv = new StringBuilder();
-		rv.append("[");
-		boolean first = true;
-
-		for (double d : hp.dims)
-		{
-			if (first)
-				first = false;
-			else
-				rv.append(",");
-
-			rv.append(d);
-		}
-
-		rv.append("]");
-
-		return rv.toString();
-	}
-
 	/**
 	 * Simulate from multiple points, returning the trajectories
 	 * 
@@ -920,19 +902,25 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	public static ArrayList<ArrayList<SymbolicStatePoint>> simMultiGetTrajectory(
 			Configuration config, ArrayList<SymbolicStatePoint> startPoints, double time)
 	{
+		for (SymbolicStatePoint ssp : startPoints)
+		{
+			if (ssp.hp.dims.length != config.root.variables.size())
+				throw new AutomatonExportException("start point had " + ssp.hp.dims.length
+						+ " dimensions; expected " + config.root.variables.size());
+		}
+
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_multi_trajectory_time");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
+		// the automaton is only sent if it changed since the last call
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(config));
 
+		// points are sent as packed doubles
 		String modes = makeModeString(startPoints);
-		String points = makePointsString(startPoints);
-
-		s.append("print simulate_multi_trajectory_time(define_ha(), " + modes + ", " + points + ", "
-				+ time + ")");
+		String points = PythonBridge.argsAsRows(config.root.variables.size());
 
-		String result = pb.send(s.toString());
+		String result = pb.send("print simulate_multi_trajectory_time(" + ha + ", " + modes + ", "
+				+ points + ", " + time + ")", packPoints(startPoints));
 
 		// parse result into SymbolicState objects
 		// result is semi-colon separated lists, first is the mode name, rest is
@@ -106,16 +106,13 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_times");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(automaton));
 
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		String timesStr = "[" + StringOperations.join(",", times.toArray(new Double[0])) + "]";
 
-		s.append("print simulate_times(define_ha(), '" + start.modeName + "', " + point + ", "
-				+ timesStr + ")");
-
-		String result = pb.send(s.toString());
+		String result = pb.send("print simulate_times(" + ha + ", '" + start.modeName + "', "
+				+ point + ", " + timesStr + ")");
 
 		// parse result into SymbolicState objects
 		// result is semi-colon separated lists, first is the mode name, rest is
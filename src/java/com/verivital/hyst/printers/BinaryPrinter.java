@@ -0,0 +1,569 @@
+package com.verivital.hyst.printers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.LutExpression;
+import com.verivital.hyst.grammar.formula.MatrixExpression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.importer.BinaryImporter;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.ComponentMapping;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.util.Preconditions;
+
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
+
+/**
+ * Writes the configuration in Hyst's own binary snapshot format, which can be
+ * loaded again with BinaryImporter (by passing the .hystbin file instead of a
+ * .xml file). This is meant for saving a model after slow passes were run on
+ * it, so that it can be printed to several tools without redoing the work.
+ * 
+ * The format is described in BinaryImporter. Any configuration can be stored,
+ * so no preconditions are checked, and the printer only reads the automaton.
+ * 
+ */
+public class BinaryPrinter extends ToolPrinter
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private DataOutputStream out;
+
+	// the string table: string -> index
+	private HashMap<String, Integer> strings = new HashMap<String, Integer>();
+	private ArrayList<String> stringList = new ArrayList<String>();
+
+	// the template table: template component -> index
+	private IdentityHashMap<Component, Integer> templates = new IdentityHashMap<Component, Integer>();
+	private ArrayList<Component> templateList = new ArrayList<Component>();
+
+	// used to find the length of mode and transition bodies
+	private ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+	public BinaryPrinter()
+	{
+		preconditions = new Preconditions(true); // skip all
+	}
+
+	@Override
+	protected boolean isReadOnly()
+	{
+		return true;
+	}
+
+	@Override
+	protected void printAutomaton()
+	{
+		printBytes(toBytes(config));
+	}
+
+	/**
+	 * Encode a configuration in the binary format
+	 * 
+	 * @param c
+	 *            the configuration
+	 * @return the encoded bytes
+	 */
+	public static byte[] toBytes(Configuration c)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try
+		{
+			new BinaryPrinter().write(c, new DataOutputStream(bytes));
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error encoding binary configuration", e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private void write(Configuration c, DataOutputStream dest) throws IOException
+	{
+		strings.clear();
+		stringList.clear();
+		templates.clear();
+		templateList.clear();
+
+		// the body is written first, since it fills the string and template
+		// tables which come before it in the file
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		out = new DataOutputStream(body);
+
+		writeSettings(c);
+		writeStateMap(c.init);
+		writeStateMap(c.forbidden);
+		writeComponent(c.root);
+		out.flush();
+
+		out = dest;
+		out.write(BinaryImporter.MAGIC);
+		out.writeInt(BinaryImporter.VERSION);
+
+		writeVarInt(stringList.size());
+
+		for (String str : stringList)
+		{
+			byte[] b = str.getBytes(UTF8);
+			writeVarInt(b.length);
+			out.write(b);
+		}
+
+		writeVarInt(templateList.size());
+
+		for (Component t : templateList)
+		{
+			out.writeBoolean(t instanceof NetworkComponent);
+			writeString(t.instanceName);
+		}
+
+		body.writeTo(out);
+		out.flush();
+	}
+
+	private void writeSettings(Configuration c) throws IOException
+	{
+		String[] plot = c.settings.plotVariableNames;
+		writeVarInt(plot.length);
+
+		for (String s : plot)
+			writeString(s);
+
+		SpaceExConfigValues cfg = c.settings.spaceExConfig;
+
+		writeVarInt(cfg.outputVars.size());
+
+		for (String s : cfg.outputVars)
+			writeString(s);
+
+		out.writeDouble(cfg.timeHorizon);
+		out.writeInt(cfg.maxIterations);
+		out.writeDouble(cfg.samplingTime);
+		writeString(cfg.systemID);
+		writeString(cfg.outputFormat);
+		writeString(cfg.scenario);
+		writeString(cfg.directions);
+		out.writeBoolean(cfg.timeTriggered);
+	}
+
+	/**
+	 * Write the initial or forbidden states as a length-prefixed section, with
+	 * each expression in a length-prefixed record, so a lazy reader can skip
+	 * the section or read just the mode names
+	 */
+	private void writeStateMap(LinkedHashMap<String, Expression> map) throws IOException
+	{
+		DataOutputStream sectionOut = out;
+		ByteArrayOutputStream section = new ByteArrayOutputStream();
+		out = new DataOutputStream(section);
+
+		writeVarInt(map.size());
+
+		for (Entry<String, Expression> e : map.entrySet())
+		{
+			writeString(e.getKey());
+
+			DataOutputStream recordOut = startRecord();
+			writeExpression(e.getValue());
+			endRecord(recordOut);
+		}
+
+		out.flush();
+		out = sectionOut;
+
+		writeVarInt(section.size());
+		section.writeTo(out);
+	}
+
+	private void writeComponent(Component c) throws IOException
+	{
+		if (c instanceof BaseComponent)
+			out.writeByte(BinaryImporter.COMPONENT_BASE);
+		else if (c instanceof NetworkComponent)
+			out.writeByte(BinaryImporter.COMPONENT_NETWORK);
+		else
+			throw new AutomatonExportException(
+					"Unsupported component type: " + c.getClass().getName());
+
+		writeString(c.instanceName);
+		writeTemplate(c.template);
+
+		writeVarInt(c.variables.size());
+
+		for (String v : c.variables)
+			writeString(v);
+
+		writeVarInt(c.constants.size());
+
+		for (Entry<String, Interval> e : c.constants.entrySet())
+		{
+			writeString(e.getKey());
+			writeInterval(e.getValue());
+		}
+
+		writeVarInt(c.labels.size());
+
+		for (String l : c.labels)
+			writeString(l);
+
+		if (c instanceof BaseComponent)
+			writeBaseComponent((BaseComponent) c);
+		else
+			writeNetworkComponent((NetworkComponent) c);
+	}
+
+	private void writeBaseComponent(BaseComponent ha) throws IOException
+	{
+		IdentityHashMap<AutomatonMode, Integer> modeIndex = new IdentityHashMap<AutomatonMode, Integer>();
+
+		writeVarInt(ha.modes.size());
+
+		for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
+		{
+			AutomatonMode am = e.getValue();
+			modeIndex.put(am, modeIndex.size());
+
+			writeString(e.getKey());
+			writeString(am.name);
+			out.writeBoolean(am.urgent);
+
+			DataOutputStream recordOut = startRecord();
+			writeExpression(am.invariant);
+			writeExpressionIntervalMap(am.flowDynamics);
+			endRecord(recordOut);
+		}
+
+		writeVarInt(ha.transitions.size());
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			Integer from = modeIndex.get(at.from);
+			Integer to = modeIndex.get(at.to);
+
+			if (from == null || to == null)
+				throw new AutomatonExportException(
+						"Transition refers to a mode which is not in the automaton: " + at);
+
+			writeVarInt(from);
+			writeVarInt(to);
+			writeString(at.label);
+
+			DataOutputStream recordOut = startRecord();
+			writeExpression(at.guard);
+			writeExpressionIntervalMap(at.reset);
+			endRecord(recordOut);
+		}
+	}
+
+	/**
+	 * Start writing a length-prefixed record, which a lazy reader can skip
+	 * 
+	 * @return the stream to restore in endRecord()
+	 */
+	private DataOutputStream startRecord()
+	{
+		DataOutputStream rv = out;
+
+		recordBytes.reset();
+		out = new DataOutputStream(recordBytes);
+
+		return rv;
+	}
+
+	private void endRecord(DataOutputStream recordOut) throws IOException
+	{
+		out.flush();
+		out = recordOut;
+
+		writeVarInt(recordBytes.size());
+		recordBytes.writeTo(out);
+	}
+
+	private void writeNetworkComponent(NetworkComponent nc) throws IOException
+	{
+		writeVarInt(nc.children.size());
+
+		for (Entry<String, ComponentInstance> e : nc.children.entrySet())
+		{
+			ComponentInstance ci = e.getValue();
+
+			writeString(e.getKey());
+			writeComponent(ci.child);
+			writeMappings(ci.varMapping);
+			writeMappings(ci.labelMapping);
+			writeMappings(ci.constMapping);
+		}
+	}
+
+	private void writeMappings(ArrayList<ComponentMapping> list) throws IOException
+	{
+		writeVarInt(list.size());
+
+		for (ComponentMapping m : list)
+		{
+			writeString(m.childParam);
+			writeString(m.parentParam);
+		}
+	}
+
+	/**
+	 * Templates are stored in a table by their kind and name. Components
+	 * sharing a template object will also share it after loading.
+	 */
+	private void writeTemplate(Component t) throws IOException
+	{
+		if (t == null)
+			writeVarInt(BinaryImporter.REF_NULL);
+		else
+		{
+			Integer index = templates.get(t);
+
+			if (index == null)
+			{
+				index = templateList.size();
+				templates.put(t, index);
+				templateList.add(t);
+				internString(t.instanceName);
+			}
+
+			writeVarInt(index + BinaryImporter.REF_FIRST_INDEX);
+		}
+	}
+
+	private void writeExpressionIntervalMap(Map<String, ExpressionInterval> map)
+			throws IOException
+	{
+		if (map == null)
+			out.writeBoolean(false);
+		else
+		{
+			out.writeBoolean(true);
+			writeVarInt(map.size());
+
+			for (Entry<String, ExpressionInterval> e : map.entrySet())
+			{
+				ExpressionInterval ei = e.getValue();
+
+				writeString(e.getKey());
+
+				if (ei == null)
+					out.writeBoolean(false);
+				else
+				{
+					out.writeBoolean(true);
+					writeExpression(ei.getExpression());
+					writeInterval(ei.getInterval());
+				}
+			}
+		}
+	}
+
+	private void writeInterval(Interval i) throws IOException
+	{
+		if (i == null)
+			out.writeBoolean(false);
+		else
+		{
+			out.writeBoolean(true);
+			out.writeDouble(i.min);
+			out.writeDouble(i.max);
+		}
+	}
+
+	/**
+	 * Write an expression as a postfix opcode stream, terminated by OP_END
+	 * 
+	 * @param e
+	 *            the expression (may be null)
+	 */
+	private void writeExpression(Expression e) throws IOException
+	{
+		if (e != null)
+			writePostfix(e);
+
+		out.writeByte(BinaryImporter.OP_END);
+	}
+
+	private void writePostfix(Expression e) throws IOException
+	{
+		if (e == Constant.TRUE)
+			out.writeByte(BinaryImporter.OP_TRUE);
+		else if (e == Constant.FALSE)
+			out.writeByte(BinaryImporter.OP_FALSE);
+		else if (e instanceof Constant)
+		{
+			out.writeByte(BinaryImporter.OP_CONSTANT);
+			out.writeDouble(((Constant) e).getVal());
+		}
+		else if (e instanceof Variable)
+		{
+			out.writeByte(BinaryImporter.OP_VARIABLE);
+			writeString(((Variable) e).name);
+		}
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+
+			for (Expression child : o.children)
+				writePostfix(child);
+
+			out.writeByte(BinaryImporter.OP_OPERATION);
+			writeString(o.op.name());
+			writeVarInt(o.children.size());
+		}
+		else if (e instanceof MatrixExpression)
+		{
+			MatrixExpression m = (MatrixExpression) e;
+			int dims = m.getNumDims();
+			int total = 1;
+
+			for (int d = 0; d < dims; ++d)
+				total *= m.getDimWidth(d);
+
+			// cells are pushed in matlab's reshape() order (first index
+			// changes fastest)
+			int[] indices = new int[dims];
+
+			for (int i = 0; i < total; ++i)
+			{
+				writePostfix(m.get(indices));
+
+				for (int d = 0; d < dims; ++d)
+				{
+					if (++indices[d] < m.getDimWidth(d))
+						break;
+
+					indices[d] = 0;
+				}
+			}
+
+			out.writeByte(BinaryImporter.OP_MATRIX);
+			writeVarInt(dims);
+
+			for (int d = 0; d < dims; ++d)
+				writeVarInt(m.getDimWidth(d));
+		}
+		else if (e instanceof LutExpression)
+		{
+			LutExpression l = (LutExpression) e;
+
+			for (Expression input : l.inputs)
+				writePostfix(input);
+
+			writePostfix(l.table);
+
+			out.writeByte(BinaryImporter.OP_LUT);
+			writeVarInt(l.inputs.length);
+
+			for (double[] row : l.breakpoints)
+			{
+				writeVarInt(row.length);
+
+				for (double d : row)
+					out.writeDouble(d);
+			}
+		}
+		else
+			throw new AutomatonExportException(
+					"Unsupported expression type: " + e.getClass().getName());
+	}
+
+	/**
+	 * Strings are interned in the string table, and written by their index
+	 */
+	private void writeString(String s) throws IOException
+	{
+		if (s == null)
+			writeVarInt(BinaryImporter.REF_NULL);
+		else
+			writeVarInt(internString(s) + BinaryImporter.REF_FIRST_INDEX);
+	}
+
+	private int internString(String s)
+	{
+		Integer index = null;
+
+		if (s != null)
+		{
+			index = strings.get(s);
+
+			if (index == null)
+			{
+				index = stringList.size();
+				strings.put(s, index);
+				stringList.add(s);
+			}
+		}
+
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Write a nonnegative int using 7 bits per byte
+	 */
+	private void writeVarInt(int i) throws IOException
+	{
+		if (i < 0)
+			throw new AutomatonExportException("negative value in writeVarInt: " + i);
+
+		while (i >= 0x80)
+		{
+			out.writeByte((i & 0x7f) | 0x80);
+			i >>>= 7;
+		}
+
+		out.writeByte(i);
+	}
+
+	@Override
+	public String getToolName()
+	{
+		return "Hyst Binary Snapshot";
+	}
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "-hystbin";
+	}
+
+	@Override
+	protected String getCommentPrefix()
+	{
+		return "#";
+	}
+
+	@Override
+	public Map<String, String> getDefaultParams()
+	{
+		return null;
+	}
+
+	@Override
+	public String getExtension()
+	{
+		return BinaryImporter.EXTENSION;
+	}
+}
@@ -63,7 +63,7 @@ public class C2E2Printer extends ToolPrinter
 
 		this.printCommentHeader();
 
-		Expression.expressionPrinter = new HyCompExpressionPrinter(); // TODO:
+		Expression.setExpressionPrinter(new HyCompExpressionPrinter()); // TODO:
 																		// move
 																		// to
 																		// constructor?
@@ -345,11 +345,8 @@ public class C2E2Printer extends ToolPrinter
 			AutomatonMode mode = e.getValue();
 			int fromId = modeNamesToIds.get(mode.name);
 
-			for (AutomatonTransition t : ha.transitions)
+			for (AutomatonTransition t : mode.getOutgoing())
 			{
-				if (t.from != mode)
-					continue;
-
 				if (first)
 					first = false;
 				else
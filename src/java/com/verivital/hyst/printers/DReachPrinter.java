@@ -192,64 +192,69 @@ public class DReachPrinter extends ToolPrinter
 
 		printLine(commentChar + " start modes"); // start all modes
 
-		// modename
-		boolean first = true;
-
 		// first pass over to create ids
 		int id = 1;
 
 		for (String modeName : ha.modes.keySet())
 			modeNamesToIds.put(modeName, id++);
 
-		for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
-		{
-			AutomatonMode mode = e.getValue();
+		// modes are printed in parallel, which reads the transition index
+		ha.buildTransitionIndex();
 
-			if (first)
-				first = false;
-			else
-				printNewline();
+		printBlocks(ha.modes.values(), true, new BlockPrinter<AutomatonMode>()
+		{
+			@Override
+			public void printBlock(ToolPrinter printer, AutomatonMode mode, int index)
+			{
+				((DReachPrinter) printer).printMode(mode);
+			}
+		});
 
-			String locName = e.getKey();
-			printLine(commentChar + " " + locName);
-			printLine("{");
-			printLine("mode " + modeNamesToIds.get(locName) + ";");
+		printLine(commentChar + " end modes"); // end all modes
+	}
 
-			// invariant
-			printLine("invt:");
-			this.increaseIndentation();
+	/**
+	 * Print a single mode, with its jumps
+	 */
+	private void printMode(AutomatonMode mode)
+	{
+		String locName = mode.name;
+		printLine(commentChar + " " + locName);
+		printLine("{");
+		printLine("mode " + modeNamesToIds.get(locName) + ";");
 
-			if (!mode.invariant.equals(Constant.TRUE))
-				printLine(mode.invariant + ";");
+		// invariant
+		printLine("invt:");
+		this.increaseIndentation();
 
-			this.decreaseIndentation();
+		if (!mode.invariant.equals(Constant.TRUE))
+			printLine(mode.invariant + ";");
 
-			printLine("flow:");
-			this.increaseIndentation();
+		this.decreaseIndentation();
 
-			for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
-			{
-				ExpressionInterval ei = entry.getValue();
+		printLine("flow:");
+		this.increaseIndentation();
 
-				if (ei.getInterval() != null)
-					throw new AutomatonExportException(
-							"dReach doesn't support nondeterministic flows. Error exporting "
-									+ "flow for variable " + entry.getKey() + ": " + ei);
+		for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
+		{
+			ExpressionInterval ei = entry.getValue();
 
-				printLine(
-						"d/dt[" + entry.getKey() + "] = " + entry.getValue().asExpression() + ";");
-			}
+			if (ei.getInterval() != null)
+				throw new AutomatonExportException(
+						"dReach doesn't support nondeterministic flows. Error exporting "
+								+ "flow for variable " + entry.getKey() + ": " + ei);
 
-			this.decreaseIndentation();
+			printLine(
+					"d/dt[" + entry.getKey() + "] = " + entry.getValue().asExpression() + ";");
+		}
 
-			printJumps(mode);
+		this.decreaseIndentation();
 
-			printLine(commentChar + " end " + locName);
-			printLine("}");
-			this.indentation = "";
-		}
+		printJumps(mode);
 
-		printLine(commentChar + " end modes"); // end all modes
+		printLine(commentChar + " end " + locName);
+		printLine("}");
+		this.indentation = "";
 	}
 
 	private void printJumps(AutomatonMode mode)
@@ -261,11 +266,8 @@ public class DReachPrinter extends ToolPrinter
 
 		boolean first = true;
 
-		for (AutomatonTransition t : ha.transitions)
+		for (AutomatonTransition t : mode.getOutgoing())
 		{
-			if (t.from != mode)
-				continue;
-
 			if (first)
 				first = false;
 			else
@@ -400,7 +402,7 @@ public class DReachPrinter extends ToolPrinter
 	@Override
 	protected void printAutomaton()
 	{
-		Expression.expressionPrinter = new DReachExpressionPrinter(); // TODO:
+		Expression.setExpressionPrinter(new DReachExpressionPrinter()); // TODO:
 																		// move
 																		// to
 																		// constructor?
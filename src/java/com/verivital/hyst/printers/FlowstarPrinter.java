@@ -4,8 +4,10 @@
 package com.verivital.hyst.printers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -23,10 +25,16 @@ import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.CompactAutomaton;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.base.FlatNetworkView;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Classification;
+import com.verivital.hyst.util.FlattenRenameUtils;
+import com.verivital.hyst.util.Preconditions;
 import com.verivital.hyst.util.PreconditionsFlag;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
@@ -36,12 +44,29 @@ import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
 /**
  * Printer for Flow* models. Based on Chris' Boogie printer.
  * 
+ * With the tool param flatten=lazy, a network is not flattened before
+ * printing. Instead, the reachable combined modes are found with
+ * FlatNetworkView.explore(), which keeps them in a CompactAutomaton, and each
+ * mode and jump object is created just before it's printed, so the product is
+ * never held in memory as IR objects. This requires interval initial states,
+ * no urgent modes, and every variable to have dynamics in every mode. Jumps are
+ * printed grouped by their source mode.
+ * 
+ * The tool param prune_unsat (on by default) controls whether combined modes
+ * whose invariants are unsatisfiable are skipped during exploration, like
+ * FlattenAutomatonPass -prune_unsat. This also drops the modes only reachable
+ * through them, so the output has the same modes as eager flattening, which
+ * removes unsatisfiable modes and then unreachable modes again. With
+ * prune_unsat=off, every reachable combined mode is printed, like
+ * FlattenAutomatonPass -reachable without -prune_unsat.
+ * 
  * @author Stanley Bak (8-2014)
  *
  */
 public class FlowstarPrinter extends ToolPrinter
 {
 	private BaseComponent ha;
+	private CompactAutomaton product = null; // used if flatten=lazy
 	private int DEFAULT_MAX_JUMPS = 999999999;
 
 	public FlowstarPrinter()
@@ -306,72 +331,80 @@ public class FlowstarPrinter extends ToolPrinter
 		printLine("modes");
 		printLine("{");
 
-		// modename
-		boolean first = true;
-
-		for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
+		// modes are printed in parallel, see ToolPrinter.printBlocks()
+		printBlocks(getModes(), true, new BlockPrinter<AutomatonMode>()
 		{
-			AutomatonMode mode = e.getValue();
-
-			if (first)
-				first = false;
-			else
-				printNewline();
+			@Override
+			public void printBlock(ToolPrinter printer, AutomatonMode mode, int index)
+			{
+				((FlowstarPrinter) printer).printMode(mode);
+			}
+		});
 
-			String locName = e.getKey();
-			printLine(locName);
-			printLine("{");
+		printLine("}"); // end all modes
+	}
 
-			// From Xin Chen e-mail:
-			// linear ode - linear time-invariant, can also have uncertain input
-			// "poly ode 1" works more efficient than the others on low degree
-			// and low dimension (<=3) ODEs.
-			// "poly ode 2" works more efficient than the others on low degree
-			// and medium dimension (4~6) ODEs.
-			// "poly ode 3" works more efficient than the others on medium or
-			// high degree and high dimension ODEs.
-			// "nonpoly ode" works with nonlinear terms
-
-			if (isNonLinearDynamics(mode.flowDynamics))
-				printLine("nonpoly ode");
-			else if (Classification.isLinearDynamics(mode.flowDynamics))
-				printLine("linear ode");
-			else if (ha.variables.size() <= 3)
-				printLine("poly ode 1");
-			else if (ha.variables.size() <= 6)
-				printLine("poly ode 2");
-			else
-				printLine("poly ode 3");
+	/**
+	 * Print a single mode
+	 */
+	private void printMode(AutomatonMode mode)
+	{
+		if (product != null)
+			checkLazyMode(mode);
 
-			printLine("{");
-			for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
-			{
-				ExpressionInterval ei = entry.getValue();
-				ei.setExpression(simplifyExpression(ei.getExpression()));
+		String locName = mode.name;
+		printLine(locName);
+		printLine("{");
 
-				// be explicit (even though x' == 0 is implied by Flow*)
-				printLine(entry.getKey() + "' = " + ei);
-			}
-			printLine("}");
+		// From Xin Chen e-mail:
+		// linear ode - linear time-invariant, can also have uncertain input
+		// "poly ode 1" works more efficient than the others on low degree
+		// and low dimension (<=3) ODEs.
+		// "poly ode 2" works more efficient than the others on low degree
+		// and medium dimension (4~6) ODEs.
+		// "poly ode 3" works more efficient than the others on medium or
+		// high degree and high dimension ODEs.
+		// "nonpoly ode" works with nonlinear terms
+
+		if (isNonLinearDynamics(mode.flowDynamics))
+			printLine("nonpoly ode");
+		else if (Classification.isLinearDynamics(mode.flowDynamics))
+			printLine("linear ode");
+		else if (ha.variables.size() <= 3)
+			printLine("poly ode 1");
+		else if (ha.variables.size() <= 6)
+			printLine("poly ode 2");
+		else
+			printLine("poly ode 3");
 
-			// invariant
-			printLine("inv");
-			printLine("{");
+		printLine("{");
+		for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
+		{
+			// simplify a copy, since the IR may be shared between modes and
+			// print blocks
+			ExpressionInterval ei = entry.getValue();
+			ei = new ExpressionInterval(simplifyExpression(ei.getExpression()), ei.getInterval());
 
-			Expression inv = simplifyExpression(mode.invariant);
+			// be explicit (even though x' == 0 is implied by Flow*)
+			printLine(entry.getKey() + "' = " + ei);
+		}
+		printLine("}");
 
-			if (!inv.equals(Constant.TRUE))
-			{
-				printCommentBlock("Original invariant: " + inv.toDefaultString());
-				printLine(inv.toString());
-			}
+		// invariant
+		printLine("inv");
+		printLine("{");
 
-			printLine("}"); // end invariant
+		Expression inv = simplifyExpression(mode.invariant);
 
-			printLine("}"); // end individual mode
+		if (!inv.equals(Constant.TRUE))
+		{
+			printCommentBlock("Original invariant: " + inv.toDefaultString());
+			printLine(inv.toString());
 		}
 
-		printLine("}"); // end all modes
+		printLine("}"); // end invariant
+
+		printLine("}"); // end individual mode
 	}
 
 	private boolean isNonLinearDynamics(LinkedHashMap<String, ExpressionInterval> flowDynamics)
@@ -454,57 +487,62 @@ public class FlowstarPrinter extends ToolPrinter
 		printLine("jumps");
 		printLine("{");
 
-		boolean first = true;
-
-		for (AutomatonTransition t : ha.transitions)
+		printBlocks(getTransitions(), true, new BlockPrinter<AutomatonTransition>()
 		{
-			Expression guard = simplifyExpression(t.guard);
-
-			if (guard == Constant.FALSE)
-				continue;
+			@Override
+			public void printBlock(ToolPrinter printer, AutomatonTransition t, int index)
+			{
+				((FlowstarPrinter) printer).printJump(t);
+			}
+		});
 
-			if (first)
-				first = false;
-			else
-				printNewline();
+		printLine("}");
+	}
 
-			String fromName = t.from.name;
-			String toName = t.to.name;
+	/**
+	 * Print a single jump, or nothing if its guard is false
+	 */
+	private void printJump(AutomatonTransition t)
+	{
+		Expression guard = simplifyExpression(t.guard);
 
-			printLine(fromName + " -> " + toName);
-			printLine("guard");
-			printLine("{");
+		if (guard == Constant.FALSE)
+			return;
 
-			if (!guard.equals(Constant.TRUE))
-			{
-				printCommentBlock("Original guard: " + t.guard.toDefaultString());
-				printLine(guard.toString());
-			}
+		String fromName = t.from.name;
+		String toName = t.to.name;
 
-			printLine("}");
+		printLine(fromName + " -> " + toName);
+		printLine("guard");
+		printLine("{");
 
-			printLine("reset");
-			printLine("{");
+		if (!guard.equals(Constant.TRUE))
+		{
+			printCommentBlock("Original guard: " + t.guard.toDefaultString());
+			printLine(guard.toString());
+		}
 
-			for (Entry<String, ExpressionInterval> e : t.reset.entrySet())
-			{
-				ExpressionInterval ei = e.getValue();
-				ei.setExpression(simplifyExpression(ei.getExpression()));
-				printLine(e.getKey() + "' := " + ei);
-			}
+		printLine("}");
 
-			printLine("}");
+		printLine("reset");
+		printLine("{");
 
-			if (toolParams.get("aggregation").equals("parallelotope"))
-				printLine("parallelotope aggregation {}");
-			else if (toolParams.get("aggregation").equals("interval"))
-				printLine("interval aggregation");
-			else
-				throw new AutomatonExportException(
-						"Unknown aggregation method: " + toolParams.get("aggregation"));
+		for (Entry<String, ExpressionInterval> e : t.reset.entrySet())
+		{
+			ExpressionInterval ei = e.getValue();
+			ei = new ExpressionInterval(simplifyExpression(ei.getExpression()), ei.getInterval());
+			printLine(e.getKey() + "' := " + ei);
 		}
 
 		printLine("}");
+
+		if (toolParams.get("aggregation").equals("parallelotope"))
+			printLine("parallelotope aggregation {}");
+		else if (toolParams.get("aggregation").equals("interval"))
+			printLine("interval aggregation");
+		else
+			throw new AutomatonExportException(
+					"Unknown aggregation method: " + toolParams.get("aggregation"));
 	}
 
 	public static class FlowstarExpressionPrinter extends DefaultExpressionPrinter
@@ -564,25 +602,151 @@ public class FlowstarPrinter extends ToolPrinter
 		}
 	}
 
+	/**
+	 * Get the modes to print, either from the flat automaton or created lazily
+	 */
+	private Iterable<AutomatonMode> getModes()
+	{
+		Iterable<AutomatonMode> rv = ha.modes.values();
+
+		if (product != null)
+			rv = product.modes(ha);
+
+		return rv;
+	}
+
+	/**
+	 * Get the jumps to print, either from the flat automaton or created lazily
+	 */
+	private Iterable<AutomatonTransition> getTransitions()
+	{
+		Iterable<AutomatonTransition> rv = ha.transitions;
+
+		if (product != null)
+			rv = product.transitions(ha);
+
+		return rv;
+	}
+
+	/**
+	 * With lazy flattening, the checks (and conversions) which are done on the
+	 * whole flat automaton can only be done as each mode gets printed
+	 */
+	private void checkLazyMode(AutomatonMode mode)
+	{
+		checkModeName(mode.name);
+
+		if (mode.urgent)
+			throw new AutomatonExportException("Urgent mode '" + mode.name
+					+ "' is not supported with flatten=lazy in Flow* printer");
+
+		for (String v : ha.variables)
+		{
+			if (!mode.flowDynamics.containsKey(v))
+				throw new AutomatonExportException("Variable '" + v
+						+ "' has no dynamics in mode '" + mode.name
+						+ "', which is not supported with flatten=lazy in Flow* printer");
+		}
+	}
+
+	private static void checkModeName(String name)
+	{
+		if (name.equals("init") || name.equals("start"))
+			throw new AutomatonExportException(
+					"mode named '" + name + "' is not allowed in Flow* printer");
+	}
+
 	@Override
-	protected void printAutomaton()
+	protected void checkPreconditions(Configuration c)
 	{
-		this.ha = (BaseComponent) config.root;
-		Expression.expressionPrinter = new FlowstarExpressionPrinter();
+		product = null;
 
-		if (ha.modes.containsKey("init"))
-			throw new AutomatonExportException("mode named 'init' is not allowed in Flow* printer");
+		if (!toolParams.get("prune_unsat").equals("on")
+				&& !toolParams.get("prune_unsat").equals("off"))
+			throw new AutomatonExportException("Param 'prune_unsat' should be 'on' or 'off': "
+					+ toolParams.get("prune_unsat"));
+
+		if (toolParams.get("flatten").equals("lazy") && c.root instanceof NetworkComponent)
+		{
+			Preconditions p = new Preconditions(false);
+			p.skip = preconditions.skip.clone();
+			p.skip(PreconditionsFlag.CONVERT_TO_FLAT_AUTOMATON);
+			p.check(c, this.getClass().getName());
 
-		if (ha.modes.containsKey("start"))
+			createLazyProduct(c);
+		}
+		else if (!toolParams.get("flatten").equals("eager")
+				&& !toolParams.get("flatten").equals("lazy"))
 			throw new AutomatonExportException(
-					"mode named 'start' is not allowed in Flow* printer");
+					"Param 'flatten' should be 'eager' or 'lazy': " + toolParams.get("flatten"));
+		else
+			super.checkPreconditions(c);
+	}
 
-		if (!areIntervalInitialStates(config))
-			convertInitialStatesToUrgent(config);
+	/**
+	 * Find the reachable modes of a network's product, with their jumps. Init
+	 * and forbidden states are converted to the flat names, like
+	 * FlattenAutomatonPass does, and ones in modes which weren't reached (or
+	 * were pruned) are removed.
+	 */
+	private void createLazyProduct(Configuration c)
+	{
+		FlattenRenameUtils.convertToFullyQualifiedParams(c.root);
+
+		FlatNetworkView view = new FlatNetworkView(c.root);
+		view.setPruneUnsat(toolParams.get("prune_unsat").equals("on"));
+		product = view.explore(c.init.keySet());
 
-		checkBoundedInitialStates(config);
+		Hyst.log("Lazily flattening " + view.getNumModes() + " product locations ("
+				+ product.getNumModes() + " reachable)");
 
-		AutomatonUtil.convertUrgentTransitions(ha, config);
+		ha = product.createParams();
+		ha.instanceName = view.getComponent().instanceName;
+
+		removeUnreachable(view, c.init.keySet().iterator());
+		removeUnreachable(view, c.forbidden.keySet().iterator());
+
+		FlattenRenameUtils.convertSettingsSeparator(c);
+	}
+
+	private void removeUnreachable(FlatNetworkView view, Iterator<String> dottedNames)
+	{
+		while (dottedNames.hasNext())
+		{
+			AutomatonMode am = view.getMode(view.getIndex(dottedNames.next()));
+
+			if (am == null || product.getModeId(am.name) == -1)
+				dottedNames.remove();
+		}
+	}
+
+	@Override
+	protected void printAutomaton()
+	{
+		Expression.setExpressionPrinter(new FlowstarExpressionPrinter());
+
+		if (product != null)
+		{
+			if (!areIntervalInitialStates(config, ha))
+				throw new AutomatonExportException(
+						"Non-interval initial states are not supported with flatten=lazy in Flow* printer");
+
+			checkBoundedInitialStates(config, ha);
+		}
+		else
+		{
+			this.ha = (BaseComponent) config.root;
+
+			for (String name : ha.modes.keySet())
+				checkModeName(name);
+
+			if (!areIntervalInitialStates(config, ha))
+				convertInitialStatesToUrgent(config);
+
+			checkBoundedInitialStates(config, ha);
+
+			AutomatonUtil.convertUrgentTransitions(ha, config);
+		}
 
 		printDocument(originalFilename);
 	}
@@ -686,7 +850,7 @@ public class FlowstarPrinter extends ToolPrinter
 		return ranges;
 	}
 
-	private static void checkBoundedInitialStates(Configuration c)
+	private static void checkBoundedInitialStates(Configuration c, BaseComponent ha)
 	{
 		// there must be bounds on every variable in the initial state for Flow*
 		// to work
@@ -697,7 +861,7 @@ public class FlowstarPrinter extends ToolPrinter
 
 			Collection<String> allVars = AutomatonUtil.getVariablesInExpression(exp);
 
-			for (String v : c.root.variables)
+			for (String v : ha.variables)
 			{
 				if (!allVars.contains(v))
 					throw new AutomatonExportException("Flow* requires bounds be defined for all "
@@ -744,14 +908,15 @@ public class FlowstarPrinter extends ToolPrinter
 	 * Test if each initial mode can be defined just using intervals over the
 	 * variables
 	 * 
-	 * @param c
+	 * @param config
 	 *            the configuration
+	 * @param ha
+	 *            the (flat) automaton
 	 * @return true iff using intervals is enough
 	 */
-	private static boolean areIntervalInitialStates(Configuration config)
+	private static boolean areIntervalInitialStates(Configuration config, BaseComponent ha)
 	{
 		boolean rv = true;
-		BaseComponent ha = (BaseComponent) config.root;
 
 		for (Entry<String, Expression> e : config.init.entrySet())
 		{
@@ -798,6 +963,8 @@ public class FlowstarPrinter extends ToolPrinter
 		toolParams.put("jumps", "" + DEFAULT_MAX_JUMPS);
 		toolParams.put("print", "on");
 		toolParams.put("aggregation", "parallelotope");
+		toolParams.put("flatten", "eager");
+		toolParams.put("prune_unsat", "on");
 
 		return toolParams;
 	}
@@ -3,6 +3,7 @@
  */
 package com.verivital.hyst.printers;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -61,7 +62,7 @@ public class HyCompPrinter extends ToolPrinter
 
 		this.printCommentHeader();
 
-		Expression.expressionPrinter = new HyCompExpressionPrinter(); // TODO:
+		Expression.setExpressionPrinter(new HyCompExpressionPrinter()); // TODO:
 																		// move
 																		// to
 																		// constructor?
@@ -250,9 +251,6 @@ public class HyCompPrinter extends ToolPrinter
 
 		printLine(commentChar + " start locations"); // start all modes
 
-		// modename
-		boolean first = true;
-
 		// first pass over to create ids
 		int id = 1;
 
@@ -261,44 +259,15 @@ public class HyCompPrinter extends ToolPrinter
 			modeNamesToIds.put(modeName, id++);
 		}
 
-		for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
+		// modes are printed in parallel, see ToolPrinter.printBlocks()
+		printBlocks(ha.modes.values(), true, new BlockPrinter<AutomatonMode>()
 		{
-			AutomatonMode mode = e.getValue();
-
-			if (first)
-				first = false;
-			else
-				printNewline();
-
-			String locName = e.getKey();
-			printLine(commentChar + " " + locName);
-
-			// INVAR will be all together
-			// FLOWS may be split across
-			// it MAY be optimal to combine all flows that may be equal (as
-			// there is syntax to say all modes have the same ODEs, some subset
-			// have some ODEs, etc.)
-
-			// printLine("mode " + modeNamesToIds.get(locName) + ";");
-
-			printLine("FLOW");
-			this.increaseIndentation();
-			// printLine("(location = " + locName + " -> "
-			int j = 0;
-			String line = "";
-			for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
+			@Override
+			public void printBlock(ToolPrinter printer, AutomatonMode mode, int index)
 			{
-				if (j > 0)
-					line = line + "&";
-				line = line + "der(" + entry.getKey() + ") = " + entry.getValue().asExpression();
-				++j;
+				((HyCompPrinter) printer).printMode(mode);
 			}
-			printLine("(location = " + locName + " -> (" + line + "));");
-			this.decreaseIndentation();
-
-			printLine(commentChar + " end " + locName);
-			this.indentation = "";
-		}
+		});
 
 		// invariant
 		printComment("invariants are printed all together with implications on locations, etc.");
@@ -328,125 +297,167 @@ public class HyCompPrinter extends ToolPrinter
 		printLine(commentChar + " end modes"); // end all modes
 	}
 
+	/**
+	 * Print the flow of a single mode
+	 */
+	private void printMode(AutomatonMode mode)
+	{
+		String locName = mode.name;
+		printLine(commentChar + " " + locName);
+
+		// INVAR will be all together
+		// FLOWS may be split across
+		// it MAY be optimal to combine all flows that may be equal (as
+		// there is syntax to say all modes have the same ODEs, some subset
+		// have some ODEs, etc.)
+
+		// printLine("mode " + modeNamesToIds.get(locName) + ";");
+
+		printLine("FLOW");
+		this.increaseIndentation();
+		// printLine("(location = " + locName + " -> "
+		int j = 0;
+		String line = "";
+		for (Entry<String, ExpressionInterval> entry : mode.flowDynamics.entrySet())
+		{
+			if (j > 0)
+				line = line + "&";
+			line = line + "der(" + entry.getKey() + ") = " + entry.getValue().asExpression();
+			++j;
+		}
+		printLine("(location = " + locName + " -> (" + line + "));");
+		this.decreaseIndentation();
+
+		printLine(commentChar + " end " + locName);
+		this.indentation = "";
+	}
+
 	private void printJumps()
 	{
 		printNewline();
 		printLine("TRANS");
 		this.increaseIndentation();
 
-		boolean first = true;
+		// jumps are grouped by source mode, and printed in parallel
+		ArrayList<AutomatonTransition> transitions = new ArrayList<AutomatonTransition>(
+				ha.transitions.size());
 
-		int i_transition = 0;
+		for (AutomatonMode mode : ha.modes.values())
+			transitions.addAll(mode.getOutgoing());
 
-		for (Entry<String, AutomatonMode> e : ha.modes.entrySet())
+		printBlocks(transitions, true, new BlockPrinter<AutomatonTransition>()
 		{
-			AutomatonMode mode = e.getValue();
-			int fromId = modeNamesToIds.get(mode.name);
-
-			for (AutomatonTransition t : ha.transitions)
+			@Override
+			public void printBlock(ToolPrinter printer, AutomatonTransition t, int index)
 			{
-				if (t.from != mode)
-					continue;
+				((HyCompPrinter) printer).printJump(t, index);
+			}
+		});
+
+		this.print(";");
+
+		printNewline();
+		this.decreaseIndentation();
+	}
 
-				if (first)
-					first = false;
-				else
-					printNewline();
+	/**
+	 * Print a single jump
+	 * 
+	 * @param index
+	 *            the position of the jump, all but the first are joined with '|'
+	 */
+	private void printJump(AutomatonTransition t, int index)
+	{
+		AutomatonMode mode = t.from;
+		int fromId = modeNamesToIds.get(mode.name);
 
-				String toName = t.to.name;
-				int toId = modeNamesToIds.get(toName);
+		String toName = t.to.name;
+		int toId = modeNamesToIds.get(toName);
 
-				printLine(commentChar + " " + mode.name + " -> " + toName + " (" + fromId + " -> "
-						+ toId + ")");
+		printLine(commentChar + " " + mode.name + " -> " + toName + " (" + fromId + " -> "
+				+ toId + ")");
 
-				this.increaseIndentation();
+		this.increaseIndentation();
 
-				String line = "";
+		String line = "";
 
-				if (i_transition >= 1)
-				{
-					line += " | ";
-				}
+		if (index >= 1)
+		{
+			line += " | ";
+		}
 
-				line += "(location = " + mode.name + " & ";
+		line += "(location = " + mode.name + " & ";
 
-				if (t.guard != Constant.TRUE)
-					line += t.guard + " & next(location) = " + toName;
-				else
-					line += "(true) & next(location) = " + toName;
+		if (t.guard != Constant.TRUE)
+			line += t.guard + " & next(location) = " + toName;
+		else
+			line += "(true) & next(location) = " + toName;
 
-				Map<String, ExpressionInterval> reset = t.reset;
+		Map<String, ExpressionInterval> reset = t.reset;
 
-				// if (reset.size() > 0) {
-				// line += " & ";
-				// }
+		// if (reset.size() > 0) {
+		// line += " & ";
+		// }
 
-				// TODO: this check was to 0, but we could have a model with 0
-				// vars, which then would have no resets, and that would be fine
-				if (reset.size() != ha.variables.size())
-					throw new AutomatonExportException(
-							"Since HyComp requires identity resets, it should never be null (but reset was null): "
-									+ reset);
+		// TODO: this check was to 0, but we could have a model with 0
+		// vars, which then would have no resets, and that would be fine
+		if (reset.size() != ha.variables.size())
+			throw new AutomatonExportException(
+					"Since HyComp requires identity resets, it should never be null (but reset was null): "
+							+ reset);
 
-				// should be be of the form (and (x' = x + 1) (y' = x + y) (z' =
-				// z))
-				Operation resetExp = new Operation(Operator.AND);
+		// should be be of the form (and (x' = x + 1) (y' = x + y) (z' =
+		// z))
+		Operation resetExp = new Operation(Operator.AND);
 
-				for (Entry<String, ExpressionInterval> eReset : reset.entrySet())
-				{
-					if (resetExp.children.size() == 2)
-					{
-						// expression can not have more than two childrens
-						line += " & " + resetExp + " ";
-						resetExp = new Operation(Operator.AND);
-					}
-
-					ExpressionInterval ei = eReset.getValue();
-
-					if (ei.getInterval() == null)
-					{
-						Expression exp = new Operation(Operator.EQUAL,
-								new Variable("next(" + eReset.getKey() + ")"),
-								eReset.getValue().asExpression());
-
-						resetExp.children.add(exp);
-					}
-					else
-					{
-						Interval i = ei.getInterval();
-						// interval is nonnull, nondeterministic reset
-
-						Operation lowerBound = new Operation(Operator.GREATEREQUAL,
-								new Variable("next(" + eReset.getKey() + ")"),
-								new Operation(Operator.ADD, eReset.getValue().getExpression(),
-										new Constant(i.min)));
-
-						Operation upperBound = new Operation(Operator.LESSEQUAL,
-								new Variable("next(" + eReset.getKey() + ")"),
-								new Operation(Operator.ADD, eReset.getValue().getExpression(),
-										new Constant(i.max)));
-
-						resetExp.children.add(lowerBound);
-						resetExp.children.add(upperBound);
-					}
+		for (Entry<String, ExpressionInterval> eReset : reset.entrySet())
+		{
+			if (resetExp.children.size() == 2)
+			{
+				// expression can not have more than two childrens
+				line += " & " + resetExp + " ";
+				resetExp = new Operation(Operator.AND);
+			}
 
-				}
-				if (resetExp.children.size() == 1)
-				{
-					line += " " + resetExp;
-				}
-				else
-					line += " & " + resetExp;
+			ExpressionInterval ei = eReset.getValue();
 
-				printLine(line + ") ");
+			if (ei.getInterval() == null)
+			{
+				Expression exp = new Operation(Operator.EQUAL,
+						new Variable("next(" + eReset.getKey() + ")"),
+						eReset.getValue().asExpression());
 
-				this.decreaseIndentation();
-				++i_transition;
+				resetExp.children.add(exp);
 			}
+			else
+			{
+				Interval i = ei.getInterval();
+				// interval is nonnull, nondeterministic reset
+
+				Operation lowerBound = new Operation(Operator.GREATEREQUAL,
+						new Variable("next(" + eReset.getKey() + ")"),
+						new Operation(Operator.ADD, eReset.getValue().getExpression(),
+								new Constant(i.min)));
+
+				Operation upperBound = new Operation(Operator.LESSEQUAL,
+						new Variable("next(" + eReset.getKey() + ")"),
+						new Operation(Operator.ADD, eReset.getValue().getExpression(),
+								new Constant(i.max)));
+
+				resetExp.children.add(lowerBound);
+				resetExp.children.add(upperBound);
+			}
+
 		}
-		this.print(";");
+		if (resetExp.children.size() == 1)
+		{
+			line += " " + resetExp;
+		}
+		else
+			line += " & " + resetExp;
+
+		printLine(line + ") ");
 
-		printNewline();
 		this.decreaseIndentation();
 	}
 
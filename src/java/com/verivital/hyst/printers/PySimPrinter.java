@@ -73,31 +73,37 @@ public class PySimPrinter extends ToolPrinter
 		return "'''\n" + text + "\n'''";
 	}
 
-	private static void appendModes(StringBuilder rv, BaseComponent ha)
+	private static void appendModes(StringBuilder rv, final BaseComponent ha)
 	{
-		for (AutomatonMode am : ha.modes.values())
+		// modes are converted in parallel, see ToolPrinter.appendBlocks()
+		appendBlocks(rv, ha.modes.values(), new BlockAppender<AutomatonMode>()
 		{
-			appendNewline(rv);
-
-			/*
-			 * one = ha.new_mode('one') one.der = lambda state, _: [2, 1]
-			 * one.inv = lambda(x): x[0] <= 2
-			 */
+			@Override
+			public void appendBlock(StringBuilder rv, AutomatonMode am)
+			{
+				appendNewline(rv);
 
-			appendIndentedLine(rv, am.name + " = ha.new_mode('" + am.name + "')");
-			appendIndentedLine(rv, am.name + ".inv = lambda state: " + am.invariant);
+				/*
+				 * one = ha.new_mode('one') one.der = lambda state, _: [2, 1]
+				 * one.inv = lambda(x): x[0] <= 2
+				 */
 
-			appendIndentedLine(rv, am.name + ".inv_sympy = " + sympyPyinter.print(am.invariant));
+				appendIndentedLine(rv, am.name + " = ha.new_mode('" + am.name + "')");
+				appendIndentedLine(rv, am.name + ".inv = lambda state: " + am.invariant);
 
-			if (!am.urgent)
-			{
 				appendIndentedLine(rv,
-						am.name + ".der = lambda _, state: " + getMapString(am.flowDynamics, ha));
+						am.name + ".inv_sympy = " + sympyPyinter.print(am.invariant));
+
+				if (!am.urgent)
+				{
+					appendIndentedLine(rv, am.name + ".der = lambda _, state: "
+							+ getMapString(am.flowDynamics, ha));
 
-				appendIndentedLine(rv, am.name + ".der_interval_list = "
-						+ getIntervalListString(am.flowDynamics, ha));
+					appendIndentedLine(rv, am.name + ".der_interval_list = "
+							+ getIntervalListString(am.flowDynamics, ha));
+				}
 			}
-		}
+		});
 	}
 
 	/**
@@ -167,24 +173,29 @@ public class PySimPrinter extends ToolPrinter
 		return rv.toString();
 	}
 
-	private static void appendJumps(StringBuilder rv, BaseComponent ha)
+	private static void appendJumps(StringBuilder rv, final BaseComponent ha)
 	{
 		/*
 		 * t = ha.new_transition(one, two) t.guard = lambda(x): x[0] >= 2
 		 * t.reset = lambda(x): (x[0] + 1, x[1])
 		 */
 
-		for (AutomatonTransition at : ha.transitions)
+		appendBlocks(rv, ha.transitions, new BlockAppender<AutomatonTransition>()
 		{
-			appendNewline(rv);
+			@Override
+			public void appendBlock(StringBuilder rv, AutomatonTransition at)
+			{
+				appendNewline(rv);
 
-			appendIndentedLine(rv,
-					"t = ha.new_transition(" + at.from.name + ", " + at.to.name + ")");
-			appendIndentedLine(rv, "t.guard = lambda state: " + at.guard);
-			appendIndentedLine(rv, "t.reset = lambda state: " + getMapString(at.reset, ha));
+				appendIndentedLine(rv,
+						"t = ha.new_transition(" + at.from.name + ", " + at.to.name + ")");
+				appendIndentedLine(rv, "t.guard = lambda state: " + at.guard);
+				appendIndentedLine(rv,
+						"t.reset = lambda state: " + getMapString(at.reset, ha));
 
-			appendIndentedLine(rv, "t.guard_sympy = " + sympyPyinter.print(at.guard));
-		}
+				appendIndentedLine(rv, "t.guard_sympy = " + sympyPyinter.print(at.guard));
+			}
+		});
 	}
 
 	/**
@@ -229,9 +240,9 @@ public class PySimPrinter extends ToolPrinter
 	 */
 	public static String automatonToString(Configuration config)
 	{
-		ExpressionPrinter savedPrinter = Expression.expressionPrinter;
+		ExpressionPrinter savedPrinter = Expression.getExpressionPrinter();
 
-		Expression.expressionPrinter = pySimExpressionPrinter;
+		Expression.setExpressionPrinter(pySimExpressionPrinter);
 		pySimExpressionPrinter.ha = (BaseComponent) config.root;
 		sympyPyinter.ha = (BaseComponent) config.root;
 
@@ -267,7 +278,7 @@ public class PySimPrinter extends ToolPrinter
 		appendNewline(rv);
 
 		// restore expressionPrinter
-		Expression.expressionPrinter = savedPrinter;
+		Expression.setExpressionPrinter(savedPrinter);
 
 		return rv.toString();
 	}
@@ -445,7 +456,7 @@ public class PySimPrinter extends ToolPrinter
 	protected void printAutomaton()
 	{
 		this.ha = (BaseComponent) config.root;
-		Expression.expressionPrinter = pySimExpressionPrinter;
+		Expression.setExpressionPrinter(pySimExpressionPrinter);
 		pySimExpressionPrinter.ha = ha;
 
 		printDocument(originalFilename);
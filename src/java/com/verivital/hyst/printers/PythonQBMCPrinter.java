@@ -188,7 +188,7 @@ public class PythonQBMCPrinter extends ToolPrinter
 		increaseIndentation();
 
 		// TODO Stan fixed initial states printing; make sure it's right
-		// Expression.expressionPrinter = curExpressionPrinter;
+		// Expression.setExpressionPrinter(curExpressionPrinter);
 
 		// init is a mapping: Loc -> expr: need to modify each Expr: put("time",
 		// new Constant(0)); // TODO: generalize?
@@ -280,7 +280,7 @@ public class PythonQBMCPrinter extends ToolPrinter
 			}
 			printLine("Implies(cur_mode == " + ModeNamesToIds.get(e.getKey()) + ",");
 			increaseIndentation();
-			Expression.expressionPrinter = InvariantExpressionPrinter;
+			Expression.setExpressionPrinter(InvariantExpressionPrinter);
 			printLine("And(next_mode == cur_mode,");
 			if (e.getValue().invariant.toString() != "true")
 			{
@@ -558,12 +558,9 @@ public class PythonQBMCPrinter extends ToolPrinter
 		printLine("Or(");
 
 		String text = "";
-		Expression.expressionPrinter = curExpressionPrinter;
-		for (AutomatonTransition transition : ha.transitions)
+		Expression.setExpressionPrinter(curExpressionPrinter);
+		for (AutomatonTransition transition : mode.getOutgoing())
 		{
-			if (!transition.from.name.equals(mode.name))
-				continue;
-
 			String toName = transition.to.name;
 
 			// printLine(commentChar + " " + fromName + " -> " + toName + " (" +
@@ -589,7 +586,7 @@ public class PythonQBMCPrinter extends ToolPrinter
 
 			// TODO Stan: Tried to change this to try to match the new automaton
 			// format
-			// Expression.expressionPrinter = curExpressionPrinter;
+			// Expression.setExpressionPrinter(curExpressionPrinter);
 			for (Entry<String, ExpressionInterval> e : transition.reset.entrySet())
 			{
 				String varName = e.getKey();
@@ -114,7 +114,7 @@ public class SpaceExPrinter extends ToolPrinter
 
 		String note = this.getCommentHeader();
 
-		Expression.expressionPrinter = new SpaceExExpressionPrinter();
+		Expression.setExpressionPrinter(new SpaceExExpressionPrinter());
 
 		SpaceExDocument doc = null;
 
@@ -129,8 +129,21 @@ public class SpaceExPrinter extends ToolPrinter
 
 		doc.getComponent(0).setNote(note);
 
+		// stream the XML to the output, rather than building a DOM and a string
 		SpaceExXMLPrinter spaceex_printer = new SpaceExXMLPrinter(doc);
-		printLine(spaceex_printer.stringXML());
+
+		try
+		{
+			Writer out = new BufferedWriter(getOutputWriter());
+			spaceex_printer.writeXML(out);
+			out.close();
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error writing XML output.", e);
+		}
+
+		printNewline();
 
 		if (cfgFilename != null)
 		{
@@ -3,14 +3,34 @@
  */
 package com.verivital.hyst.printers;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionPrinter;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.main.Hyst;
@@ -21,7 +41,7 @@ import com.verivital.hyst.util.Preconditions;
  * A generic tool printer class. Printers for individual tools will override
  * this abstract class. The model is printed by using printConfiguration().
  */
-public abstract class ToolPrinter
+public abstract class ToolPrinter implements Cloneable
 {
 	// configuration being printer
 	protected Configuration config;
@@ -62,12 +82,28 @@ public abstract class ToolPrinter
 	}
 
 	protected OutputType outputType = OutputType.STDOUT;
-	private PrintStream outputStream; // used if printType = STDOUT or FILE
+	private OutputChannel outputChannel; // used if printType = STDOUT or FILE
 	private HystFrame outputFrame; // used if printType = GUI
-	public StringBuffer outputString; // used if printType = STRING
+	public StringBuilder outputString; // used if printType = STRING
+
+	// text output to stdout and files is encoded with this charset
+	public static final Charset OUTPUT_CHARSET = Charset.forName("UTF-8");
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	// threads used by printBlocks() and appendBlocks()
+	public static int blockThreads = Runtime.getRuntime().availableProcessors();
+	private static final int BLOCK_CHUNK_SIZE = 256;
+
+	// output buffer, in a copy of the printer made by printBlocks()
+	private ByteArrayOutputStream blockBytes = null;
+
+	// indentation strings for each depth, built as needed
+	private ArrayList<String> indentationCache = new ArrayList<String>();
+	private String indentationCacheAmount = null;
 
 	// static
-	private static DecimalFormat df = new DecimalFormat("0.#");
+	private static final DecimalFormat df = new DecimalFormat("0.#");
 
 	public void setOutputFile(String filename)
 	{
@@ -89,7 +125,7 @@ public abstract class ToolPrinter
 	public void setOutputString()
 	{
 		outputType = OutputType.STRING;
-		outputString = new StringBuffer();
+		outputString = new StringBuilder();
 	}
 
 	/**
@@ -113,8 +149,6 @@ public abstract class ToolPrinter
 		this.toolParamsString = toolParamsString;
 		this.originalFilename = originalFilename;
 
-		boolean shouldCloseStream = false;
-
 		if (toolParamsString == null)
 			throw new AutomatonExportException("toolsParamString was null in ToolPrinter.print()");
 
@@ -122,27 +156,43 @@ public abstract class ToolPrinter
 
 		populateParams();
 
+		FileOutputStream file = null;
+
 		try
 		{
 			outputString = null;
-			outputStream = null;
+			outputChannel = null;
 
 			if (outputType == OutputType.STDOUT)
 			{
-				outputStream = System.out;
+				outputChannel = new OutputChannel(Channels.newChannel(System.out), false);
 			}
 			else if (outputType == OutputType.FILE)
 			{
-				shouldCloseStream = true;
-				outputStream = new PrintStream(
-						new BufferedOutputStream(new FileOutputStream(outputFilename)));
+				// files are written through their FileChannel
+				file = new FileOutputStream(outputFilename);
+				outputChannel = new OutputChannel(file.getChannel(), true);
 			}
 			else if (outputType == OutputType.STRING)
-				outputString = new StringBuffer();
+				outputString = new StringBuilder();
 
 			this.config = c;
-			checkPreconditions(c);
+
+			// printers (and their preconditions) may modify the automaton, so
+			// it can't stay shared with other printers unless it's only read
+			if (!isReadOnly())
+			{
+				c.makeWritable();
+				checkPreconditions(c);
+			}
+
 			printAutomaton();
+
+			if (outputChannel != null)
+				outputChannel.flush();
+
+			if (outputType == OutputType.STDOUT)
+				System.out.flush();
 		}
 		catch (FileNotFoundException e)
 		{
@@ -154,8 +204,19 @@ public abstract class ToolPrinter
 		}
 		finally
 		{
-			if (shouldCloseStream && outputStream != null)
-				outputStream.close();
+			outputChannel = null;
+
+			if (file != null)
+			{
+				try
+				{
+					file.close();
+				}
+				catch (IOException e)
+				{
+					throw new AutomatonExportException("Error closing " + outputFilename, e);
+				}
+			}
 		}
 	}
 
@@ -179,11 +240,11 @@ public abstract class ToolPrinter
 	protected void printNewline()
 	{
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println();
+			outputChannel.write(LINE_SEPARATOR);
 		else if (outputType == OutputType.GUI)
 			outputFrame.addOutput("\n");
 		else if (outputType == OutputType.STRING)
-			outputString.append("\n");
+			outputString.append('\n');
 	}
 
 	/**
@@ -191,7 +252,7 @@ public abstract class ToolPrinter
 	 */
 	protected void increaseIndentation()
 	{
-		indentation += indentationAmount;
+		indentation = getIndentation(getIndentationDepth() + 1);
 	}
 
 	/**
@@ -200,7 +261,34 @@ public abstract class ToolPrinter
 	protected void decreaseIndentation()
 	{
 		if (indentation.length() > 0)
-			indentation = indentation.substring(indentationAmount.length());
+			indentation = getIndentation(getIndentationDepth() - 1);
+	}
+
+	private int getIndentationDepth()
+	{
+		if (indentationAmount.length() == 0)
+			return 0;
+
+		return indentation.length() / indentationAmount.length();
+	}
+
+	/**
+	 * Get the (cached) indentation string for a depth
+	 */
+	private String getIndentation(int depth)
+	{
+		if (!indentationAmount.equals(indentationCacheAmount))
+		{
+			indentationCache.clear();
+			indentationCache.add("");
+			indentationCacheAmount = indentationAmount;
+		}
+
+		while (indentationCache.size() <= depth)
+			indentationCache.add(indentationCache.get(indentationCache.size() - 1)
+					+ indentationAmount);
+
+		return indentationCache.get(depth);
 	}
 
 	/**
@@ -226,7 +314,10 @@ public abstract class ToolPrinter
 		String s = createCommentText(comment);
 
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println(s);
+		{
+			outputChannel.write(s);
+			outputChannel.write(LINE_SEPARATOR);
+		}
 		else if (outputType == OutputType.GUI)
 			outputFrame.addOutput(s);
 		else if (outputType == OutputType.STRING)
@@ -247,7 +338,7 @@ public abstract class ToolPrinter
 	{
 		return "Created by " + Hyst.TOOL_NAME + "\n" + "Hybrid Automaton in " + this.getToolName()
 				+ "\n" + "Converted from file: " + originalFilename + "\n"
-				+ "Command Line arguments: " + Hyst.programArguments;
+				+ "Command Line arguments: " + Hyst.getProgramArguments();
 	}
 
 	/**
@@ -268,18 +359,25 @@ public abstract class ToolPrinter
 		if (indent && line.equals(decreaseIndentationString))
 			decreaseIndentation();
 
-		String s = "";
-		if (indent)
-			s += this.indentation;
-
-		s += line;
-
+		// the indentation and line are written separately, without
+		// concatenating them
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println(s);
+		{
+			if (indent)
+				outputChannel.write(indentation);
+
+			outputChannel.write(line);
+			outputChannel.write(LINE_SEPARATOR);
+		}
 		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput(s);
+			outputFrame.addOutput(indent ? indentation + line : line);
 		else if (outputType == OutputType.STRING)
-			outputString.append(s + "\n");
+		{
+			if (indent)
+				outputString.append(indentation);
+
+			outputString.append(line).append('\n');
+		}
 
 		if (indent && line.equals("{"))
 			increaseIndentation();
@@ -292,18 +390,429 @@ public abstract class ToolPrinter
 
 	protected void print(String s, boolean indent)
 	{
-		String newS;
-		if (indent)
-			newS = this.indentation + s;
+		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
+		{
+			if (indent)
+				outputChannel.write(indentation);
+
+			outputChannel.write(s);
+		}
+		else if (outputType == OutputType.GUI)
+			outputFrame.addOutput(indent ? indentation + s : s);
+		else if (outputType == OutputType.STRING)
+		{
+			if (indent)
+				outputString.append(indentation);
+
+			outputString.append(s);
+		}
+	}
+
+	/**
+	 * Print raw bytes, for printers with a binary output format. With string
+	 * output, each byte is stored as one character (ISO-8859-1), so the bytes
+	 * can be recovered from outputString.
+	 * 
+	 * @param data
+	 *            the bytes to print
+	 */
+	protected void printBytes(byte[] data)
+	{
+		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
+			outputChannel.write(data);
+		else if (outputType == OutputType.GUI)
+			throw new AutomatonExportException("Binary output cannot be shown in the GUI");
+		else if (outputType == OutputType.STRING)
+			outputString.append(new String(data, Charset.forName("ISO-8859-1")));
+	}
+
+	/**
+	 * Get a Writer which prints to the output, like print(s, false). Large
+	 * outputs can be streamed through it instead of being built up as a
+	 * string first. With GUI output, the text is shown when the writer is
+	 * flushed. Closing the writer only flushes it.
+	 * 
+	 * @return the writer
+	 */
+	protected Writer getOutputWriter()
+	{
+		return new Writer()
+		{
+			private StringBuilder guiText = new StringBuilder();
+
+			@Override
+			public void write(char[] cbuf, int off, int len)
+			{
+				if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
+					outputChannel.write(cbuf, off, len);
+				else if (outputType == OutputType.GUI)
+					guiText.append(cbuf, off, len);
+				else if (outputType == OutputType.STRING)
+					outputString.append(cbuf, off, len);
+			}
+
+			@Override
+			public void flush()
+			{
+				if (outputType == OutputType.GUI)
+				{
+					if (guiText.length() > 0)
+					{
+						outputFrame.addOutput(guiText.toString());
+						guiText.setLength(0);
+					}
+				}
+				else
+					ToolPrinter.this.flush();
+			}
+
+			@Override
+			public void close()
+			{
+				flush();
+			}
+		};
+	}
+
+	/**
+	 * Prints the output block for one item (such as a mode or a jump), used
+	 * with printBlocks()
+	 */
+	protected interface BlockPrinter<T>
+	{
+		/**
+		 * Print the block for an item. The printer passed in is a copy of this
+		 * printer with its own output buffer and indentation, and blocks may be
+		 * printed from several threads at once, so all output should go
+		 * through it and other state should only be read.
+		 * 
+		 * @param printer
+		 *            the printer to print with
+		 * @param item
+		 *            the item
+		 * @param index
+		 *            the position of the item
+		 */
+		void printBlock(ToolPrinter printer, T item, int index);
+	}
+
+	/**
+	 * Appends the text for one item to a StringBuilder, used with
+	 * appendBlocks()
+	 */
+	protected interface BlockAppender<T>
+	{
+		/**
+		 * Append the text for an item. This may be called from several threads
+		 * at once, so other state should only be read.
+		 * 
+		 * @param rv
+		 *            where to append the text
+		 * @param item
+		 *            the item
+		 */
+		void appendBlock(StringBuilder rv, T item);
+	}
+
+	/**
+	 * Print a block for each item, such as one block for each mode. With file
+	 * or stdout output, blocks are rendered in parallel into per-thread
+	 * buffers, which are written in the order of the items, so the output is
+	 * the same as printing the blocks one at a time. Each block should leave
+	 * the indentation as it found it.
+	 * 
+	 * @param items
+	 *            the items, in output order. These are read in the calling
+	 *            thread, a few chunks at a time, so they may be created lazily.
+	 * @param separate
+	 *            if true, a newline is printed between non-empty blocks
+	 * @param bp
+	 *            prints a single block
+	 */
+	protected <T> void printBlocks(Iterable<T> items, final boolean separate,
+			final BlockPrinter<T> bp)
+	{
+		final boolean toChannel = outputType == OutputType.STDOUT
+				|| outputType == OutputType.FILE;
+		final ConcurrentLinkedQueue<ToolPrinter> idle = new ConcurrentLinkedQueue<ToolPrinter>();
+
+		new OrderedRenderer<T, RenderedChunk>()
+		{
+			private boolean printedBlock = false;
+
+			@Override
+			protected RenderedChunk render(List<T> chunk, int firstIndex)
+			{
+				ToolPrinter p = idle.poll();
+
+				if (p == null)
+					p = forkBlockPrinter(toChannel);
+
+				RenderedChunk rv = p.renderChunk(chunk, firstIndex, bp);
+				idle.add(p);
+
+				return rv;
+			}
+
+			@Override
+			protected void done(RenderedChunk c)
+			{
+				int start = 0;
+
+				for (int end : c.ends)
+				{
+					if (end > start)
+					{
+						if (separate && printedBlock)
+							printNewline();
+
+						printedBlock = true;
+						printRendered(c, start, end);
+					}
+
+					start = end;
+				}
+			}
+		}.run(items, toChannel ? blockThreads : 1);
+	}
+
+	/**
+	 * Append text for each item to a StringBuilder. The text for chunks of
+	 * items is built in parallel and appended in the order of the items.
+	 * 
+	 * @param rv
+	 *            where to append the text
+	 * @param items
+	 *            the items, in output order
+	 * @param ba
+	 *            appends the text for a single item
+	 */
+	protected static <T> void appendBlocks(final StringBuilder rv, Iterable<T> items,
+			final BlockAppender<T> ba)
+	{
+		new OrderedRenderer<T, StringBuilder>()
+		{
+			@Override
+			protected StringBuilder render(List<T> chunk, int firstIndex)
+			{
+				StringBuilder text = new StringBuilder();
+
+				for (T item : chunk)
+					ba.appendBlock(text, item);
+
+				return text;
+			}
+
+			@Override
+			protected void done(StringBuilder text)
+			{
+				rv.append(text);
+			}
+		}.run(items, blockThreads);
+	}
+
+	/**
+	 * Make a copy of this printer for rendering blocks, which has its own
+	 * indentation and prints into its own buffer. Output to a channel is
+	 * encoded in the copy, otherwise it's collected as a string.
+	 */
+	private ToolPrinter forkBlockPrinter(boolean toChannel)
+	{
+		ToolPrinter rv;
+
+		try
+		{
+			rv = (ToolPrinter) clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new AutomatonExportException("Error copying printer", e);
+		}
+
+		rv.indentationCache = new ArrayList<String>(indentationCache);
+		rv.outputFrame = null;
+		rv.outputString = null;
+		rv.outputChannel = null;
+		rv.blockBytes = null;
+
+		if (toChannel)
+		{
+			rv.blockBytes = new ByteArrayOutputStream();
+			rv.outputChannel = new OutputChannel(Channels.newChannel(rv.blockBytes), false);
+		}
 		else
-			newS = s;
+		{
+			rv.outputType = OutputType.STRING;
+			rv.outputString = new StringBuilder();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Print the blocks for a chunk of items into this printer's buffer (this
+	 * should be a copy from forkBlockPrinter())
+	 */
+	private <T> RenderedChunk renderChunk(List<T> chunk, int firstIndex, BlockPrinter<T> bp)
+	{
+		RenderedChunk rv = new RenderedChunk();
+		rv.ends = new int[chunk.size()];
+
+		for (int i = 0; i < rv.ends.length; ++i)
+		{
+			bp.printBlock(this, chunk.get(i), firstIndex + i);
+
+			if (blockBytes != null)
+			{
+				outputChannel.flush();
+				rv.ends[i] = blockBytes.size();
+			}
+			else
+				rv.ends[i] = outputString.length();
+		}
 
+		if (blockBytes != null)
+		{
+			rv.bytes = blockBytes.toByteArray();
+			blockBytes.reset();
+		}
+		else
+		{
+			rv.text = outputString.toString();
+			outputString.setLength(0);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Print part of a rendered chunk (a single block)
+	 */
+	private void printRendered(RenderedChunk c, int start, int end)
+	{
 		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.print(newS);
+			outputChannel.write(c.bytes, start, end - start);
 		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput(newS);
+		{
+			// each line added to the frame gets a newline
+			if (c.text.charAt(end - 1) == '\n')
+				--end;
+
+			outputFrame.addOutput(c.text.substring(start, end));
+		}
 		else if (outputType == OutputType.STRING)
-			outputString.append(newS);
+			outputString.append(c.text, start, end);
+	}
+
+	/**
+	 * The output of a chunk of blocks, either encoded bytes or text, and
+	 * where each block ends
+	 */
+	private static class RenderedChunk
+	{
+		byte[] bytes;
+		String text;
+		int[] ends;
+	}
+
+	/**
+	 * Renders items in chunks, possibly on several threads, and passes the
+	 * results to done() in order, on the calling thread. Only a few chunks for
+	 * each thread are pending at once. Worker threads use the calling thread's
+	 * expression printer.
+	 */
+	private abstract static class OrderedRenderer<T, R>
+	{
+		/**
+		 * Render a chunk of items. This may be called on a worker thread.
+		 */
+		protected abstract R render(List<T> chunk, int firstIndex);
+
+		/**
+		 * Use the result of render(), called in order on the calling thread
+		 */
+		protected abstract void done(R result);
+
+		public void run(Iterable<T> items, int threads)
+		{
+			final ExpressionPrinter printer = Expression.getExpressionPrinter();
+			ArrayDeque<Future<R>> pending = new ArrayDeque<Future<R>>();
+			ExecutorService pool = null;
+
+			try
+			{
+				Iterator<T> it = items.iterator();
+				ArrayList<T> chunk = new ArrayList<T>(BLOCK_CHUNK_SIZE);
+				int index = 0;
+
+				while (it.hasNext())
+				{
+					chunk.add(it.next());
+
+					if (chunk.size() < BLOCK_CHUNK_SIZE && it.hasNext())
+						continue;
+
+					final List<T> work = chunk;
+					final int firstIndex = index;
+					index += chunk.size();
+					chunk = new ArrayList<T>(BLOCK_CHUNK_SIZE);
+
+					// a single chunk is rendered directly
+					if (threads <= 1 || (pool == null && !it.hasNext()))
+					{
+						done(render(work, firstIndex));
+						continue;
+					}
+
+					if (pool == null)
+						pool = Executors.newFixedThreadPool(threads);
+
+					pending.add(pool.submit(new Callable<R>()
+					{
+						@Override
+						public R call()
+						{
+							Expression.setExpressionPrinter(printer);
+
+							return render(work, firstIndex);
+						}
+					}));
+
+					if (pending.size() >= 2 * threads)
+						done(waitFor(pending.poll()));
+				}
+
+				while (!pending.isEmpty())
+					done(waitFor(pending.poll()));
+			}
+			finally
+			{
+				if (pool != null)
+					pool.shutdownNow();
+			}
+		}
+
+		private R waitFor(Future<R> f)
+		{
+			try
+			{
+				return f.get();
+			}
+			catch (ExecutionException e)
+			{
+				// render() can only throw unchecked exceptions
+				Throwable cause = e.getCause();
+
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+
+				throw (Error) cause;
+			}
+			catch (InterruptedException e)
+			{
+				throw new AutomatonExportException("Interrupted while printing", e);
+			}
+		}
 	}
 
 	/**
@@ -346,13 +855,20 @@ public abstract class ToolPrinter
 
 	public static String doubleToString(double n)
 	{
-		return df.format(n);
+		// DecimalFormat isn't thread-safe, and printers may run in parallel
+		synchronized (df)
+		{
+			return df.format(n);
+		}
 	}
 
 	public void flush()
 	{
-		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.flush();
+		if (outputChannel != null)
+			outputChannel.flush();
+
+		if (outputType == OutputType.STDOUT)
+			System.out.flush();
 	}
 
 	/**
@@ -426,6 +942,21 @@ public abstract class ToolPrinter
 	 */
 	protected abstract void printAutomaton();
 
+	/**
+	 * Is this printer guaranteed not to modify the automaton? Read-only
+	 * printers are given the configuration as is, which may be shared with
+	 * other printers, and their preconditions are not checked (since the
+	 * checks convert the automaton in place). Override this to return true
+	 * only if neither the printer nor anything it calls changes the
+	 * configuration.
+	 * 
+	 * @return true if the printer only reads the configuration
+	 */
+	protected boolean isReadOnly()
+	{
+		return false;
+	}
+
 	/**
 	 * Check the preconditions for the printer (for example, the modes should
 	 * have at least 1 variable, no urgrent modes, ect) Typically, you'll change
@@ -441,4 +972,133 @@ public abstract class ToolPrinter
 	{
 		preconditions.check(c, this.getClass().getName());
 	}
+
+	/**
+	 * Buffered text output to a byte channel. Characters are collected in a
+	 * buffer and encoded with OUTPUT_CHARSET when it fills up; there is no
+	 * locking and no intermediate strings. Write errors are reported as
+	 * AutomatonExportExceptions.
+	 */
+	private static final class OutputChannel
+	{
+		private final WritableByteChannel channel;
+		private final CharsetEncoder encoder;
+		private final CharBuffer chars = CharBuffer.allocate(OUTPUT_BUFFER_SIZE);
+		private final ByteBuffer bytes;
+
+		public OutputChannel(WritableByteChannel channel, boolean direct)
+		{
+			this.channel = channel;
+
+			encoder = OUTPUT_CHARSET.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+			int numBytes = (int) Math.ceil(OUTPUT_BUFFER_SIZE * encoder.maxBytesPerChar());
+
+			// a direct buffer avoids a copy when writing to a FileChannel
+			bytes = direct ? ByteBuffer.allocateDirect(numBytes) : ByteBuffer.allocate(numBytes);
+		}
+
+		public void write(String s)
+		{
+			int len = s.length();
+
+			for (int off = 0; off < len;)
+			{
+				if (!chars.hasRemaining())
+					encodeChars();
+
+				int n = Math.min(len - off, chars.remaining());
+				int pos = chars.position();
+				s.getChars(off, off + n, chars.array(), chars.arrayOffset() + pos);
+				chars.position(pos + n);
+				off += n;
+			}
+		}
+
+		public void write(char[] cbuf, int off, int len)
+		{
+			for (int end = off + len; off < end;)
+			{
+				if (!chars.hasRemaining())
+					encodeChars();
+
+				int n = Math.min(end - off, chars.remaining());
+				chars.put(cbuf, off, n);
+				off += n;
+			}
+		}
+
+		/**
+		 * Write bytes which are already encoded text, after any buffered text
+		 */
+		public void write(byte[] data, int off, int len)
+		{
+			encodeChars();
+
+			for (int end = off + len; off < end;)
+			{
+				if (!bytes.hasRemaining())
+				{
+					bytes.flip();
+					writeBytes(bytes);
+					bytes.clear();
+				}
+
+				int n = Math.min(end - off, bytes.remaining());
+				bytes.put(data, off, n);
+				off += n;
+			}
+		}
+
+		/**
+		 * Write raw bytes, after any buffered text
+		 */
+		public void write(byte[] data)
+		{
+			flush();
+			writeBytes(ByteBuffer.wrap(data));
+		}
+
+		public void flush()
+		{
+			encodeChars();
+			bytes.flip();
+			writeBytes(bytes);
+			bytes.clear();
+		}
+
+		/**
+		 * Encode the buffered characters into the byte buffer, writing it out
+		 * whenever it's full. A trailing high surrogate stays in the buffer
+		 * until the rest of its pair arrives.
+		 */
+		private void encodeChars()
+		{
+			chars.flip();
+
+			while (encoder.encode(chars, bytes, false).isOverflow())
+			{
+				bytes.flip();
+				writeBytes(bytes);
+				bytes.clear();
+			}
+
+			chars.compact();
+		}
+
+		private void writeBytes(ByteBuffer buf)
+		{
+			try
+			{
+				while (buf.hasRemaining())
+					channel.write(buf);
+			}
+			catch (IOException e)
+			{
+				throw new AutomatonExportException("Error writing output", e);
+			}
+		}
+	}
 }
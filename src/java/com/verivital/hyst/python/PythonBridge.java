@@ -1,26 +1,45 @@
 package com.verivital.hyst.python;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystJob;
 import com.verivital.hyst.util.FileOperations;
 
 /**
- * This class is java <-> python interface using stdin / stdout and python
- * interactive mode
+ * This class is java <-> python interface using stdin / stdout. The python
+ * side runs pythonbridge/bridge_server.py, and every request and response is a
+ * length-prefixed binary frame (see the protocol description in that module),
+ * so there's no prompt detection and numeric results can come back as packed
+ * doubles.
  * 
  * It is a singleton, use getInstance() to get an instance of the bridge. The
  * bridge is reused for any passes or printers which use it, so don't put it
- * into an inconsistent state.
+ * into an inconsistent state. When conversions run at the same time (-batch or
+ * the server), the first HystJob to call getInstance() uses the singleton until
+ * the job finishes, and other jobs wait for it in getInstance(), so a job's
+ * python definitions and timeout aren't changed under it. Requests are
+ * synchronized, so several threads of one job can share the bridge.
  * 
  * Overhead: In performance tests, I measured around 15000 function calls per
  * second using this bridge In native python, I measured 5.5 million function
@@ -36,18 +55,58 @@ import com.verivital.hyst.util.FileOperations;
 public class PythonBridge
 {
 	private static PythonBridge instance = null;
+	private static HystJob owner = null; // the job using the singleton, if any
 	private static final String[] REQUIRED_PACKAGES = { "sympy", "scipy", "matplotlib", "math" };
 
 	// if hasPython() gives false, this gets set
 	public static String getInstanceErrorString = "No Error";
-	private static final int DEFAULT_TIMEOUT = 10000; // 10 seconds
+	static final int DEFAULT_TIMEOUT = 10000; // 10 seconds
 	public static final int NO_TIMEOUT = -1;
 
-	private int timeoutMs;
-	private Process process = null;
-	private BufferedReader stdout = null;
-	private BufferedReader stderr = null;
-	private Writer stdin = null;
+	// python dict holding the automata defined through defineAutomaton()
+	private static final String AUTOMATON_REGISTRY = "_hyst_automata";
+	private static final int MAX_DEFINED_AUTOMATA = 16;
+
+	// frame kinds and statuses, these must match pythonbridge/bridge_server.py
+	private static final byte REQ_EXEC = 'E';
+	private static final byte REQ_EVAL_DOUBLES = 'D';
+	private static final byte REQ_QUIT = 'Q';
+	private static final byte RES_TEXT = 'T';
+	private static final byte RES_DOUBLES = 'D';
+	private static final byte RES_ERROR = 'X';
+
+	// python name the request doubles are bound to
+	public static final String ARGS = "_hyst_args";
+
+	// how much of python's stderr is kept for error messages
+	private static final int MAX_STDERR_BYTES = 16 * 1024;
+
+	// ends the python process of a request that reaches its timeout, which
+	// wakes up the blocked read
+	private static final ScheduledExecutorService watchdog = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread rv = new Thread(r, "PythonBridge watchdog");
+					rv.setDaemon(true);
+					return rv;
+				}
+			});
+
+	private volatile int timeoutMs;
+	private volatile Process process = null;
+	private InputStream stdout = null;
+	private StderrReader stderr = null;
+	private volatile boolean timedOut = false; // set by the watchdog
+	private DataOutputStream stdin = null;
+	private Thread shutdownHook = null; // closes the process at exit, while it's open
+
+	// session registry: content hash of automaton source -> python handle
+	// (access-ordered, so the least-recently used definition is evicted first)
+	private LinkedHashMap<String, String> definedAutomata = new LinkedHashMap<String, String>(16,
+			0.75f, true);
 
 	private enum Status
 	{
@@ -55,8 +114,8 @@ public class PythonBridge
 	}
 
 	// these static flags
-	private static boolean blockPython = false;
-	private static Status pythonStatus = Status.UNKNOWN;
+	private static volatile boolean blockPython = false;
+	private static volatile Status pythonStatus = Status.UNKNOWN;
 
 	/**
 	 * This sets whether python should be blocked (pretend it doesn't exist).
@@ -69,7 +128,7 @@ public class PythonBridge
 		blockPython = isBlocked;
 	}
 
-	public static boolean hasPython()
+	public static synchronized boolean hasPython()
 	{
 		boolean rv = false;
 
@@ -79,7 +138,9 @@ public class PythonBridge
 			{
 				try
 				{
-					getInstance();
+					if (instance == null)
+						instance = new PythonBridge(DEFAULT_TIMEOUT);
+
 					getInstanceErrorString = "No Error";
 				}
 				catch (AutomatonExportException e)
@@ -97,14 +158,22 @@ public class PythonBridge
 		return rv;
 	}
 
-	public static PythonBridge getInstance()
+	/**
+	 * Get the singleton, keeping its current timeout (the default timeout for a
+	 * job that just got the bridge)
+	 */
+	public static synchronized PythonBridge getInstance()
 	{
+		acquire();
+
 		int timeout = instance == null ? DEFAULT_TIMEOUT : instance.timeoutMs;
 		return getInstance(timeout);
 	}
 
-	public static PythonBridge getInstance(int timeoutMs)
+	public static synchronized PythonBridge getInstance(int timeoutMs)
 	{
+		acquire();
+
 		if (blockPython)
 		{
 			// this occurs if the user programatically called
@@ -125,30 +194,83 @@ public class PythonBridge
 		return instance;
 	}
 
+	/**
+	 * Wait until no other job is using the singleton, and make the current job
+	 * (if there is one) its user. Must be called while synchronized on the
+	 * class.
+	 */
+	private static void acquire()
+	{
+		HystJob job = HystJob.current();
+
+		if (job == null || owner == job)
+			return;
+
+		while (owner != null)
+		{
+			try
+			{
+				PythonBridge.class.wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new AutomatonExportException(
+						"Interrupted while waiting for another job to finish with python", e);
+			}
+		}
+
+		owner = job;
+
+		// don't inherit the previous job's timeout
+		if (instance != null)
+			instance.setTimeout(DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Let other jobs use the singleton, if the given job was using it. This is
+	 * called when a job finishes.
+	 * 
+	 * @param job
+	 *            the job
+	 */
+	public static synchronized void release(HystJob job)
+	{
+		if (owner == job)
+		{
+			owner = null;
+			PythonBridge.class.notifyAll();
+		}
+	}
+
 	/**
 	 * Sets the timeout in milliseconds, use NO_TIMEOUT for no timeout
 	 * 
 	 * @param timeoutMs
 	 */
 	public PythonBridge(int timeoutMs)
+	{
+		this(timeoutMs, false);
+	}
+
+	/**
+	 * Create a bridge. Pooled bridges are owned by a PythonBridgePool and are
+	 * separate from the singleton returned by getInstance().
+	 * 
+	 * @param timeoutMs
+	 *            the timeout in milliseconds, use NO_TIMEOUT for no timeout
+	 * @param pooled
+	 *            is this a worker in a PythonBridgePool?
+	 */
+	PythonBridge(int timeoutMs, boolean pooled)
 	{
 		this.timeoutMs = timeoutMs;
 
-		if (instance != null)
+		if (!pooled && instance != null)
 			throw new RuntimeException("Multiple instances of PythonBridge were created.");
 
 		open();
 
-		final PythonBridge bridge = this;
-
-		Runtime.getRuntime().addShutdownHook(new Thread()
-		{
-			public void run()
-			{
-				bridge.close();
-			}
-		});
-
 		pythonStatus = Status.TRUE;
 	}
 
@@ -163,13 +285,41 @@ public class PythonBridge
 		this.timeoutMs = timeoutMs;
 	}
 
+	/**
+	 * Is the python process running? This is false after an error or timeout,
+	 * which closes the process.
+	 * 
+	 * @return true if requests can be sent
+	 */
+	boolean isAlive()
+	{
+		return process != null && isRunning();
+	}
+
+	/**
+	 * Close the python process (if it's still open) and start a fresh one. All
+	 * python state, such as defined functions and automata, is lost.
+	 */
+	synchronized void restart()
+	{
+		log("Restarting Python process.");
+		close();
+		open();
+	}
+
 	private void open()
 	{
-		log("Opening Python process in interactive mode.");
+		log("Opening Python bridge server process.");
 		openProcess();
+		addShutdownHook();
+
+		log("Reading Python hello frame");
+		Response hello = readResponse();
 
-		log("Reading Python preamble");
-		String preamble = readPreamble(timeoutMs);
+		if (hello.status != RES_TEXT)
+			error("Python bridge server sent an unexpected hello frame: " + hello.text);
+
+		String preamble = hello.text;
 
 		if (!preamble.startsWith("Python 2.7"))
 			warn("Python 2.7 was not detected in python interpreter preamble. "
@@ -177,10 +327,8 @@ public class PythonBridge
 
 		log("Python process opened successfully. Preamble: \n" + preamble);
 
-		// remove the continuation prompt on multi-line commands in interactive
-		// mode "... "
 		send("import sys");
-		send("sys.ps2 = ''");
+		send(AUTOMATON_REGISTRY + " = {}");
 
 		for (String pack : REQUIRED_PACKAGES)
 		{
@@ -242,10 +390,33 @@ public class PythonBridge
 		System.err.println("Warning: " + description);
 	}
 
-	private void close()
+	private void destroyProcess()
+	{
+		Process p = process;
+
+		if (p != null)
+			p.destroy();
+	}
+
+	/**
+	 * Close the python process, if it's open. Pooled bridges are closed by
+	 * their PythonBridgePool.
+	 */
+	synchronized void close()
 	{
+		removeShutdownHook();
+
 		if (process != null)
 		{
+			try
+			{
+				// ask the server to stop; it also stops on end of stream
+				writeRequest(REQ_QUIT, "", null);
+			}
+			catch (IOException e)
+			{
+			}
+
 			try
 			{
 				process.getInputStream().close();
@@ -270,6 +441,52 @@ public class PythonBridge
 			stdin = null;
 			stderr = null;
 		}
+
+		// the python session is gone, so are the definitions
+		definedAutomata.clear();
+	}
+
+	/**
+	 * Close the process when the JVM exits, in case the bridge isn't closed
+	 * before then. The hook is removed when the bridge is closed, so bridges
+	 * which are opened and closed many times (like pool workers) don't pile
+	 * up hooks.
+	 */
+	private synchronized void addShutdownHook()
+	{
+		if (shutdownHook == null)
+		{
+			final PythonBridge bridge = this;
+
+			// this doesn't take the bridge's lock, which a request with no
+			// timeout may be holding
+			shutdownHook = new Thread()
+			{
+				public void run()
+				{
+					bridge.destroyProcess();
+				}
+			};
+
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+	}
+
+	private synchronized void removeShutdownHook()
+	{
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook)
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}
+			catch (IllegalStateException e)
+			{
+				// already shutting down, the hook is running or about to
+			}
+		}
+
+		shutdownHook = null;
 	}
 
 	private void openProcess()
@@ -299,7 +516,7 @@ public class PythonBridge
 			error("Error starting python process. Is 'python2.7' or 'python' on your PATH or "
 					+ ENV_VAR + "?");
 
-		ProcessBuilder pb = new ProcessBuilder(loc, "-i");
+		ProcessBuilder pb = new ProcessBuilder(loc, "-u", "-m", "pythonbridge.bridge_server");
 		String workingDir = getJarBaseDirectory();
 		pb.directory(new File(workingDir));
 
@@ -312,9 +529,10 @@ public class PythonBridge
 			error("Exception while starting python process: " + e.toString());
 		}
 
-		stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
-		stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-		stdin = new OutputStreamWriter(process.getOutputStream());
+		stdout = new BufferedInputStream(process.getInputStream());
+		stderr = new StderrReader(process.getErrorStream());
+		stderr.start();
+		stdin = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
 	}
 
 	public static String getJarBaseDirectory()
@@ -346,188 +564,260 @@ public class PythonBridge
 	}
 
 	/**
-	 * Read the python preamble off of stderr. It ends when the prompy '>>> ' is
-	 * detected.
-	 * 
-	 * @return the preamble read from stderr
+	 * A decoded response frame
 	 */
-	private String readPreamble(int timeoutMs)
+	private static class Response
 	{
-		String rv = null;
-		StringBuilder sb = new StringBuilder();
-		long timeout = System.currentTimeMillis() + timeoutMs;
-
-		try
-		{
-			char[] prompt = { '>', '>', '>', ' ' };
-			int index = 0;
+		byte status;
+		String text;
+		double[] doubles;
+	}
 
-			while (true)
-			{
-				// sleep until there's input
-				while (!stderr.ready())
-				{
-					Thread.yield();
+	/**
+	 * Write a request frame to the python process and flush it
+	 * 
+	 * @param kind
+	 *            the request kind
+	 * @param code
+	 *            the python code
+	 * @param args
+	 *            the doubles bound to ARGS in python, may be null
+	 */
+	private void writeRequest(byte kind, String code, double[] args) throws IOException
+	{
+		byte[] codeBytes = code.getBytes("UTF-8");
+		int numArgs = args == null ? 0 : args.length;
 
-					if (timeoutMs >= 0 && System.currentTimeMillis() >= timeout)
-						error("Timeout (" + timeoutMs
-								+ " ms) reached while reading python preamble.");
-				}
+		stdin.writeInt(1 + 4 + codeBytes.length + 4 + 8 * numArgs);
+		stdin.writeByte(kind);
+		stdin.writeInt(codeBytes.length);
+		stdin.write(codeBytes);
+		stdin.writeInt(numArgs);
 
-				int readInt = stderr.read();
+		for (int i = 0; i < numArgs; ++i)
+			stdin.writeDouble(args[i]);
 
-				if (readInt == -1) // end of stream
-					error("End of output stream was reached while looking for python prompt.");
+		stdin.flush();
+	}
 
-				char c = (char) readInt;
+	/**
+	 * Read a response frame from the python process, respecting the timeout
+	 * 
+	 * @return the decoded response
+	 */
+	private Response readResponse()
+	{
+		Response rv = new Response();
+		ScheduledFuture<?> timer = null;
+		timedOut = false;
 
-				sb.append(c);
+		if (timeoutMs >= 0)
+		{
+			final Process p = process;
 
-				if (c == prompt[index])
+			timer = watchdog.schedule(new Runnable()
+			{
+				@Override
+				public void run()
 				{
-					++index;
-
-					if (index == prompt.length)
-					{
-						// exit only if there are no more bytes to be read
-						if (!stderr.ready())
-							break;
-						else
-							index = 0;
-					}
+					timedOut = true;
+					p.destroy();
 				}
-				else
-					index = 0;
-			}
+			}, timeoutMs, TimeUnit.MILLISECONDS);
+		}
+
+		try
+		{
+			int length = ByteBuffer.wrap(readFully(4)).getInt();
 
-			// trim off the prompt
-			int len = sb.length();
-			sb.delete(len - prompt.length, len);
+			if (length < 1 + 4 + 4)
+				error("Malformed frame from python (length " + length + ")");
 
-			// remove \n and \r if they're at the end of the string
-			trimSuffix(sb, '\n');
-			trimSuffix(sb, '\r');
+			ByteBuffer payload = ByteBuffer.wrap(readFully(length));
 
-			rv = sb.toString();
+			rv.status = payload.get();
+			byte[] textBytes = new byte[payload.getInt()];
+			payload.get(textBytes);
+			rv.text = new String(textBytes, "UTF-8");
+			rv.doubles = new double[payload.getInt()];
+			payload.asDoubleBuffer().get(rv.doubles);
 		}
 		catch (IOException e)
 		{
-			error("Error while reading python preamble.", e);
+			if (timedOut)
+				timeoutError();
+
+			error("Error while reading python response", e);
+		}
+		finally
+		{
+			if (timer != null)
+				timer.cancel(false);
 		}
 
+		// the watchdog may have ended the process just as the response came in
+		if (timedOut)
+			timeoutError();
+
 		return rv;
 	}
 
+	private void timeoutError()
+	{
+		error("Timeout (" + timeoutMs + " ms) reached during python interaction."
+				+ stderrSuffix());
+	}
+
 	/**
-	 * Read stdout until the prompt '>>> ' is given on stderr
+	 * Read exactly the given number of bytes from python's stdout. This blocks;
+	 * the watchdog started by readResponse() ends the process at the timeout.
 	 * 
-	 * @param quitOnStderr
-	 *            should we raise an exception if stderr output is detected
-	 *            other than the prompt?
-	 * @return output the received stdout / stderr strings
+	 * @param numBytes
+	 *            the number of bytes to read
+	 * @return the bytes that were read
 	 */
-	private String readUntilPrompt()
+	private byte[] readFully(int numBytes) throws IOException
 	{
-		String rv = null;
-		StringBuilder sbStdout = new StringBuilder();
-		StringBuilder sbStderr = new StringBuilder();
-		long timeout = System.currentTimeMillis() + timeoutMs;
+		byte[] rv = new byte[numBytes];
+		int offset = 0;
 
-		try
+		while (offset < numBytes)
 		{
-			char[] prompt = { '>', '>', '>', ' ' };
-			int index = 0;
-			boolean done = false;
+			int count = stdout.read(rv, offset, numBytes - offset);
 
-			while (!done)
+			if (count == -1) // end of stream
 			{
-				// sleep until there's input
-				while (!stdout.ready() && !stderr.ready())
-				{
-					Thread.yield();
+				if (timedOut)
+					timeoutError();
 
-					if (timeoutMs >= 0 && System.currentTimeMillis() >= timeout)
-					{
-						String out = "";
-						String err = "";
+				error("Python process exited while reading python response." + stderrSuffix());
+			}
 
-						if (sbStdout.length() > 0)
-							out = "\nStdout was: '" + sbStdout.toString() + "'";
+			offset += count;
+		}
 
-						if (sbStderr.length() > 0)
-							err = "\nStderr was: '" + sbStderr.toString() + "'";
+		return rv;
+	}
 
-						error("Timeout (" + timeoutMs + " ms) reached during python interaction."
-								+ out + err);
-					}
-				}
+	private boolean isRunning()
+	{
+		boolean rv = false;
 
-				// read stdout until blocked
-				while (stdout.ready())
-				{
-					int readInt = stdout.read();
+		try
+		{
+			process.exitValue();
+		}
+		catch (IllegalThreadStateException e)
+		{
+			rv = true;
+		}
 
-					if (readInt == -1) // end of stream
-						error("End of output stream was reached while reading python response.");
+		return rv;
+	}
 
-					sbStdout.append((char) readInt);
-				}
+	/**
+	 * Get what python wrote to stderr since the last call (for example, startup
+	 * errors or output of the current request), formatted for appending to an
+	 * error message
+	 * 
+	 * @return the suffix, or the empty string if nothing was written
+	 */
+	private String stderrSuffix()
+	{
+		String rv = "";
 
-				// read stderr until blocked
-				while (stderr.ready())
+		if (stderr != null)
+		{
+			// if python exited, let the reader catch up with its last output
+			if (process != null && !isRunning())
+			{
+				try
+				{
+					stderr.join(1000);
+				}
+				catch (InterruptedException e)
 				{
-					int readInt = stderr.read();
-
-					if (readInt == -1) // end of stream
-						error("End of output stream was reached while looking for python prompt.");
-
-					char c = (char) readInt;
-					sbStderr.append(c);
-
-					if (c == prompt[index])
-					{
-						++index;
-
-						if (index == prompt.length)
-						{
-							// exit only if there are no more bytes to be read
-							if (!stderr.ready())
-							{
-								done = true;
-								break;
-							}
-							else
-								index = 0;
-						}
-					}
-					else
-						index = 0;
+					Thread.currentThread().interrupt();
 				}
 			}
 
-			// read any remaining stdout characters
-			sbStdout.append(readUntilBlocked(stdout));
+			String text = stderr.take();
 
-			// trim off the prompt
-			sbStderr.delete(sbStderr.length() - prompt.length, sbStderr.length());
+			if (text.length() > 0)
+				rv = "\nStderr was: '" + text + "'";
+		}
 
-			// trim off \n if it's at the end
-			trimSuffix(sbStdout, '\n');
-			trimSuffix(sbStdout, '\r');
+		return rv;
+	}
 
-			// if anything was printed to stderr, it's an error
-			if (sbStderr.length() > 0)
-				error("Python produced output on stderr:\n'" + sbStderr.toString() + "'"
-						+ (sbStdout.length() > 0 ? "\n\nstdout was:\n" + sbStdout.toString() : ""));
+	/**
+	 * Reads python's stderr as it's written, so python never blocks on a full
+	 * stderr pipe (where the bridge server also sends stray stdout output).
+	 * Only the last MAX_STDERR_BYTES are kept, for error messages.
+	 */
+	private static class StderrReader extends Thread
+	{
+		private final InputStream in;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
 
-			rv = sbStdout.toString();
+		public StderrReader(InputStream in)
+		{
+			super("PythonBridge stderr");
+			this.in = in;
+			setDaemon(true);
 		}
-		catch (IOException e)
+
+		@Override
+		public void run()
 		{
-			error("Error while reading python output", e);
+			byte[] buf = new byte[4096];
+			int count;
+
+			try
+			{
+				while ((count = in.read(buf)) != -1)
+					append(buf, count);
+			}
+			catch (IOException e)
+			{
+				// stream was closed
+			}
 		}
 
-		return rv;
+		private synchronized void append(byte[] buf, int count)
+		{
+			bytes.write(buf, 0, count);
+
+			if (bytes.size() > MAX_STDERR_BYTES)
+			{
+				byte[] all = bytes.toByteArray();
+				int keep = MAX_STDERR_BYTES / 2;
+
+				bytes.reset();
+				bytes.write(all, all.length - keep, keep);
+			}
+		}
+
+		/**
+		 * Get the text read so far, and clear it
+		 */
+		public synchronized String take()
+		{
+			String rv;
+
+			try
+			{
+				rv = bytes.toString("UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new RuntimeException(e);
+			}
+
+			bytes.reset();
+
+			return rv;
+		}
 	}
 
 	private void trimSuffix(StringBuilder sb, char c)
@@ -539,141 +829,217 @@ public class PythonBridge
 	}
 
 	/**
-	 * Read a stream until it's blocked
+	 * Send a request frame to the python process and wait for the response
 	 * 
-	 * @param stream
-	 * @return
+	 * @param kind
+	 *            the request kind
+	 * @param code
+	 *            the python code
+	 * @param args
+	 *            the doubles bound to ARGS in python, may be null
+	 * @return the response, which will not have the error status
 	 */
-	private String readUntilBlocked(BufferedReader stream) throws IOException
+	private synchronized Response sendAndWait(byte kind, String code, double[] args)
 	{
-		StringBuilder sb = new StringBuilder();
+		Response result = null;
 
-		while (stream.ready())
-		{
-			int c = stream.read();
+		if (process == null)
+			error("send() called but process is not running (was open() called?)");
 
-			// end of stream
-			if (c == -1)
-				break;
+		if (code.length() == 0)
+			error("send() called with empty string");
 
-			sb.append((char) c);
-		}
+		// errors should only show what this request wrote
+		String earlierStderr = stderr.take();
 
-		return sb.toString();
-	}
-
-	/**
-	 * Send a string over stdin to the python interpreter and get the result
-	 * printed from stdout
-	 * 
-	 * @param cmd
-	 *            the command to send (without the trailing newline, which is
-	 *            automatically added)
-	 * @return the output from stdout until the next prompt. May be the empty
-	 *         string, but never null.
-	 */
-	private String sendAndWait(String s)
-	{
-		String result = null;
-
-		if (process == null)
-			error("send called but process is closed.");
+		if (earlierStderr.length() > 0)
+			logDebug("Python wrote to stderr: " + earlierStderr);
 
 		try
 		{
-			String stdOutBefore = readUntilBlocked(stdout);
-			String stdErrBefore = readUntilBlocked(stderr);
-
-			if (stdOutBefore.length() != 0)
-				error("stdout contained stale text before the send command: '" + stdOutBefore
-						+ "'");
-
-			if (stdErrBefore.length() != 0)
-				error("stderr contained stale text before the send command: '" + stdErrBefore
-						+ "'");
-
-			logDebug("Sending to python: " + s);
-			stdin.write(s);
-			stdin.write("\n");
-			stdin.flush();
+			logDebug("Sending to python: " + code);
+			writeRequest(kind, code, args);
 
 			logDebug("Reading from python with timeout " + timeoutMs + " ms");
-			result = readUntilPrompt();
-			logDebug("Read result from python: " + result);
+			result = readResponse();
+			logDebug("Read result from python: " + result.text);
 		}
 		catch (IOException e)
 		{
 			error("Error while interacting with python during send()", e);
 		}
 
+		if (result.status == RES_ERROR)
+			error("Python produced output on stderr:\n'" + result.text + "'");
+
 		return result;
 	}
 
 	/**
-	 * Send a string over stdin to the python interpreter and get the result
-	 * printed from stdout
+	 * Send python code to the interpreter and get the result printed to stdout.
+	 * Code is run like in interactive mode, so the value of an expression
+	 * statement is printed. Multi-line code, such as function declarations, can
+	 * be sent directly.
 	 * 
 	 * @param cmd
-	 *            the command to send (without the trailing newline, which is
-	 *            automatically added)
-	 * @return the output from stdout until the next prompt. May be the empty
-	 *         string, but never null.
+	 *            the python code to run
+	 * @return the output from stdout (without a trailing newline). May be the
+	 *         empty string, but never null.
 	 */
 	public String send(String s)
 	{
-		if (s.contains("\n"))
-		{
-			// multiline command: get rid of newline within functions
-			// if there are one or more new lines, followed by a line that
-			// starts with a space,
-			// then eliminate the newline
-			s = s.replaceAll("\\n\\n+ ", "\n ");
-			s = s.replaceAll("\\n\\n+\\t", "\n\t");
+		return send(s, null);
+	}
 
-			// multiline command: hide prompt until the end
-			s = "sys.ps1 = ''\n" + s + "\nsys.ps1='>>> '";
-		}
+	/**
+	 * Send python code to the interpreter and get the result printed to stdout.
+	 * The passed-in doubles are sent in binary and bound to the python tuple
+	 * named ARGS before the code is run, which is faster than printing large
+	 * point lists into the code.
+	 * 
+	 * @param cmd
+	 *            the python code to run
+	 * @param args
+	 *            the values to bind to ARGS, may be null
+	 * @return the output from stdout (without a trailing newline). May be the
+	 *         empty string, but never null.
+	 */
+	public String send(String s, double[] args)
+	{
+		StringBuilder rv = new StringBuilder(sendAndWait(REQ_EXEC, s, args).text);
+
+		// trim off \n if it's at the end
+		trimSuffix(rv, '\n');
+		trimSuffix(rv, '\r');
 
-		return send(s, false);
+		return rv.toString();
 	}
 
 	/**
-	 * Send a string over stdin to the python interpreter and get the result
-	 * printed from stdout.
-	 * 
-	 * This version allows the string to end with a newline, which is typically
-	 * an error, but may be necessary for things like function declarations
+	 * Send python code to the interpreter. This is the same as send(), and is
+	 * kept for callers which declare functions ending in a blank line.
 	 * 
 	 * @param cmd
-	 *            the command to send (trailing newline is automatically added,
-	 *            so that your string will have two trailing newlines)
-	 * @return the output from stdout until the next prompt. May be the empty
-	 *         string, but never null.
+	 *            the command to send, ending with a newline
+	 * @return the output from stdout (without a trailing newline). May be the
+	 *         empty string, but never null.
 	 */
 	public String sendWithTrailingNewline(String s)
 	{
 		if (!s.endsWith("\n"))
 			error("sendNewlineIsOnPurpose() used by command didn't end with newline: " + s);
 
-		return send(s, true);
+		return send(s);
 	}
 
-	private String send(String s, boolean allowNewlineEndings)
+	/**
+	 * Evaluate a python expression which produces a number, or a (nested) list
+	 * of numbers, like a list of [min, max] intervals. The result is sent back
+	 * as packed doubles, in flattened order, so it doesn't need to be parsed.
+	 * 
+	 * @param expression
+	 *            the python expression to evaluate
+	 * @param args
+	 *            the values to bind to ARGS, may be null
+	 * @return the flattened result
+	 */
+	public double[] sendForDoubles(String expression, double[] args)
 	{
-		String result = null;
+		Response r = sendAndWait(REQ_EVAL_DOUBLES, expression, args);
 
-		if (process == null)
-			error("send() called but process is not running (was open() called?)");
+		if (r.status != RES_DOUBLES)
+			error("Python bridge server sent an unexpected response status: " + (char) r.status);
 
-		if (s.length() == 0)
-			error("send() called with empty string");
-		else if (!allowNewlineEndings && s.endsWith("\n"))
-			error("send() ends with \\n; the newline is added automatically and this would "
-					+ "cause issues with PythonBridge's prompt detection.\nIf you want to end "
-					+ "the command with a \\n, for example to declare a function, use sendWithTrailingNewline().");
+		return r.doubles;
+	}
 
-		result = sendAndWait(s);
+	/**
+	 * Get a python expression which reshapes the flat ARGS tuple into a list of
+	 * rows, for example a list of points
+	 * 
+	 * @param rowSize
+	 *            the number of values in each row
+	 * @return the python expression
+	 */
+	public static String argsAsRows(int rowSize)
+	{
+		return "[list(" + ARGS + "[i:i+" + rowSize + "]) for i in range(0, len(" + ARGS + "), "
+				+ rowSize + ")]";
+	}
 
-		return result;
+	/**
+	 * Define a hybrid automaton in the python session, reusing an earlier
+	 * definition if identical source was already sent. The source must declare
+	 * a define_ha() function, like the output of
+	 * PySimPrinter.automatonToString(). The automaton is constructed once and
+	 * stored in the session under a content-hash handle, so repeated
+	 * simulations of an unchanged Configuration don't resend or re-evaluate
+	 * it.
+	 * 
+	 * @param source
+	 *            the python source declaring define_ha()
+	 * @return a python expression which refers to the constructed automaton,
+	 *         like "_hyst_automata['9f2c...']"
+	 */
+	public synchronized String defineAutomaton(String source)
+	{
+		String hash = contentHash(source);
+		String handle = definedAutomata.get(hash);
+
+		if (handle == null)
+		{
+			handle = AUTOMATON_REGISTRY + "['" + hash + "']";
+
+			logDebug("Defining automaton in python with handle " + handle);
+			String res = send(source + handle + " = define_ha()");
+
+			if (res.length() > 0)
+				error("Got result when defining automaton (didn't expect one): " + res);
+
+			definedAutomata.put(hash, handle);
+
+			if (definedAutomata.size() > MAX_DEFINED_AUTOMATA)
+			{
+				Iterator<String> it = definedAutomata.values().iterator();
+				String eldest = it.next();
+				it.remove();
+
+				send("del " + eldest);
+			}
+		}
+		else
+			logDebug("Reusing automaton definition in python with handle " + handle);
+
+		return handle;
+	}
+
+	/**
+	 * Get a hex content hash of a string, used for the automaton handles
+	 * 
+	 * @param s
+	 *            the string to hash
+	 * @return the hash, as a hex string
+	 */
+	private static String contentHash(String s)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+			for (byte b : md.digest(s.getBytes("UTF-8")))
+				rv.append(String.format("%02x", b));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		return rv.toString();
 	}
 }
@@ -0,0 +1,368 @@
+package com.verivital.hyst.python;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * A pool of independent python processes, each behind its own PythonBridge.
+ * PythonBridge.getInstance() is a single interpreter, so every request is
+ * serialized; with a pool, independent requests (like simplifying many
+ * expressions) can run concurrently on several cores.
+ *
+ * Use checkout() to get exclusive use of a bridge and checkin() to return it,
+ * or sendAll() to run a list of commands across the pool. Bridges are created
+ * lazily. A request which times out or fails closes its python process, and
+ * the bridge is restarted when it's checked back in (or, if that fails, on the
+ * next checkout), so any python state set up on it is gone at that point.
+ *
+ * close() stops the worker threads and closes the python processes (bridges
+ * checked out at that point are closed when they're checked in).
+ *
+ * The default pool, getDefault(), has the size set with setDefaultSize()
+ * (command-line flag -python_workers) and the same default timeout as the
+ * PythonBridge singleton. A size of 1 means no pool is used, and callers should
+ * use the PythonBridge singleton as before.
+ */
+public class PythonBridgePool
+{
+	private static int defaultSize = 1;
+	private static PythonBridgePool defaultPool = null;
+
+	private final int size;
+	private final int timeoutMs;
+	private int numCreated = 0;
+	private final LinkedBlockingQueue<PythonBridge> idle = new LinkedBlockingQueue<PythonBridge>();
+	private ExecutorService executor = null;
+	private boolean closed = false;
+
+	/**
+	 * Create a pool
+	 *
+	 * @param size
+	 *            the maximum number of python processes
+	 * @param timeoutMs
+	 *            the timeout of each bridge, use PythonBridge.NO_TIMEOUT for no
+	 *            timeout
+	 */
+	public PythonBridgePool(int size, int timeoutMs)
+	{
+		if (size < 1)
+			throw new AutomatonExportException("PythonBridgePool size must be positive: " + size);
+
+		this.size = size;
+		this.timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Set the number of python worker processes in the default pool. If the
+	 * size changes, this closes the current default pool, if one exists.
+	 *
+	 * @param size
+	 *            the number of processes, 1 disables the pool
+	 */
+	public static synchronized void setDefaultSize(int size)
+	{
+		if (size < 1)
+			throw new AutomatonExportException("Number of python workers must be positive: " + size);
+
+		if (size == defaultSize)
+			return;
+
+		if (defaultPool != null)
+		{
+			defaultPool.close();
+			defaultPool = null;
+		}
+
+		defaultSize = size;
+	}
+
+	public static synchronized int getDefaultSize()
+	{
+		return defaultSize;
+	}
+
+	/**
+	 * Get the default pool, creating it if needed
+	 *
+	 * @return the pool
+	 */
+	public static synchronized PythonBridgePool getDefault()
+	{
+		if (defaultPool == null)
+			defaultPool = new PythonBridgePool(defaultSize, PythonBridge.DEFAULT_TIMEOUT);
+
+		return defaultPool;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Get exclusive use of a bridge, waiting if all of them are in use. The
+	 * bridge must be returned with checkin().
+	 *
+	 * @return a bridge with a running python process
+	 */
+	public PythonBridge checkout()
+	{
+		PythonBridge rv = null;
+
+		synchronized (this)
+		{
+			if (closed)
+				throw new AutomatonExportException("PythonBridgePool was closed");
+
+			if (idle.isEmpty() && numCreated < size)
+			{
+				++numCreated;
+				Hyst.log("Starting python worker " + numCreated + " of " + size);
+
+				try
+				{
+					rv = new PythonBridge(timeoutMs, true);
+				}
+				catch (RuntimeException e)
+				{
+					--numCreated;
+					throw e;
+				}
+			}
+		}
+
+		if (rv == null)
+		{
+			try
+			{
+				// poll, so that close() doesn't leave this waiting forever
+				while ((rv = idle.poll(100, TimeUnit.MILLISECONDS)) == null)
+				{
+					synchronized (this)
+					{
+						if (closed)
+							throw new AutomatonExportException("PythonBridgePool was closed");
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new AutomatonExportException("Interrupted while waiting for python worker",
+						e);
+			}
+		}
+
+		if (!rv.isAlive())
+		{
+			try
+			{
+				rv.restart();
+			}
+			catch (RuntimeException e)
+			{
+				// the slot can be reused by a new bridge
+				synchronized (this)
+				{
+					--numCreated;
+				}
+
+				throw e;
+			}
+		}
+
+		rv.setTimeout(timeoutMs);
+
+		return rv;
+	}
+
+	/**
+	 * Return a bridge obtained from checkout()
+	 *
+	 * @param pb
+	 *            the bridge
+	 */
+	public void checkin(PythonBridge pb)
+	{
+		// a request which timed out (or failed) closes its process; start a
+		// fresh one now rather than leaving the worker unusable until the next
+		// checkout
+		if (!pb.isAlive())
+		{
+			try
+			{
+				pb.restart();
+			}
+			catch (AutomatonExportException e)
+			{
+				// checkout() will try again
+				Hyst.logDebug("Restarting python worker failed: " + e.getMessage());
+			}
+		}
+
+		returnIdle(pb);
+	}
+
+	/**
+	 * Put a bridge back in the idle queue, or close it if the pool was closed
+	 */
+	private synchronized void returnIdle(PythonBridge pb)
+	{
+		if (closed)
+			pb.close();
+		else
+			idle.add(pb);
+	}
+
+	/**
+	 * Check the health of all the idle bridges by sending a trivial command,
+	 * restarting the ones that don't respond
+	 *
+	 * @return the number of bridges that were restarted
+	 */
+	public int healthCheck()
+	{
+		ArrayList<PythonBridge> checked = new ArrayList<PythonBridge>();
+		idle.drainTo(checked);
+		int rv = 0;
+
+		try
+		{
+			for (PythonBridge pb : checked)
+			{
+				boolean healthy = pb.isAlive();
+
+				if (healthy)
+				{
+					try
+					{
+						healthy = pb.send("1").equals("1");
+					}
+					catch (AutomatonExportException e)
+					{
+						healthy = false;
+					}
+				}
+
+				if (!healthy)
+				{
+					++rv;
+					pb.restart();
+				}
+			}
+		}
+		finally
+		{
+			for (PythonBridge pb : checked)
+				returnIdle(pb);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run a list of independent commands concurrently across the pool. Each
+	 * command is run with PythonBridge.send() on some worker, so it must not
+	 * rely on state set up by other commands.
+	 *
+	 * @param commands
+	 *            the python commands to run
+	 * @return the output of each command, in the same order as commands
+	 */
+	public List<String> sendAll(List<String> commands)
+	{
+		ArrayList<Future<String>> futures = new ArrayList<Future<String>>(commands.size());
+		ExecutorService ex = getExecutor();
+
+		for (final String cmd : commands)
+		{
+			futures.add(ex.submit(new Callable<String>()
+			{
+				@Override
+				public String call()
+				{
+					PythonBridge pb = checkout();
+
+					try
+					{
+						return pb.send(cmd);
+					}
+					finally
+					{
+						checkin(pb);
+					}
+				}
+			}));
+		}
+
+		ArrayList<String> rv = new ArrayList<String>(commands.size());
+
+		for (Future<String> f : futures)
+		{
+			try
+			{
+				rv.add(f.get());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new AutomatonExportException("Interrupted while waiting for python worker",
+						e);
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+
+				if (cause instanceof AutomatonExportException)
+					throw (AutomatonExportException) cause;
+				else if (cause instanceof Exception)
+					throw new AutomatonExportException("Error in python worker: " + cause,
+							(Exception) cause);
+
+				throw new AutomatonExportException("Error in python worker: " + cause);
+			}
+		}
+
+		return rv;
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (executor == null)
+			executor = Executors.newFixedThreadPool(size);
+
+		return executor;
+	}
+
+	/**
+	 * Stop the worker threads and close the idle python processes. Bridges
+	 * that are checked out are closed when they're checked in.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+
+		if (executor != null)
+		{
+			executor.shutdown();
+			executor = null;
+		}
+
+		ArrayList<PythonBridge> bridges = new ArrayList<PythonBridge>();
+		idle.drainTo(bridges);
+
+		for (PythonBridge pb : bridges)
+			pb.close();
+	}
+}
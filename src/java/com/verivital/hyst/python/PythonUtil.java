@@ -78,7 +78,7 @@ public class PythonUtil
 		}
 
 		StringBuilder s = new StringBuilder();
-		s.append("print opt_multi([");
+		s.append("opt_multi([");
 
 		for (int i = 0; i < size; ++i)
 		{
@@ -92,9 +92,9 @@ public class PythonUtil
 		s.append("])");
 
 		pb.send("from pythonbridge.scipy_optimize import *");
-		String result = pb.send(s.toString());
+		double[] result = pb.sendForDoubles(s.toString(), null);
 
-		return parseIntervalListResult(result);
+		return toIntervalList(result, size);
 	}
 
 	private static void checkAllVariablesHaveBounds(Expression e, HashMap<String, Interval> bounds)
@@ -227,48 +227,26 @@ public class PythonUtil
 		return s.toString();
 	}
 
-	private static List<Interval> parseIntervalListResult(String str)
+	/**
+	 * Convert a flattened list of [min, max] pairs (as sent back by
+	 * PythonBridge.sendForDoubles()) into intervals
+	 * 
+	 * @param flat
+	 *            the flattened values
+	 * @param expectedSize
+	 *            the number of intervals expected
+	 * @return the list of intervals
+	 */
+	private static List<Interval> toIntervalList(double[] flat, int expectedSize)
 	{
-		if (!str.startsWith("[") || !str.endsWith("]"))
-			throw new AutomatonExportException("Python result wasn't a list: " + str);
-
-		String rem = str.substring(1, str.length() - 1);
-		int index = 0;
-		ArrayList<Interval> rv = new ArrayList<Interval>();
-
-		while (index < rem.length())
-		{
-			if (rem.charAt(index) == ',')
-				++index;
-
-			if (rem.charAt(index) == ' ')
-				++index;
-
-			if (rem.charAt(index) != '[')
-				throw new AutomatonExportException(
-						"Malformed interval list (expected '['): " + str);
-			else
-				++index;
+		if (flat.length != 2 * expectedSize)
+			throw new AutomatonExportException("Python result had " + flat.length
+					+ " values; expected " + expectedSize + " intervals");
 
-			int commaIndex = rem.indexOf(',', index);
-			int rightIndex = rem.indexOf(']', index);
+		ArrayList<Interval> rv = new ArrayList<Interval>(expectedSize);
 
-			String first = rem.substring(index, commaIndex);
-			String second = rem.substring(commaIndex + 1, rightIndex);
-
-			try
-			{
-				Interval i = new Interval(Double.parseDouble(first), Double.parseDouble(second));
-				rv.add(i);
-			}
-			catch (NumberFormatException e)
-			{
-				throw new AutomatonExportException("Error formatting python optimization result",
-						e);
-			}
-
-			index = rightIndex + 1;
-		}
+		for (int i = 0; i < flat.length; i += 2)
+			rv.add(new Interval(flat[i], flat[i + 1]));
 
 		return rv;
 	}
@@ -376,11 +354,104 @@ public class PythonUtil
 			throw new AutomatonExportException(
 					"pythonSimplifyExpression called, but python was not enabled");
 
+		String command = makeSimplifyCommand(e);
+
+		if (command != null)
+			rv = parseSimplifyResult(PythonBridge.getInstance().send(command));
+
+		return rv;
+	}
+
+	/**
+	 * Use python-sympy to simplify a list of independent expressions. If a
+	 * PythonBridgePool with more than one worker is configured, the expressions
+	 * are simplified concurrently, otherwise this is the same as calling
+	 * pythonSimplifyExpression() on each one.
+	 * 
+	 * @param exps
+	 *            the input expressions
+	 * @return the output expressions, in the same order
+	 */
+	public static List<Expression> pythonSimplifyExpressions(List<Expression> exps)
+	{
+		if (!PythonBridge.hasPython())
+			throw new AutomatonExportException(
+					"pythonSimplifyExpressions called, but python was not enabled");
+
+		// printing and parsing stay on this thread (the printers are not
+		// thread-safe), only the python calls are spread over the workers
+		ArrayList<String> commands = new ArrayList<String>(exps.size());
+		ArrayList<Integer> indices = new ArrayList<Integer>(exps.size());
+
+		for (int i = 0; i < exps.size(); ++i)
+		{
+			String command = makeSimplifyCommand(exps.get(i));
+
+			if (command != null)
+			{
+				commands.add(command);
+				indices.add(i);
+			}
+		}
+
+		List<String> results;
+
+		if (PythonBridgePool.getDefaultSize() > 1 && commands.size() > 1)
+			results = PythonBridgePool.getDefault().sendAll(commands);
+		else
+		{
+			PythonBridge pb = PythonBridge.getInstance();
+			results = new ArrayList<String>(commands.size());
+
+			for (String command : commands)
+				results.add(pb.send(command));
+		}
+
+		ArrayList<Expression> rv = new ArrayList<Expression>(exps);
+
+		for (int i = 0; i < results.size(); ++i)
+			rv.set(indices.get(i), parseSimplifyResult(results.get(i)));
+
+		return rv;
+	}
+
+	/**
+	 * Simplify a list of independent expressions using python, chopping values
+	 * to zero smaller than some tolerance. This is the batch version of
+	 * pythonSimplifyExpressionChop().
+	 * 
+	 * @param exps
+	 *            the expressions to simplify
+	 * @param tol
+	 *            the tolerance for chopping, some small value like 1e-8
+	 * @return the simplified expressions, in the same order
+	 */
+	public static List<Expression> pythonSimplifyExpressionsChop(List<Expression> exps,
+			double tol)
+	{
+		List<Expression> rv = pythonSimplifyExpressions(exps);
+
+		for (int i = 0; i < rv.size(); ++i)
+			rv.set(i, chop(rv.get(i), tol));
+
+		return pythonSimplifyExpressions(rv);
+	}
+
+	/**
+	 * Make the python command which simplifies an expression
+	 * 
+	 * @param e
+	 *            the expression
+	 * @return the command, or null if the expression shouldn't be simplified
+	 */
+	private static String makeSimplifyCommand(Expression e)
+	{
+		String rv = null;
+
 		// optimization: only simplify if it's an operation
 		if (e instanceof Operation && AutomatonUtil.expressionContainsOnlyAllowedOps(e,
 				AutomatonUtil.OPS_LINEAR, AutomatonUtil.OPS_NONLINEAR))
 		{
-			PythonBridge pb = PythonBridge.getInstance();
 			StringBuilder s = new StringBuilder();
 
 			String symbols = makeExpressionVariableSymbols(e);
@@ -393,16 +464,20 @@ public class PythonUtil
 			s.append(pySympyPrinter.print(e));
 			s.append("))");
 
-			String result = pb.send(s.toString());
-
-			// substitute back
-			result = result.replace("**", "^");
-			rv = FormulaParser.parseValue(result);
+			rv = s.toString();
 		}
 
 		return rv;
 	}
 
+	private static Expression parseSimplifyResult(String result)
+	{
+		// substitute back
+		result = result.replace("**", "^");
+
+		return FormulaParser.parseValue(result);
+	}
+
 	/**
 	 * Optimize a function in a hyper-rectangle using interval arithmetic over
 	 * possibly multiple domains. This uses smaller domains to have a guaranteed
@@ -436,7 +511,8 @@ public class PythonUtil
 			allVariables.addAll(AutomatonUtil.getVariablesInExpression(e));
 
 		// x,y = sympy.symbols('x y')
-		appendSymbolsDeclaration(s, allVariables);
+		StringBuilder symbols = new StringBuilder();
+		appendSymbolsDeclaration(symbols, allVariables);
 
 		s.append("eval_eqs_bounded([");
 
@@ -464,9 +540,13 @@ public class PythonUtil
 		s.append(errorStr + ")");
 
 		pb.send("from pythonbridge.interval_optimize import *");
-		String result = pb.send(s.toString());
 
-		return parseIntervalListResult(result);
+		if (symbols.length() > 0)
+			pb.send(symbols.toString());
+
+		double[] result = pb.sendForDoubles(s.toString(), null);
+
+		return toIntervalList(result, expList.size());
 	}
 
 	/**
@@ -77,9 +77,11 @@ public class Classification
 		// TODO: stochastic ones, etc.
 	}
 
-	public static LinkedHashMap<String, Integer> varID;
-	public static double[][] linearMatrix;
-	public static BaseComponent ha;
+	// set by setVarID() and setLinearMatrix(), per instance so that concurrent
+	// conversions don't share them
+	public LinkedHashMap<String, Integer> varID;
+	public double[][] linearMatrix;
+	public BaseComponent ha;
 
 	/**
 	 * Classify whether an automaton is deterministic or not
@@ -292,10 +294,11 @@ public class Classification
 	}
 
 	/**
-	 * merge all variables and constants
+	 * merge all variables and constants (and use ha for setLinearMatrix())
 	 */
 	public void setVarID(BaseComponent ha)
 	{
+		this.ha = ha;
 		varID = new LinkedHashMap<String, Integer>();
 		int id = 0;
 		for (String v : ha.variables)
@@ -72,6 +72,7 @@ public class Preconditions
 	public void check(Configuration c, String name)
 	{
 		Hyst.log("Checking preconditions for " + name);
+		c.makeWritable();
 
 		if (!skip[PreconditionsFlag.CONVERT_NONDETERMINISTIC_RESETS.ordinal()])
 			Preconditions.convertNondeterministicResets(c.root); // may create
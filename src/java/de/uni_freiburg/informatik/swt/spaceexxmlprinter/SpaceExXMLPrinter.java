@@ -4,14 +4,23 @@
 package de.uni_freiburg.informatik.swt.spaceexxmlprinter;
 
 import java.io.File;
+import java.io.FilterWriter;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -22,6 +31,7 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
@@ -65,17 +75,19 @@ public class SpaceExXMLPrinter
 	private SpaceExDocument mSXDocument;
 	private Document mXMLDocument;
 
+	// where the build methods put the elements (the DOM or a stream)
+	private XMLOutput mOutput;
+
 	/**
-	 * Initialize a new SpaceExXMLPrinter with a document, which will be
-	 * translated into a SpaceEx-compatible XML DOM
+	 * Initialize a new SpaceExXMLPrinter with a document, which can be
+	 * translated into a SpaceEx-compatible XML DOM, or streamed with
+	 * writeXML(). The DOM is built when it's first needed.
 	 * 
 	 * @param document
 	 */
 	public SpaceExXMLPrinter(SpaceExDocument document)
 	{
 		mSXDocument = document;
-
-		buildDOM();
 	}
 
 	/**
@@ -85,6 +97,9 @@ public class SpaceExXMLPrinter
 	 */
 	public Document getDOM()
 	{
+		if (mXMLDocument == null)
+			buildDOM();
+
 		return mXMLDocument;
 	}
 
@@ -108,7 +123,7 @@ public class SpaceExXMLPrinter
 			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
 			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
 
-			DOMSource source = new DOMSource(mXMLDocument);
+			DOMSource source = new DOMSource(getDOM());
 			StreamResult result = new StreamResult(new File(filename));
 
 			transformer.transform(source, result);
@@ -144,7 +159,7 @@ public class SpaceExXMLPrinter
 			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
 			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
 
-			DOMSource source = new DOMSource(mXMLDocument);
+			DOMSource source = new DOMSource(getDOM());
 			StringWriter writer = new StringWriter();
 			StreamResult result = new StreamResult(writer);
 
@@ -163,6 +178,47 @@ public class SpaceExXMLPrinter
 		return str_result;
 	}
 
+	/**
+	 * Write the XML directly to a Writer, without building a DOM. The output
+	 * is the same as stringXML(): the same declaration, attribute order,
+	 * indentation and character escaping.
+	 * 
+	 * @param out
+	 *            where to write the XML, it is flushed but not closed
+	 */
+	public void writeXML(Writer out)
+	{
+		if (mSXDocument == null)
+			return;
+
+		try
+		{
+			Writer w = new CharacterReferenceWriter(out);
+			w.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\" standalone=\"no\"?>");
+
+			XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(w);
+			mOutput = new StreamOutput(xml);
+
+			buildDocument();
+
+			xml.writeCharacters("\n");
+			xml.flush();
+			w.flush();
+		}
+		catch (XMLStreamException e)
+		{
+			throw new AutomatonExportException("Error writing SpaceEx XML", e);
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error writing SpaceEx XML", e);
+		}
+		finally
+		{
+			mOutput = null;
+		}
+	}
+
 	/**
 	 * Builds the DOM
 	 */
@@ -176,6 +232,7 @@ public class SpaceExXMLPrinter
 			{
 				xmlBuilder = xmlFactory.newDocumentBuilder();
 				mXMLDocument = xmlBuilder.newDocument();
+				mOutput = new DOMOutput(mXMLDocument);
 
 				buildDocument();
 			}
@@ -183,60 +240,63 @@ public class SpaceExXMLPrinter
 			{
 				e.printStackTrace();
 			}
-
+			catch (XMLStreamException e)
+			{
+				// not thrown when building a DOM
+				throw new AutomatonExportException("Error building SpaceEx XML DOM", e);
+			}
+			finally
+			{
+				mOutput = null;
+			}
 		}
 	}
 
 	/**
-	 * Fills the DOM with data, including general information and the components
+	 * Outputs the document, including general information and the components
 	 */
-	public void buildDocument()
+	private void buildDocument() throws XMLStreamException
 	{
-		if (mXMLDocument == null)
-			return;
-
 		// write the root element: sspaceex, version, ...
-		Element sspaceex = mXMLDocument.createElement("sspaceex");
-		mXMLDocument.appendChild(sspaceex);
+		mOutput.startElement("sspaceex");
 
-		sspaceex.setAttribute("xmlns", "http://www-verimag.imag.fr/xml-namespaces/sspaceex");
-		sspaceex.setAttribute("version", mSXDocument.getVersion());
-		sspaceex.setAttribute("math", mSXDocument.getMathFormat());
+		mOutput.setAttribute("xmlns", "http://www-verimag.imag.fr/xml-namespaces/sspaceex");
+		mOutput.setAttribute("version", mSXDocument.getVersion());
+		mOutput.setAttribute("math", mSXDocument.getMathFormat());
 
 		// write all components
 		for (int i = 0; i < mSXDocument.getComponentCount(); i++)
 		{
 			SpaceExComponent comp = mSXDocument.getComponent(i);
-			buildComponent(comp, sspaceex);
+			buildComponent(comp);
 		}
+
+		mOutput.endElement();
 	}
 
 	/**
-	 * Add the data for a component to the DOM
+	 * Output the data for a component
 	 * 
 	 * @param component
 	 *            Which component to add
-	 * @param parentNode
-	 *            Where to add the data
 	 */
-	public void buildComponent(SpaceExComponent component, Element parentNode)
+	private void buildComponent(SpaceExComponent component) throws XMLStreamException
 	{
 		if (component == null)
 			return;
 
 		// write the component element
-		Element compElem = mXMLDocument.createElement("component");
-		parentNode.appendChild(compElem);
+		mOutput.startElement("component");
 
-		compElem.setAttribute("id", component.getID());
+		mOutput.setAttribute("id", component.getID());
 
-		buildNote(component.getNote(), compElem);
+		buildNote(component.getNote());
 
 		// write all params
 		for (int i = 0; i < component.getParamCount(); i++)
 		{
 			Param param = component.getParam(i);
-			buildParam(param, compElem);
+			buildParam(param);
 		}
 
 		/*
@@ -250,13 +310,13 @@ public class SpaceExXMLPrinter
 			for (int i = 0; i < baseComp.getLocationCount(); i++)
 			{
 				Location loc = baseComp.getLocation(i);
-				buildLocation(loc, compElem);
+				buildLocation(loc);
 			}
 			// write all transitions
 			for (int i = 0; i < baseComp.getTransitionCount(); i++)
 			{
 				Transition transition = baseComp.getTransition(i);
-				buildTransition(transition, compElem);
+				buildTransition(transition);
 			}
 		}
 		else if (component instanceof SpaceExNetworkComponent)
@@ -267,49 +327,46 @@ public class SpaceExXMLPrinter
 			for (int i = 0; i < netComp.getBindCount(); i++)
 			{
 				Bind bind = netComp.getBind(i);
-				buildBind(bind, compElem);
+				buildBind(bind);
 			}
 		}
 		else
 		{
 			printWarning("Unknown component type: " + component.getID());
 		}
+
+		mOutput.endElement();
 	}
 
 	/**
-	 * Add Params to the DOM
+	 * Output a Param (inside its Component)
 	 * 
 	 * @param param
-	 * @param parentNode
-	 *            Node of the Param's Component
 	 */
-	public void buildParam(Param param, Element parentNode)
+	private void buildParam(Param param) throws XMLStreamException
 	{
 		if (param == null)
 			return;
 
 		// write the param element
-		Element paramElem = mXMLDocument.createElement("param");
-		parentNode.appendChild(paramElem);
+		mOutput.startElement("param");
 
-		paramElem.setAttribute("name", param.getName());
+		mOutput.setAttribute("name", param.getName());
 
 		switch (param.getType())
 		{
 		case INT:
-			paramElem.setAttribute("type", "int");
+			mOutput.setAttribute("type", "int");
 			break;
 		case REAL:
-			paramElem.setAttribute("type", "real");
+			mOutput.setAttribute("type", "real");
 			break;
 		case LABEL:
 		default:
-			paramElem.setAttribute("type", "label");
+			mOutput.setAttribute("type", "label");
 		}
 
-		paramElem.setAttribute("local", param.getLocal() ? "true" : "false");
-
-		buildNote(param.getNote(), paramElem);
+		mOutput.setAttribute("local", param.getLocal() ? "true" : "false");
 
 		if (param instanceof VariableParam)
 		{
@@ -317,62 +374,64 @@ public class SpaceExXMLPrinter
 
 			// d1:
 			if (varPar.isDimensionSizeReferenced(1))
-				paramElem.setAttribute("d1", varPar.getDimensionSizeReference(1));
+				mOutput.setAttribute("d1", varPar.getDimensionSizeReference(1));
 			else
-				paramElem.setAttribute("d1", intToString(varPar.getDimensionSize(1)));
+				mOutput.setAttribute("d1", intToString(varPar.getDimensionSize(1)));
 
 			// d2:
 			if (varPar.isDimensionSizeReferenced(2))
-				paramElem.setAttribute("d2", varPar.getDimensionSizeReference(2));
+				mOutput.setAttribute("d2", varPar.getDimensionSizeReference(2));
 			else
-				paramElem.setAttribute("d2", intToString(varPar.getDimensionSize(2)));
+				mOutput.setAttribute("d2", intToString(varPar.getDimensionSize(2)));
 
 			// dynamics
 			switch (varPar.getDynamics())
 			{
 			case CONST:
-				paramElem.setAttribute("dynamics", "const");
+				mOutput.setAttribute("dynamics", "const");
 				break;
 			case EXPLICIT:
-				paramElem.setAttribute("dynamics", "explicit");
+				mOutput.setAttribute("dynamics", "explicit");
 				break;
 			case ANY:
 			default:
-				paramElem.setAttribute("dynamics", "any");
+				mOutput.setAttribute("dynamics", "any");
 			}
 
 			if (varPar.getControlled())
-				paramElem.setAttribute("controlled", "true");
+				mOutput.setAttribute("controlled", "true");
 			else
-				paramElem.setAttribute("controlled", "false");
+				mOutput.setAttribute("controlled", "false");
 		}
+
+		// attributes are set before any child elements, for streaming
+		buildNote(param.getNote());
+
+		mOutput.endElement();
 	}
 
 	/**
-	 * Add Locations to the DOM
+	 * Output a Location (inside its Component)
 	 * 
 	 * @param loc
-	 * @param parentNode
-	 *            Node of the Location's Component
 	 */
-	public void buildLocation(Location loc, Element parentNode)
+	private void buildLocation(Location loc) throws XMLStreamException
 	{
 		if (loc == null)
 			return;
 
 		// write the location element
-		Element locElem = mXMLDocument.createElement("location");
-		parentNode.appendChild(locElem);
+		mOutput.startElement("location");
 
-		locElem.setAttribute("id", intToString(loc.getId()));
-		locElem.setAttribute("name", loc.getName());
+		mOutput.setAttribute("id", intToString(loc.getId()));
+		mOutput.setAttribute("name", loc.getName());
 
-		buildPosition(loc.getPosition(), locElem);
-		buildDimensions(loc.getDimensions(), locElem);
+		buildPosition(loc.getPosition());
+		buildDimensions(loc.getDimensions());
 
 		try
 		{
-			buildExpression(loc.getInvariant(), locElem, "invariant");
+			buildExpression(loc.getInvariant(), "invariant");
 		}
 		catch (AutomatonExportException e)
 		{
@@ -380,85 +439,83 @@ public class SpaceExXMLPrinter
 					e);
 		}
 
-		buildExpression(loc.getFlow(), locElem, "flow", FormulaType.DIFFERENTIAL);
+		buildExpression(loc.getFlow(), "flow", FormulaType.DIFFERENTIAL);
+
+		buildNote(loc.getNote());
 
-		buildNote(loc.getNote(), locElem);
+		mOutput.endElement();
 	}
 
 	/**
-	 * Add Transitions to the DOM
+	 * Output a Transition (inside its Component)
 	 * 
 	 * @param transition
-	 * @param parentNode
-	 *            Node of the Transition's Component
 	 */
-	public void buildTransition(Transition transition, Element parentNode)
+	private void buildTransition(Transition transition) throws XMLStreamException
 	{
 		if (transition == null)
 			return;
 
 		// write the transition element
-		Element transElem = mXMLDocument.createElement("transition");
-		parentNode.appendChild(transElem);
+		mOutput.startElement("transition");
 
-		transElem.setAttribute("source", intToString(transition.getSource()));
-		transElem.setAttribute("target", intToString(transition.getTarget()));
+		mOutput.setAttribute("source", intToString(transition.getSource()));
+		mOutput.setAttribute("target", intToString(transition.getTarget()));
 
-		transElem.setAttribute("bezier", transition.isBezier() ? "true" : "false");
-		transElem.setAttribute("timedriven", transition.isTimeDriven() ? "true" : "false");
-		transElem.setAttribute("asap", transition.isAsap() ? "true" : "false");
+		mOutput.setAttribute("bezier", transition.isBezier() ? "true" : "false");
+		mOutput.setAttribute("timedriven", transition.isTimeDriven() ? "true" : "false");
+		mOutput.setAttribute("asap", transition.isAsap() ? "true" : "false");
 
-		buildText(transition.getLabel(), transElem, "label");
+		buildText(transition.getLabel(), "label");
 
-		buildExpression(transition.getGuard(), transElem, "guard");
-		buildExpression(transition.getAssignment(), transElem, "assignment",
-				FormulaType.ASSIGNMENT);
+		buildExpression(transition.getGuard(), "guard");
+		buildExpression(transition.getAssignment(), "assignment", FormulaType.ASSIGNMENT);
 
 		// label position:
-		Element labPosElem = mXMLDocument.createElement("labelposition");
-		transElem.appendChild(labPosElem);
-		buildPosition(transition.getLabelPosition(), labPosElem);
-		buildDimensions(transition.getLabelDimensions(), labPosElem);
+		mOutput.startElement("labelposition");
+		buildPosition(transition.getLabelPosition());
+		buildDimensions(transition.getLabelDimensions());
+		mOutput.endElement();
 
 		// middle point
-		Element midPosElem = mXMLDocument.createElement("middlepoint");
-		transElem.appendChild(midPosElem);
-		buildPosition(transition.getMiddlepointPosition(), midPosElem);
+		mOutput.startElement("middlepoint");
+		buildPosition(transition.getMiddlepointPosition());
+		mOutput.endElement();
 
-		buildWaypoints(transition.getWaypoints(), transElem);
+		buildWaypoints(transition.getWaypoints());
 
-		buildNote(transition.getNote(), transElem);
+		buildNote(transition.getNote());
+
+		mOutput.endElement();
 	}
 
 	/**
-	 * Add Waypoints to the DOM
+	 * Output Waypoints (inside their Transition)
 	 * 
 	 * @param waypoints
-	 * @param parentNode
-	 *            Node of the UIWaypoints' Transition
 	 */
-	public void buildWaypoints(UIWaypoints waypoints, Element parentNode)
+	private void buildWaypoints(UIWaypoints waypoints) throws XMLStreamException
 	{
 		if (waypoints == null)
 			return;
 
 		// write the waypoints element
-		Element waypointsElem = mXMLDocument.createElement("waypoints");
-		parentNode.appendChild(waypointsElem);
+		mOutput.startElement("waypoints");
+
+		buildWaypointsNode(waypoints, true, "beforemiddle");
+		buildWaypointsNode(waypoints, false, "aftermiddle");
 
-		buildWaypointsNode(waypoints, waypointsElem, true, "beforemiddle");
-		buildWaypointsNode(waypoints, waypointsElem, false, "aftermiddle");
+		mOutput.endElement();
 	}
 
 	/**
 	 * 
 	 * @param waypoints
-	 * @param parentNode
 	 * @param beforeMiddle
 	 * @param tagName
 	 */
-	public void buildWaypointsNode(UIWaypoints waypoints, Element parentNode, boolean beforeMiddle,
-			String tagName)
+	private void buildWaypointsNode(UIWaypoints waypoints, boolean beforeMiddle, String tagName)
+			throws XMLStreamException
 	{
 		String pointsStr = "";
 		for (int i = 0; i < waypoints.getCount(beforeMiddle); i++)
@@ -473,65 +530,61 @@ public class SpaceExXMLPrinter
 		if (pointsStr.length() > 2)
 		{
 			pointsStr.substring(2); // strip first ", "
-			buildText(pointsStr, parentNode, tagName);
+			buildText(pointsStr, tagName);
 		}
 	}
 
 	/**
-	 * Add Binds to the DOM
+	 * Output a Bind (inside its Network Component)
 	 * 
 	 * @param bind
-	 * @param parentNode
-	 *            Node of the Bind's (Network) Component
 	 */
-	public void buildBind(Bind bind, Element parentNode)
+	private void buildBind(Bind bind) throws XMLStreamException
 	{
 		if (bind == null)
 			return;
 
 		// write the bind element
-		Element bindElem = mXMLDocument.createElement("bind");
-		parentNode.appendChild(bindElem);
+		mOutput.startElement("bind");
 
-		bindElem.setAttribute("component", bind.getComponent());
-		bindElem.setAttribute("as", bind.getAs());
+		mOutput.setAttribute("component", bind.getComponent());
+		mOutput.setAttribute("as", bind.getAs());
 
-		buildNote(bind.getNote(), bindElem);
+		buildPosition(bind.getPosition());
+		buildDimensions(bind.getDimensions());
 
-		buildPosition(bind.getPosition(), bindElem);
-		buildDimensions(bind.getDimensions(), bindElem);
+		buildNote(bind.getNote());
 
 		// write all maps
 		for (int i = 0; i < bind.getMapCount(); i++)
 		{
 			BindMap map = bind.getMap(i);
-			buildMap(map, bindElem);
+			buildMap(map);
 		}
+
+		mOutput.endElement();
 	}
 
 	/**
-	 * Add Maps to the DOM
+	 * Output a Map (inside its Bind)
 	 * 
 	 * @param map
-	 * @param parentNode
-	 *            Node of the Map's Bind
 	 */
-	public void buildMap(BindMap map, Element parentNode)
+	private void buildMap(BindMap map) throws XMLStreamException
 	{
 		if (map == null)
 			return;
 
 		// write the bind element
-		Element mapElem = mXMLDocument.createElement("map");
-		parentNode.appendChild(mapElem);
+		mOutput.startElement("map");
 
-		mapElem.setAttribute("key", map.getKey());
+		mOutput.setAttribute("key", map.getKey());
 
 		// param or value bind?
 		if (map instanceof ParamMap)
 		{
 			ParamMap parMap = (ParamMap) map;
-			mapElem.setTextContent(parMap.getParamReference());
+			mOutput.setText(parMap.getParamReference());
 		}
 		else if (map instanceof ValueMap)
 		{
@@ -567,24 +620,24 @@ public class SpaceExXMLPrinter
 				}
 			}
 
-			mapElem.setTextContent(values.substring(2)); // strip heading ", "
+			mOutput.setText(values.substring(2)); // strip heading ", "
 		}
 		else
 		{
 			printWarning("Unknown map type for key: " + map.getKey());
 		}
+
+		mOutput.endElement();
 	}
 
 	/**
-	 * Build a text node with the given content
+	 * Output an element with the given text content
 	 * 
 	 * @param text
-	 * @param parentNode
-	 *            Where to add it in the DOM
 	 * @param tagName
 	 *            Name of the Text Node's tag
 	 */
-	public void buildText(String text, Element parentNode, String tagName)
+	private void buildText(String text, String tagName) throws XMLStreamException
 	{
 		if (text == null)
 			return;
@@ -592,54 +645,296 @@ public class SpaceExXMLPrinter
 		if (text.length() <= 0)
 			return;
 
-		Element textElem = mXMLDocument.createElement(tagName);
-		parentNode.appendChild(textElem);
-		textElem.setTextContent(text);
+		mOutput.startElement(tagName);
+		mOutput.setText(text);
+		mOutput.endElement();
 	}
 
 	/**
-	 * Add a Node for a Note in the DOM
+	 * Output a Note (inside its Component/Location/...)
 	 * 
 	 * @param note
-	 * @param parentNode
-	 *            Node of the Note's Component/Location/...
 	 */
-	public void buildNote(String note, Element parentNode)
+	private void buildNote(String note) throws XMLStreamException
 	{
-		buildText(note, parentNode, "note");
+		buildText(note, "note");
 	}
 
-	public void buildPosition(UIPosition pos, Element parentNode)
+	private void buildPosition(UIPosition pos) throws XMLStreamException
 	{
 		if (pos == null)
 			return;
 
-		parentNode.setAttribute("x", doubleToString(pos.getX()));
-		parentNode.setAttribute("y", doubleToString(pos.getY()));
+		mOutput.setAttribute("x", doubleToString(pos.getX()));
+		mOutput.setAttribute("y", doubleToString(pos.getY()));
 	}
 
-	public void buildDimensions(UIDimensions dim, Element parentNode)
+	private void buildDimensions(UIDimensions dim) throws XMLStreamException
 	{
 		if (dim == null)
 			return;
 
-		parentNode.setAttribute("width", doubleToString(dim.getWidth()));
-		parentNode.setAttribute("height", doubleToString(dim.getHeight()));
+		mOutput.setAttribute("width", doubleToString(dim.getWidth()));
+		mOutput.setAttribute("height", doubleToString(dim.getHeight()));
 	}
 
-	public void buildExpression(Expression expression, Element parentNode, String tagName,
-			FormulaType type)
+	private void buildExpression(Expression expression, String tagName, FormulaType type)
+			throws XMLStreamException
 	{
 		if (expression == null)
 			return;
 
-		buildText(expressionToString(expression, type, tagName).replace("&", "&\n"), parentNode,
-				tagName);
+		buildText(expressionToString(expression, type, tagName).replace("&", "&\n"), tagName);
+	}
+
+	private void buildExpression(Expression expression, String tagName)
+			throws XMLStreamException
+	{
+		buildExpression(expression, tagName, FormulaType.DEFAULT);
+	}
+
+	/**
+	 * Receives the elements of the document, in document order. Attributes of
+	 * an element are set before its text or child elements.
+	 */
+	private interface XMLOutput
+	{
+		void startElement(String name) throws XMLStreamException;
+
+		void setAttribute(String name, String value) throws XMLStreamException;
+
+		void setText(String text) throws XMLStreamException;
+
+		void endElement() throws XMLStreamException;
+	}
+
+	/**
+	 * Builds a W3C DOM
+	 */
+	private static class DOMOutput implements XMLOutput
+	{
+		private Document doc;
+		private Node current;
+
+		public DOMOutput(Document doc)
+		{
+			this.doc = doc;
+			this.current = doc;
+		}
+
+		@Override
+		public void startElement(String name)
+		{
+			Element e = doc.createElement(name);
+			current.appendChild(e);
+			current = e;
+		}
+
+		@Override
+		public void setAttribute(String name, String value)
+		{
+			((Element) current).setAttribute(name, value);
+		}
+
+		@Override
+		public void setText(String text)
+		{
+			current.setTextContent(text);
+		}
+
+		@Override
+		public void endElement()
+		{
+			current = current.getParentNode();
+		}
+	}
+
+	/**
+	 * Writes to an XMLStreamWriter, formatted like the Transformer output of
+	 * the DOM: two-space indentation, text-only elements on one line, empty
+	 * elements self-closed and attributes sorted by name (with the namespace
+	 * first). An element's start tag is written once its attributes are
+	 * complete.
+	 */
+	private static class StreamOutput implements XMLOutput
+	{
+		private static final String NAMESPACE_ATTRIBUTE = "xmlns";
+
+		private XMLStreamWriter xml;
+
+		// the element whose start tag is not written yet (or null)
+		private String pendingElement = null;
+		private TreeMap<String, String> pendingAttributes = new TreeMap<String, String>();
+
+		// for each open element, if it has child elements
+		private ArrayList<Boolean> hasChildren = new ArrayList<Boolean>();
+
+		public StreamOutput(XMLStreamWriter xml)
+		{
+			this.xml = xml;
+		}
+
+		@Override
+		public void startElement(String name) throws XMLStreamException
+		{
+			if (!hasChildren.isEmpty())
+			{
+				writePendingStartTag(false);
+				hasChildren.set(hasChildren.size() - 1, true);
+			}
+
+			writeIndentation(hasChildren.size());
+			hasChildren.add(false);
+			pendingElement = name;
+		}
+
+		@Override
+		public void setAttribute(String name, String value)
+		{
+			if (pendingElement == null)
+				throw new AutomatonExportException("Attribute '" + name
+						+ "' was set after the start tag was written");
+
+			pendingAttributes.put(name, value);
+		}
+
+		@Override
+		public void setText(String text) throws XMLStreamException
+		{
+			// same as setTextContent() of an empty element
+			if (text != null && text.length() > 0)
+			{
+				writePendingStartTag(false);
+				xml.writeCharacters(text);
+			}
+		}
+
+		@Override
+		public void endElement() throws XMLStreamException
+		{
+			boolean children = hasChildren.remove(hasChildren.size() - 1);
+
+			if (pendingElement != null)
+				writePendingStartTag(true);
+			else
+			{
+				if (children)
+					writeIndentation(hasChildren.size());
+
+				xml.writeEndElement();
+			}
+		}
+
+		private void writePendingStartTag(boolean isEmpty) throws XMLStreamException
+		{
+			if (pendingElement == null)
+				return;
+
+			if (isEmpty)
+				xml.writeEmptyElement(pendingElement);
+			else
+				xml.writeStartElement(pendingElement);
+
+			String namespace = pendingAttributes.remove(NAMESPACE_ATTRIBUTE);
+
+			if (namespace != null)
+				xml.writeDefaultNamespace(namespace);
+
+			for (Entry<String, String> e : pendingAttributes.entrySet())
+				xml.writeAttribute(e.getKey(), e.getValue());
+
+			pendingElement = null;
+			pendingAttributes.clear();
+		}
+
+		private void writeIndentation(int depth) throws XMLStreamException
+		{
+			StringBuilder sb = new StringBuilder(1 + 2 * depth);
+			sb.append('\n');
+
+			for (int i = 0; i < depth; ++i)
+				sb.append("  ");
+
+			xml.writeCharacters(sb.toString());
+		}
 	}
 
-	public void buildExpression(Expression expression, Element parentNode, String tagName)
+	/**
+	 * Escapes characters the way the Transformer does for ISO-8859-1 output,
+	 * where the XMLStreamWriter leaves them as they are: characters outside of
+	 * ISO-8859-1 and carriage returns become character references, as do tabs
+	 * and newlines inside tags (in attribute values). The text passing through
+	 * is already escaped, so a '<' or '>' is always markup.
+	 */
+	private static class CharacterReferenceWriter extends FilterWriter
 	{
-		buildExpression(expression, parentNode, tagName, FormulaType.DEFAULT);
+		private boolean inTag = false;
+		private char highSurrogate = 0;
+
+		public CharacterReferenceWriter(Writer out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int c) throws IOException
+		{
+			char ch = (char) c;
+
+			if (highSurrogate != 0)
+			{
+				int codePoint = Character.toCodePoint(highSurrogate, ch);
+				highSurrogate = 0;
+				writeReference(codePoint);
+			}
+			else if (Character.isHighSurrogate(ch))
+				highSurrogate = ch;
+			else if (ch > 0xff || ch == '\r' || (inTag && (ch == '\n' || ch == '\t')))
+				writeReference(ch);
+			else
+			{
+				if (ch == '<')
+					inTag = true;
+				else if (ch == '>')
+					inTag = false;
+
+				out.write(ch);
+			}
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException
+		{
+			int start = off;
+			int end = off + len;
+
+			// pass through runs of characters which are not changed
+			for (int i = off; i < end; ++i)
+			{
+				char ch = cbuf[i];
+
+				if (ch == '<' || ch == '>' || ch == '\r' || ch > 0xff || highSurrogate != 0
+						|| (inTag && (ch == '\n' || ch == '\t')))
+				{
+					out.write(cbuf, start, i - start);
+					write(ch);
+					start = i + 1;
+				}
+			}
+
+			out.write(cbuf, start, end - start);
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException
+		{
+			write(str.toCharArray(), off, len);
+		}
+
+		private void writeReference(int codePoint) throws IOException
+		{
+			out.write("&#" + codePoint + ";");
+		}
 	}
 
 	/**
@@ -3,20 +3,29 @@
  */
 package de.uni_freiburg.informatik.swt.spaxeexxmlreader;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.regex.Pattern;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
@@ -44,18 +53,68 @@ import de.uni_freiburg.informatik.swt.sxhybridautomaton.VariableParam;
 /**
  * Load a SpaceExDocument from an XML file.
  * 
+ * The XML is read with a streaming (StAX) parser, and the SpaceEx objects are
+ * created while reading, so no DOM tree of the whole model is kept in memory.
+ * Like in a DOM traversal with getElementsByTagName(), the sub-elements of a
+ * component, location, transition or bind (for example &lt;note&gt; or
+ * &lt;guard&gt;) may be nested at any depth, and the first one is used.
+ * 
  * @author Christopher Dillo (dilloc@informatik.uni-freiburg.de)
  *
  */
 public class SpaceExXMLReader
 {
 
-	private Document mXMLDocument;
+	private File mXMLFile;
+	private byte[] mXMLBytes; // serialized DOM Document source
 	private FileReader mCFGFileReader;
 	private SpaceExDocument mTarget;
+	private XMLStreamReader mReader;
+
+	// elements which are currently open and want the text of the first
+	// <note> inside them
+	private ArrayList<NoteHolder> mOpenNotes = new ArrayList<NoteHolder>();
 
 	private boolean mPrintWarnings, mPrintErrors = true;
 
+	// notified as soon as each component has been completely read (may be
+	// null)
+	private ComponentListener mComponentListener;
+
+	/**
+	 * Receives every component right after its closing tag was read, before
+	 * the rest of the document is parsed. This allows converting (and then
+	 * discarding the details of) a component while the file is still being
+	 * streamed.
+	 */
+	public interface ComponentListener
+	{
+		void componentRead(SpaceExComponent component);
+	}
+
+	/**
+	 * The text of the first &lt;note&gt; inside an element
+	 */
+	private static class NoteHolder
+	{
+		String note = null;
+
+		String getNote()
+		{
+			return note == null ? "" : note;
+		}
+	}
+
+	/**
+	 * A &lt;param&gt; which was read before it was known if the component is
+	 * a base component or a network component
+	 */
+	private static class PendingParam
+	{
+		HashMap<String, String> attributes;
+		NoteHolder note;
+	}
+
 	/**
 	 * Create a new XML Reader for the given XML Document
 	 * 
@@ -63,7 +122,7 @@ public class SpaceExXMLReader
 	 */
 	public SpaceExXMLReader(Document xmlDocument)
 	{
-		mXMLDocument = xmlDocument;
+		mXMLBytes = serialize(xmlDocument);
 	}
 
 	/**
@@ -74,7 +133,7 @@ public class SpaceExXMLReader
 	 */
 	public SpaceExXMLReader(Document xmlDocument, FileReader cfgReader)
 	{
-		mXMLDocument = xmlDocument;
+		mXMLBytes = serialize(xmlDocument);
 		mCFGFileReader = cfgReader;
 	}
 
@@ -89,18 +148,7 @@ public class SpaceExXMLReader
 	{
 		File xmlFile = new File(xmlFileName);
 		if (xmlFile.isFile() && xmlFile.canRead())
-		{
-			try
-			{
-				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-				DocumentBuilder builder = factory.newDocumentBuilder();
-				mXMLDocument = builder.parse(xmlFile);
-			}
-			catch (Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
+			mXMLFile = xmlFile;
 		else
 			throw new RuntimeException("xml file doesn't exist or cannot be read: " + xmlFileName);
 
@@ -121,6 +169,28 @@ public class SpaceExXMLReader
 		}
 	}
 
+	private static byte[] serialize(Document xmlDocument)
+	{
+		byte[] rv = null;
+
+		if (xmlDocument != null)
+		{
+			try
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				TransformerFactory.newInstance().newTransformer()
+						.transform(new DOMSource(xmlDocument), new StreamResult(out));
+				rv = out.toByteArray();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		return rv;
+	}
+
 	/**
 	 * Read the XML document
 	 * 
@@ -129,15 +199,53 @@ public class SpaceExXMLReader
 	public SpaceExDocument read()
 	{
 		mTarget = new SpaceExDocument();
-		if (mXMLDocument != null)
+		InputStream in = null;
+
+		try
+		{
+			if (mXMLFile != null)
+				in = new BufferedInputStream(new FileInputStream(mXMLFile));
+			else if (mXMLBytes != null)
+				in = new ByteArrayInputStream(mXMLBytes);
+
+			if (in != null)
+			{
+				mReader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+				mReader.nextTag();
+				parseSSpaceEx();
+				mReader.close();
+			}
+			else
+			{
+				printError("No XML source set.");
+			}
+		}
+		catch (IOException e)
 		{
-			mXMLDocument.getDocumentElement().normalize();
-			parseSSpaceEx(mXMLDocument.getDocumentElement());
+			printError("Error reading XML: " + e.getMessage());
 		}
-		else
+		catch (XMLStreamException e)
 		{
-			printError("No XML source set.");
+			printError("Malformed XML: " + e.getMessage());
 		}
+		finally
+		{
+			mReader = null;
+			mOpenNotes.clear();
+
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+
 		parseCFG();
 		return mTarget;
 	}
@@ -162,20 +270,29 @@ public class SpaceExXMLReader
 		mPrintErrors = printErrors;
 	}
 
+	public ComponentListener getComponentListener()
+	{
+		return mComponentListener;
+	}
+
+	public void setComponentListener(ComponentListener listener)
+	{
+		mComponentListener = listener;
+	}
+
 	/**
-	 * Parse the &lt;sspaceex&gt;-Element of the DOM
-	 * 
-	 * @param element
+	 * Parse the &lt;sspaceex&gt;-Element (the reader is at its start tag)
 	 */
-	private void parseSSpaceEx(Element element)
+	private void parseSSpaceEx() throws XMLStreamException
 	{
-		if (element.getTagName().equalsIgnoreCase("sspaceex"))
-		{
+		String tagName = mReader.getLocalName();
 
-			String math = element.getAttribute("math");
+		if (tagName.equalsIgnoreCase("sspaceex"))
+		{
+			String math = getAttribute("math");
 			mTarget.setMathFormat(math);
 
-			String version = element.getAttribute("version");
+			String version = getAttribute("version");
 			mTarget.setVersion(version);
 
 			if (!math.equalsIgnoreCase("SpaceEx"))
@@ -187,472 +304,689 @@ public class SpaceExXMLReader
 				printWarning("Unexpected Version: " + version);
 			}
 
-			NodeList childNodes = element.getChildNodes();
-			for (int i = 0; i < childNodes.getLength(); i++)
+			boolean done = false;
+
+			while (!done)
 			{
-				Node child = childNodes.item(i);
-				if (child.getNodeType() == Node.ELEMENT_NODE)
+				int event = mReader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					parseComponent();
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					done = true;
+				}
+				else if (event == XMLStreamConstants.COMMENT)
 				{
-					parseComponent((Element) child);
+					printWarning(
+							"Unexpected node type of node #comment; " + mReader.getText());
 				}
-				else if (child.getNodeType() != Node.TEXT_NODE)
+				else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION)
 				{
-					printWarning("Unexpected node type of node " + child.getNodeName() + "; "
-							+ child.getNodeValue());
+					printWarning("Unexpected node type of node " + mReader.getPITarget() + "; "
+							+ mReader.getPIData());
+				}
+				else if (event == XMLStreamConstants.CDATA)
+				{
+					printWarning("Unexpected node type of node #cdata-section; "
+							+ mReader.getText());
 				}
 			}
 		}
 		else
 		{
-			printError("Invalid main element: " + element.getTagName());
+			printError("Invalid main element: " + tagName);
 		}
 	}
 
 	/**
-	 * Parse a &lt;component&gt;-Element of the DOM
-	 * 
-	 * @param element
+	 * Parse a &lt;component&gt;-Element (the reader is at its start tag). The
+	 * component is a network component if it contains &lt;bind&gt;-Elements,
+	 * otherwise it's a base component with locations and transitions. Params
+	 * are kept until this is known.
 	 */
-	private void parseComponent(Element element)
+	private void parseComponent() throws XMLStreamException
 	{
-		if (element.getTagName().equalsIgnoreCase("component"))
+		String tagName = mReader.getLocalName();
+
+		if (tagName.equalsIgnoreCase("component"))
 		{
-			NodeList params = element.getElementsByTagName("param");
-			NodeList binds = element.getElementsByTagName("bind");
+			String id = getAttribute("id");
+			NoteHolder note = openNote();
 
-			SpaceExComponent component;
-			if (binds.getLength() > 0)
-			{
-				// Binds -> Network Component
-				SpaceExNetworkComponent netComponent = new SpaceExNetworkComponent(mTarget);
-				component = netComponent;
+			SpaceExComponent component = null;
+			ArrayList<PendingParam> pendingParams = new ArrayList<PendingParam>();
 
-				parseBinds(binds, netComponent);
-			}
-			else
+			for (int depth = 1; depth > 0;)
 			{
-				// No Binds -> Base Component with Locations & Transitions
-				NodeList locations = element.getElementsByTagName("location");
-				NodeList transitions = element.getElementsByTagName("transition");
+				int event = mReader.next();
 
-				SpaceExBaseComponent baseComponent = new SpaceExBaseComponent(mTarget);
-				component = baseComponent;
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = mReader.getLocalName();
+
+					if (name.equals("param"))
+					{
+						PendingParam param = new PendingParam();
+						param.attributes = getAttributes();
+						param.note = openNote();
+						skipElement();
+						closeNote(param.note);
+
+						if (component == null)
+							pendingParams.add(param);
+						else
+							parseParam(param, component);
+					}
+					else if (name.equals("bind"))
+					{
+						if (component == null)
+						{
+							// Binds -> Network Component
+							component = new SpaceExNetworkComponent(mTarget);
+							parseParams(pendingParams, component);
+						}
+						else if (component instanceof SpaceExBaseComponent)
+							printError("Component " + id + " contains both binds and locations");
 
-				parseLocations(locations, baseComponent);
-				parseTransitions(transitions, baseComponent);
+						parseBind((SpaceExNetworkComponent) component);
+					}
+					else if (name.equals("location") || name.equals("transition"))
+					{
+						if (component == null)
+						{
+							// No Binds -> Base Component with Locations &
+							// Transitions
+							component = new SpaceExBaseComponent(mTarget);
+							parseParams(pendingParams, component);
+						}
+
+						if (component instanceof SpaceExBaseComponent)
+						{
+							if (name.equals("location"))
+								parseLocation((SpaceExBaseComponent) component);
+							else
+								parseTransition((SpaceExBaseComponent) component);
+						}
+						else
+							skipElement(); // ignored in network components
+					}
+					else if (name.equals("note"))
+						parseNote();
+					else
+						++depth;
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+					--depth;
 			}
-			parseParams(params, component);
 
-			component.setID(element.getAttribute("id"));
-			component.setNote(parseNote(element));
+			if (component == null)
+			{
+				component = new SpaceExBaseComponent(mTarget);
+				parseParams(pendingParams, component);
+			}
+
+			closeNote(note);
+			component.setID(id);
+			component.setNote(note.getNote());
+
+			if (mComponentListener != null)
+				mComponentListener.componentRead(component);
 		}
 		else
 		{
-			printError("Invalid Component element: " + element.getTagName());
+			printError("Invalid Component element: " + tagName);
 		}
 	}
 
 	/**
-	 * Parse all &lt;param&gt;-Elements of a Component
+	 * Create all the params of a Component
 	 * 
 	 * @param paramList
 	 * @param parentComponent
 	 */
-	private void parseParams(NodeList paramList, SpaceExComponent parentComponent)
+	private void parseParams(ArrayList<PendingParam> paramList, SpaceExComponent parentComponent)
 	{
-		for (int i = 0; i < paramList.getLength(); i++)
-		{
-			Node paramNode = paramList.item(i);
-
-			if (paramNode.getNodeName().equalsIgnoreCase("param")
-					&& paramNode.getNodeType() == Node.ELEMENT_NODE)
-			{
-				Element paramElement = (Element) paramNode;
-
-				String typeStr = paramElement.getAttribute("type");
-				String typeStrLower = typeStr.toLowerCase().trim();
-				ParamType type;
-				if (typeStrLower.equals("label"))
-					type = ParamType.LABEL;
-				else if (typeStrLower.equals("int"))
-					type = ParamType.INT;
-				else if (typeStrLower.equals("real"))
-					type = ParamType.REAL;
-				else
-				{
-					type = ParamType.LABEL;
-					printError("Invalid Param type: " + typeStr);
-				}
+		for (PendingParam p : paramList)
+			parseParam(p, parentComponent);
 
-				Param param;
-
-				if (type == ParamType.LABEL)
-				{
-					param = new LabelParam(parentComponent);
-				}
-				else
-				{
-					VariableParam varParam = new VariableParam(parentComponent);
-					param = varParam;
-					varParam.setType(type);
+		paramList.clear();
+	}
 
-					int dim = parseInt(paramElement, "d1", -1);
-					if (dim > 0)
-						varParam.setDimensionSize(1, dim);
-					else
-						varParam.setDimensionSize(1, paramElement.getAttribute("d1"));
-					dim = parseInt(paramElement, "d2", -1);
-					if (dim > 0)
-						varParam.setDimensionSize(2, dim);
-					else
-						varParam.setDimensionSize(2, paramElement.getAttribute("d2"));
-
-					String dynamicsStr = paramElement.getAttribute("dynamics");
-					String dynamicsStrLower = dynamicsStr.toLowerCase().trim();
-					ParamDynamics dynamics;
-					if (dynamicsStrLower.equals("any"))
-						dynamics = ParamDynamics.ANY;
-					else if (dynamicsStrLower.equals("const"))
-						dynamics = ParamDynamics.CONST;
-					else if (dynamicsStrLower.equals("explicit"))
-						dynamics = ParamDynamics.EXPLICIT;
-					else
-					{
-						dynamics = ParamDynamics.ANY;
-						printError("Invalid Param dynamics: " + dynamicsStr);
-					}
-					varParam.setDynamics(dynamics);
+	/**
+	 * Create a param from the attributes of a &lt;param&gt;-Element
+	 * 
+	 * @param paramElement
+	 * @param parentComponent
+	 */
+	private void parseParam(PendingParam paramElement, SpaceExComponent parentComponent)
+	{
+		HashMap<String, String> attributes = paramElement.attributes;
+
+		String typeStr = getAttribute(attributes, "type");
+		String typeStrLower = typeStr.toLowerCase().trim();
+		ParamType type;
+		if (typeStrLower.equals("label"))
+			type = ParamType.LABEL;
+		else if (typeStrLower.equals("int"))
+			type = ParamType.INT;
+		else if (typeStrLower.equals("real"))
+			type = ParamType.REAL;
+		else
+		{
+			type = ParamType.LABEL;
+			printError("Invalid Param type: " + typeStr);
+		}
 
-					if (paramElement.hasAttribute("controlled"))
-					{
-						varParam.setControlled(
-								paramElement.getAttribute("controlled").equalsIgnoreCase("true"));
-					}
-				}
-				param.setName(paramElement.getAttribute("name"));
+		Param param;
 
-				param.setLocal(paramElement.getAttribute("local").equalsIgnoreCase("true"));
+		if (type == ParamType.LABEL)
+		{
+			param = new LabelParam(parentComponent);
+		}
+		else
+		{
+			VariableParam varParam = new VariableParam(parentComponent);
+			param = varParam;
+			varParam.setType(type);
 
-				param.setNote(parseNote(paramElement));
-			}
+			int dim = parseInt(attributes, "d1", -1);
+			if (dim > 0)
+				varParam.setDimensionSize(1, dim);
+			else
+				varParam.setDimensionSize(1, getAttribute(attributes, "d1"));
+			dim = parseInt(attributes, "d2", -1);
+			if (dim > 0)
+				varParam.setDimensionSize(2, dim);
+			else
+				varParam.setDimensionSize(2, getAttribute(attributes, "d2"));
+
+			String dynamicsStr = getAttribute(attributes, "dynamics");
+			String dynamicsStrLower = dynamicsStr.toLowerCase().trim();
+			ParamDynamics dynamics;
+			if (dynamicsStrLower.equals("any"))
+				dynamics = ParamDynamics.ANY;
+			else if (dynamicsStrLower.equals("const"))
+				dynamics = ParamDynamics.CONST;
+			else if (dynamicsStrLower.equals("explicit"))
+				dynamics = ParamDynamics.EXPLICIT;
 			else
 			{
-				printError("Invalid Param node: " + paramNode.getNodeName());
+				dynamics = ParamDynamics.ANY;
+				printError("Invalid Param dynamics: " + dynamicsStr);
+			}
+			varParam.setDynamics(dynamics);
+
+			if (attributes.containsKey("controlled"))
+			{
+				varParam.setControlled(attributes.get("controlled").equalsIgnoreCase("true"));
 			}
 		}
+		param.setName(getAttribute(attributes, "name"));
+
+		param.setLocal(getAttribute(attributes, "local").equalsIgnoreCase("true"));
+
+		param.setNote(paramElement.note.getNote());
 	}
 
 	/**
-	 * Parse all &lt;bind&gt;-Elements of a Component
+	 * Parse a &lt;bind&gt;-Element and its &lt;map&gt;-Elements (the reader
+	 * is at its start tag)
 	 * 
-	 * @param bindList
 	 * @param parentComponent
 	 */
-	private void parseBinds(NodeList bindList, SpaceExNetworkComponent parentComponent)
+	private void parseBind(SpaceExNetworkComponent parentComponent) throws XMLStreamException
 	{
-		for (int i = 0; i < bindList.getLength(); i++)
-		{
-			Node bindNode = bindList.item(i);
-
-			if (bindNode.getNodeName().equalsIgnoreCase("bind")
-					&& bindNode.getNodeType() == Node.ELEMENT_NODE)
-			{
-				Element bindElement = (Element) bindNode;
+		HashMap<String, String> attributes = getAttributes();
+		NoteHolder note = openNote();
 
-				Bind bind = new Bind(parentComponent);
+		Bind bind = new Bind(parentComponent);
 
-				bind.setAs(bindElement.getAttribute("as"));
-				bind.setComponent(bindElement.getAttribute("component"));
+		bind.setAs(getAttribute(attributes, "as"));
+		bind.setComponent(getAttribute(attributes, "component"));
 
-				bind.setNote(parseNote(bindElement));
+		UIPosition position = parsePosition(attributes);
+		if (position != null)
+			bind.setPosition(position);
+		UIDimensions dimensions = parseDimensions(attributes);
+		if (dimensions != null)
+			bind.setDimensions(dimensions);
 
-				UIPosition position = parsePosition(bindElement);
-				if (position != null)
-					bind.setPosition(position);
-				UIDimensions dimensions = parseDimensions(bindElement);
-				if (dimensions != null)
-					bind.setDimensions(dimensions);
+		for (int depth = 1; depth > 0;)
+		{
+			int event = mReader.next();
 
-				NodeList mapList = bindElement.getElementsByTagName("map");
-				parseMaps(mapList, bind);
-			}
-			else
+			if (event == XMLStreamConstants.START_ELEMENT)
 			{
-				printError("Invalid Bind node: " + bindNode.getNodeName());
+				String name = mReader.getLocalName();
+
+				if (name.equals("map"))
+					parseMap(bind);
+				else if (name.equals("note"))
+					parseNote();
+				else
+					++depth;
 			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				--depth;
 		}
+
+		closeNote(note);
+		bind.setNote(note.getNote());
 	}
 
 	/**
-	 * Parse all &lt;map&gt;-Elements of a Component
+	 * Parse a &lt;map&gt;-Element (the reader is at its start tag)
 	 * 
-	 * @param mapList
-	 * @param parentComponent
+	 * @param parentBind
 	 */
-	private void parseMaps(NodeList mapList, Bind parentBind)
+	private void parseMap(Bind parentBind) throws XMLStreamException
 	{
-		for (int i = 0; i < mapList.getLength(); i++)
-		{
-			Node mapNode = mapList.item(i);
+		String key = getAttribute("key");
 
-			if (mapNode.getNodeName().equalsIgnoreCase("map")
-					&& mapNode.getNodeType() == Node.ELEMENT_NODE)
-			{
-				Element mapElement = (Element) mapNode;
+		// only use the text directly inside the map, so this works with the
+		// <link> elements produced in the maps of the new space ex model
+		// editor
+		String content = "";
 
-				// old version doesn't work with <link> attributes produced in
-				// the maps of the new space ex model editor
-				// String content = mapElement.getTextContent().trim();
+		for (int depth = 1; depth > 0;)
+		{
+			int event = mReader.next();
 
-				// this new version works with the <link> attributes produced in
-				// the maps of the new space ex model editor
-				String content = "";
-				for (Node n = mapElement.getFirstChild(); n != null; n = n.getNextSibling())
-				{
-					if (n.getNodeType() == Node.TEXT_NODE)
-						content += n.getTextContent();
-				}
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				if (mReader.getLocalName().equals("note"))
+					parseNote();
+				else
+					++depth;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				--depth;
+			else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS
+					|| event == XMLStreamConstants.SPACE))
+				content += mReader.getText();
+		}
 
-				content = content.trim();
+		content = content.trim();
 
-				String contentStart = content.substring(0, 1);
+		String contentStart = content.substring(0, 1);
 
-				/*
-				 * We need to check if we have a Param reference or a list of
-				 * concrete values.
-				 */
-				Pattern regex = Pattern.compile("^[a-zA-Z_]");
+		/*
+		 * We need to check if we have a Param reference or a list of concrete
+		 * values.
+		 */
+		Pattern regex = Pattern.compile("^[a-zA-Z_]");
 
-				BindMap map;
-				if (regex.matcher(contentStart).find())
-				{
-					// content is a Param name
-					ParamMap paramMap = new ParamMap(parentBind);
-					map = paramMap;
-					paramMap.setParamReference(content);
+		BindMap map;
+		if (regex.matcher(contentStart).find())
+		{
+			// content is a Param name
+			ParamMap paramMap = new ParamMap(parentBind);
+			map = paramMap;
+			paramMap.setParamReference(content);
 
-				}
-				else
+		}
+		else
+		{
+			// content is a sequence of values
+			ValueMap valueMap = new ValueMap(parentBind);
+			map = valueMap;
+
+			String[] values = content.split(" ");
+			double currentValue;
+			boolean gotValue;
+			for (int j = 0; j < values.length; j++)
+			{
+				if (values[j] != "")
 				{
-					// content is a sequence of values
-					ValueMap valueMap = new ValueMap(parentBind);
-					map = valueMap;
-
-					String[] values = content.split(" ");
-					double currentValue;
-					boolean gotValue;
-					for (int j = 0; j < values.length; j++)
+					try
 					{
-						if (values[j] != "")
-						{
-							try
-							{
-								currentValue = Double.parseDouble(values[j]);
-								gotValue = true;
-							}
-							catch (Exception e)
-							{
-								currentValue = 0.0;
-								gotValue = false;
-							}
-							if (gotValue)
-								valueMap.addValue(currentValue);
-						}
+						currentValue = Double.parseDouble(values[j]);
+						gotValue = true;
 					}
+					catch (Exception e)
+					{
+						currentValue = 0.0;
+						gotValue = false;
+					}
+					if (gotValue)
+						valueMap.addValue(currentValue);
 				}
-				map.setKey(mapElement.getAttribute("key"));
-			}
-			else
-			{
-				printError("Invalid Map node: " + mapNode.getNodeName());
 			}
 		}
+		map.setKey(key);
 	}
 
 	/**
-	 * Parse all &lt;location&gt;-Elements of a Component
+	 * Parse a &lt;location&gt;-Element (the reader is at its start tag)
 	 * 
-	 * @param locationList
 	 * @param parentComponent
 	 */
-	private void parseLocations(NodeList locationList, SpaceExBaseComponent parentComponent)
+	private void parseLocation(SpaceExBaseComponent parentComponent) throws XMLStreamException
 	{
-		for (int i = 0; i < locationList.getLength(); i++)
-		{
-			Node locationNode = locationList.item(i);
-
-			if (locationNode.getNodeName().equalsIgnoreCase("location")
-					&& locationNode.getNodeType() == Node.ELEMENT_NODE)
-			{
-				Element locationElement = (Element) locationNode;
+		HashMap<String, String> attributes = getAttributes();
+		NoteHolder note = openNote();
 
-				Location location = new Location(parentComponent);
+		Location location = new Location(parentComponent);
 
-				int id = parseInt(locationElement, "id", -1);
-				if (id < 0)
-					printError("Unable to parse Location ID");
-				location.setId(id);
-				location.setName(locationElement.getAttribute("name"));
+		int id = parseInt(attributes, "id", -1);
+		if (id < 0)
+			printError("Unable to parse Location ID");
+		location.setId(id);
+		location.setName(getAttribute(attributes, "name"));
 
-				Expression invariant = parseFormula(locationElement, "invariant");
-				if (invariant != null)
-					location.setInvariant(invariant);
+		String invariantText = null;
+		String flowText = null;
 
-				Expression flow = parseFormula(locationElement, "flow");
-				if (flow != null)
-					location.setFlow(flow);
-
-				location.setNote(parseNote(locationElement));
+		for (int depth = 1; depth > 0;)
+		{
+			int event = mReader.next();
 
-				UIPosition position = parsePosition(locationElement);
-				if (position != null)
-					location.setPosition(position);
-				UIDimensions dimensions = parseDimensions(locationElement);
-				if (dimensions != null)
-					location.setDimensions(dimensions);
-			}
-			else
+			if (event == XMLStreamConstants.START_ELEMENT)
 			{
-				printError("Invalid Location node: " + locationNode.getNodeName());
+				String name = mReader.getLocalName();
+
+				if (name.equals("invariant") && invariantText == null)
+					invariantText = readText();
+				else if (name.equals("flow") && flowText == null)
+					flowText = readText();
+				else if (name.equals("note"))
+					parseNote();
+				else
+					++depth;
 			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				--depth;
 		}
+
+		Expression invariant = parseFormula(invariantText, "invariant");
+		if (invariant != null)
+			location.setInvariant(invariant);
+
+		Expression flow = parseFormula(flowText, "flow");
+		if (flow != null)
+			location.setFlow(flow);
+
+		closeNote(note);
+		location.setNote(note.getNote());
+
+		UIPosition position = parsePosition(attributes);
+		if (position != null)
+			location.setPosition(position);
+		UIDimensions dimensions = parseDimensions(attributes);
+		if (dimensions != null)
+			location.setDimensions(dimensions);
 	}
 
 	/**
-	 * Parse all &lt;transition&gt;-Elements of a Component
+	 * Parse a &lt;transition&gt;-Element (the reader is at its start tag)
 	 * 
-	 * @param transitionList
 	 * @param parentComponent
 	 */
-	private void parseTransitions(NodeList transitionList, SpaceExBaseComponent parentComponent)
+	private void parseTransition(SpaceExBaseComponent parentComponent) throws XMLStreamException
 	{
-		for (int i = 0; i < transitionList.getLength(); i++)
+		HashMap<String, String> attributes = getAttributes();
+		NoteHolder note = openNote();
+
+		Transition transition = new Transition(parentComponent);
+
+		String labelText = null;
+		String guardText = null;
+		String assignmentText = null;
+		HashMap<String, String> labelPosition = null;
+		HashMap<String, String> middlePoint = null;
+		String beforeMiddleText = null;
+		String afterMiddleText = null;
+		boolean hasWaypoints = false;
+
+		for (int depth = 1; depth > 0;)
 		{
-			Node transitionNode = transitionList.item(i);
+			int event = mReader.next();
 
-			if (transitionNode.getNodeName().equalsIgnoreCase("transition")
-					&& transitionNode.getNodeType() == Node.ELEMENT_NODE)
+			if (event == XMLStreamConstants.START_ELEMENT)
 			{
-				Element transitionElement = (Element) transitionNode;
+				String name = mReader.getLocalName();
+
+				if (name.equals("label") && labelText == null)
+					labelText = readText();
+				else if (name.equals("guard") && guardText == null)
+					guardText = readText();
+				else if (name.equals("assignment") && assignmentText == null)
+					assignmentText = readText();
+				else if (name.equals("beforemiddle") && hasWaypoints && beforeMiddleText == null)
+					beforeMiddleText = readText();
+				else if (name.equals("aftermiddle") && hasWaypoints && afterMiddleText == null)
+					afterMiddleText = readText();
+				else if (name.equals("note"))
+					parseNote();
+				else
+				{
+					if (name.equals("labelposition") && labelPosition == null)
+						labelPosition = getAttributes();
+					else if (name.equals("middlepoint") && middlePoint == null)
+						middlePoint = getAttributes();
+					else if (name.equals("waypoints"))
+						hasWaypoints = true;
+
+					++depth;
+				}
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				--depth;
+		}
 
-				Transition transition = new Transition(parentComponent);
+		if (labelText != null)
+			transition.setLabel(labelText);
 
-				Node labelNode = transitionElement.getElementsByTagName("label").item(0);
-				if (labelNode != null)
-					transition.setLabel(labelNode.getTextContent());
+		int sourceId = parseInt(attributes, "source", -1);
+		if (sourceId < 0)
+			printError("Unable to parse Transition source ID");
+		transition.setSource(sourceId);
+		int targetId = parseInt(attributes, "target", -1);
+		if (targetId < 0)
+			printError("Unable to parse Transition target ID");
+		transition.setTarget(targetId);
 
-				int sourceId = parseInt(transitionElement, "source", -1);
-				if (sourceId < 0)
-					printError("Unable to parse Transition source ID");
-				transition.setSource(sourceId);
-				int targetId = parseInt(transitionElement, "target", -1);
-				if (targetId < 0)
-					printError("Unable to parse Transition target ID");
-				transition.setTarget(targetId);
+		if (attributes.containsKey("asap"))
+		{
+			transition.setAsap(attributes.get("asap").equalsIgnoreCase("true"));
+		}
+		if (attributes.containsKey("timedriven"))
+		{
+			transition.setTimeDriven(attributes.get("timedriven").equalsIgnoreCase("true"));
+		}
+		if (attributes.containsKey("bezier"))
+		{
+			transition.setBezier(attributes.get("bezier").equalsIgnoreCase("true"));
+		}
 
-				if (transitionElement.hasAttribute("asap"))
-				{
-					transition.setAsap(
-							transitionElement.getAttribute("asap").equalsIgnoreCase("true"));
-				}
-				if (transitionElement.hasAttribute("timedriven"))
-				{
-					transition.setTimeDriven(
-							transitionElement.getAttribute("timedriven").equalsIgnoreCase("true"));
-				}
-				if (transitionElement.hasAttribute("bezier"))
-				{
-					transition.setBezier(
-							transitionElement.getAttribute("bezier").equalsIgnoreCase("true"));
-				}
+		if (attributes.containsKey("priority"))
+		{
+			int priority = parseInt(attributes, "priority", -1);
+			if (priority < 0)
+				printError("Unable to parse Transition priority");
+			transition.setPriority(priority);
+		}
 
-				if (transitionElement.hasAttribute("priority"))
-				{
-					int priority = parseInt(transitionElement, "priority", -1);
-					if (priority < 0)
-						printError("Unable to parse Transition priority");
-					transition.setPriority(priority);
-				}
+		Expression guard = parseFormula(guardText, "guard");
+		if (guard != null)
+			transition.setGuard(guard);
 
-				Expression guard = parseFormula(transitionElement, "guard");
-				if (guard != null)
-					transition.setGuard(guard);
+		Expression assignment = parseFormula(assignmentText, "assignment");
+		if (assignment != null)
+			transition.setAssignment(assignment);
 
-				Expression assignment = parseFormula(transitionElement, "assignment");
-				if (assignment != null)
-					transition.setAssignment(assignment);
+		closeNote(note);
+		transition.setNote(note.getNote());
 
-				transition.setNote(parseNote(transitionElement));
+		if (labelPosition != null)
+		{
+			UIPosition position = parsePosition(labelPosition);
+			if (position != null)
+				transition.setLabelPosition(position);
+			UIDimensions dimensions = parseDimensions(labelPosition);
+			if (dimensions != null)
+				transition.setLabelDimensions(dimensions);
+		}
 
-				Node labelPositionNode = transitionElement.getElementsByTagName("labelposition")
-						.item(0);
-				if (labelPositionNode != null)
-				{
-					UIPosition position = parsePosition((Element) labelPositionNode);
-					if (position != null)
-						transition.setLabelPosition(position);
-					UIDimensions dimensions = parseDimensions((Element) labelPositionNode);
-					if (dimensions != null)
-						transition.setLabelDimensions(dimensions);
-				}
+		if (middlePoint != null)
+		{
+			UIPosition position = parsePosition(middlePoint);
+			if (position != null)
+				transition.setMiddlepointPosition(position);
+		}
 
-				Node middlePointNode = transitionElement.getElementsByTagName("middlepoint")
-						.item(0);
-				if (middlePointNode != null)
-				{
-					UIPosition position = parsePosition((Element) middlePointNode);
-					if (position != null)
-						transition.setMiddlepointPosition(position);
-				}
+		if (hasWaypoints)
+		{
+			UIWaypoints waypoints = new UIWaypoints();
 
-				Node waypointsNode = transitionElement.getElementsByTagName("waypoints").item(0);
-				if (waypointsNode != null)
-					parseWaypoints(waypointsNode, transition);
-			}
-			else
-			{
-				printError("Invalid Transition node: " + transitionNode.getNodeName());
-			}
+			if (beforeMiddleText != null)
+				parseWaypointsList(beforeMiddleText, waypoints, true);
+
+			if (afterMiddleText != null)
+				parseWaypointsList(afterMiddleText, waypoints, false);
+
+			transition.setWaypoints(waypoints);
 		}
 	}
 
 	/**
-	 * Checks if a DOM Element has a &lt;note&gt; child Element and returns its
-	 * text content if any.
+	 * Start collecting the first &lt;note&gt; inside the current element
 	 * 
-	 * @param element
-	 *            The Element to examine (PARENT of the &lt;note&gt; node!)
-	 * @return The note's text or "" if no &lt;note&gt; is present
+	 * @return the holder which will get the note text
+	 */
+	private NoteHolder openNote()
+	{
+		NoteHolder rv = new NoteHolder();
+		mOpenNotes.add(rv);
+
+		return rv;
+	}
+
+	private void closeNote(NoteHolder holder)
+	{
+		mOpenNotes.remove(mOpenNotes.size() - 1);
+
+		if (holder != null && holder.note == null)
+			holder.note = "";
+	}
+
+	/**
+	 * Read a &lt;note&gt;-Element (the reader is at its start tag). Its text
+	 * becomes the note of every open element which doesn't have one yet.
 	 */
-	private String parseNote(Element element)
+	private void parseNote() throws XMLStreamException
 	{
-		if (element.hasChildNodes())
+		String text = readText();
+
+		for (int i = mOpenNotes.size() - 1; i >= 0; --i)
 		{
-			NodeList noteNodes = element.getElementsByTagName("note");
-			if (noteNodes.getLength() > 0)
+			NoteHolder holder = mOpenNotes.get(i);
+
+			if (holder.note != null)
+				break;
+
+			holder.note = text;
+		}
+	}
+
+	/**
+	 * Skip to the end of the current element, only handling &lt;note&gt;s
+	 */
+	private void skipElement() throws XMLStreamException
+	{
+		for (int depth = 1; depth > 0;)
+		{
+			int event = mReader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT)
 			{
-				return noteNodes.item(0).getTextContent();
+				if (mReader.getLocalName().equals("note"))
+					parseNote();
+				else
+					++depth;
 			}
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				--depth;
 		}
-		return "";
 	}
 
 	/**
-	 * Checks if a DOM Element has "x" and "y" attributes and transforms them
-	 * into a UIPosition if they're present.
+	 * Read all the text inside the current element (including nested
+	 * elements), leaving the reader at its end tag
+	 * 
+	 * @return the text content
+	 */
+	private String readText() throws XMLStreamException
+	{
+		StringBuilder rv = new StringBuilder();
+
+		for (int depth = 1; depth > 0;)
+		{
+			int event = mReader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT)
+				++depth;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				--depth;
+			else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+					|| event == XMLStreamConstants.SPACE)
+				rv.append(mReader.getText());
+		}
+
+		return rv.toString();
+	}
+
+	/**
+	 * Get an attribute of the current element
 	 * 
-	 * @param element
-	 *            The element which's position to check
+	 * @param name
+	 *            the attribute name
+	 * @return the value, or "" if the attribute doesn't exist
+	 */
+	private String getAttribute(String name)
+	{
+		String rv = mReader.getAttributeValue(null, name);
+
+		return rv == null ? "" : rv;
+	}
+
+	private HashMap<String, String> getAttributes()
+	{
+		int count = mReader.getAttributeCount();
+		HashMap<String, String> rv = new HashMap<String, String>(2 * count);
+
+		for (int i = 0; i < count; ++i)
+			rv.put(mReader.getAttributeLocalName(i), mReader.getAttributeValue(i));
+
+		return rv;
+	}
+
+	private static String getAttribute(HashMap<String, String> attributes, String name)
+	{
+		String rv = attributes.get(name);
+
+		return rv == null ? "" : rv;
+	}
+
+	/**
+	 * Checks if an element has "x" and "y" attributes and transforms them into
+	 * a UIPosition if they're present.
+	 * 
+	 * @param attributes
+	 *            The attributes of the element which's position to check
 	 * @return A new UIPosition of (x, y) or null if "x" and "y" are not given
 	 */
-	private UIPosition parsePosition(Element element)
+	private UIPosition parsePosition(HashMap<String, String> attributes)
 	{
-		if (element.hasAttribute("x") && element.hasAttribute("y"))
+		if (attributes.containsKey("x") && attributes.containsKey("y"))
 		{
 			double x;
 			try
 			{
-				x = Double.parseDouble(element.getAttribute("x"));
+				x = Double.parseDouble(attributes.get("x"));
 			}
 			catch (Exception e)
 			{
@@ -661,7 +995,7 @@ public class SpaceExXMLReader
 			double y;
 			try
 			{
-				y = Double.parseDouble(element.getAttribute("y"));
+				y = Double.parseDouble(attributes.get("y"));
 			}
 			catch (Exception e)
 			{
@@ -673,21 +1007,21 @@ public class SpaceExXMLReader
 	}
 
 	/**
-	 * Checks if a DOM Element has "x" and "y" attributes and transforms them
-	 * into a UIPosition if they're present.
+	 * Checks if an element has "width" and "height" attributes and transforms
+	 * them into a UIDimensions if they're present.
 	 * 
-	 * @param element
-	 *            The element which's position to check
-	 * @return A new UIPosition of (x, y) or null if "x" and "y" are not given
+	 * @param attributes
+	 *            The attributes of the element which's dimensions to check
+	 * @return A new UIDimensions or null if "width" and "height" are not given
 	 */
-	private UIDimensions parseDimensions(Element element)
+	private UIDimensions parseDimensions(HashMap<String, String> attributes)
 	{
-		if (element.hasAttribute("width") && element.hasAttribute("height"))
+		if (attributes.containsKey("width") && attributes.containsKey("height"))
 		{
 			double width;
 			try
 			{
-				width = Double.parseDouble(element.getAttribute("width"));
+				width = Double.parseDouble(attributes.get("width"));
 			}
 			catch (Exception e)
 			{
@@ -696,7 +1030,7 @@ public class SpaceExXMLReader
 			double height;
 			try
 			{
-				height = Double.parseDouble(element.getAttribute("height"));
+				height = Double.parseDouble(attributes.get("height"));
 			}
 			catch (Exception e)
 			{
@@ -708,54 +1042,20 @@ public class SpaceExXMLReader
 	}
 
 	/**
-	 * Parses the Waypoints of a Transition
-	 * 
-	 * @param waypointsNode
-	 * @param parentTransition
-	 */
-	private void parseWaypoints(Node waypointsNode, Transition parentTransition)
-	{
-		if (waypointsNode.getNodeName().equalsIgnoreCase("waypoints")
-				&& waypointsNode.getNodeType() == Node.ELEMENT_NODE)
-		{
-			Element waypointsElement = (Element) waypointsNode;
-
-			UIWaypoints waypoints = new UIWaypoints();
-
-			Node beforeMiddleNode = waypointsElement.getElementsByTagName("beforemiddle").item(0);
-			if ((beforeMiddleNode != null) && (beforeMiddleNode.getNodeType() == Node.ELEMENT_NODE))
-			{
-				parseWaypointsList((Element) beforeMiddleNode, waypoints, true);
-			}
-			Node afterMiddleNode = waypointsElement.getElementsByTagName("aftermiddle").item(0);
-			if ((afterMiddleNode != null) && (afterMiddleNode.getNodeType() == Node.ELEMENT_NODE))
-			{
-				parseWaypointsList((Element) afterMiddleNode, waypoints, false);
-			}
-
-			parentTransition.setWaypoints(waypoints);
-		}
-		else
-		{
-			printError("Invalid Waypoints node: " + waypointsNode.getNodeName());
-		}
-	}
-
-	/**
-	 * Parse a list of waypoints from a &lt;beforemiddle&gt; or
-	 * &lt;aftermiddle&gt; Node
+	 * Parse a list of waypoints from the text of a &lt;beforemiddle&gt; or
+	 * &lt;aftermiddle&gt; element
 	 * 
-	 * @param source
+	 * @param text
 	 * @param waypoints
 	 * @param insertBefore
 	 */
-	private void parseWaypointsList(Element source, UIWaypoints waypoints, boolean insertBefore)
+	private void parseWaypointsList(String text, UIWaypoints waypoints, boolean insertBefore)
 	{
 		/*
 		 * waypoints are given as a comma-separated list of REAL values, which
 		 * use a dot as the decimal separator.
 		 */
-		String content = source.getTextContent().trim();
+		String content = text.trim();
 		String[] values = content.split(",");
 		double currentValue, previousValue = 0.0;
 		int valueCounter = 0;
@@ -795,12 +1095,13 @@ public class SpaceExXMLReader
 		}
 	}
 
-	private int parseInt(Element source, String attributeName, int defaultValue)
+	private int parseInt(HashMap<String, String> attributes, String attributeName,
+			int defaultValue)
 	{
 		int result;
 		try
 		{
-			result = Integer.parseInt(source.getAttribute(attributeName));
+			result = Integer.parseInt(attributes.get(attributeName));
 		}
 		catch (Exception E)
 		{
@@ -809,15 +1110,12 @@ public class SpaceExXMLReader
 		return result;
 	}
 
-	private Expression parseFormula(Element parentElement, String nodeName)
+	private Expression parseFormula(String text, String nodeName)
 	{
 		Expression rv = null;
 
-		NodeList nodes = parentElement.getElementsByTagName(nodeName);
-		if ((nodes != null) && (nodes.getLength() > 0))
+		if (text != null)
 		{
-			String text = nodes.item(0).getTextContent();
-
 			if (nodeName.equals("invariant"))
 				rv = FormulaParser.parseInvariant(text);
 			else if (nodeName.equals("assignment"))
@@ -144,6 +144,14 @@ public class SpaceExBaseComponent extends SpaceExComponent
 		mTransitions.add(transition);
 	}
 
+	/**
+	 * Remove all the Transitions
+	 */
+	public void clearTransitions()
+	{
+		mTransitions.clear();
+	}
+
 	/**
 	 * Arrange the transitions such that the unlabeled ones are before the
 	 * labeled ones
@@ -0,0 +1,207 @@
+'''
+Framed request/response server used by Hyst's PythonBridge (Java).
+
+Instead of driving an interactive interpreter and scraping its prompt, the
+Java side starts this module with 'python -m pythonbridge.bridge_server' and
+exchanges length-prefixed binary frames over stdin / stdout.
+
+Every frame (both directions) is a big-endian int32 payload length followed
+by the payload. A request payload is:
+
+    kind (1 byte) | code length (int32) | code (utf-8) | count (int32) | count doubles
+
+and a response payload is:
+
+    status (1 byte) | text length (int32) | text (utf-8) | count (int32) | count doubles
+
+Request kinds: 'E' executes code like the interactive interpreter would (the
+value of expression statements is echoed) and returns captured stdout as
+text. 'D' evaluates a single expression and returns its value, flattened into
+a list of doubles, for example a list of [min, max] intervals. For both kinds
+the request doubles are bound to _hyst_args before the code runs. 'Q' stops
+the server.
+
+Response statuses: 'T' (text), 'D' (doubles), 'X' (error, text is the
+traceback or the stderr output).
+'''
+
+import ast
+import os
+import struct
+import sys
+import traceback
+import types
+
+try:
+    from StringIO import StringIO
+except ImportError:
+    from io import StringIO
+
+REQ_EXEC = b'E'
+REQ_EVAL_DOUBLES = b'D'
+REQ_QUIT = b'Q'
+
+RES_TEXT = b'T'
+RES_DOUBLES = b'D'
+RES_ERROR = b'X'
+
+ARGS_NAME = '_hyst_args'
+
+def read_exact(stream, num_bytes):
+    '''read exactly num_bytes from the stream, or return None at end of stream'''
+
+    parts = []
+    remaining = num_bytes
+
+    while remaining > 0:
+        part = stream.read(remaining)
+
+        if not part:
+            return None
+
+        parts.append(part)
+        remaining -= len(part)
+
+    return b''.join(parts)
+
+def read_request(stream):
+    '''read a request frame, returns (kind, code, doubles) or None at end of stream'''
+
+    header = read_exact(stream, 4)
+
+    if header is None:
+        return None
+
+    length = struct.unpack('>i', header)[0]
+    payload = read_exact(stream, length)
+
+    if payload is None:
+        return None
+
+    kind = payload[0:1]
+    code_len = struct.unpack('>i', payload[1:5])[0]
+    code = payload[5:5 + code_len].decode('utf-8')
+
+    offset = 5 + code_len
+    count = struct.unpack('>i', payload[offset:offset + 4])[0]
+    offset += 4
+    doubles = struct.unpack('>%dd' % count, payload[offset:offset + 8 * count])
+
+    return kind, code, doubles
+
+def write_response(stream, status, text='', doubles=()):
+    '''write a response frame and flush it'''
+
+    text_bytes = text.encode('utf-8')
+    payload = b''.join([status, struct.pack('>i', len(text_bytes)), text_bytes,
+                        struct.pack('>i', len(doubles)), struct.pack('>%dd' % len(doubles), *doubles)])
+
+    stream.write(struct.pack('>i', len(payload)) + payload)
+    stream.flush()
+
+def flatten_doubles(value, rv=None):
+    '''flatten a (possibly nested) list / tuple of numbers into a list of floats'''
+
+    if rv is None:
+        rv = []
+
+    if isinstance(value, (list, tuple)):
+        for v in value:
+            flatten_doubles(v, rv)
+    else:
+        rv.append(float(value))
+
+    return rv
+
+def run_interactive(code, namespace):
+    '''run code like the interactive interpreter, echoing expression statement values'''
+
+    tree = ast.parse(code, '<hyst>', 'exec')
+    interactive = ast.Interactive(body=tree.body)
+
+    exec(compile(interactive, '<hyst>', 'single'), namespace)
+
+def handle(kind, code, doubles, namespace):
+    '''handle a single request, returns (status, text, doubles)'''
+
+    real_stdout = sys.stdout
+    real_stderr = sys.stderr
+    captured_out = StringIO()
+    captured_err = StringIO()
+    result = ()
+
+    sys.stdout = captured_out
+    sys.stderr = captured_err
+
+    try:
+        namespace[ARGS_NAME] = doubles
+
+        if kind == REQ_EXEC:
+            run_interactive(code, namespace)
+        elif kind == REQ_EVAL_DOUBLES:
+            result = flatten_doubles(eval(compile(code, '<hyst>', 'eval'), namespace))
+        else:
+            raise ValueError("unknown request kind: {}".format(kind))
+    except Exception: # pylint: disable=broad-except
+        traceback.print_exc()
+    finally:
+        sys.stdout = real_stdout
+        sys.stderr = real_stderr
+
+    out = captured_out.getvalue()
+    err = captured_err.getvalue()
+
+    if len(err) > 0:
+        rv = (RES_ERROR, err, ())
+    elif kind == REQ_EVAL_DOUBLES:
+        rv = (RES_DOUBLES, out, result)
+    else:
+        rv = (RES_TEXT, out, ())
+
+    return rv
+
+def serve(in_stream, out_stream):
+    '''serve requests until end of stream or a quit request'''
+
+    # user code runs in a fresh __main__ module, so functions it defines can be pickled
+    # (multiprocessing.Pool looks them up there) without clobbering the server's globals
+    saved_main = sys.modules.get('__main__')
+    main_module = types.ModuleType('__main__')
+    sys.modules['__main__'] = main_module
+    namespace = main_module.__dict__
+
+    try:
+        # the hello frame replaces the interpreter preamble
+        write_response(out_stream, RES_TEXT, 'Python ' + sys.version)
+
+        while True:
+            request = read_request(in_stream)
+
+            if request is None or request[0] == REQ_QUIT:
+                break
+
+            status, text, doubles = handle(request[0], request[1], request[2], namespace)
+            write_response(out_stream, status, text, doubles)
+    finally:
+        sys.modules['__main__'] = saved_main
+
+def main():
+    'main entry point, serves over the process stdin / stdout'
+
+    if sys.platform == 'win32':
+        import msvcrt
+        msvcrt.setmode(sys.stdin.fileno(), os.O_BINARY)
+        msvcrt.setmode(sys.stdout.fileno(), os.O_BINARY)
+
+    # frames get a private copy of stdout; anything else writing to file descriptor 1
+    # (extension modules, forked workers) is sent to stderr so it can't corrupt a frame
+    out_fd = os.dup(sys.stdout.fileno())
+    os.dup2(sys.stderr.fileno(), sys.stdout.fileno())
+
+    in_stream = getattr(sys.stdin, 'buffer', sys.stdin)
+    out_stream = os.fdopen(out_fd, 'wb')
+
+    serve(in_stream, out_stream)
+
+if __name__ == '__main__':
+    main()
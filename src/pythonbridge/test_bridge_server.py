@@ -0,0 +1,89 @@
+'''Unit tests for the framed bridge server in pythonbridge'''
+
+import unittest
+import struct
+from io import BytesIO
+import bridge_server as server
+
+def _request(kind, code, doubles=()):
+    'encode a request frame'
+    code_bytes = code.encode('utf-8')
+    payload = b''.join([kind, struct.pack('>i', len(code_bytes)), code_bytes,
+                        struct.pack('>i', len(doubles)), struct.pack('>%dd' % len(doubles), *doubles)])
+
+    return struct.pack('>i', len(payload)) + payload
+
+def _responses(data):
+    'decode all the response frames, returns a list of (status, text, doubles)'
+    rv = []
+    stream = BytesIO(data)
+
+    while True:
+        header = stream.read(4)
+
+        if not header:
+            break
+
+        payload = stream.read(struct.unpack('>i', header)[0])
+        text_len = struct.unpack('>i', payload[1:5])[0]
+        text = payload[5:5 + text_len].decode('utf-8')
+        offset = 5 + text_len
+        count = struct.unpack('>i', payload[offset:offset + 4])[0]
+        doubles = struct.unpack('>%dd' % count, payload[offset + 4:offset + 4 + 8 * count])
+        rv.append((payload[0:1], text, doubles))
+
+    return rv
+
+class TestBridgeServer(unittest.TestCase):
+    'Unit tests for the bridge server'
+
+    def _serve(self, requests):
+        'run the server on the given request frames, returns the responses (excluding hello)'
+        out = BytesIO()
+        server.serve(BytesIO(b''.join(requests)), out)
+        res = _responses(out.getvalue())
+
+        self.assertEqual(res[0][0], server.RES_TEXT)
+        self.assertTrue(res[0][1].startswith('Python '))
+
+        return res[1:]
+
+    def test_exec_echoes_expressions(self):
+        'expression statements are echoed like in interactive mode'
+        res = self._serve([_request(b'E', 'x = 3'), _request(b'E', 'x + 1')])
+
+        self.assertEqual(res[0], (server.RES_TEXT, '', ()))
+        self.assertEqual(res[1], (server.RES_TEXT, '4\n', ()))
+
+    def test_multiline(self):
+        'function definitions with blank lines need no special handling'
+        code = 'def f(a):\n\n    b = a * 2\n\n    return b\nf(5)\n'
+        res = self._serve([_request(b'E', code)])
+
+        self.assertEqual(res[0], (server.RES_TEXT, '10\n', ()))
+
+    def test_eval_doubles(self):
+        'nested interval lists are flattened, request doubles are bound to _hyst_args'
+        code = '[[a, a * 2] for a in _hyst_args]'
+        res = self._serve([_request(b'D', code, (1.5, -2.0))])
+
+        self.assertEqual(res[0], (server.RES_DOUBLES, '', (1.5, 3.0, -2.0, -4.0)))
+
+    def test_error(self):
+        'exceptions are reported with the error status'
+        res = self._serve([_request(b'E', 'undefined_name'), _request(b'E', '1')])
+
+        self.assertEqual(res[0][0], server.RES_ERROR)
+        self.assertTrue('NameError' in res[0][1])
+
+        # the server keeps running after an error
+        self.assertEqual(res[1], (server.RES_TEXT, '1\n', ()))
+
+    def test_quit(self):
+        'quit stops the server'
+        res = self._serve([_request(b'Q', ''), _request(b'E', '1')])
+
+        self.assertEqual(len(res), 0)
+
+if __name__ == '__main__':
+    unittest.main()
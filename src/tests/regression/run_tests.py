@@ -217,7 +217,19 @@ def main():
 
     files = get_files(MODELS_PATH)
 
-    if parallel_run(files):
+    # convert all models in one Hyst process, rather than a new JVM each time
+    server = None
+
+    if hypy.get_hyst_server() is None:
+        server = hypy.start_hyst_server()
+
+    try:
+        success = parallel_run(files)
+    finally:
+        if server is not None:
+            hypy.stop_hyst_server(server)
+
+    if success:
         if skipped_tool == False:
             print "Done running all regression tests, success."
         else: